@@ -15,32 +15,55 @@
  */
 package com.smoketurner.uploader;
 
+import com.google.common.primitives.Ints;
 import com.smoketurner.uploader.config.AwsConfiguration;
+import com.smoketurner.uploader.config.BatchConfiguration;
 import com.smoketurner.uploader.config.Netty;
 import com.smoketurner.uploader.config.NettyConfiguration;
+import com.smoketurner.uploader.config.RetryConfiguration;
+import com.smoketurner.uploader.config.SpoolConfiguration;
 import com.smoketurner.uploader.config.UploaderConfiguration;
+import com.smoketurner.uploader.core.BatchAggregator;
+import com.smoketurner.uploader.core.Codecs;
+import com.smoketurner.uploader.core.CompressorMetrics;
+import com.smoketurner.uploader.core.CustomerQuotas;
+import com.smoketurner.uploader.core.DeadLetterQueue;
+import com.smoketurner.uploader.core.RetryPolicy;
+import com.smoketurner.uploader.core.Spool;
 import com.smoketurner.uploader.core.Uploader;
 import com.smoketurner.uploader.handler.UploadInitializer;
 import com.smoketurner.uploader.managed.ChannelFutureManager;
 import com.smoketurner.uploader.managed.EventLoopGroupManager;
+import com.smoketurner.uploader.managed.EventLoopLatencyMonitor;
+import com.smoketurner.uploader.managed.SpoolManager;
 import com.smoketurner.uploader.resources.BatchResource;
 import com.smoketurner.uploader.resources.PingResource;
 import com.smoketurner.uploader.resources.VersionResource;
+import com.smoketurner.uploader.tasks.RedriveDeadLettersTask;
 import io.dropwizard.Application;
 import io.dropwizard.configuration.EnvironmentVariableSubstitutor;
 import io.dropwizard.configuration.SubstitutingSourceProvider;
 import io.dropwizard.lifecycle.AutoCloseableManager;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
+import io.dropwizard.util.Duration;
 import io.dropwizard.util.Size;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutorGroup;
+import java.util.List;
 import software.amazon.awssdk.core.client.config.ClientAsyncConfiguration;
 import software.amazon.awssdk.core.client.config.SdkAdvancedAsyncClientOption;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.SdkEventLoopGroup;
 import software.amazon.awssdk.services.s3.S3AsyncClient;
 
 public class UploaderApplication extends Application<UploaderConfiguration> {
@@ -69,56 +92,172 @@ public class UploaderApplication extends Application<UploaderConfiguration> {
 
     final NettyConfiguration nettyConfig = configuration.getNetty();
     final AwsConfiguration awsConfig = configuration.getAws();
+    final BatchConfiguration batchConfig = configuration.getBatch();
+    final SpoolConfiguration spoolConfig = configuration.getSpool();
+    final RetryConfiguration retryConfig = configuration.getRetry();
+    final Codecs codecs = new Codecs(configuration.getCompression());
+    environment.metrics().registerAll(new CompressorMetrics());
 
     // we create the event loop groups first so we can share them between
     // the Netty server receiving the requests and the AWS S3 client
     // uploading the batches to S3.
-    final EventLoopGroup bossGroup = Netty.newBossEventLoopGroup();
-    final EventLoopGroup workerGroup = Netty.newWorkerEventLoopGroup();
+    final EventLoopGroup bossGroup = Netty.newBossEventLoopGroup(nettyConfig);
+    final EventLoopGroup workerGroup = Netty.newWorkerEventLoopGroup(nettyConfig);
 
     environment.lifecycle().manage(new EventLoopGroupManager(bossGroup));
+
+    // compression threads are managed before the worker group, so they are
+    // stopped after the last connection has flushed its batch to them
+    final EventExecutorGroup compressionGroup;
+    if (batchConfig.getCompressionThreads() > 0) {
+      compressionGroup =
+          new DefaultEventExecutorGroup(
+              batchConfig.getCompressionThreads(), new DefaultThreadFactory("compression"));
+      environment.lifecycle().manage(new EventLoopGroupManager(compressionGroup));
+    } else {
+      compressionGroup = null;
+    }
+
     environment.lifecycle().manage(new EventLoopGroupManager(workerGroup));
+    environment.lifecycle().manage(new EventLoopLatencyMonitor(workerGroup, "worker"));
 
     final Size maxUploadSize = awsConfig.getMaxUploadSize();
 
+    // managed before the S3 client so it is stopped after the last upload
+    // has failed
+    final DeadLetterQueue deadLetters;
+    if (retryConfig.isDeadLetterEnabled()) {
+      deadLetters = new DeadLetterQueue(retryConfig.getDeadLetterDirectory());
+      environment.lifecycle().manage(deadLetters);
+    } else {
+      deadLetters = null;
+    }
+
+    // the S3 client runs on its own event loops unless configured to share
+    // the worker group, so slow uploads and busy connections cannot starve
+    // each other. Managed before the S3 client so it is stopped after it.
+    final EventLoopGroup s3Group;
+    if (awsConfig.isSharedEventLoops()) {
+      s3Group = workerGroup;
+    } else {
+      s3Group = Netty.newS3EventLoopGroup(nettyConfig, awsConfig.getEventLoopThreads());
+      environment.lifecycle().manage(new EventLoopGroupManager(s3Group));
+      environment.lifecycle().manage(new EventLoopLatencyMonitor(s3Group, "s3-client"));
+    }
+
+    final NettyNioAsyncHttpClient.Builder httpClient =
+        NettyNioAsyncHttpClient.builder()
+            .eventLoopGroup(SdkEventLoopGroup.create(s3Group))
+            .maxConcurrency(awsConfig.getMaxConcurrency())
+            .maxPendingConnectionAcquires(awsConfig.getMaxPendingConnectionAcquires())
+            .connectionAcquisitionTimeout(
+                toJavaDuration(awsConfig.getConnectionAcquisitionTimeout()))
+            .connectionTimeout(toJavaDuration(awsConfig.getConnectionTimeout()))
+            .connectionMaxIdleTime(toJavaDuration(awsConfig.getConnectionMaxIdleTime()))
+            .readTimeout(toJavaDuration(awsConfig.getReadTimeout()))
+            .writeTimeout(toJavaDuration(awsConfig.getWriteTimeout()));
+
+    // recycle connections periodically so new connections pick up S3 DNS
+    // changes and spread across more front ends
+    final Duration connectionTimeToLive = awsConfig.getConnectionTimeToLive();
+    if (connectionTimeToLive != null) {
+      httpClient.connectionTimeToLive(toJavaDuration(connectionTimeToLive));
+    }
+
     final ClientAsyncConfiguration asyncConfig =
         ClientAsyncConfiguration.builder()
             .advancedOption(SdkAdvancedAsyncClientOption.FUTURE_COMPLETION_EXECUTOR, workerGroup)
             .build();
 
     // build the asynchronous S3 client with the configured credentials
-    // provider and region and use the same Netty event group as the server.
+    // provider and region, completing futures on the server's worker group.
     final S3AsyncClient s3 =
         S3AsyncClient.builder()
             .credentialsProvider(awsConfig.getCredentials())
             .region(awsConfig.getRegion())
             .asyncConfiguration(asyncConfig)
+            .httpClientBuilder(httpClient)
             .build();
     environment.lifecycle().manage(new AutoCloseableManager(s3));
 
-    final Uploader uploader = new Uploader(s3, awsConfig);
+    // the spool is stopped after the connections and the aggregator have
+    // flushed their batches, and before the S3 client is closed
+    final Spool spool = spoolConfig.isEnabled() ? new Spool(spoolConfig) : null;
+    final RetryPolicy retryPolicy = new RetryPolicy(retryConfig, workerGroup);
+    final Uploader uploader = new Uploader(s3, awsConfig, retryPolicy, spool, deadLetters);
+    if (spool != null) {
+      environment.lifecycle().manage(new SpoolManager(spool, uploader));
+    }
+    if (deadLetters != null) {
+      environment.admin().addTask(new RedriveDeadLettersTask(deadLetters, uploader));
+    }
 
-    final UploadInitializer initializer =
-        new UploadInitializer(nettyConfig, uploader, maxUploadSize);
+    // HTTP requests are always batched per customer, TCP connections only
+    // share the same batches when configured to
+    final BatchAggregator aggregator =
+        new BatchAggregator(uploader, maxUploadSize, batchConfig, codecs);
+    environment.lifecycle().manage(aggregator);
 
-    final ServerBootstrap bootstrap = new ServerBootstrap();
+    // customer quotas apply to TCP connections and HTTP requests alike
+    final CustomerQuotas quotas = new CustomerQuotas(configuration.getQuota());
 
-    // Start the server
-    final ChannelFuture future =
-        bootstrap
+    final UploadInitializer initializer =
+        new UploadInitializer(
+            nettyConfig,
+            batchConfig,
+            codecs,
+            uploader,
+            maxUploadSize,
+            batchConfig.isShared() ? aggregator : null,
+            compressionGroup,
+            quotas);
+
+    final ByteBufAllocator allocator = nettyConfig.getAllocator().getAllocator();
+    final ServerBootstrap bootstrap =
+        new ServerBootstrap()
             .group(bossGroup, workerGroup)
             .handler(new LoggingHandler(LogLevel.INFO))
-            .option(ChannelOption.SO_BACKLOG, 128)
-            .channel(Netty.serverChannelType())
-            .childOption(ChannelOption.SO_KEEPALIVE, true)
-            .childHandler(initializer)
-            .bind(nettyConfig.getListenPort());
+            .option(ChannelOption.SO_BACKLOG, nettyConfig.getBacklog())
+            .option(ChannelOption.ALLOCATOR, allocator)
+            .channel(Netty.serverChannelType(nettyConfig))
+            .childOption(ChannelOption.SO_KEEPALIVE, nettyConfig.isKeepAlive())
+            .childOption(ChannelOption.TCP_NODELAY, nettyConfig.isTcpNoDelay())
+            .childOption(ChannelOption.ALLOCATOR, allocator)
+            .childOption(
+                ChannelOption.WRITE_BUFFER_WATER_MARK,
+                new WriteBufferWaterMark(
+                    Ints.checkedCast(nettyConfig.getWriteBufferLowWaterMark().toBytes()),
+                    Ints.checkedCast(nettyConfig.getWriteBufferHighWaterMark().toBytes())))
+            .childHandler(initializer);
 
-    environment.lifecycle().manage(new ChannelFutureManager(future));
+    // set on the listening socket, so accepted connections inherit it before
+    // the TCP handshake and can negotiate a large enough window scale
+    final Size receiveBufferSize = nettyConfig.getReceiveBufferSize();
+    if (receiveBufferSize != null) {
+      bootstrap.option(ChannelOption.SO_RCVBUF, Ints.checkedCast(receiveBufferSize.toBytes()));
+    }
+
+    // Start the server
+    final List<ChannelFuture> futures = Netty.bind(bootstrap, nettyConfig);
+
+    // managed last so it is stopped first: the listeners are closed and the
+    // open connections drained before the aggregator, spool and S3 client
+    // they flush their batches to are stopped
+    environment
+        .lifecycle()
+        .manage(new ChannelFutureManager(futures, initializer.getConnections()));
 
     // Resources
-    environment.jersey().register(new BatchResource(uploader, maxUploadSize));
+    environment
+        .jersey()
+        .register(
+            new BatchResource(
+                uploader, aggregator, workerGroup, nettyConfig.getMaxLength(), quotas));
     environment.jersey().register(new PingResource());
     environment.jersey().register(new VersionResource());
   }
+
+  private static java.time.Duration toJavaDuration(final Duration duration) {
+    return java.time.Duration.ofMillis(duration.toMilliseconds());
+  }
 }
@@ -0,0 +1,38 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.config;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+/** Buffer allocator used by the Netty server. */
+public enum AllocatorType {
+  /** Netty's default, selected with the io.netty.allocator.type system property */
+  DEFAULT(ByteBufAllocator.DEFAULT),
+  POOLED(PooledByteBufAllocator.DEFAULT),
+  UNPOOLED(UnpooledByteBufAllocator.DEFAULT);
+
+  private final ByteBufAllocator allocator;
+
+  AllocatorType(final ByteBufAllocator allocator) {
+    this.allocator = allocator;
+  }
+
+  public ByteBufAllocator getAllocator() {
+    return allocator;
+  }
+}
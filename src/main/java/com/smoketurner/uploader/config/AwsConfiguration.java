@@ -19,13 +19,18 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.Strings;
 import com.google.common.net.HostAndPort;
+import io.dropwizard.util.Duration;
 import io.dropwizard.util.Size;
 import io.dropwizard.util.SizeUnit;
 import io.dropwizard.validation.MaxSize;
+import io.dropwizard.validation.MinDuration;
 import io.dropwizard.validation.MinSize;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 import javax.validation.Valid;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import org.hibernate.validator.constraints.NotEmpty;
 import org.hibernate.validator.valuehandling.UnwrapValidatedValue;
@@ -56,6 +61,20 @@ public class AwsConfiguration {
   @UnwrapValidatedValue(false)
   private Optional<String> prefix = Optional.empty();
 
+  @NotEmpty
+  private String keyTemplate =
+      "{customer}/{hash}-{year}/{month}/{day}/{hour}/{minute}/{second}/"
+          + "events_{millis}_{node}_{seq}.log";
+
+  @Min(1)
+  @Max(32)
+  private int keyHashLength = 1;
+
+  @NotNull
+  @Valid
+  @UnwrapValidatedValue(false)
+  private Optional<String> nodeId = Optional.empty();
+
   @NotNull
   @Valid
   @UnwrapValidatedValue(false)
@@ -66,6 +85,48 @@ public class AwsConfiguration {
   @MaxSize(value = 50, unit = SizeUnit.MEGABYTES)
   private Size maxUploadSize = Size.megabytes(10);
 
+  @NotNull
+  @MinSize(value = 1, unit = SizeUnit.MEGABYTES)
+  private Size maxInFlightSize = Size.megabytes(512);
+
+  @Min(1)
+  private int maxInFlightBatches = 1000;
+
+  @Min(1)
+  private int maxConcurrency = 50;
+
+  @Min(1)
+  private int maxPendingConnectionAcquires = 10000;
+
+  @NotNull
+  @MinDuration(value = 1, unit = TimeUnit.MILLISECONDS)
+  private Duration connectionAcquisitionTimeout = Duration.seconds(10);
+
+  @NotNull
+  @MinDuration(value = 1, unit = TimeUnit.MILLISECONDS)
+  private Duration connectionTimeout = Duration.seconds(2);
+
+  @Nullable
+  @MinDuration(value = 1, unit = TimeUnit.SECONDS)
+  private Duration connectionTimeToLive;
+
+  @NotNull
+  @MinDuration(value = 1, unit = TimeUnit.MILLISECONDS)
+  private Duration connectionMaxIdleTime = Duration.seconds(60);
+
+  @NotNull
+  @MinDuration(value = 1, unit = TimeUnit.MILLISECONDS)
+  private Duration readTimeout = Duration.seconds(30);
+
+  @NotNull
+  @MinDuration(value = 1, unit = TimeUnit.MILLISECONDS)
+  private Duration writeTimeout = Duration.seconds(30);
+
+  private boolean sharedEventLoops = false;
+
+  @Min(0)
+  private int eventLoopThreads = 0;
+
   @JsonProperty
   public String getBucketName() {
     return bucketName;
@@ -130,6 +191,36 @@ public class AwsConfiguration {
     this.prefix = Optional.ofNullable(prefix);
   }
 
+  @JsonProperty
+  public String getKeyTemplate() {
+    return keyTemplate;
+  }
+
+  @JsonProperty
+  public void setKeyTemplate(String template) {
+    this.keyTemplate = template;
+  }
+
+  @JsonProperty
+  public int getKeyHashLength() {
+    return keyHashLength;
+  }
+
+  @JsonProperty
+  public void setKeyHashLength(int length) {
+    this.keyHashLength = length;
+  }
+
+  @JsonProperty
+  public Optional<String> getNodeId() {
+    return nodeId;
+  }
+
+  @JsonProperty
+  public void setNodeId(@Nullable final String nodeId) {
+    this.nodeId = Optional.ofNullable(nodeId);
+  }
+
   @JsonProperty
   public Optional<HostAndPort> getProxy() {
     return proxy;
@@ -150,6 +241,127 @@ public class AwsConfiguration {
     this.maxUploadSize = size;
   }
 
+  @JsonProperty
+  public Size getMaxInFlightSize() {
+    return maxInFlightSize;
+  }
+
+  @JsonProperty
+  public void setMaxInFlightSize(Size size) {
+    this.maxInFlightSize = size;
+  }
+
+  @JsonProperty
+  public int getMaxInFlightBatches() {
+    return maxInFlightBatches;
+  }
+
+  @JsonProperty
+  public void setMaxInFlightBatches(int count) {
+    this.maxInFlightBatches = count;
+  }
+
+  @JsonProperty
+  public int getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+  @JsonProperty
+  public void setMaxConcurrency(int concurrency) {
+    this.maxConcurrency = concurrency;
+  }
+
+  @JsonProperty
+  public int getMaxPendingConnectionAcquires() {
+    return maxPendingConnectionAcquires;
+  }
+
+  @JsonProperty
+  public void setMaxPendingConnectionAcquires(int count) {
+    this.maxPendingConnectionAcquires = count;
+  }
+
+  @JsonProperty
+  public Duration getConnectionAcquisitionTimeout() {
+    return connectionAcquisitionTimeout;
+  }
+
+  @JsonProperty
+  public void setConnectionAcquisitionTimeout(Duration timeout) {
+    this.connectionAcquisitionTimeout = timeout;
+  }
+
+  @JsonProperty
+  public Duration getConnectionTimeout() {
+    return connectionTimeout;
+  }
+
+  @JsonProperty
+  public void setConnectionTimeout(Duration timeout) {
+    this.connectionTimeout = timeout;
+  }
+
+  @Nullable
+  @JsonProperty
+  public Duration getConnectionTimeToLive() {
+    return connectionTimeToLive;
+  }
+
+  @JsonProperty
+  public void setConnectionTimeToLive(@Nullable Duration ttl) {
+    this.connectionTimeToLive = ttl;
+  }
+
+  @JsonProperty
+  public Duration getConnectionMaxIdleTime() {
+    return connectionMaxIdleTime;
+  }
+
+  @JsonProperty
+  public void setConnectionMaxIdleTime(Duration idle) {
+    this.connectionMaxIdleTime = idle;
+  }
+
+  @JsonProperty
+  public Duration getReadTimeout() {
+    return readTimeout;
+  }
+
+  @JsonProperty
+  public void setReadTimeout(Duration timeout) {
+    this.readTimeout = timeout;
+  }
+
+  @JsonProperty
+  public Duration getWriteTimeout() {
+    return writeTimeout;
+  }
+
+  @JsonProperty
+  public void setWriteTimeout(Duration timeout) {
+    this.writeTimeout = timeout;
+  }
+
+  @JsonProperty
+  public boolean isSharedEventLoops() {
+    return sharedEventLoops;
+  }
+
+  @JsonProperty
+  public void setSharedEventLoops(boolean shared) {
+    this.sharedEventLoops = shared;
+  }
+
+  @JsonProperty
+  public int getEventLoopThreads() {
+    return eventLoopThreads;
+  }
+
+  @JsonProperty
+  public void setEventLoopThreads(int threads) {
+    this.eventLoopThreads = threads;
+  }
+
   @JsonIgnore
   public AwsCredentialsProvider getCredentials() {
     final AwsCredentialsProvider credentials;
@@ -0,0 +1,207 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
+import io.dropwizard.util.Size;
+import io.dropwizard.util.SizeUnit;
+import io.dropwizard.validation.MaxSize;
+import io.dropwizard.validation.MinDuration;
+import io.dropwizard.validation.MinSize;
+import java.util.concurrent.TimeUnit;
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+public class BatchConfiguration {
+
+  @NotNull
+  @MinDuration(value = 1, unit = TimeUnit.SECONDS)
+  private Duration maxBatchAge = Duration.minutes(5);
+
+  @Min(1)
+  private int maxBatchCount = 1_000_000;
+
+  private boolean streaming = false;
+
+  // S3 requires every part except the last to be at least 5MB
+  @NotNull
+  @MinSize(value = 5, unit = SizeUnit.MEGABYTES)
+  private Size partSize = Size.megabytes(5);
+
+  // uncompressed bytes written between compressor flushes
+  @NotNull
+  @MinSize(value = 1, unit = SizeUnit.BYTES)
+  private Size flushSize = Size.kilobytes(64);
+
+  private boolean shared = false;
+
+  @Min(1)
+  private int sharedStripes = 1;
+
+  @Min(1)
+  private int maxOpenBatches = 10_000;
+
+  // 0 compresses events on the event loop that received them
+  @Min(0)
+  private int compressionThreads = 0;
+
+  @Min(1)
+  private int compressionQueueSize = 10_000;
+
+  // batch buffers grow by this much at a time
+  @NotNull
+  @MinSize(value = 1, unit = SizeUnit.KILOBYTES)
+  @MaxSize(value = 16, unit = SizeUnit.MEGABYTES)
+  private Size bufferChunkSize = Size.kilobytes(16);
+
+  // customers whose recent batch sizes are remembered
+  @Min(1)
+  private int maxSizeHistory = 100_000;
+
+  @Valid @NotNull private EventTimeConfiguration eventTime = new EventTimeConfiguration();
+
+  @JsonProperty
+  public Duration getMaxBatchAge() {
+    return maxBatchAge;
+  }
+
+  @JsonProperty
+  public void setMaxBatchAge(Duration age) {
+    this.maxBatchAge = age;
+  }
+
+  @JsonProperty
+  public int getMaxBatchCount() {
+    return maxBatchCount;
+  }
+
+  @JsonProperty
+  public void setMaxBatchCount(int count) {
+    this.maxBatchCount = count;
+  }
+
+  @JsonProperty
+  public boolean isStreaming() {
+    return streaming;
+  }
+
+  @JsonProperty
+  public void setStreaming(boolean streaming) {
+    this.streaming = streaming;
+  }
+
+  @JsonProperty
+  public Size getPartSize() {
+    return partSize;
+  }
+
+  @JsonProperty
+  public void setPartSize(Size size) {
+    this.partSize = size;
+  }
+
+  @JsonProperty
+  public Size getFlushSize() {
+    return flushSize;
+  }
+
+  @JsonProperty
+  public void setFlushSize(Size size) {
+    this.flushSize = size;
+  }
+
+  @JsonProperty
+  public boolean isShared() {
+    return shared;
+  }
+
+  @JsonProperty
+  public void setShared(boolean shared) {
+    this.shared = shared;
+  }
+
+  @JsonProperty
+  public int getSharedStripes() {
+    return sharedStripes;
+  }
+
+  @JsonProperty
+  public void setSharedStripes(int stripes) {
+    this.sharedStripes = stripes;
+  }
+
+  @JsonProperty
+  public int getMaxOpenBatches() {
+    return maxOpenBatches;
+  }
+
+  @JsonProperty
+  public void setMaxOpenBatches(int count) {
+    this.maxOpenBatches = count;
+  }
+
+  @JsonProperty
+  public int getCompressionThreads() {
+    return compressionThreads;
+  }
+
+  @JsonProperty
+  public void setCompressionThreads(int threads) {
+    this.compressionThreads = threads;
+  }
+
+  @JsonProperty
+  public int getCompressionQueueSize() {
+    return compressionQueueSize;
+  }
+
+  @JsonProperty
+  public void setCompressionQueueSize(int size) {
+    this.compressionQueueSize = size;
+  }
+
+  @JsonProperty
+  public Size getBufferChunkSize() {
+    return bufferChunkSize;
+  }
+
+  @JsonProperty
+  public void setBufferChunkSize(Size size) {
+    this.bufferChunkSize = size;
+  }
+
+  @JsonProperty
+  public int getMaxSizeHistory() {
+    return maxSizeHistory;
+  }
+
+  @JsonProperty
+  public void setMaxSizeHistory(int count) {
+    this.maxSizeHistory = count;
+  }
+
+  @JsonProperty
+  public EventTimeConfiguration getEventTime() {
+    return eventTime;
+  }
+
+  @JsonProperty
+  public void setEventTime(EventTimeConfiguration eventTime) {
+    this.eventTime = eventTime;
+  }
+}
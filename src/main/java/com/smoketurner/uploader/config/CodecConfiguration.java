@@ -0,0 +1,72 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.config;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.smoketurner.uploader.core.CodecType;
+import io.dropwizard.validation.ValidationMethod;
+import javax.annotation.Nullable;
+import javax.validation.constraints.NotNull;
+
+public class CodecConfiguration {
+
+  @NotNull private CodecType codec = CodecType.GZIP;
+
+  // defaults to the codec's own default level, lz4 has no levels
+  @Nullable private Integer level;
+
+  // zstd only
+  @Nullable private String dictionaryFile;
+
+  @JsonProperty
+  public CodecType getCodec() {
+    return codec;
+  }
+
+  @JsonProperty
+  public void setCodec(CodecType codec) {
+    this.codec = codec;
+  }
+
+  @Nullable
+  @JsonProperty
+  public Integer getLevel() {
+    return level;
+  }
+
+  @JsonProperty
+  public void setLevel(@Nullable Integer level) {
+    this.level = level;
+  }
+
+  @Nullable
+  @JsonProperty
+  public String getDictionaryFile() {
+    return dictionaryFile;
+  }
+
+  @JsonProperty
+  public void setDictionaryFile(@Nullable String dictionaryFile) {
+    this.dictionaryFile = dictionaryFile;
+  }
+
+  @JsonIgnore
+  @ValidationMethod(message = "lz4 does not support compression levels")
+  public boolean isLevelSupported() {
+    return codec != CodecType.LZ4 || level == null;
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.HashMap;
+import java.util.Map;
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+
+public class CompressionConfiguration extends CodecConfiguration {
+
+  // overrides keyed by customer ID
+  @Valid @NotNull private Map<String, CodecConfiguration> customers = new HashMap<>();
+
+  @JsonProperty
+  public Map<String, CodecConfiguration> getCustomers() {
+    return customers;
+  }
+
+  @JsonProperty
+  public void setCustomers(Map<String, CodecConfiguration> customers) {
+    this.customers = customers;
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
+import io.dropwizard.util.Size;
+import io.dropwizard.util.SizeUnit;
+import io.dropwizard.validation.MinDuration;
+import io.dropwizard.validation.MinSize;
+import java.util.concurrent.TimeUnit;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import org.hibernate.validator.constraints.NotEmpty;
+
+public class EventTimeConfiguration {
+
+  private boolean enabled = false;
+
+  @NotNull private EventTimeSource source = EventTimeSource.JSON;
+
+  // JSON only
+  @NotEmpty private String field = "timestamp";
+
+  @NotNull
+  @MinDuration(value = 1, unit = TimeUnit.SECONDS)
+  private Duration bucketSize = Duration.hours(1);
+
+  @Min(1)
+  private int maxOpenBuckets = 4;
+
+  // timestamps further than this from the time the event was received are
+  // not trusted, such as a status code read as epoch seconds
+  @NotNull private Duration maxPast = Duration.days(30);
+
+  @NotNull private Duration maxFuture = Duration.hours(1);
+
+  // the timestamp has to start within this many bytes of the event
+  @NotNull
+  @MinSize(value = 16, unit = SizeUnit.BYTES)
+  private Size maxScanLength = Size.kilobytes(4);
+
+  @JsonProperty
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @JsonProperty
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  @JsonProperty
+  public EventTimeSource getSource() {
+    return source;
+  }
+
+  @JsonProperty
+  public void setSource(EventTimeSource source) {
+    this.source = source;
+  }
+
+  @JsonProperty
+  public String getField() {
+    return field;
+  }
+
+  @JsonProperty
+  public void setField(String field) {
+    this.field = field;
+  }
+
+  @JsonProperty
+  public Duration getBucketSize() {
+    return bucketSize;
+  }
+
+  @JsonProperty
+  public void setBucketSize(Duration size) {
+    this.bucketSize = size;
+  }
+
+  @JsonProperty
+  public int getMaxOpenBuckets() {
+    return maxOpenBuckets;
+  }
+
+  @JsonProperty
+  public void setMaxOpenBuckets(int count) {
+    this.maxOpenBuckets = count;
+  }
+
+  @JsonProperty
+  public Duration getMaxPast() {
+    return maxPast;
+  }
+
+  @JsonProperty
+  public void setMaxPast(Duration duration) {
+    this.maxPast = duration;
+  }
+
+  @JsonProperty
+  public Duration getMaxFuture() {
+    return maxFuture;
+  }
+
+  @JsonProperty
+  public void setMaxFuture(Duration duration) {
+    this.maxFuture = duration;
+  }
+
+  @JsonProperty
+  public Size getMaxScanLength() {
+    return maxScanLength;
+  }
+
+  @JsonProperty
+  public void setMaxScanLength(Size size) {
+    this.maxScanLength = size;
+  }
+}
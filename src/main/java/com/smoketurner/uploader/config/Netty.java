@@ -15,47 +15,145 @@
  */
 package com.smoketurner.uploader.config;
 
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.ServerChannel;
 import io.netty.channel.epoll.Epoll;
 import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.kqueue.KQueue;
+import io.netty.channel.kqueue.KQueueEventLoopGroup;
+import io.netty.channel.kqueue.KQueueServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.unix.UnixChannelOption;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class Netty {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(Netty.class);
-  private static final int WORKER_THREADS = Runtime.getRuntime().availableProcessors() * 2;
+  private static final int DEFAULT_WORKER_THREADS = Runtime.getRuntime().availableProcessors() * 2;
 
-  static {
-    if (Epoll.isAvailable()) {
-      LOGGER.info("Event Loop: epoll");
-    } else {
-      LOGGER.info("Event Loop: NIO");
+  /**
+   * Resolve the transport to use, checking that a native transport is available
+   *
+   * @param configuration Netty configuration
+   * @return transport other than {@link NettyTransport#AUTO}
+   * @throws IllegalStateException if the configured native transport is not available
+   */
+  public static NettyTransport transport(final NettyConfiguration configuration) {
+    switch (configuration.getTransport()) {
+      case EPOLL:
+        if (!Epoll.isAvailable()) {
+          throw new IllegalStateException("epoll is not available", Epoll.unavailabilityCause());
+        }
+        return NettyTransport.EPOLL;
+      case KQUEUE:
+        if (!KQueue.isAvailable()) {
+          throw new IllegalStateException("kqueue is not available", KQueue.unavailabilityCause());
+        }
+        return NettyTransport.KQUEUE;
+      case NIO:
+        return NettyTransport.NIO;
+      case AUTO:
+      default:
+        if (Epoll.isAvailable()) {
+          return NettyTransport.EPOLL;
+        }
+        if (KQueue.isAvailable()) {
+          return NettyTransport.KQUEUE;
+        }
+        return NettyTransport.NIO;
     }
   }
 
-  public static EventLoopGroup newBossEventLoopGroup() {
-    if (Epoll.isAvailable()) {
-      return new EpollEventLoopGroup(1);
+  public static EventLoopGroup newBossEventLoopGroup(final NettyConfiguration configuration) {
+    // every listener is registered on its own boss thread to accept on
+    final int threads = Math.max(configuration.getBossThreads(), configuration.getListeners());
+    return newEventLoopGroup(configuration, threads, "netty-boss");
+  }
+
+  public static EventLoopGroup newWorkerEventLoopGroup(final NettyConfiguration configuration) {
+    final int threads =
+        configuration.getWorkerThreads() > 0
+            ? configuration.getWorkerThreads()
+            : DEFAULT_WORKER_THREADS;
+    return newEventLoopGroup(configuration, threads, "netty-worker");
+  }
+
+  /**
+   * Event loop group dedicated to the AWS S3 client, using the same transport as the server so
+   * uploads never run on the threads reading from connections.
+   *
+   * @param configuration Netty configuration
+   * @param threads Number of threads, or 0 for twice the number of cores
+   * @return new event loop group
+   */
+  public static EventLoopGroup newS3EventLoopGroup(
+      final NettyConfiguration configuration, final int threads) {
+    return newEventLoopGroup(
+        configuration, threads > 0 ? threads : DEFAULT_WORKER_THREADS, "s3-client");
+  }
+
+  public static Class<? extends ServerChannel> serverChannelType(
+      final NettyConfiguration configuration) {
+    switch (transport(configuration)) {
+      case EPOLL:
+        return EpollServerSocketChannel.class;
+      case KQUEUE:
+        return KQueueServerSocketChannel.class;
+      default:
+        return NioServerSocketChannel.class;
     }
-    return new NioEventLoopGroup(1);
   }
 
-  public static EventLoopGroup newWorkerEventLoopGroup() {
-    if (Epoll.isAvailable()) {
-      return new EpollEventLoopGroup(WORKER_THREADS);
+  /**
+   * Bind the configured number of listeners to the listen port. With more than one listener, each
+   * socket is bound with SO_REUSEPORT so the kernel spreads new connections across them, and each
+   * one accepts connections on its own boss thread.
+   *
+   * @param bootstrap Server bootstrap to bind
+   * @param configuration Netty configuration
+   * @return future for each listener
+   * @throws IllegalStateException if multiple listeners are configured on the NIO transport
+   */
+  public static List<ChannelFuture> bind(
+      final ServerBootstrap bootstrap, final NettyConfiguration configuration) {
+    final int listeners = configuration.getListeners();
+    if (listeners > 1) {
+      if (transport(configuration) == NettyTransport.NIO) {
+        throw new IllegalStateException("Multiple listeners require the epoll or kqueue transport");
+      }
+      bootstrap.option(UnixChannelOption.SO_REUSEPORT, true);
+    }
+
+    LOGGER.info("Binding {} listener(s) to port {}", listeners, configuration.getListenPort());
+    final List<ChannelFuture> futures = new ArrayList<>(listeners);
+    for (int i = 0; i < listeners; i++) {
+      futures.add(bootstrap.bind(configuration.getListenPort()));
     }
-    return new NioEventLoopGroup(WORKER_THREADS);
+    return futures;
   }
 
-  public static Class<? extends ServerChannel> serverChannelType() {
-    if (Epoll.isAvailable()) {
-      return EpollServerSocketChannel.class;
+  private static EventLoopGroup newEventLoopGroup(
+      final NettyConfiguration configuration, final int threads, final String name) {
+    final NettyTransport transport = transport(configuration);
+    LOGGER.info("Event Loop: {} ({} {} threads)", transport, threads, name);
+
+    final ThreadFactory threadFactory = new DefaultThreadFactory(name);
+    switch (transport) {
+      case EPOLL:
+        return new EpollEventLoopGroup(threads, threadFactory);
+      case KQUEUE:
+        return new KQueueEventLoopGroup(threads, threadFactory);
+      default:
+        return new NioEventLoopGroup(threads, threadFactory);
     }
-    return NioServerSocketChannel.class;
   }
 }
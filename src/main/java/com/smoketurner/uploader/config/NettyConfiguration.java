@@ -15,14 +15,20 @@
  */
 package com.smoketurner.uploader.config;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
 import io.dropwizard.util.Size;
 import io.dropwizard.util.SizeUnit;
 import io.dropwizard.validation.MaxSize;
 import io.dropwizard.validation.MinSize;
 import io.dropwizard.validation.PortRange;
+import io.dropwizard.validation.ValidationMethod;
+import java.util.Collections;
+import java.util.List;
 import javax.annotation.Nullable;
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 public class NettyConfiguration {
@@ -34,10 +40,66 @@ public class NettyConfiguration {
 
   @PortRange private int listenPort = 4433;
 
+  @NotNull private NettyTransport transport = NettyTransport.AUTO;
+
+  // 0 uses twice the number of processors
+  @Min(0)
+  private int workerThreads = 0;
+
+  @Min(1)
+  private int bossThreads = 1;
+
+  // more than one binds that many sockets to the listen port with SO_REUSEPORT
+  @Min(1)
+  private int listeners = 1;
+
+  @Min(1)
+  private int backlog = 128;
+
+  // defaults to the operating system's receive buffer size
+  @Nullable private Size receiveBufferSize;
+
+  private boolean tcpNoDelay = true;
+  private boolean keepAlive = true;
+
+  @NotNull private Size writeBufferLowWaterMark = Size.kilobytes(32);
+  @NotNull private Size writeBufferHighWaterMark = Size.kilobytes(64);
+
+  @NotNull private AllocatorType allocator = AllocatorType.DEFAULT;
+
   private boolean ssl = false;
   private boolean selfSignedCert = false;
   private boolean clientAuth = false;
 
+  @NotNull private TlsProvider sslProvider = TlsProvider.AUTO;
+
+  // 0 uses the provider's default
+  @Min(0)
+  private long sslSessionCacheSize = 0;
+
+  // 0 uses the provider's default
+  @NotNull private Duration sslSessionTimeout = Duration.seconds(0);
+
+  private boolean sslSessionTickets = true;
+
+  @Nullable private String sslSessionTicketKeyFile;
+
+  // empty uses the provider's defaults
+  @NotNull private List<String> sslCiphers = Collections.emptyList();
+
+  @NotNull private List<String> sslProtocols = Collections.emptyList();
+
+  private boolean compressedInput = false;
+
+  @Min(1)
+  private int maxCompressionRatio = 100;
+
+  private boolean gzipPassThrough = false;
+
+  @NotNull
+  @MinSize(value = 1, unit = SizeUnit.KILOBYTES)
+  private Size maxGzipMemberSize = Size.megabytes(4);
+
   @Nullable private String keyCertChainFile;
 
   @Nullable private String keyFile;
@@ -59,6 +121,123 @@ public class NettyConfiguration {
     this.maxLength = maxLength;
   }
 
+  @JsonProperty
+  public NettyTransport getTransport() {
+    return transport;
+  }
+
+  @JsonProperty
+  public void setTransport(NettyTransport transport) {
+    this.transport = transport;
+  }
+
+  @JsonProperty
+  public int getWorkerThreads() {
+    return workerThreads;
+  }
+
+  @JsonProperty
+  public void setWorkerThreads(int threads) {
+    this.workerThreads = threads;
+  }
+
+  @JsonProperty
+  public int getBossThreads() {
+    return bossThreads;
+  }
+
+  @JsonProperty
+  public void setBossThreads(int threads) {
+    this.bossThreads = threads;
+  }
+
+  @JsonProperty
+  public int getListeners() {
+    return listeners;
+  }
+
+  @JsonProperty
+  public void setListeners(int listeners) {
+    this.listeners = listeners;
+  }
+
+  @JsonProperty
+  public int getBacklog() {
+    return backlog;
+  }
+
+  @JsonProperty
+  public void setBacklog(int backlog) {
+    this.backlog = backlog;
+  }
+
+  @Nullable
+  @JsonProperty
+  public Size getReceiveBufferSize() {
+    return receiveBufferSize;
+  }
+
+  @JsonProperty
+  public void setReceiveBufferSize(@Nullable Size size) {
+    this.receiveBufferSize = size;
+  }
+
+  @JsonProperty
+  public boolean isTcpNoDelay() {
+    return tcpNoDelay;
+  }
+
+  @JsonProperty
+  public void setTcpNoDelay(boolean tcpNoDelay) {
+    this.tcpNoDelay = tcpNoDelay;
+  }
+
+  @JsonProperty
+  public boolean isKeepAlive() {
+    return keepAlive;
+  }
+
+  @JsonProperty
+  public void setKeepAlive(boolean keepAlive) {
+    this.keepAlive = keepAlive;
+  }
+
+  @JsonProperty
+  public Size getWriteBufferLowWaterMark() {
+    return writeBufferLowWaterMark;
+  }
+
+  @JsonProperty
+  public void setWriteBufferLowWaterMark(Size size) {
+    this.writeBufferLowWaterMark = size;
+  }
+
+  @JsonProperty
+  public Size getWriteBufferHighWaterMark() {
+    return writeBufferHighWaterMark;
+  }
+
+  @JsonProperty
+  public void setWriteBufferHighWaterMark(Size size) {
+    this.writeBufferHighWaterMark = size;
+  }
+
+  @JsonIgnore
+  @ValidationMethod(message = "writeBufferLowWaterMark must not exceed writeBufferHighWaterMark")
+  public boolean isWaterMarkValid() {
+    return writeBufferLowWaterMark.toBytes() <= writeBufferHighWaterMark.toBytes();
+  }
+
+  @JsonProperty
+  public AllocatorType getAllocator() {
+    return allocator;
+  }
+
+  @JsonProperty
+  public void setAllocator(AllocatorType allocator) {
+    this.allocator = allocator;
+  }
+
   @JsonProperty
   public int getListenPort() {
     return listenPort;
@@ -99,6 +278,117 @@ public class NettyConfiguration {
     this.clientAuth = clientAuth;
   }
 
+  @JsonProperty
+  public TlsProvider getSslProvider() {
+    return sslProvider;
+  }
+
+  @JsonProperty
+  public void setSslProvider(TlsProvider provider) {
+    this.sslProvider = provider;
+  }
+
+  @JsonProperty
+  public long getSslSessionCacheSize() {
+    return sslSessionCacheSize;
+  }
+
+  @JsonProperty
+  public void setSslSessionCacheSize(long size) {
+    this.sslSessionCacheSize = size;
+  }
+
+  @JsonProperty
+  public Duration getSslSessionTimeout() {
+    return sslSessionTimeout;
+  }
+
+  @JsonProperty
+  public void setSslSessionTimeout(Duration timeout) {
+    this.sslSessionTimeout = timeout;
+  }
+
+  @JsonProperty
+  public boolean isSslSessionTickets() {
+    return sslSessionTickets;
+  }
+
+  @JsonProperty
+  public void setSslSessionTickets(boolean tickets) {
+    this.sslSessionTickets = tickets;
+  }
+
+  @Nullable
+  @JsonProperty
+  public String getSslSessionTicketKeyFile() {
+    return sslSessionTicketKeyFile;
+  }
+
+  @JsonProperty
+  public void setSslSessionTicketKeyFile(@Nullable String filename) {
+    this.sslSessionTicketKeyFile = filename;
+  }
+
+  @JsonProperty
+  public List<String> getSslCiphers() {
+    return sslCiphers;
+  }
+
+  @JsonProperty
+  public void setSslCiphers(List<String> ciphers) {
+    this.sslCiphers = ciphers;
+  }
+
+  @JsonProperty
+  public List<String> getSslProtocols() {
+    return sslProtocols;
+  }
+
+  @JsonProperty
+  public void setSslProtocols(List<String> protocols) {
+    this.sslProtocols = protocols;
+  }
+
+  @JsonProperty
+  public boolean isCompressedInput() {
+    return compressedInput;
+  }
+
+  @JsonProperty
+  public void setCompressedInput(boolean compressedInput) {
+    this.compressedInput = compressedInput;
+  }
+
+  @JsonProperty
+  public int getMaxCompressionRatio() {
+    return maxCompressionRatio;
+  }
+
+  @JsonProperty
+  public void setMaxCompressionRatio(int ratio) {
+    this.maxCompressionRatio = ratio;
+  }
+
+  @JsonProperty
+  public boolean isGzipPassThrough() {
+    return gzipPassThrough;
+  }
+
+  @JsonProperty
+  public void setGzipPassThrough(boolean gzipPassThrough) {
+    this.gzipPassThrough = gzipPassThrough;
+  }
+
+  @JsonProperty
+  public Size getMaxGzipMemberSize() {
+    return maxGzipMemberSize;
+  }
+
+  @JsonProperty
+  public void setMaxGzipMemberSize(Size size) {
+    this.maxGzipMemberSize = size;
+  }
+
   @Nullable
   @JsonProperty
   public String getKeyCertChainFile() {
@@ -0,0 +1,79 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.HashMap;
+import java.util.Map;
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+public class QuotaConfiguration extends QuotaLimitsConfiguration {
+
+  private boolean enabled = false;
+
+  // customers whose token buckets are kept
+  @Min(1)
+  private int maxCustomers = 100_000;
+
+  // customers with their own metrics, the rest share the "other" metrics
+  @Min(0)
+  private int maxMetricCustomers = 100;
+
+  // overrides keyed by customer ID
+  @Valid @NotNull private Map<String, QuotaLimitsConfiguration> customers = new HashMap<>();
+
+  @JsonProperty
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @JsonProperty
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  @JsonProperty
+  public int getMaxCustomers() {
+    return maxCustomers;
+  }
+
+  @JsonProperty
+  public void setMaxCustomers(int count) {
+    this.maxCustomers = count;
+  }
+
+  @JsonProperty
+  public int getMaxMetricCustomers() {
+    return maxMetricCustomers;
+  }
+
+  @JsonProperty
+  public void setMaxMetricCustomers(int count) {
+    this.maxMetricCustomers = count;
+  }
+
+  @JsonProperty
+  public Map<String, QuotaLimitsConfiguration> getCustomers() {
+    return customers;
+  }
+
+  @JsonProperty
+  public void setCustomers(Map<String, QuotaLimitsConfiguration> customers) {
+    this.customers = customers;
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Size;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+public class QuotaLimitsConfiguration {
+
+  // 0 does not limit the events or bytes per second
+  @Min(0)
+  private long eventsPerSecond = 50_000;
+
+  // events that may be sent at once after being idle
+  @Min(1)
+  private long eventBurst = 100_000;
+
+  @NotNull private Size bytesPerSecond = Size.megabytes(50);
+
+  @NotNull private Size byteBurst = Size.megabytes(100);
+
+  @JsonProperty
+  public long getEventsPerSecond() {
+    return eventsPerSecond;
+  }
+
+  @JsonProperty
+  public void setEventsPerSecond(long rate) {
+    this.eventsPerSecond = rate;
+  }
+
+  @JsonProperty
+  public long getEventBurst() {
+    return eventBurst;
+  }
+
+  @JsonProperty
+  public void setEventBurst(long burst) {
+    this.eventBurst = burst;
+  }
+
+  @JsonProperty
+  public Size getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  @JsonProperty
+  public void setBytesPerSecond(Size rate) {
+    this.bytesPerSecond = rate;
+  }
+
+  @JsonProperty
+  public Size getByteBurst() {
+    return byteBurst;
+  }
+
+  @JsonProperty
+  public void setByteBurst(Size burst) {
+    this.byteBurst = burst;
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
+import io.dropwizard.validation.MinDuration;
+import java.util.concurrent.TimeUnit;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import org.hibernate.validator.constraints.NotEmpty;
+
+public class RetryConfiguration {
+
+  @Min(1)
+  private int maxAttempts = 5;
+
+  @NotNull
+  @MinDuration(value = 1, unit = TimeUnit.MILLISECONDS)
+  private Duration baseDelay = Duration.seconds(1);
+
+  @NotNull
+  @MinDuration(value = 1, unit = TimeUnit.MILLISECONDS)
+  private Duration maxDelay = Duration.minutes(1);
+
+  private boolean deadLetterEnabled = false;
+
+  @NotEmpty private String deadLetterDirectory = "dead-letter";
+
+  @JsonProperty
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  @JsonProperty
+  public void setMaxAttempts(int attempts) {
+    this.maxAttempts = attempts;
+  }
+
+  @JsonProperty
+  public Duration getBaseDelay() {
+    return baseDelay;
+  }
+
+  @JsonProperty
+  public void setBaseDelay(Duration delay) {
+    this.baseDelay = delay;
+  }
+
+  @JsonProperty
+  public Duration getMaxDelay() {
+    return maxDelay;
+  }
+
+  @JsonProperty
+  public void setMaxDelay(Duration delay) {
+    this.maxDelay = delay;
+  }
+
+  @JsonProperty
+  public boolean isDeadLetterEnabled() {
+    return deadLetterEnabled;
+  }
+
+  @JsonProperty
+  public void setDeadLetterEnabled(boolean enabled) {
+    this.deadLetterEnabled = enabled;
+  }
+
+  @JsonProperty
+  public String getDeadLetterDirectory() {
+    return deadLetterDirectory;
+  }
+
+  @JsonProperty
+  public void setDeadLetterDirectory(String directory) {
+    this.deadLetterDirectory = directory;
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Size;
+import io.dropwizard.util.SizeUnit;
+import io.dropwizard.validation.MinSize;
+import javax.validation.constraints.NotNull;
+import org.hibernate.validator.constraints.NotEmpty;
+
+public class SpoolConfiguration {
+
+  private boolean enabled = false;
+
+  @NotEmpty private String directory = "spool";
+
+  @NotNull
+  @MinSize(value = 1, unit = SizeUnit.MEGABYTES)
+  private Size segmentSize = Size.megabytes(64);
+
+  private boolean fsync = true;
+
+  @JsonProperty
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @JsonProperty
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  @JsonProperty
+  public String getDirectory() {
+    return directory;
+  }
+
+  @JsonProperty
+  public void setDirectory(String directory) {
+    this.directory = directory;
+  }
+
+  @JsonProperty
+  public Size getSegmentSize() {
+    return segmentSize;
+  }
+
+  @JsonProperty
+  public void setSegmentSize(Size size) {
+    this.segmentSize = size;
+  }
+
+  @JsonProperty
+  public boolean isFsync() {
+    return fsync;
+  }
+
+  @JsonProperty
+  public void setFsync(boolean fsync) {
+    this.fsync = fsync;
+  }
+}
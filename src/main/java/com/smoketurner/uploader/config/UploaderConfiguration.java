@@ -15,8 +15,10 @@
  */
 package com.smoketurner.uploader.config;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import io.dropwizard.Configuration;
+import io.dropwizard.validation.ValidationMethod;
 import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
 
@@ -26,6 +28,17 @@ public class UploaderConfiguration extends Configuration {
 
   @Valid @NotNull private final NettyConfiguration netty = new NettyConfiguration();
 
+  @Valid @NotNull private final BatchConfiguration batch = new BatchConfiguration();
+
+  @Valid @NotNull private final SpoolConfiguration spool = new SpoolConfiguration();
+
+  @Valid @NotNull private final RetryConfiguration retry = new RetryConfiguration();
+
+  @Valid @NotNull
+  private final CompressionConfiguration compression = new CompressionConfiguration();
+
+  @Valid @NotNull private final QuotaConfiguration quota = new QuotaConfiguration();
+
   @JsonProperty
   public AwsConfiguration getAws() {
     return aws;
@@ -35,4 +48,38 @@ public class UploaderConfiguration extends Configuration {
   public NettyConfiguration getNetty() {
     return netty;
   }
+
+  @JsonProperty
+  public BatchConfiguration getBatch() {
+    return batch;
+  }
+
+  @JsonProperty
+  public SpoolConfiguration getSpool() {
+    return spool;
+  }
+
+  @JsonProperty
+  public RetryConfiguration getRetry() {
+    return retry;
+  }
+
+  @JsonProperty
+  public CompressionConfiguration getCompression() {
+    return compression;
+  }
+
+  @JsonProperty
+  public QuotaConfiguration getQuota() {
+    return quota;
+  }
+
+  @JsonIgnore
+  @ValidationMethod(
+      message =
+          "batch.streaming requires spool.enabled, failed multipart uploads can only be"
+              + " recovered from the spool")
+  public boolean isStreamingRecoverable() {
+    return !batch.isStreaming() || spool.isEnabled();
+  }
 }
@@ -15,21 +15,19 @@
  */
 package com.smoketurner.uploader.core;
 
-import java.io.ByteArrayOutputStream;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
 import java.io.IOException;
-import java.math.BigInteger;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.time.Clock;
 import java.time.Instant;
-import java.time.ZoneOffset;
-import java.time.format.DateTimeFormatter;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.zip.GZIPOutputStream;
 import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,30 +36,70 @@ public final class Batch {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(Batch.class);
   private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
-  private static final DateTimeFormatter KEY_DATE_FORMAT =
-      DateTimeFormatter.ofPattern("yyyy/MM/dd/HH/mm/ss").withZone(ZoneOffset.UTC);
+  private static final long DEFAULT_FLUSH_SIZE = 64 * 1024;
+  private static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
 
   private final AtomicInteger eventCount = new AtomicInteger(0);
   private final AtomicBoolean finished = new AtomicBoolean(false);
+  private final AtomicBoolean released = new AtomicBoolean(false);
 
-  private final ByteArrayOutputStream buffer;
+  private final ByteBufAllocator allocator;
   private final Optional<String> customerId;
-  private final GZIPOutputStream compressor;
+  private final Codec codec;
   private final Instant createdAt;
+  @Nullable private final BatchSizes sizes;
+
+  // created on the first event after the batch is opened or a gzip member
+  // is appended, as a member has to follow a complete compressed stream
+  @Nullable private OutputStream compressor;
+
+  // whether the batch output ends with a line separator, so the next event
+  // does not need one
+  private boolean separated = true;
+
+  // compressed output, swapped out for a new buffer when a part is drained.
+  // The buffer grows a chunk at a time as it fills up, so a batch only holds
+  // on to roughly as much memory as it has compressed.
+  private CompositeByteBuf buffer;
+  private final int chunkSize;
+
+  // number of compressed bytes already handed off as multipart upload parts
+  private long drainedBytes = 0;
+
+  // the compressor is only flushed once this many uncompressed bytes have
+  // been written since the last flush, as every flush ends the current
+  // deflate block and hurts the compression ratio
+  private final long flushBytes;
+  private long uncompressedBytes = 0;
+  private long pendingBytes = 0;
+  private long compressedAtFlush = 0;
+
+  @Nullable private MultipartUpload multipartUpload;
+
+  // S3 key, assigned once so every part and spool record of the batch agrees
+  @Nullable private String key;
+
+  // spool ID shared by every part of a multipart upload
+  private long spoolId = -1;
 
   /**
    * Constructor
    *
-   * @param customerId Customer ID (may be null)
-   * @param size Initial buffer size in bytes
-   * @param createdAt Creation timestamp
+   * @param builder Batch builder
    * @throws IOException
    */
   private Batch(final Builder builder) throws IOException {
     this.customerId = builder.customerId;
     this.createdAt = builder.createdAt;
-    buffer = new ByteArrayOutputStream(builder.size);
-    compressor = new GZIPOutputStream(buffer, true);
+    this.allocator = builder.allocator;
+    this.codec = builder.codec;
+    this.flushBytes = builder.flushSize;
+    this.sizes = builder.sizes;
+    this.chunkSize = builder.chunkSize;
+    buffer = newBuffer();
+    if (builder.size > 0) {
+      buffer.capacity(builder.size);
+    }
   }
 
   public static Batch create(@Nullable String customerId) throws IOException {
@@ -74,48 +112,203 @@ public final class Batch {
 
   public static final class Builder {
     private final Optional<String> customerId;
-    private int size = 32;
+    private int size = 0;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    @Nullable private BatchSizes sizes;
     private Instant createdAt = Instant.now(Clock.systemUTC());
+    private ByteBufAllocator allocator = ByteBufAllocator.DEFAULT;
+    private Codec codec = Codecs.DEFAULT;
+    private long flushSize = DEFAULT_FLUSH_SIZE;
 
     public Builder(@Nullable String customerId) {
       this.customerId = Optional.ofNullable(customerId);
     }
 
+    /**
+     * Allocate the buffer up front instead of growing it as events are added
+     *
+     * @param size Initial buffer size in bytes
+     * @return builder
+     */
     public Builder withSize(long size) {
       this.size = Math.toIntExact(size);
       return this;
     }
 
+    /**
+     * Start with the buffer size learned from the customer's recent batches and grow it by the
+     * learned chunk size, and record the size of this batch once it is finished
+     *
+     * @param sizes Batch sizes of recent customers
+     * @return builder
+     */
+    public Builder withSizes(BatchSizes sizes) {
+      this.sizes = Objects.requireNonNull(sizes);
+      this.chunkSize = Math.toIntExact(sizes.getChunkSize());
+      return this;
+    }
+
     public Builder withCreatedAt(Instant createdAt) {
       this.createdAt = Objects.requireNonNull(createdAt);
       return this;
     }
 
+    public Builder withAllocator(ByteBufAllocator allocator) {
+      this.allocator = Objects.requireNonNull(allocator);
+      return this;
+    }
+
+    public Builder withCodec(Codec codec) {
+      this.codec = Objects.requireNonNull(codec);
+      return this;
+    }
+
+    public Builder withFlushSize(long flushSize) {
+      this.flushSize = flushSize;
+      return this;
+    }
+
     public Batch build() throws IOException {
+      if (sizes != null) {
+        size = Math.toIntExact(sizes.initialSize(customerId.orElse(null)));
+      }
       return new Batch(this);
     }
   }
 
   public void add(final byte[] event) throws IOException {
+    add(event, 0, event.length);
+  }
+
+  /**
+   * Add an event held in a slice of a larger array, such as a read buffer, without copying it.
+   *
+   * @param buf Array holding the event
+   * @param offset Offset of the event in the array
+   * @param length Length of the event
+   * @throws IOException if unable to compress the event
+   */
+  public void add(final byte[] buf, final int offset, final int length) throws IOException {
+    beforeAdd().write(buf, offset, length);
+    afterAdd(length);
+  }
+
+  /**
+   * Add an event straight from a (possibly direct) buffer, such as a frame decoded from the
+   * network, without first copying it into its own array. The buffer's reader index is not
+   * changed.
+   *
+   * @param event Event to add
+   * @throws IOException if unable to compress the event
+   */
+  public void add(final ByteBuf event) throws IOException {
+    final int length = event.readableBytes();
+    if (event.hasArray()) {
+      add(event.array(), event.arrayOffset() + event.readerIndex(), length);
+      return;
+    }
+    event.getBytes(event.readerIndex(), beforeAdd(), length);
+    afterAdd(length);
+  }
+
+  /**
+   * Append a gzip member received from a client to the batch without decompressing it. Any events
+   * compressed so far are completed as a member of their own first. The member's reader index is
+   * not changed.
+   *
+   * @param member Gzip member holding newline terminated events
+   * @throws IOException if unable to complete the events compressed so far
+   * @throws IllegalStateException if the batch is not gzip compressed
+   */
+  public void add(final GzipMember member) throws IOException {
+    if (finished.get()) {
+      throw new IllegalStateException("Unable to add gzip member to finished batch");
+    }
+    if (codec.getType() != CodecType.GZIP) {
+      throw new IllegalStateException(
+          "Unable to add gzip member to " + codec.getType() + " batch");
+    }
+
+    final OutputStream current = compressor;
+    if (current != null) {
+      current.write(NEWLINE);
+      current.close();
+      compressor = null;
+      uncompressedBytes += pendingBytes + NEWLINE.length;
+      pendingBytes = 0;
+    }
+
+    final ByteBuf content = member.content();
+    ensureWritable(content.readableBytes());
+    buffer.writeBytes(content, content.readerIndex(), content.readableBytes());
+    eventCount.addAndGet(member.getEvents());
+    uncompressedBytes += member.getUncompressedSize();
+    compressedAtFlush = drainedBytes + buffer.readableBytes();
+    separated = true;
+  }
+
+  private OutputStream beforeAdd() throws IOException {
     if (finished.get()) {
       throw new IllegalStateException("Unable to add event to finished batch");
     }
-    if (eventCount.get() > 0) {
-      compressor.write(NEWLINE);
+    OutputStream current = compressor;
+    if (current == null) {
+      current = codec.newOutputStream(new BufferOutputStream());
+      compressor = current;
+    }
+    if (!separated) {
+      current.write(NEWLINE);
+      pendingBytes += NEWLINE.length;
     }
-    compressor.write(event);
+    return current;
+  }
+
+  private void afterAdd(final int length) throws IOException {
     eventCount.incrementAndGet();
-    compressor.flush();
+    separated = false;
+
+    pendingBytes += length;
+    if (pendingBytes >= flushBytes) {
+      flush();
+    }
+  }
+
+  /**
+   * Flush everything written to the compressor into the buffer, so the compressed size is exact.
+   *
+   * @throws IOException if unable to flush the compressor
+   */
+  public void flush() throws IOException {
+    final OutputStream current = compressor;
+    if (finished.get() || current == null || pendingBytes == 0) {
+      return;
+    }
+    current.flush();
+    uncompressedBytes += pendingBytes;
+    pendingBytes = 0;
+    compressedAtFlush = drainedBytes + buffer.readableBytes();
   }
 
   public void finish() {
     if (finished.compareAndSet(false, true)) {
       try {
-        compressor.close();
-        buffer.close();
+        OutputStream current = compressor;
+        if (current == null && eventCount.get() == 0) {
+          // an empty batch is still a valid compressed stream
+          current = codec.newOutputStream(new BufferOutputStream());
+        }
+        if (current != null) {
+          current.close();
+        }
       } catch (IOException e) {
         LOGGER.error("Unable to close compression stream", e);
       }
+      uncompressedBytes += pendingBytes;
+      pendingBytes = 0;
+
+      if (sizes != null && eventCount.get() > 0) {
+        sizes.record(customerId.orElse(null), size());
+      }
     }
   }
 
@@ -123,18 +316,72 @@ public final class Batch {
     return customerId;
   }
 
+  public Codec getCodec() {
+    return codec;
+  }
+
+  /**
+   * S3 key of the batch, assigned from the default layout if the batch does not have one yet.
+   *
+   * @return S3 key
+   */
   public String getKey() {
-    final String datePart = KEY_DATE_FORMAT.format(createdAt);
-    final String key = String.format("%s/events_%s.log.gz", datePart, createdAt.toEpochMilli());
-    return String.format("%s/%s-%s", customerId.orElse("none"), getHash(key, 1), key);
+    return getKey(KeyLayout.DEFAULT);
+  }
+
+  /**
+   * S3 key of the batch. The key is built from the layout on the first call and the same key is
+   * returned from then on.
+   *
+   * @param layout Layout used to build the key
+   * @return S3 key
+   */
+  public synchronized String getKey(final KeyLayout layout) {
+    if (key == null) {
+      key = layout.newKey(customerId.orElse(null), createdAt, codec);
+    }
+    return key;
   }
 
   public int getCount() {
     return eventCount.get();
   }
 
+  /**
+   * Total number of compressed bytes in the batch, including any bytes already drained as parts.
+   * Events written since the last flush are still inside the compressor, so their compressed size
+   * is estimated from the compression ratio achieved up to the last flush. Until the first flush
+   * they are assumed not to compress at all. Once the batch is finished the size is exact.
+   *
+   * @return batch size in bytes
+   */
   public long size() {
-    return buffer.size();
+    final long compressed = drainedBytes + buffer.readableBytes();
+    if (pendingBytes == 0) {
+      return compressed;
+    }
+    if (uncompressedBytes == 0) {
+      return compressed + pendingBytes;
+    }
+    return compressed + pendingBytes * compressedAtFlush / uncompressedBytes;
+  }
+
+  /**
+   * Total number of uncompressed bytes written to the batch
+   *
+   * @return uncompressed size in bytes
+   */
+  public long uncompressedSize() {
+    return uncompressedBytes + pendingBytes;
+  }
+
+  /**
+   * Number of compressed bytes currently buffered in memory.
+   *
+   * @return buffered size in bytes
+   */
+  public long bufferedSize() {
+    return buffer.readableBytes();
   }
 
   public boolean isEmpty() {
@@ -146,36 +393,98 @@ public final class Batch {
   }
 
   public byte[] toByteArray() {
+    return ByteBufUtil.getBytes(content());
+  }
+
+  /**
+   * Finish the batch and return the compressed output. The buffer remains owned by the batch and
+   * is only valid until {@link #release()} is called.
+   *
+   * @return compressed output
+   */
+  public ByteBuf content() {
     finish();
-    return buffer.toByteArray();
+    return buffer;
   }
 
   /**
-   * Generate a MD5 hash for a string and return the first characters, otherwise an underscore
-   * character.
+   * Remove the compressed bytes buffered so far so they can be uploaded as a multipart upload
+   * part. The batch remains open and subsequent events continue the same compressed stream in a
+   * new buffer.
    *
-   * @param str Key to compute the hash against
-   * @param length Length of hash to return
-   * @return Hash character
+   * @return buffered compressed bytes, which the caller is responsible for releasing
+   */
+  public ByteBuf drainPart() {
+    final CompositeByteBuf part = buffer;
+    buffer = newBuffer();
+    drainedBytes += part.readableBytes();
+    return part;
+  }
+
+  /**
+   * Release the buffer backing this batch back to the allocator. The batch is finished first so
+   * the compressor gives back its native resources, and the buffer is released even if that fails.
    */
-  public static String getHash(final String str, final int length) {
-    try {
-      final MessageDigest digest = MessageDigest.getInstance("md5");
-      final byte[] bytes = digest.digest(str.getBytes(StandardCharsets.UTF_8));
-      return toHexString(bytes).substring(0, length);
-    } catch (NoSuchAlgorithmException e) {
-      throw new RuntimeException(e);
+  public void release() {
+    if (released.compareAndSet(false, true)) {
+      try {
+        finish();
+      } finally {
+        buffer.release();
+      }
     }
   }
 
+  @Nullable
+  MultipartUpload getMultipartUpload() {
+    return multipartUpload;
+  }
+
+  void setMultipartUpload(final MultipartUpload upload) {
+    this.multipartUpload = Objects.requireNonNull(upload);
+  }
+
+  long getSpoolId() {
+    return spoolId;
+  }
+
+  void setSpoolId(final long id) {
+    this.spoolId = id;
+  }
+
+  private CompositeByteBuf newBuffer() {
+    // allow an unbounded number of components so the buffer grows without
+    // ever consolidating (copying) the compressed output
+    return allocator.compositeDirectBuffer(Integer.MAX_VALUE);
+  }
+
   /**
-   * Convert a byte array into a hexidecimal string.
-   *
-   * @param bytes input byte array
-   * @return hex string
+   * Grow the buffer by whole chunks until it can hold another {@code length} bytes. Each chunk is
+   * a separate component, so growing never copies what has been written so far, and chunks come
+   * from the allocator's per-thread caches when it is pooled.
    */
-  public static String toHexString(byte[] bytes) {
-    final BigInteger bi = new BigInteger(1, bytes);
-    return String.format("%0" + (bytes.length << 1) + "x", bi);
+  private void ensureWritable(final int length) {
+    final int writable = buffer.capacity() - buffer.writerIndex();
+    if (writable >= length) {
+      return;
+    }
+    final int chunks = (length - writable + chunkSize - 1) / chunkSize;
+    buffer.capacity(buffer.capacity() + chunks * chunkSize);
+  }
+
+  /** Writes the compressor output into whichever buffer is current. */
+  private final class BufferOutputStream extends OutputStream {
+
+    @Override
+    public void write(int b) {
+      ensureWritable(1);
+      buffer.writeByte(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      ensureWritable(len);
+      buffer.writeBytes(b, off, len);
+    }
   }
 }
@@ -0,0 +1,564 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.annotations.VisibleForTesting;
+import com.smoketurner.uploader.config.BatchConfiguration;
+import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.util.Size;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.EventExecutor;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges events from every connection or HTTP request of the same customer into shared batches,
+ * instead of one batch per connection. Each customer has a fixed number of stripes, each holding at
+ * most one open batch. A connection always writes to the stripe selected by its event loop, so
+ * raising the number of stripes trades fewer, larger objects for less lock contention between
+ * event loops. Event loops are assigned stripes in turn, so they spread evenly across the stripes.
+ * The stripes of a customer are dropped once none of them has an open batch, so customers that
+ * stopped sending events are not kept forever.
+ *
+ * <p>With event time partitioning a stripe holds one open batch per event time bucket instead, up
+ * to the maximum number of open buckets.
+ *
+ * <p>Customers never share a lock, and stripe locks are fair so a busy event loop cannot
+ * repeatedly barge ahead of the other event loops writing to the same stripe.
+ */
+public class BatchAggregator implements Managed {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BatchAggregator.class);
+  private static final String NO_CUSTOMER = "";
+
+  private final ConcurrentMap<String, Customer> customers = new ConcurrentHashMap<>();
+  private final ConcurrentMap<EventExecutor, Integer> executorIndexes = new ConcurrentHashMap<>();
+  private final AtomicInteger nextExecutorIndex = new AtomicInteger(0);
+
+  // every open batch in the order they were opened, so the oldest one can be
+  // evicted without scanning every stripe
+  private final ConcurrentSkipListMap<Long, OpenBatch> openOrder = new ConcurrentSkipListMap<>();
+  private final AtomicLong openSequence = new AtomicLong(0);
+  private final AtomicInteger openBatches = new AtomicInteger(0);
+  private final Uploader uploader;
+  private final long maxUploadBytes;
+  private final long maxBatchAgeMillis;
+  private final int maxBatchCount;
+  private final boolean streaming;
+  private final long partBytes;
+  private final long flushBytes;
+  private final int stripes;
+  private final int maxOpenBatches;
+  private final Codecs codecs;
+  private final BatchSizes sizes;
+  private final EventTimeExtractor eventTime;
+
+  // metrics
+  private final Meter sizeFlushMeter;
+  private final Meter countFlushMeter;
+  private final Meter ageFlushMeter;
+  private final Meter evictedFlushMeter;
+  private final Meter bucketFlushMeter;
+
+  /**
+   * Constructor
+   *
+   * @param uploader AWS S3 uploader
+   * @param maxUploadSize Maximum size of AWS S3 file to upload
+   * @param configuration Batch configuration
+   * @param codecs Compression codecs
+   */
+  public BatchAggregator(
+      final Uploader uploader,
+      final Size maxUploadSize,
+      final BatchConfiguration configuration,
+      final Codecs codecs) {
+    this.uploader = Objects.requireNonNull(uploader);
+    this.maxUploadBytes = maxUploadSize.toBytes();
+    this.maxBatchAgeMillis = configuration.getMaxBatchAge().toMilliseconds();
+    this.maxBatchCount = configuration.getMaxBatchCount();
+    this.streaming = configuration.isStreaming();
+    this.partBytes = configuration.getPartSize().toBytes();
+    this.flushBytes = configuration.getFlushSize().toBytes();
+    this.stripes = configuration.getSharedStripes();
+    this.maxOpenBatches = configuration.getMaxOpenBatches();
+    this.codecs = Objects.requireNonNull(codecs);
+
+    // shared batches grow larger than per-connection batches of the same
+    // customer, so they learn their sizes separately
+    this.sizes = new BatchSizes(configuration, maxUploadSize);
+    this.eventTime = new EventTimeExtractor(configuration.getEventTime());
+
+    final MetricRegistry registry = SharedMetricRegistries.getDefault();
+    this.sizeFlushMeter = registry.meter(name(BatchAggregator.class, "flush-size"));
+    this.countFlushMeter = registry.meter(name(BatchAggregator.class, "flush-count"));
+    this.ageFlushMeter = registry.meter(name(BatchAggregator.class, "flush-age"));
+    this.evictedFlushMeter = registry.meter(name(BatchAggregator.class, "flush-evicted"));
+    this.bucketFlushMeter = registry.meter(name(BatchAggregator.class, "flush-buckets"));
+    registry.gauge(
+        name(BatchAggregator.class, "open-batches"), () -> (Gauge<Integer>) openBatches::get);
+  }
+
+  /**
+   * Add an event to the shared batch of a customer
+   *
+   * @param customerId Customer ID (may be null)
+   * @param event Event to add
+   * @param executor Event loop of the connection that received the event, or the executor chosen
+   *     for the HTTP request
+   * @throws IOException if unable to add the event to the batch
+   */
+  public void add(
+      @Nullable final String customerId, final byte[] event, final EventExecutor executor)
+      throws IOException {
+    add(customerId, event, 0, event.length, executor);
+  }
+
+  /**
+   * Add an event held in a slice of a larger array to the shared batch of a customer
+   *
+   * @param customerId Customer ID (may be null)
+   * @param buf Array holding the event
+   * @param offset Offset of the event in the array
+   * @param length Length of the event
+   * @param executor Event loop of the connection that received the event, or the executor chosen
+   *     for the HTTP request
+   * @throws IOException if unable to add the event to the batch
+   */
+  public void add(
+      @Nullable final String customerId,
+      final byte[] buf,
+      final int offset,
+      final int length,
+      final EventExecutor executor)
+      throws IOException {
+
+    final long bucket = eventTime.bucket(buf, offset, length);
+    add(customerId, bucket, executor, batch -> batch.add(buf, offset, length));
+  }
+
+  /**
+   * Add an event decoded from a connection to the shared batch of a customer, without copying it
+   * into its own array first
+   *
+   * @param customerId Customer ID (may be null)
+   * @param event Event to add
+   * @param executor Event loop of the connection that received the event
+   * @throws IOException if unable to add the event to the batch
+   */
+  public void add(
+      @Nullable final String customerId, final ByteBuf event, final EventExecutor executor)
+      throws IOException {
+
+    add(customerId, eventTime.bucket(event), executor, batch -> batch.add(event));
+  }
+
+  /**
+   * Append a gzip member received from a connection to the shared batch of a customer without
+   * decompressing it
+   *
+   * @param customerId Customer ID (may be null)
+   * @param member Gzip member holding newline terminated events
+   * @param executor Event loop of the connection that received the member
+   * @throws IOException if unable to add the member to the batch
+   */
+  public void add(
+      @Nullable final String customerId, final GzipMember member, final EventExecutor executor)
+      throws IOException {
+
+    // the events of a member are not decompressed, so their timestamps are
+    // unknown
+    add(customerId, eventTime.currentBucket(), executor, batch -> batch.add(member));
+  }
+
+  /** Upload every open batch. */
+  public void flushAll() {
+    customers
+        .values()
+        .forEach(
+            customer -> {
+              for (Stripe stripe : customer.stripes) {
+                stripe.lock.lock();
+                try {
+                  stripe.flushAll();
+                } finally {
+                  stripe.lock.unlock();
+                }
+              }
+            });
+  }
+
+  /**
+   * Number of batches currently open
+   *
+   * @return open batch count
+   */
+  public int getOpenBatches() {
+    return openBatches.get();
+  }
+
+  @VisibleForTesting
+  int getCustomers() {
+    return customers.size();
+  }
+
+  @Override
+  public void start() throws Exception {
+    // nothing to start
+  }
+
+  @Override
+  public void stop() throws Exception {
+    flushAll();
+  }
+
+  /**
+   * Write to the batch of the stripe for the customer and event loop that is open for the bucket.
+   * If the write fails the batch is discarded, as its compressed stream can no longer be
+   * completed, so its compressor is freed straight away instead of when the batch would have been
+   * uploaded.
+   */
+  private void add(
+      @Nullable final String customerId,
+      final long bucket,
+      final EventExecutor executor,
+      final BatchWriter writer)
+      throws IOException {
+
+    final String key = customerId == null ? NO_CUSTOMER : customerId;
+    final int index = stripeIndex(executor);
+    while (true) {
+      final Customer customer = customers.computeIfAbsent(key, k -> new Customer(k, customerId));
+      final Stripe stripe = customer.stripes[index];
+      stripe.lock.lock();
+      try {
+        final OpenBatch open = stripe.current(bucket, executor);
+        if (open == null) {
+          // the customer was dropped when its last batch closed, so start over
+          // with a new one
+          continue;
+        }
+        try {
+          writer.write(open.batch);
+        } catch (IOException | RuntimeException e) {
+          LOGGER.warn("Discarding batch of {} events for: {}", open.batch.getCount(), customerId);
+          stripe.discard(open);
+          throw e;
+        }
+        checkLimits(stripe, open);
+        return;
+      } finally {
+        stripe.lock.unlock();
+      }
+    }
+  }
+
+  /** Upload the batch if it reached a limit. Must be called while holding the stripe lock. */
+  private void checkLimits(final Stripe stripe, final OpenBatch open) {
+    final Batch batch = open.batch;
+    if (batch.size() > maxUploadBytes) {
+      LOGGER.debug(
+          "Batch size {} bytes exceeds max upload size of {} bytes", batch.size(), maxUploadBytes);
+      stripe.flush(open, sizeFlushMeter);
+    } else if (batch.getCount() >= maxBatchCount) {
+      LOGGER.debug("Batch count {} reached max batch count of {}", batch.getCount(), maxBatchCount);
+      stripe.flush(open, countFlushMeter);
+    } else if (streaming && batch.bufferedSize() >= partBytes) {
+      uploader.uploadPart(batch);
+    }
+  }
+
+  /**
+   * Stripe used by an event loop. Event loops are numbered in the order they first add an event, so
+   * a fixed number of event loops spreads evenly across the stripes.
+   */
+  private int stripeIndex(final EventExecutor executor) {
+    if (stripes == 1) {
+      return 0;
+    }
+    Integer index = executorIndexes.get(executor);
+    if (index == null) {
+      index = executorIndexes.computeIfAbsent(executor, e -> nextExecutorIndex.getAndIncrement());
+    }
+    return index % stripes;
+  }
+
+  /**
+   * Upload the batch that has been open the longest to bring the number of open batches back under
+   * the limit. Stripes that are currently locked by another thread are skipped rather than waited
+   * on, so this never blocks while the caller holds its own stripe lock, and the next oldest batch
+   * is evicted instead.
+   */
+  private void evictOldest() {
+    for (OpenBatch oldest : openOrder.values()) {
+      final Stripe stripe = oldest.stripe;
+      if (!stripe.lock.tryLock()) {
+        continue;
+      }
+      try {
+        LOGGER.debug(
+            "Open batches exceeds max open batches of {}, uploading oldest batch", maxOpenBatches);
+        if (stripe.flush(oldest, evictedFlushMeter)) {
+          return;
+        }
+      } finally {
+        stripe.lock.unlock();
+      }
+    }
+  }
+
+  @FunctionalInterface
+  private interface BatchWriter {
+    void write(Batch batch) throws IOException;
+  }
+
+  private static final class OpenBatch {
+    private final Batch batch;
+    private final long bucket;
+    private final Stripe stripe;
+    private final long sequence;
+    @Nullable private ScheduledFuture<?> ageFlush;
+
+    OpenBatch(final Batch batch, final long bucket, final Stripe stripe, final long sequence) {
+      this.batch = batch;
+      this.bucket = bucket;
+      this.stripe = stripe;
+      this.sequence = sequence;
+    }
+  }
+
+  private final class Customer {
+    private final String key;
+    private final Stripe[] stripes;
+
+    // batches open across the stripes, or -1 once the customer has been
+    // dropped and no more batches may be opened
+    private final AtomicInteger open = new AtomicInteger(0);
+
+    Customer(final String key, @Nullable final String customerId) {
+      this.key = key;
+      this.stripes = new Stripe[BatchAggregator.this.stripes];
+      for (int i = 0; i < this.stripes.length; i++) {
+        this.stripes[i] = new Stripe(this, customerId);
+      }
+    }
+
+    /**
+     * Account for a batch being opened
+     *
+     * @return false if the customer has been dropped
+     */
+    boolean opened() {
+      while (true) {
+        final int current = open.get();
+        if (current < 0) {
+          return false;
+        }
+        if (open.compareAndSet(current, current + 1)) {
+          return true;
+        }
+      }
+    }
+
+    /** Account for a batch being closed, dropping the customer once none are open. */
+    void closed() {
+      if (open.decrementAndGet() == 0 && open.compareAndSet(0, -1)) {
+        customers.remove(key, this);
+      }
+    }
+  }
+
+  private final class Stripe {
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Customer customer;
+    @Nullable private final String customerId;
+
+    // open batches in the order they were opened, one per event time bucket,
+    // so there is only ever one without event time partitioning. Guarded by
+    // the lock.
+    private final List<OpenBatch> batches = new ArrayList<>(1);
+
+    Stripe(final Customer customer, @Nullable final String customerId) {
+      this.customer = customer;
+      this.customerId = customerId;
+    }
+
+    /**
+     * Must be called while holding the lock.
+     *
+     * @return the batch open for the bucket, or null if the customer has been dropped
+     */
+    @Nullable
+    OpenBatch current(final long bucket, final EventExecutor executor) throws IOException {
+      for (int i = batches.size() - 1; i >= 0; i--) {
+        final OpenBatch open = batches.get(i);
+        if (open.bucket == bucket) {
+          return open;
+        }
+      }
+
+      if (batches.size() >= eventTime.getMaxOpenBuckets()) {
+        LOGGER.debug(
+            "Open buckets exceeds max open buckets of {}, uploading oldest batch",
+            eventTime.getMaxOpenBuckets());
+        flushOldest(bucketFlushMeter);
+      }
+      if (openBatches.get() >= maxOpenBatches) {
+        evictOldest();
+      }
+      return open(bucket, executor);
+    }
+
+    /** Must be called while holding the lock. */
+    @Nullable
+    OpenBatch open(final long bucket, final EventExecutor executor) throws IOException {
+      if (!customer.opened()) {
+        return null;
+      }
+
+      LOGGER.debug("Creating new shared batch for: {}", customerId);
+      final Batch.Builder builder =
+          Batch.builder(customerId)
+              .withSizes(sizes)
+              .withCodec(codecs.forCustomer(customerId))
+              .withFlushSize(flushBytes);
+      if (bucket != EventTimeExtractor.NO_BUCKET) {
+        // keys are partitioned by the start of the bucket
+        builder.withCreatedAt(Instant.ofEpochMilli(bucket));
+      }
+
+      final Batch batch;
+      try {
+        batch = builder.build();
+      } catch (IOException | RuntimeException e) {
+        customer.closed();
+        throw e;
+      }
+
+      final OpenBatch open = new OpenBatch(batch, bucket, this, openSequence.getAndIncrement());
+      batches.add(open);
+      openOrder.put(open.sequence, open);
+      openBatches.incrementAndGet();
+      open.ageFlush =
+          executor.schedule(() -> onMaxBatchAge(open), maxBatchAgeMillis, TimeUnit.MILLISECONDS);
+      return open;
+    }
+
+    /** Upload every open batch. Must be called while holding the lock. */
+    void flushAll() {
+      while (!batches.isEmpty()) {
+        flush(batches.get(0), null);
+      }
+    }
+
+    /** Upload the batch that was opened first. Must be called while holding the lock. */
+    void flushOldest(final Meter trigger) {
+      if (!batches.isEmpty()) {
+        flush(batches.get(0), trigger);
+      }
+    }
+
+    /**
+     * Must be called while holding the lock.
+     *
+     * @return false if the batch was no longer open
+     */
+    boolean flush(final OpenBatch open, @Nullable final Meter trigger) {
+      if (!close(open)) {
+        return false;
+      }
+
+      final Batch current = open.batch;
+      if (current.isEmpty()) {
+        current.release();
+        return true;
+      }
+
+      if (trigger != null) {
+        trigger.mark();
+      }
+      current.finish();
+      uploader.upload(current);
+      return true;
+    }
+
+    /** Release an open batch without uploading it. Must be called while holding the lock. */
+    void discard(final OpenBatch open) {
+      if (close(open)) {
+        open.batch.release();
+      }
+    }
+
+    /**
+     * Detach an open batch from the stripe. Must be called while holding the lock.
+     *
+     * @return false if the batch was no longer open
+     */
+    private boolean close(final OpenBatch open) {
+      if (!batches.remove(open)) {
+        return false;
+      }
+
+      openOrder.remove(open.sequence);
+      openBatches.decrementAndGet();
+
+      final ScheduledFuture<?> future = open.ageFlush;
+      if (future != null) {
+        future.cancel(false);
+        open.ageFlush = null;
+      }
+      customer.closed();
+      return true;
+    }
+
+    private void onMaxBatchAge(final OpenBatch expected) {
+      lock.lock();
+      try {
+        if (!batches.contains(expected)) {
+          return;
+        }
+        expected.ageFlush = null;
+        LOGGER.debug(
+            "Batch of {} events exceeds max batch age of {}ms",
+            expected.batch.getCount(),
+            maxBatchAgeMillis);
+        flush(expected, ageFlushMeter);
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
@@ -15,16 +15,26 @@
  */
 package com.smoketurner.uploader.core;
 
+import io.netty.buffer.ByteBuf;
 import java.nio.ByteBuffer;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.reactivestreams.Subscriber;
 import org.reactivestreams.Subscription;
 import software.amazon.awssdk.core.async.AsyncRequestBody;
 
+/**
+ * Publishes the compressed output of a batch without copying it. Each component of the
+ * underlying buffer is emitted as a separate {@link ByteBuffer} view, one per requested element.
+ *
+ * <p>The buffer is not released when the subscriber completes, because the SDK subscribes again
+ * when it retries a request. The owner of the buffer releases it once the upload has finished.
+ */
 public class BatchRequestBody implements AsyncRequestBody {
 
-  private final Batch batch;
+  private final ByteBuf buffer;
 
   /**
    * Constructor
@@ -32,28 +42,111 @@ public class BatchRequestBody implements AsyncRequestBody {
    * @param batch Batch
    */
   public BatchRequestBody(final Batch batch) {
-    this.batch = Objects.requireNonNull(batch);
+    this(batch.content());
+  }
+
+  /**
+   * Constructor
+   *
+   * @param buffer Compressed output to publish
+   */
+  public BatchRequestBody(final ByteBuf buffer) {
+    this.buffer = Objects.requireNonNull(buffer);
   }
 
   @Override
   public Optional<Long> contentLength() {
-    return Optional.of(batch.size());
+    return Optional.of((long) buffer.readableBytes());
   }
 
   @Override
   public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
-    subscriber.onSubscribe(
-        new Subscription() {
-          @Override
-          public void request(long n) {
-            if (n > 0) {
-              subscriber.onNext(ByteBuffer.wrap(batch.toByteArray()));
-              subscriber.onComplete();
-            }
+    // use absolute indexes so concurrent or repeated subscriptions each get their own views
+    final ByteBuffer[] chunks = buffer.nioBuffers(buffer.readerIndex(), buffer.readableBytes());
+    subscriber.onSubscribe(new ChunkSubscription(subscriber, chunks));
+  }
+
+  private static final class ChunkSubscription implements Subscription {
+
+    private final Subscriber<? super ByteBuffer> subscriber;
+    private final ByteBuffer[] chunks;
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile boolean done = false;
+
+    // only accessed by the thread currently draining
+    private int index = 0;
+
+    ChunkSubscription(final Subscriber<? super ByteBuffer> subscriber, final ByteBuffer[] chunks) {
+      this.subscriber = subscriber;
+      this.chunks = chunks;
+    }
+
+    @Override
+    public void request(long n) {
+      if (done) {
+        return;
+      }
+      if (n <= 0) {
+        done = true;
+        subscriber.onError(
+            new IllegalArgumentException("Non-positive request signals are illegal: " + n));
+        return;
+      }
+
+      long current;
+      long next;
+      do {
+        current = demand.get();
+        next = current + n;
+        if (next < 0) {
+          next = Long.MAX_VALUE;
+        }
+      } while (!demand.compareAndSet(current, next));
+
+      drain();
+    }
+
+    @Override
+    public void cancel() {
+      done = true;
+    }
+
+    /**
+     * Emit as many chunks as have been requested. Only one thread drains at a time, and a request
+     * made from within onNext is picked up by the loop rather than recursing.
+     */
+    private void drain() {
+      if (wip.getAndIncrement() != 0) {
+        return;
+      }
+
+      int missed = 1;
+      do {
+        final long requested = demand.get();
+        long emitted = 0;
+
+        while (emitted != requested && index < chunks.length) {
+          if (done) {
+            return;
+          }
+          subscriber.onNext(chunks[index++]);
+          emitted++;
+        }
+
+        if (index == chunks.length) {
+          if (!done) {
+            done = true;
+            subscriber.onComplete();
           }
+          return;
+        }
 
-          @Override
-          public void cancel() {}
-        });
+        if (emitted != 0 && requested != Long.MAX_VALUE) {
+          demand.addAndGet(-emitted);
+        }
+        missed = wip.addAndGet(-missed);
+      } while (missed != 0);
+    }
   }
 }
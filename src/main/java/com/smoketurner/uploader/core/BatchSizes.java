@@ -0,0 +1,125 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.smoketurner.uploader.config.BatchConfiguration;
+import io.dropwizard.util.Size;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * Learns how large the recent batches of each customer have been, so a new batch can start with a
+ * buffer close to the size it will end up needing rather than the maximum upload size. Customers
+ * without any history start with a single chunk and grow from there.
+ *
+ * <p>The size is a moving average weighted towards recent batches, and only the most recently
+ * seen customers are remembered.
+ */
+public class BatchSizes {
+
+  private static final String NO_CUSTOMER = "";
+
+  // each new batch moves the average a quarter of the way towards its size
+  private static final int WEIGHT = 4;
+
+  private final Cache<String, AtomicLong> customers;
+  private final long chunkBytes;
+  private final long maxBytes;
+  private final Histogram initialSizes;
+
+  /**
+   * Constructor
+   *
+   * @param configuration Batch configuration
+   * @param maxUploadSize Maximum size of AWS S3 file to upload
+   */
+  public BatchSizes(final BatchConfiguration configuration, final Size maxUploadSize) {
+    this(
+        configuration.getBufferChunkSize().toBytes(),
+        configuration.isStreaming()
+            ? configuration.getPartSize().toBytes()
+            : maxUploadSize.toBytes(),
+        configuration.getMaxSizeHistory());
+  }
+
+  /**
+   * Constructor
+   *
+   * @param chunkBytes Size batch buffers grow by
+   * @param maxBytes Largest buffer a batch ever needs
+   * @param maxCustomers Maximum number of customers to remember
+   */
+  public BatchSizes(final long chunkBytes, final long maxBytes, final int maxCustomers) {
+    this.chunkBytes = chunkBytes;
+    this.maxBytes = maxBytes;
+    this.customers = CacheBuilder.newBuilder().maximumSize(maxCustomers).build();
+
+    final MetricRegistry registry = SharedMetricRegistries.getDefault();
+    this.initialSizes = registry.histogram(name(BatchSizes.class, "initial-size"));
+    registry.gauge(name(BatchSizes.class, "customers"), () -> (Gauge<Long>) customers::size);
+  }
+
+  /**
+   * Size a new batch of the customer should start with, rounded up to a whole number of chunks
+   *
+   * @param customerId Customer ID (may be null)
+   * @return initial buffer size in bytes
+   */
+  public long initialSize(@Nullable final String customerId) {
+    final AtomicLong average = customers.getIfPresent(key(customerId));
+    final long chunks =
+        average == null ? 1 : Math.max(1, (average.get() + chunkBytes - 1) / chunkBytes);
+    final long size = Math.min(chunks * chunkBytes, maxBytes);
+    initialSizes.update(size);
+    return size;
+  }
+
+  /**
+   * Record the size a batch of the customer ended up needing
+   *
+   * @param customerId Customer ID (may be null)
+   * @param size Compressed size of the batch in bytes
+   */
+  public void record(@Nullable final String customerId, final long size) {
+    final long bounded = Math.min(size, maxBytes);
+    final AtomicLong average =
+        customers.asMap().putIfAbsent(key(customerId), new AtomicLong(bounded));
+    if (average != null) {
+      average.updateAndGet(current -> current + (bounded - current) / WEIGHT);
+    }
+  }
+
+  /**
+   * Size batch buffers grow by
+   *
+   * @return chunk size in bytes
+   */
+  public long getChunkSize() {
+    return chunkBytes;
+  }
+
+  private static String key(@Nullable final String customerId) {
+    return customerId == null ? NO_CUSTOMER : customerId;
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** Compresses the events written to a batch. Implementations must be thread-safe. */
+public interface Codec {
+
+  /**
+   * Format written by this codec
+   *
+   * @return codec type
+   */
+  CodecType getType();
+
+  /**
+   * Create a new compression stream. Flushing the stream must make everything written so far
+   * available to the underlying stream, and closing it must finish the compressed output.
+   *
+   * @param output Stream to write the compressed output to
+   * @return compression stream
+   * @throws IOException if unable to create the stream
+   */
+  OutputStream newOutputStream(OutputStream output) throws IOException;
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import javax.annotation.Nullable;
+import javax.ws.rs.core.MediaType;
+
+/** Compression formats a batch can be written in, along with how S3 should describe them. */
+public enum CodecType {
+  GZIP(".gz", "gzip", MediaType.TEXT_PLAIN),
+  ZSTD(".zst", "zstd", MediaType.TEXT_PLAIN),
+
+  // there is no registered content-coding for LZ4 frames, so the object is
+  // stored as-is rather than with an encoding clients cannot decode
+  LZ4(".lz4", null, "application/x-lz4");
+
+  private final String suffix;
+  @Nullable private final String contentEncoding;
+  private final String contentType;
+
+  CodecType(final String suffix, @Nullable final String contentEncoding, final String contentType) {
+    this.suffix = suffix;
+    this.contentEncoding = contentEncoding;
+    this.contentType = contentType;
+  }
+
+  public String getSuffix() {
+    return suffix;
+  }
+
+  @Nullable
+  public String getContentEncoding() {
+    return contentEncoding;
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * Determine the format of an object from the suffix of its S3 key
+   *
+   * @param key S3 key
+   * @return the matching codec type, otherwise gzip
+   */
+  public static CodecType fromKey(final String key) {
+    for (CodecType type : values()) {
+      if (key.endsWith(type.suffix)) {
+        return type;
+      }
+    }
+    return GZIP;
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import com.google.common.collect.ImmutableMap;
+import com.smoketurner.uploader.config.CodecConfiguration;
+import com.smoketurner.uploader.config.CompressionConfiguration;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.zip.Deflater;
+import javax.annotation.Nullable;
+
+/** Selects the codec used for the batches of each customer. */
+public class Codecs {
+
+  /** gzip at the default level, used when nothing else has been configured */
+  public static final Codec DEFAULT = new GzipCodec(Deflater.DEFAULT_COMPRESSION);
+
+  private static final int DEFAULT_ZSTD_LEVEL = 3;
+
+  private final Codec defaultCodec;
+  private final Map<String, Codec> customers;
+
+  /**
+   * Constructor
+   *
+   * @param configuration Compression configuration
+   * @throws IOException if unable to read a dictionary file
+   */
+  public Codecs(final CompressionConfiguration configuration) throws IOException {
+    this.defaultCodec = create(configuration);
+
+    final ImmutableMap.Builder<String, Codec> builder = ImmutableMap.builder();
+    for (Map.Entry<String, CodecConfiguration> entry : configuration.getCustomers().entrySet()) {
+      builder.put(entry.getKey(), create(entry.getValue()));
+    }
+    this.customers = builder.build();
+  }
+
+  /**
+   * Codec to use for the batches of a customer
+   *
+   * @param customerId Customer ID (may be null)
+   * @return the customer's codec, otherwise the default codec
+   */
+  public Codec forCustomer(@Nullable final String customerId) {
+    if (customerId == null) {
+      return defaultCodec;
+    }
+    return customers.getOrDefault(customerId, defaultCodec);
+  }
+
+  /**
+   * Create a codec
+   *
+   * @param configuration Codec configuration
+   * @return new codec
+   * @throws IOException if unable to read the dictionary file
+   * @throws IllegalArgumentException if the level is invalid for the codec
+   */
+  public static Codec create(final CodecConfiguration configuration) throws IOException {
+    final Integer level = configuration.getLevel();
+    switch (configuration.getCodec()) {
+      case ZSTD:
+        final String dictionaryFile = configuration.getDictionaryFile();
+        final byte[] dictionary =
+            dictionaryFile == null ? null : Files.readAllBytes(Paths.get(dictionaryFile));
+        return new ZstdCodec(level == null ? DEFAULT_ZSTD_LEVEL : level, dictionary);
+      case LZ4:
+        if (level != null) {
+          throw new IllegalArgumentException("lz4 does not support compression levels");
+        }
+        return new Lz4Codec();
+      case GZIP:
+      default:
+        return level == null ? DEFAULT : new GzipCodec(level);
+    }
+  }
+}
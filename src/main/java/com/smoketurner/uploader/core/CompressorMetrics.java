@@ -0,0 +1,42 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.google.common.collect.ImmutableMap;
+import java.util.Map;
+
+/** Gauges for the native compression contexts held by open and pooled compressors. */
+public class CompressorMetrics implements MetricSet {
+
+  @Override
+  public Map<String, Metric> getMetrics() {
+    return ImmutableMap.of(
+        name(CompressorMetrics.class, "gzip", "pooled"),
+        (Gauge<Integer>) DeflaterPool::getPooled,
+        name(CompressorMetrics.class, "gzip", "in-use"),
+        (Gauge<Integer>) DeflaterPool::getInUse,
+        name(CompressorMetrics.class, "gzip", "native-bytes"),
+        (Gauge<Long>)
+            () -> (DeflaterPool.getPooled() + DeflaterPool.getInUse()) * DeflaterPool.NATIVE_BYTES,
+        name(CompressorMetrics.class, "zstd", "in-use"),
+        (Gauge<Integer>) ZstdCodec::getInUse);
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.smoketurner.uploader.config.QuotaConfiguration;
+import com.smoketurner.uploader.config.QuotaLimitsConfiguration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+/**
+ * Limits the events and bytes per second each customer may send, shared by every TCP connection
+ * and HTTP request of the customer. Each customer has a token bucket for events and one for bytes,
+ * and only the most recently seen customers are remembered.
+ *
+ * <p>Customers get their own throttling metrics up to a maximum number of customers, after which
+ * customers share the "other" metrics, so a large number of customers cannot grow the metric
+ * registry without bound.
+ */
+public class CustomerQuotas {
+
+  private static final String OTHER_CUSTOMERS = "other";
+
+  private final boolean enabled;
+  private final QuotaLimitsConfiguration defaultLimits;
+  private final Map<String, QuotaLimitsConfiguration> customerLimits;
+  private final Cache<String, Quota> customers;
+  private final Set<String> metricCustomers = ConcurrentHashMap.newKeySet();
+  private final int maxMetricCustomers;
+  private final MetricRegistry registry;
+  private Ticker ticker = Ticker.systemTicker();
+
+  // metrics
+  private final Meter throttledMeter;
+  private final Meter rejectedMeter;
+
+  /**
+   * Constructor
+   *
+   * @param configuration Quota configuration
+   */
+  public CustomerQuotas(final QuotaConfiguration configuration) {
+    this.enabled = configuration.isEnabled();
+    this.defaultLimits = configuration;
+    this.customerLimits = ImmutableMap.copyOf(configuration.getCustomers());
+    this.customers = CacheBuilder.newBuilder().maximumSize(configuration.getMaxCustomers()).build();
+    this.maxMetricCustomers = configuration.getMaxMetricCustomers();
+
+    this.registry = SharedMetricRegistries.getDefault();
+    this.throttledMeter = registry.meter(name(CustomerQuotas.class, "throttled"));
+    this.rejectedMeter = registry.meter(name(CustomerQuotas.class, "rejected"));
+    registry.gauge(name(CustomerQuotas.class, "customers"), () -> (Gauge<Long>) customers::size);
+  }
+
+  /**
+   * Whether customers are limited
+   *
+   * @return true if quotas are enabled
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Quota of a customer
+   *
+   * @param customerId Customer ID (may be null)
+   * @return the customer's quota, or null if quotas are disabled, the customer is unknown or the
+   *     customer is not limited
+   */
+  @Nullable
+  public Quota forCustomer(@Nullable final String customerId) {
+    if (!enabled || customerId == null) {
+      return null;
+    }
+
+    final Quota quota = customers.getIfPresent(customerId);
+    if (quota != null) {
+      return quota;
+    }
+
+    final QuotaLimitsConfiguration limits = customerLimits.getOrDefault(customerId, defaultLimits);
+    if (limits.getEventsPerSecond() == 0 && limits.getBytesPerSecond().toBytes() == 0) {
+      return null;
+    }
+    return customers.asMap().computeIfAbsent(customerId, id -> new Quota(id, limits));
+  }
+
+  @VisibleForTesting
+  void setTicker(Ticker ticker) {
+    this.ticker = Objects.requireNonNull(ticker);
+  }
+
+  private String metricName(final String customerId) {
+    if (metricCustomers.contains(customerId)) {
+      return customerId;
+    }
+    // the set can briefly grow past the maximum when customers race here
+    if (metricCustomers.size() < maxMetricCustomers) {
+      metricCustomers.add(customerId);
+      return customerId;
+    }
+    return OTHER_CUSTOMERS;
+  }
+
+  /** Token buckets of a single customer. */
+  public final class Quota {
+    @Nullable private final TokenBucket events;
+    @Nullable private final TokenBucket bytes;
+    private final String customerId;
+
+    // metrics, created when the customer is first throttled or rejected
+    @Nullable private volatile Meter customerThrottled;
+    @Nullable private volatile Meter customerRejected;
+
+    private Quota(final String customerId, final QuotaLimitsConfiguration limits) {
+      this.customerId = customerId;
+      final long now = ticker.read();
+      this.events =
+          limits.getEventsPerSecond() == 0
+              ? null
+              : new TokenBucket(limits.getEventsPerSecond(), limits.getEventBurst(), now);
+      this.bytes =
+          limits.getBytesPerSecond().toBytes() == 0
+              ? null
+              : new TokenBucket(
+                  limits.getBytesPerSecond().toBytes(), limits.getByteBurst().toBytes(), now);
+    }
+
+    /**
+     * Take the tokens for events that have already been received, even if the customer is over its
+     * quota
+     *
+     * @param eventCount Number of events
+     * @param byteCount Number of bytes
+     * @return nanoseconds until the customer is back under its quota, or 0 if it is not over it
+     */
+    public long acquire(final long eventCount, final long byteCount) {
+      final long now = ticker.read();
+      long delay = 0;
+      if (events != null) {
+        delay = events.acquire(eventCount, now);
+      }
+      if (bytes != null) {
+        delay = Math.max(delay, bytes.acquire(byteCount, now));
+      }
+      return delay;
+    }
+
+    /**
+     * Take the tokens for events only if the customer has enough of them left
+     *
+     * @param eventCount Number of events
+     * @param byteCount Number of bytes
+     * @return 0 if the tokens were taken, otherwise nanoseconds until they would be available
+     */
+    public long tryAcquire(final long eventCount, final long byteCount) {
+      final long now = ticker.read();
+      if (events != null) {
+        final long delay = events.tryAcquire(eventCount, now);
+        if (delay > 0) {
+          return delay;
+        }
+      }
+      if (bytes != null) {
+        final long delay = bytes.tryAcquire(byteCount, now);
+        if (delay > 0) {
+          if (events != null) {
+            events.release(eventCount);
+          }
+          return delay;
+        }
+      }
+      return 0;
+    }
+
+    /**
+     * How long until the customer is back under its quota
+     *
+     * @return nanoseconds until the customer is back under its quota, or 0 if it is not over it
+     */
+    public long getDelay() {
+      final long now = ticker.read();
+      long delay = 0;
+      if (events != null) {
+        delay = events.getDelay(now);
+      }
+      if (bytes != null) {
+        delay = Math.max(delay, bytes.getDelay(now));
+      }
+      return delay;
+    }
+
+    /** Record that reads on a connection of the customer were paused. */
+    public void markThrottled() {
+      throttledMeter.mark();
+      Meter meter = customerThrottled;
+      if (meter == null) {
+        meter = customerMeter("throttled");
+        customerThrottled = meter;
+      }
+      meter.mark();
+    }
+
+    /** Record that an HTTP request of the customer was rejected. */
+    public void markRejected() {
+      rejectedMeter.mark();
+      Meter meter = customerRejected;
+      if (meter == null) {
+        meter = customerMeter("rejected");
+        customerRejected = meter;
+      }
+      meter.mark();
+    }
+
+    private Meter customerMeter(final String metric) {
+      return registry.meter(name(CustomerQuotas.class, "customer", metricName(customerId), metric));
+    }
+  }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import io.dropwizard.lifecycle.Managed;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local directory holding batches which could not be uploaded after every retry. Each batch is
+ * stored as its compressed contents, named with the suffix of its codec, next to a properties file
+ * with its S3 key and metadata. The properties file is written last, so only batches which were
+ * written completely are listed.
+ */
+public class DeadLetterQueue implements Managed {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DeadLetterQueue.class);
+  private static final String META_SUFFIX = ".properties";
+
+  private final Path directory;
+  private final AtomicInteger batches = new AtomicInteger(0);
+  private final AtomicLong bytes = new AtomicLong(0);
+
+  // writes are moved off of the event loops
+  private final ExecutorService executor =
+      Executors.newSingleThreadExecutor(
+          r -> {
+            final Thread thread = new Thread(r, "dead-letter");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  // metrics
+  private final Meter deadLetterMeter;
+
+  /**
+   * Constructor
+   *
+   * @param directory Directory to write batches to
+   */
+  public DeadLetterQueue(final String directory) {
+    this.directory = Paths.get(directory);
+
+    final MetricRegistry registry = SharedMetricRegistries.getDefault();
+    this.deadLetterMeter = registry.meter(name(DeadLetterQueue.class, "dead-lettered"));
+    registry.gauge(name(DeadLetterQueue.class, "batches"), () -> (Gauge<Integer>) batches::get);
+    registry.gauge(name(DeadLetterQueue.class, "bytes"), () -> (Gauge<Long>) bytes::get);
+  }
+
+  @Override
+  public void start() throws Exception {
+    Files.createDirectories(directory);
+    for (DeadLetter letter : list()) {
+      batches.incrementAndGet();
+      bytes.addAndGet(Files.size(letter.data));
+    }
+    if (batches.get() > 0) {
+      LOGGER.warn("{} dead letter batches waiting in {}", batches.get(), directory);
+    }
+  }
+
+  @Override
+  public void stop() throws Exception {
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Write a batch to the dead letter directory. The buffer is retained until it has been written.
+   *
+   * @param key S3 key
+   * @param customerId Customer ID
+   * @param count Number of events in the batch
+   * @param content Compressed contents
+   * @return future completed once the batch has been written
+   */
+  public CompletableFuture<Void> add(
+      final String key, final Optional<String> customerId, final int count, final ByteBuf content) {
+    content.retain();
+    final CompletableFuture<Void> future =
+        CompletableFuture.runAsync(
+            () -> {
+              try {
+                write(key, customerId, count, content);
+              } catch (IOException e) {
+                throw new RuntimeException(e);
+              }
+            },
+            executor);
+    future.whenComplete(
+        (v, err) -> {
+          content.release();
+          if (err != null) {
+            LOGGER.error(String.format("Unable to write dead letter \"%s\"", key), err);
+          }
+        });
+    return future;
+  }
+
+  /**
+   * List every batch in the dead letter directory
+   *
+   * @return dead letter batches
+   * @throws IOException if unable to read the directory
+   */
+  public List<DeadLetter> list() throws IOException {
+    final List<DeadLetter> letters = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + META_SUFFIX)) {
+      for (Path meta : stream) {
+        final Properties properties = new Properties();
+        try (InputStream input = Files.newInputStream(meta)) {
+          properties.load(input);
+        }
+
+        final String key = properties.getProperty("key");
+        final String fileName = meta.getFileName().toString();
+        final Path data =
+            meta.resolveSibling(
+                fileName.substring(0, fileName.length() - META_SUFFIX.length())
+                    + CodecType.fromKey(key).getSuffix());
+
+        letters.add(
+            new DeadLetter(
+                key,
+                properties.getProperty("customer_id"),
+                Integer.parseInt(properties.getProperty("count", "0")),
+                meta,
+                data));
+      }
+    }
+    return letters;
+  }
+
+  /**
+   * Read the compressed contents of a batch into memory
+   *
+   * @param letter Dead letter batch
+   * @return compressed contents, which the caller is responsible for releasing
+   * @throws IOException if unable to read the batch
+   */
+  public ByteBuf read(final DeadLetter letter) throws IOException {
+    try (FileChannel channel = FileChannel.open(letter.data, StandardOpenOption.READ)) {
+      final int length = Math.toIntExact(channel.size());
+      final ByteBuf buffer = ByteBufAllocator.DEFAULT.directBuffer(length);
+      try {
+        while (buffer.readableBytes() < length) {
+          if (buffer.writeBytes(channel, buffer.readableBytes(), length - buffer.readableBytes())
+              < 0) {
+            throw new IOException("Unexpected end of dead letter " + letter.data);
+          }
+        }
+        return buffer;
+      } catch (IOException e) {
+        buffer.release();
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Delete a batch which has been uploaded
+   *
+   * @param letter Dead letter batch
+   * @throws IOException if unable to delete the batch
+   */
+  public void remove(final DeadLetter letter) throws IOException {
+    final long size = Files.exists(letter.data) ? Files.size(letter.data) : 0;
+    Files.deleteIfExists(letter.meta);
+    Files.deleteIfExists(letter.data);
+    batches.decrementAndGet();
+    bytes.addAndGet(-size);
+  }
+
+  private void write(
+      final String key, final Optional<String> customerId, final int count, final ByteBuf content)
+      throws IOException {
+    final String suffix = CodecType.fromKey(key).getSuffix();
+    final String name =
+        encode(key.endsWith(suffix) ? key.substring(0, key.length() - suffix.length()) : key);
+    final Path data = directory.resolve(name + suffix);
+    final Path meta = directory.resolve(name + META_SUFFIX);
+    final Path tmp = directory.resolve(name + META_SUFFIX + ".tmp");
+
+    try (FileChannel channel =
+        FileChannel.open(
+            data,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      int written = 0;
+      while (written < content.readableBytes()) {
+        written +=
+            content.getBytes(
+                content.readerIndex() + written, channel, content.readableBytes() - written);
+      }
+      channel.force(false);
+    }
+
+    final Properties properties = new Properties();
+    properties.setProperty("key", key);
+    properties.setProperty("count", String.valueOf(count));
+    customerId.ifPresent(id -> properties.setProperty("customer_id", id));
+    try (OutputStream output = Files.newOutputStream(tmp)) {
+      properties.store(output, null);
+    }
+    Files.move(tmp, meta, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+    deadLetterMeter.mark();
+    batches.incrementAndGet();
+    bytes.addAndGet(content.readableBytes());
+    LOGGER.warn("Wrote \"{}\" ({} bytes) to dead letter directory", key, content.readableBytes());
+  }
+
+  private static String encode(final String key) {
+    try {
+      return URLEncoder.encode(key, StandardCharsets.UTF_8.name());
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** A batch in the dead letter directory. */
+  public static final class DeadLetter {
+    private final String key;
+    private final Optional<String> customerId;
+    private final int count;
+    private final Path meta;
+    private final Path data;
+
+    DeadLetter(
+        final String key,
+        @Nullable final String customerId,
+        final int count,
+        final Path meta,
+        final Path data) {
+      this.key = Objects.requireNonNull(key);
+      this.customerId = Optional.ofNullable(customerId);
+      this.count = count;
+      this.meta = meta;
+      this.data = data;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public Optional<String> getCustomerId() {
+      return customerId;
+    }
+
+    public int getCount() {
+      return count;
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.FastThreadLocalThread;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Reuses raw deflaters between gzip streams instead of allocating a new native zlib context for
+ * every batch. Each thread keeps its own bounded pool, so borrowing and returning a deflater on an
+ * event loop never contends with other threads. A deflater returned to a full pool is ended
+ * straight away rather than left for the garbage collector.
+ *
+ * <p>Only Netty threads end their pooled deflaters when they exit, so deflaters are never pooled on
+ * other threads, such as Jetty's request threads: a deflater released on one of them is ended, even
+ * if it was borrowed on an event loop.
+ */
+final class DeflaterPool {
+
+  // deflaters kept idle per thread
+  private static final int MAX_POOLED_PER_THREAD = 16;
+
+  /**
+   * zlib's documented memory use of a deflater with the default 32KB window and memory level:
+   * (1 << (windowBits + 2)) + (1 << (memLevel + 9)) bytes
+   */
+  static final long NATIVE_BYTES = (1L << (15 + 2)) + (1L << (8 + 9));
+
+  private static final AtomicInteger POOLED = new AtomicInteger(0);
+  private static final AtomicInteger IN_USE = new AtomicInteger(0);
+
+  private static final FastThreadLocal<ArrayDeque<Deflater>> DEFLATERS =
+      new FastThreadLocal<ArrayDeque<Deflater>>() {
+        @Override
+        protected ArrayDeque<Deflater> initialValue() {
+          return new ArrayDeque<>(MAX_POOLED_PER_THREAD);
+        }
+
+        @Override
+        protected void onRemoval(final ArrayDeque<Deflater> deflaters) {
+          // the thread is exiting, so nothing will borrow these again
+          for (Deflater deflater : deflaters) {
+            deflater.end();
+          }
+          POOLED.addAndGet(-deflaters.size());
+          deflaters.clear();
+        }
+      };
+
+  private DeflaterPool() {
+    // singleton
+  }
+
+  /**
+   * Borrow a raw (no zlib header) deflater from the current thread's pool, or create one
+   *
+   * @param level Deflate compression level
+   * @return deflater which must be given back with {@link #release(Deflater)}
+   */
+  static Deflater acquire(final int level) {
+    final Deflater pooled = isPooling() ? DEFLATERS.get().pollFirst() : null;
+    final Deflater deflater;
+    if (pooled == null) {
+      deflater = new Deflater(level, true);
+    } else {
+      POOLED.decrementAndGet();
+      pooled.setLevel(level);
+      deflater = pooled;
+    }
+    IN_USE.incrementAndGet();
+    return deflater;
+  }
+
+  /**
+   * Return a deflater to the current thread's pool, or end it if the pool is full or the current
+   * thread does not pool deflaters
+   *
+   * @param deflater Deflater borrowed with {@link #acquire(int)}
+   */
+  static void release(final Deflater deflater) {
+    IN_USE.decrementAndGet();
+
+    if (!isPooling()) {
+      deflater.end();
+      return;
+    }
+
+    final ArrayDeque<Deflater> deflaters = DEFLATERS.get();
+    if (deflaters.size() >= MAX_POOLED_PER_THREAD) {
+      deflater.end();
+      return;
+    }
+    deflater.reset();
+    deflaters.addFirst(deflater);
+    POOLED.incrementAndGet();
+  }
+
+  /**
+   * Whether the current thread pools deflaters, which is only safe when its pool is ended with the
+   * thread
+   *
+   * @return true if the current thread ends its fast thread locals when it exits
+   */
+  private static boolean isPooling() {
+    return FastThreadLocalThread.willCleanupFastThreadLocals(Thread.currentThread());
+  }
+
+  /**
+   * Number of idle deflaters held by all threads
+   *
+   * @return pooled deflaters
+   */
+  static int getPooled() {
+    return POOLED.get();
+  }
+
+  /**
+   * Number of deflaters currently borrowed by gzip streams
+   *
+   * @return deflaters in use
+   */
+  static int getInUse() {
+    return IN_USE.get();
+  }
+}
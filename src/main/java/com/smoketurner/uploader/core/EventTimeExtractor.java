@@ -0,0 +1,370 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.primitives.Ints;
+import com.smoketurner.uploader.config.EventTimeConfiguration;
+import com.smoketurner.uploader.config.EventTimeSource;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.FastThreadLocal;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.util.Objects;
+
+/**
+ * Reads the timestamp of each event and maps it to the start of its time bucket, so events are
+ * batched (and keyed) by when they happened rather than when they were received. Timestamps are
+ * scanned straight out of the event bytes without decoding the event or allocating.
+ *
+ * <p>Both ISO-8601 timestamps ({@code 2016-12-14T16:52:13.123Z}, with an optional offset, and UTC
+ * when there is none) and epoch timestamps in seconds, milliseconds or microseconds are
+ * understood. Events without a readable timestamp, or with one outside of the accepted window
+ * around the time they were received, go to the bucket of the time they were received.
+ */
+public final class EventTimeExtractor {
+
+  /** bucket of every event when event time partitioning is disabled */
+  public static final long NO_BUCKET = Long.MIN_VALUE;
+
+  private static final long MISSING = Long.MIN_VALUE;
+
+  // epoch values below this are seconds, and above this many times 1000
+  // microseconds, as neither is a plausible millisecond timestamp
+  private static final long MAX_EPOCH_SECONDS = 100_000_000_000L;
+  private static final long MAX_EPOCH_MILLIS = MAX_EPOCH_SECONDS * 1000;
+
+  // direct buffers are copied into a scratch array so the scanner only has
+  // to deal with arrays
+  private static final FastThreadLocal<byte[]> SCRATCH =
+      new FastThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+          return new byte[0];
+        }
+      };
+
+  private final boolean enabled;
+  private final EventTimeSource source;
+  private final byte[] field;
+  private final long bucketMillis;
+  private final int maxScanLength;
+  private final int maxOpenBuckets;
+  private final long maxPastMillis;
+  private final long maxFutureMillis;
+  private final Clock clock;
+
+  // metrics
+  private final Meter missingMeter;
+
+  /**
+   * Constructor
+   *
+   * @param configuration Event time configuration
+   */
+  public EventTimeExtractor(final EventTimeConfiguration configuration) {
+    this(configuration, Clock.systemUTC());
+  }
+
+  /**
+   * Constructor
+   *
+   * @param configuration Event time configuration
+   * @param clock Clock giving the time events are received
+   */
+  public EventTimeExtractor(final EventTimeConfiguration configuration, final Clock clock) {
+    this.enabled = configuration.isEnabled();
+    this.source = configuration.getSource();
+    this.field = ('"' + configuration.getField() + '"').getBytes(StandardCharsets.UTF_8);
+    this.bucketMillis = configuration.getBucketSize().toMilliseconds();
+    this.maxScanLength = Ints.checkedCast(configuration.getMaxScanLength().toBytes());
+    this.maxOpenBuckets = configuration.getMaxOpenBuckets();
+    this.maxPastMillis = configuration.getMaxPast().toMilliseconds();
+    this.maxFutureMillis = configuration.getMaxFuture().toMilliseconds();
+    this.clock = Objects.requireNonNull(clock);
+
+    final MetricRegistry registry = SharedMetricRegistries.getDefault();
+    this.missingMeter =
+        registry.meter(MetricRegistry.name(EventTimeExtractor.class, "missing-timestamp"));
+  }
+
+  /**
+   * Whether events are partitioned by event time
+   *
+   * @return true if events are partitioned by event time
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Maximum number of buckets a customer may have open batches for at a time
+   *
+   * @return maximum open buckets, 1 if event time partitioning is disabled
+   */
+  public int getMaxOpenBuckets() {
+    return enabled ? maxOpenBuckets : 1;
+  }
+
+  /**
+   * Bucket of an event held in a buffer
+   *
+   * @param event Event, which is not modified
+   * @return start of the event's bucket in epoch milliseconds, or {@link #NO_BUCKET}
+   */
+  public long bucket(final ByteBuf event) {
+    if (!enabled) {
+      return NO_BUCKET;
+    }
+
+    final int length = Math.min(event.readableBytes(), maxScanLength);
+    if (event.hasArray()) {
+      return bucket(event.array(), event.arrayOffset() + event.readerIndex(), length);
+    }
+
+    byte[] scratch = SCRATCH.get();
+    if (scratch.length < length) {
+      scratch = new byte[maxScanLength];
+      SCRATCH.set(scratch);
+    }
+    event.getBytes(event.readerIndex(), scratch, 0, length);
+    return bucket(scratch, 0, length);
+  }
+
+  /**
+   * Bucket of an event held in a slice of an array
+   *
+   * @param buf Array holding the event
+   * @param offset Offset of the event in the array
+   * @param length Length of the event
+   * @return start of the event's bucket in epoch milliseconds, or {@link #NO_BUCKET}
+   */
+  public long bucket(final byte[] buf, final int offset, final int length) {
+    if (!enabled) {
+      return NO_BUCKET;
+    }
+
+    final int end = offset + Math.min(length, maxScanLength);
+    final long millis =
+        source == EventTimeSource.JSON
+            ? scanField(buf, offset, end)
+            : scanLeading(buf, offset, end);
+    final long now = clock.millis();
+    if (millis == MISSING || millis < now - maxPastMillis || millis > now + maxFutureMillis) {
+      missingMeter.mark();
+      return bucketOf(now);
+    }
+    return bucketOf(millis);
+  }
+
+  /**
+   * Bucket of the current time, used for events whose timestamp is unknown, such as events inside
+   * gzip members that are passed through without being decompressed.
+   *
+   * @return start of the current bucket in epoch milliseconds, or {@link #NO_BUCKET}
+   */
+  public long currentBucket() {
+    if (!enabled) {
+      return NO_BUCKET;
+    }
+    return bucketOf(clock.millis());
+  }
+
+  private long bucketOf(final long millis) {
+    return Math.floorDiv(millis, bucketMillis) * bucketMillis;
+  }
+
+  private long scanField(final byte[] buf, final int start, final int end) {
+    final int last = end - field.length;
+    outer:
+    for (int i = start; i <= last; i++) {
+      for (int j = 0; j < field.length; j++) {
+        if (buf[i + j] != field[j]) {
+          continue outer;
+        }
+      }
+
+      // the field name has to be followed by a colon, otherwise it was a
+      // string value that happens to match
+      int pos = skipWhitespace(buf, i + field.length, end);
+      if (pos >= end || buf[pos] != ':') {
+        continue;
+      }
+      pos = skipWhitespace(buf, pos + 1, end);
+      if (pos < end && buf[pos] == '"') {
+        pos++;
+      }
+      return parseTimestamp(buf, pos, end);
+    }
+    return MISSING;
+  }
+
+  private static long scanLeading(final byte[] buf, final int start, final int end) {
+    int pos = skipWhitespace(buf, start, end);
+    if (pos < end && buf[pos] == '[') {
+      pos = skipWhitespace(buf, pos + 1, end);
+    }
+    return parseTimestamp(buf, pos, end);
+  }
+
+  private static int skipWhitespace(final byte[] buf, int pos, final int end) {
+    while (pos < end && (buf[pos] == ' ' || buf[pos] == '\t')) {
+      pos++;
+    }
+    return pos;
+  }
+
+  /**
+   * Parse an ISO-8601 or epoch timestamp
+   *
+   * @return epoch milliseconds, or {@link #MISSING}
+   */
+  static long parseTimestamp(final byte[] buf, final int pos, final int end) {
+    if (pos + 4 < end && buf[pos + 4] == '-') {
+      return parseIso(buf, pos, end);
+    }
+    return parseEpoch(buf, pos, end);
+  }
+
+  private static long parseEpoch(final byte[] buf, int pos, final int end) {
+    final int start = pos;
+    long value = 0;
+    while (pos < end && isDigit(buf[pos])) {
+      if (pos - start == 18) {
+        return MISSING;
+      }
+      value = value * 10 + (buf[pos++] - '0');
+    }
+    if (pos == start) {
+      return MISSING;
+    }
+
+    if (value < MAX_EPOCH_SECONDS) {
+      return value * 1000 + parseFraction(buf, pos, end);
+    }
+    while (value >= MAX_EPOCH_MILLIS) {
+      value /= 1000;
+    }
+    return value;
+  }
+
+  private static long parseIso(final byte[] buf, int pos, final int end) {
+    final int year = digits(buf, pos, end, 4);
+    final int month = expect(buf, pos + 4, end, '-') ? digits(buf, pos + 5, end, 2) : -1;
+    final int day = expect(buf, pos + 7, end, '-') ? digits(buf, pos + 8, end, 2) : -1;
+    if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31) {
+      return MISSING;
+    }
+    pos += 10;
+
+    int hour = 0;
+    int minute = 0;
+    int second = 0;
+    long millis = 0;
+    if (pos < end && (buf[pos] == 'T' || buf[pos] == ' ')) {
+      hour = digits(buf, pos + 1, end, 2);
+      minute = expect(buf, pos + 3, end, ':') ? digits(buf, pos + 4, end, 2) : -1;
+      if (hour < 0 || hour > 23 || minute < 0 || minute > 59) {
+        return MISSING;
+      }
+      pos += 6;
+
+      if (expect(buf, pos, end, ':')) {
+        second = digits(buf, pos + 1, end, 2);
+        if (second < 0 || second > 60) {
+          return MISSING;
+        }
+        pos += 3;
+        if (pos < end && (buf[pos] == '.' || buf[pos] == ',')) {
+          millis = parseFraction(buf, pos, end);
+          pos++;
+          while (pos < end && isDigit(buf[pos])) {
+            pos++;
+          }
+        }
+      }
+    }
+
+    // UTC unless the timestamp has an offset
+    long offsetMinutes = 0;
+    if (pos < end && (buf[pos] == '+' || buf[pos] == '-')) {
+      final int hours = digits(buf, pos + 1, end, 2);
+      final int colon = expect(buf, pos + 3, end, ':') ? 1 : 0;
+      int minutes = digits(buf, pos + 3 + colon, end, 2);
+      if (minutes < 0 && colon == 0) {
+        minutes = 0;
+      }
+      if (hours < 0 || hours > 18 || minutes < 0 || minutes > 59) {
+        return MISSING;
+      }
+      offsetMinutes = (buf[pos] == '-' ? -1 : 1) * (hours * 60L + minutes);
+    }
+
+    final long days = daysFromCivil(year, month, day);
+    final long seconds = ((days * 24 + hour) * 60 + minute - offsetMinutes) * 60 + second;
+    return seconds * 1000 + millis;
+  }
+
+  /** Milliseconds of a fraction starting with the separator at pos, or 0 if there is none. */
+  private static long parseFraction(final byte[] buf, int pos, final int end) {
+    if (pos >= end || (buf[pos] != '.' && buf[pos] != ',')) {
+      return 0;
+    }
+    pos++;
+    long millis = 0;
+    for (int i = 0; i < 3; i++) {
+      millis *= 10;
+      if (pos < end && isDigit(buf[pos])) {
+        millis += buf[pos++] - '0';
+      }
+    }
+    return millis;
+  }
+
+  private static int digits(final byte[] buf, final int pos, final int end, final int count) {
+    if (pos + count > end) {
+      return -1;
+    }
+    int value = 0;
+    for (int i = pos; i < pos + count; i++) {
+      if (!isDigit(buf[i])) {
+        return -1;
+      }
+      value = value * 10 + (buf[i] - '0');
+    }
+    return value;
+  }
+
+  private static boolean expect(final byte[] buf, final int pos, final int end, final char c) {
+    return pos < end && buf[pos] == c;
+  }
+
+  private static boolean isDigit(final byte b) {
+    return b >= '0' && b <= '9';
+  }
+
+  /** Days since 1970-01-01 of a proleptic Gregorian date. */
+  private static long daysFromCivil(int year, final int month, final int day) {
+    year -= month <= 2 ? 1 : 0;
+    final long era = Math.floorDiv(year, 400);
+    final long yearOfEra = year - era * 400;
+    final long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+final class GzipCodec implements Codec {
+
+  private final int level;
+
+  /**
+   * Constructor
+   *
+   * @param level Deflate compression level from 0 to 9, or -1 for the default
+   */
+  GzipCodec(final int level) {
+    if (level != Deflater.DEFAULT_COMPRESSION
+        && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+      throw new IllegalArgumentException("Invalid gzip compression level: " + level);
+    }
+    this.level = level;
+  }
+
+  @Override
+  public CodecType getType() {
+    return CodecType.GZIP;
+  }
+
+  @Override
+  public OutputStream newOutputStream(final OutputStream output) throws IOException {
+    return new PooledGzipOutputStream(output, level);
+  }
+}
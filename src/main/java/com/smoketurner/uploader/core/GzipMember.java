@@ -0,0 +1,56 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+
+/**
+ * A complete gzip member received from a client, holding newline terminated events. Gzip batches
+ * append the compressed bytes as they are, since concatenated gzip members are still a valid gzip
+ * stream, instead of decompressing and compressing the events again.
+ */
+public final class GzipMember extends DefaultByteBufHolder {
+
+  private final int events;
+  private final long uncompressedSize;
+
+  /**
+   * Constructor
+   *
+   * @param content Compressed bytes of the member, including its header and trailer
+   * @param events Number of events in the member
+   * @param uncompressedSize Number of bytes the member decompresses to
+   */
+  public GzipMember(final ByteBuf content, final int events, final long uncompressedSize) {
+    super(content);
+    this.events = events;
+    this.uncompressedSize = uncompressedSize;
+  }
+
+  public int getEvents() {
+    return events;
+  }
+
+  public long getUncompressedSize() {
+    return uncompressedSize;
+  }
+
+  @Override
+  public GzipMember replace(final ByteBuf content) {
+    return new GzipMember(content, events, uncompressedSize);
+  }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import io.netty.util.concurrent.FastThreadLocal;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * Builds the S3 keys of batches from a template, such as {@code
+ * {customer}/dt={dt}/hour={hour}/{hash}-events_{millis}_{node}_{seq}.log}. The template is parsed
+ * once and every key is rendered into a single builder, followed by the codec suffix.
+ *
+ * <p>Supported placeholders:
+ *
+ * <ul>
+ *   <li>{@code {customer}} customer ID, or "none"
+ *   <li>{@code {hash}} leading hex characters of the MD5 of the rest of the key
+ *   <li>{@code {node}} ID of this node
+ *   <li>{@code {seq}} sequence number, starting at a random value for every layout and
+ *       incremented for every key
+ *   <li>{@code {millis}} batch creation time in epoch milliseconds
+ *   <li>{@code {dt}} batch creation date as yyyy-MM-dd
+ *   <li>{@code {year}}, {@code {month}}, {@code {day}}, {@code {hour}}, {@code {minute}}, {@code
+ *       {second}} zero-padded UTC fields of the batch creation time
+ * </ul>
+ *
+ * Every template has to contain {@code {seq}} and {@code {millis}}, so two batches of the same
+ * customer created in the same millisecond never share a key. The sequence starts at a random
+ * value so a restarted node does not reuse the keys of the batches it wrote before, which matters
+ * when {@code {millis}} is the start of an event time bucket rather than when the batch was
+ * opened. Nodes writing to the same bucket should also include {@code {node}}.
+ */
+public final class KeyLayout {
+
+  public static final String DEFAULT_TEMPLATE =
+      "{customer}/{hash}-{year}/{month}/{day}/{hour}/{minute}/{second}/"
+          + "events_{millis}_{node}_{seq}.log";
+
+  /** layout with the default template and a one character hash */
+  public static final KeyLayout DEFAULT =
+      new KeyLayout(DEFAULT_TEMPLATE, 1, localNodeId(), Optional.empty());
+
+  private static final int MAX_HASH_LENGTH = 32;
+
+  // random sequences start below 2^53, leaving room for 2^63 - 2^53 keys
+  private static final long MAX_FIRST_SEQUENCE = 1L << 53;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private static final FastThreadLocal<MessageDigest> MD5 =
+      new FastThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() throws NoSuchAlgorithmException {
+          return MessageDigest.getInstance("md5");
+        }
+      };
+
+  private enum Field {
+    LITERAL,
+    CUSTOMER,
+    HASH,
+    NODE,
+    SEQ,
+    MILLIS,
+    DT,
+    YEAR,
+    MONTH,
+    DAY,
+    HOUR,
+    MINUTE,
+    SECOND
+  }
+
+  private final Field[] fields;
+  private final String[] literals;
+  private final int hashLength;
+  private final String nodeId;
+  private final String prefix;
+  private final AtomicLong sequence;
+
+  /**
+   * Constructor
+   *
+   * @param template Key template
+   * @param hashLength Number of hex characters rendered for {@code {hash}}
+   * @param nodeId ID of this node
+   * @param prefix Prefix prepended to every key (may be empty)
+   * @throws IllegalArgumentException if the template is invalid
+   */
+  public KeyLayout(
+      final String template,
+      final int hashLength,
+      final String nodeId,
+      final Optional<String> prefix) {
+    this(
+        template,
+        hashLength,
+        nodeId,
+        prefix,
+        ThreadLocalRandom.current().nextLong(MAX_FIRST_SEQUENCE));
+  }
+
+  /**
+   * Constructor
+   *
+   * @param template Key template
+   * @param hashLength Number of hex characters rendered for {@code {hash}}
+   * @param nodeId ID of this node
+   * @param prefix Prefix prepended to every key (may be empty)
+   * @param firstSequence Sequence number of the first key
+   * @throws IllegalArgumentException if the template is invalid
+   */
+  @VisibleForTesting
+  KeyLayout(
+      final String template,
+      final int hashLength,
+      final String nodeId,
+      final Optional<String> prefix,
+      final long firstSequence) {
+    if (hashLength < 1 || hashLength > MAX_HASH_LENGTH) {
+      throw new IllegalArgumentException("Invalid key hash length: " + hashLength);
+    }
+    this.hashLength = hashLength;
+    this.nodeId = Objects.requireNonNull(nodeId);
+    this.prefix = prefix.map(p -> p + "/").orElse("");
+    this.sequence = new AtomicLong(firstSequence);
+
+    final List<Field> fields = new ArrayList<>();
+    final List<String> literals = new ArrayList<>();
+    int start = 0;
+    while (start < template.length()) {
+      final int open = template.indexOf('{', start);
+      if (open < 0) {
+        fields.add(Field.LITERAL);
+        literals.add(template.substring(start));
+        break;
+      }
+      if (open > start) {
+        fields.add(Field.LITERAL);
+        literals.add(template.substring(start, open));
+      }
+      final int close = template.indexOf('}', open);
+      if (close < 0) {
+        throw new IllegalArgumentException("Unterminated placeholder in key template: " + template);
+      }
+      fields.add(parseField(template.substring(open + 1, close)));
+      literals.add(null);
+      start = close + 1;
+    }
+
+    if (!fields.contains(Field.SEQ) || !fields.contains(Field.MILLIS)) {
+      throw new IllegalArgumentException(
+          "Key template must contain {seq} and {millis}: " + template);
+    }
+    if (fields.indexOf(Field.HASH) != fields.lastIndexOf(Field.HASH)) {
+      throw new IllegalArgumentException("Key template contains more than one {hash}: " + template);
+    }
+
+    this.fields = fields.toArray(new Field[0]);
+    this.literals = literals.toArray(new String[0]);
+  }
+
+  private static Field parseField(final String name) {
+    if (!name.isEmpty() && !"literal".equals(name)) {
+      for (Field field : Field.values()) {
+        if (field.name().equalsIgnoreCase(name)) {
+          return field;
+        }
+      }
+    }
+    throw new IllegalArgumentException("Unknown key template placeholder: {" + name + "}");
+  }
+
+  /**
+   * ID of this node, which is its host name if it can be resolved, otherwise a random ID.
+   *
+   * @return node ID
+   */
+  public static String localNodeId() {
+    try {
+      return InetAddress.getLocalHost().getHostName();
+    } catch (UnknownHostException e) {
+      return UUID.randomUUID().toString();
+    }
+  }
+
+  /**
+   * Build a new key for a batch. Every call returns a different key.
+   *
+   * @param customerId Customer ID (may be null)
+   * @param createdAt Batch creation time
+   * @param codec Batch codec
+   * @return S3 key
+   */
+  public String newKey(
+      @Nullable final String customerId, final Instant createdAt, final Codec codec) {
+    final long millis = createdAt.toEpochMilli();
+    final LocalDateTime time =
+        LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000), 0, ZoneOffset.UTC);
+    final String suffix = codec.getType().getSuffix();
+
+    final StringBuilder key = new StringBuilder(prefix.length() + 128);
+    key.append(prefix);
+    int hashAt = -1;
+
+    for (int i = 0; i < fields.length; i++) {
+      switch (fields[i]) {
+        case LITERAL:
+          key.append(literals[i]);
+          break;
+        case CUSTOMER:
+          key.append(customerId == null ? "none" : customerId);
+          break;
+        case HASH:
+          hashAt = key.length();
+          break;
+        case NODE:
+          key.append(nodeId);
+          break;
+        case SEQ:
+          key.append(sequence.getAndIncrement());
+          break;
+        case MILLIS:
+          key.append(millis);
+          break;
+        case DT:
+          key.append(time.getYear()).append('-');
+          pad(key, time.getMonthValue()).append('-');
+          pad(key, time.getDayOfMonth());
+          break;
+        case YEAR:
+          key.append(time.getYear());
+          break;
+        case MONTH:
+          pad(key, time.getMonthValue());
+          break;
+        case DAY:
+          pad(key, time.getDayOfMonth());
+          break;
+        case HOUR:
+          pad(key, time.getHour());
+          break;
+        case MINUTE:
+          pad(key, time.getMinute());
+          break;
+        case SECOND:
+          pad(key, time.getSecond());
+          break;
+      }
+    }
+    key.append(suffix);
+
+    if (hashAt >= 0) {
+      // hash everything after the prefix, so the same template spreads keys
+      // the same way regardless of the configured prefix
+      final String hashed = key.substring(prefix.length());
+      key.insert(hashAt, hash(hashed, hashLength));
+    }
+    return key.toString();
+  }
+
+  private static StringBuilder pad(final StringBuilder builder, final int value) {
+    if (value < 10) {
+      builder.append('0');
+    }
+    return builder.append(value);
+  }
+
+  /**
+   * Leading hex characters of the MD5 hash of a string
+   *
+   * @param str String to hash
+   * @param length Number of hex characters to return, at most 32
+   * @return hex characters
+   */
+  static char[] hash(final String str, final int length) {
+    final byte[] digest = MD5.get().digest(str.getBytes(StandardCharsets.UTF_8));
+    final char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      final int b = digest[i >> 1];
+      chars[i] = HEX[(i & 1) == 0 ? (b >> 4) & 0x0f : b & 0x0f];
+    }
+    return chars;
+  }
+}
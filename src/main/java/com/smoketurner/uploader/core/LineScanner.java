@@ -0,0 +1,127 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import io.netty.handler.codec.TooLongFrameException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a stream into newline delimited lines without decoding it, handing each line to a
+ * consumer as a slice of a reusable read buffer. Like {@link
+ * io.netty.handler.codec.LineBasedFrameDecoder}, lines may end with either "\n" or "\r\n", the
+ * delimiter is stripped and a line longer than the maximum length fails the whole stream. A final
+ * line without a delimiter is also passed to the consumer.
+ *
+ * <p>Instances are not thread-safe, but may be reused for any number of streams.
+ */
+public final class LineScanner {
+
+  private static final int INITIAL_BUFFER_SIZE = 8192;
+
+  private final int maxLength;
+  private byte[] buffer;
+
+  /** Receives each line as a slice of the read buffer, which is only valid during the call. */
+  @FunctionalInterface
+  public interface LineConsumer {
+    void accept(byte[] buf, int offset, int length) throws IOException;
+  }
+
+  /**
+   * Constructor
+   *
+   * @param maxLength Maximum length of a line, excluding the delimiter
+   */
+  public LineScanner(final int maxLength) {
+    if (maxLength < 1) {
+      throw new IllegalArgumentException("maxLength must be positive: " + maxLength);
+    }
+    this.maxLength = maxLength;
+    this.buffer = new byte[Math.min(INITIAL_BUFFER_SIZE, maxLength + 2)];
+  }
+
+  /**
+   * Read the stream until the end, passing every line to the consumer
+   *
+   * @param input Stream to read
+   * @param consumer Consumer of each line
+   * @return number of lines read
+   * @throws IOException if unable to read the stream or the consumer fails
+   * @throws TooLongFrameException if a line is longer than the maximum length
+   */
+  public long scan(final InputStream input, final LineConsumer consumer) throws IOException {
+    long lines = 0;
+    int start = 0; // start of the current line
+    int end = 0; // end of the buffered data
+
+    while (true) {
+      // make room for more of the current line
+      if (end == buffer.length) {
+        if (start > 0) {
+          System.arraycopy(buffer, start, buffer, 0, end - start);
+          end -= start;
+          start = 0;
+        } else {
+          final byte[] grown = new byte[Math.min(buffer.length * 2, maxLength + 2)];
+          System.arraycopy(buffer, 0, grown, 0, end);
+          buffer = grown;
+        }
+      }
+
+      final int read = input.read(buffer, end, buffer.length - end);
+      if (read < 0) {
+        if (end > start) {
+          emit(start, end, consumer);
+          lines++;
+        }
+        return lines;
+      }
+
+      // only the newly read bytes need to be searched for a delimiter
+      for (int i = end; i < end + read; i++) {
+        if (buffer[i] == '\n') {
+          emit(start, i, consumer);
+          lines++;
+          start = i + 1;
+        }
+      }
+      end += read;
+
+      // allow for a trailing '\r' whose '\n' has not been read yet
+      if (end - start > maxLength + 1) {
+        throw tooLong(end - start);
+      }
+    }
+  }
+
+  private void emit(final int start, final int newline, final LineConsumer consumer)
+      throws IOException {
+    int length = newline - start;
+    if (length > 0 && buffer[newline - 1] == '\r') {
+      length--;
+    }
+    if (length > maxLength) {
+      throw tooLong(length);
+    }
+    consumer.accept(buffer, start, length);
+  }
+
+  private TooLongFrameException tooLong(final int length) {
+    return new TooLongFrameException(
+        "line length (" + length + ") exceeds the allowed maximum (" + maxLength + ")");
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import io.netty.buffer.ByteBuf;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+/**
+ * Tracks the state of a single S3 multipart upload. Parts are uploaded as soon as the upload has
+ * been created and the part is ready, and the upload is completed once all of the parts have
+ * finished. Instances are not thread-safe and are only used from the thread building the batch,
+ * apart from {@link #markUnspooled()}.
+ */
+final class MultipartUpload {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MultipartUpload.class);
+
+  private final S3AsyncClient s3;
+  private final RetryPolicy retryPolicy;
+  private final String bucket;
+  private final String key;
+  private final CompletableFuture<String> uploadId;
+  private final List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+
+  // cleared once a part could not be written to the spool
+  private volatile boolean spooled = true;
+
+  /**
+   * Constructor
+   *
+   * @param s3 S3 client
+   * @param retryPolicy Policy for retrying failed requests
+   * @param request Request used to create the multipart upload
+   */
+  MultipartUpload(
+      final S3AsyncClient s3,
+      final RetryPolicy retryPolicy,
+      final CreateMultipartUploadRequest request) {
+    this.s3 = Objects.requireNonNull(s3);
+    this.retryPolicy = Objects.requireNonNull(retryPolicy);
+    this.bucket = request.bucket();
+    this.key = request.key();
+    this.uploadId =
+        retryPolicy
+            .execute("create of \"" + key + "\"", () -> s3.createMultipartUpload(request))
+            .thenApply(CreateMultipartUploadResponse::uploadId);
+  }
+
+  /**
+   * Upload a part. Parts are numbered in the order they are submitted.
+   *
+   * @param part Part contents, which will be released once the part has been uploaded
+   * @param ready Future the upload of the part waits for, failing the part if it fails
+   * @return future completed when the part has been uploaded
+   */
+  CompletableFuture<CompletedPart> uploadPart(
+      final ByteBuf part, final CompletableFuture<?> ready) {
+    final int partNumber = parts.size() + 1;
+    final int length = part.readableBytes();
+
+    LOGGER.debug("Uploading part {} of \"{}\" ({} bytes)", partNumber, key, length);
+
+    final CompletableFuture<CompletedPart> future =
+        uploadId
+            .thenCombine(ready, (id, v) -> id)
+            .thenCompose(
+                id -> {
+                  final UploadPartRequest request =
+                      UploadPartRequest.builder()
+                          .bucket(bucket)
+                          .key(key)
+                          .uploadId(id)
+                          .partNumber(partNumber)
+                          .contentLength((long) length)
+                          .build();
+                  return retryPolicy.execute(
+                      "part " + partNumber + " of \"" + key + "\"",
+                      () -> s3.uploadPart(request, new BatchRequestBody(part)));
+                })
+            .thenApply(
+                resp -> CompletedPart.builder().partNumber(partNumber).eTag(resp.eTag()).build());
+
+    future.whenComplete((resp, err) -> part.release());
+    parts.add(future);
+    return future;
+  }
+
+  /**
+   * Complete the multipart upload once all of the parts have been uploaded. If any part fails,
+   * the multipart upload is aborted so S3 does not retain the orphaned parts.
+   *
+   * @return future completed when S3 has assembled the object
+   */
+  CompletableFuture<CompleteMultipartUploadResponse> complete() {
+    final CompletableFuture<CompleteMultipartUploadResponse> future =
+        CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]))
+            .thenCompose(
+                v -> {
+                  final List<CompletedPart> completed =
+                      parts.stream().map(CompletableFuture::join).collect(Collectors.toList());
+
+                  final CompleteMultipartUploadRequest request =
+                      CompleteMultipartUploadRequest.builder()
+                          .bucket(bucket)
+                          .key(key)
+                          .uploadId(uploadId.join())
+                          .multipartUpload(
+                              CompletedMultipartUpload.builder().parts(completed).build())
+                          .build();
+                  return retryPolicy.execute(
+                      "completion of \"" + key + "\"",
+                      () -> s3.completeMultipartUpload(request));
+                });
+
+    future.whenComplete(
+        (resp, err) -> {
+          if (err != null) {
+            abort();
+          }
+        });
+    return future;
+  }
+
+  int getPartCount() {
+    return parts.size();
+  }
+
+  /** Record that a part of the upload could not be written to the spool */
+  void markUnspooled() {
+    spooled = false;
+  }
+
+  /**
+   * Whether every part of the upload has been written to the spool, so the batch can be recovered
+   * from it if the upload fails
+   *
+   * @return true if every part has been spooled
+   */
+  boolean isSpooled() {
+    return spooled;
+  }
+
+  private void abort() {
+    uploadId.thenAccept(
+        id -> {
+          LOGGER.warn("Aborting multipart upload of \"{}\" ({})", key, id);
+          final AbortMultipartUploadRequest request =
+              AbortMultipartUploadRequest.builder().bucket(bucket).key(key).uploadId(id).build();
+          s3.abortMultipartUpload(request)
+              .whenComplete(
+                  (resp, err) -> {
+                    if (err != null) {
+                      LOGGER.error(
+                          String.format("Failed to abort multipart upload of \"%s\"", key), err);
+                    }
+                  });
+        });
+  }
+}
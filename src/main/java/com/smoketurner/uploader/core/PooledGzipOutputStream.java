@@ -0,0 +1,116 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a single gzip member, like {@link java.util.zip.GZIPOutputStream}, but compresses with a
+ * deflater borrowed from the {@link DeflaterPool}. The deflater is given back as soon as the stream
+ * is closed, even if writing the end of the stream fails, and the stream cannot be used after
+ * that.
+ */
+final class PooledGzipOutputStream extends DeflaterOutputStream {
+
+  // same as GZIPOutputStream
+  private static final int BUFFER_SIZE = 512;
+
+  // magic number and deflate method, with no flags, modification time or
+  // extra flags and an unknown OS, which makes a valid RFC 1952 member
+  private static final byte[] HEADER = {
+    (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+  };
+
+  private final CRC32 crc = new CRC32();
+  private boolean closed = false;
+
+  /**
+   * Constructor
+   *
+   * @param output Stream to write the compressed output to
+   * @param level Deflate compression level
+   * @throws IOException if unable to write the gzip header
+   */
+  PooledGzipOutputStream(final OutputStream output, final int level) throws IOException {
+    super(output, DeflaterPool.acquire(level), BUFFER_SIZE, true);
+    try {
+      output.write(HEADER);
+    } catch (IOException | RuntimeException e) {
+      closed = true;
+      DeflaterPool.release(def);
+      throw e;
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    super.write(b, off, len);
+    crc.update(b, off, len);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    ensureOpen();
+    super.flush();
+  }
+
+  @Override
+  public void finish() throws IOException {
+    ensureOpen();
+    if (def.finished()) {
+      return;
+    }
+    super.finish();
+
+    final byte[] trailer = new byte[8];
+    writeInt((int) crc.getValue(), trailer, 0);
+    writeInt((int) def.getBytesRead(), trailer, 4);
+    out.write(trailer);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    try {
+      finish();
+      out.close();
+    } finally {
+      closed = true;
+      DeflaterPool.release(def);
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  /** Write an integer in little-endian byte order, as gzip expects. */
+  private static void writeInt(final int value, final byte[] buf, final int offset) {
+    buf[offset] = (byte) value;
+    buf[offset + 1] = (byte) (value >> 8);
+    buf[offset + 2] = (byte) (value >> 16);
+    buf[offset + 3] = (byte) (value >> 24);
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pauses reads on a channel for one or more reasons, such as the uploader being over its in-flight
+ * budget or the customer being over its quota, and only resumes them once every reason has been
+ * lifted. The reasons are kept in a bit mask attached to the channel, and auto-read is always set
+ * from the latest mask on the channel's event loop, so pauses and resumes racing on different
+ * threads cannot leave the channel in the wrong state.
+ */
+public final class ReadPauses {
+
+  /** Why reads on a channel are paused */
+  public enum Reason {
+    /** the uploader is over its in-flight budget */
+    UPLOADS,
+    /** the customer is over its quota */
+    QUOTA,
+    /** too many events are waiting to be compressed */
+    COMPRESSION_QUEUE;
+
+    private final int mask = 1 << ordinal();
+  }
+
+  private static final AttributeKey<AtomicInteger> REASONS = AttributeKey.valueOf("read_pauses");
+
+  private ReadPauses() {}
+
+  /**
+   * Pause reads on a channel
+   *
+   * @param channel Channel to pause
+   * @param reason Why reads are paused
+   * @return true if reads were not already paused for this reason
+   */
+  public static boolean pause(final Channel channel, final Reason reason) {
+    final int previous = reasons(channel).getAndUpdate(r -> r | reason.mask);
+    if ((previous & reason.mask) != 0) {
+      return false;
+    }
+    apply(channel);
+    return true;
+  }
+
+  /**
+   * Lift a reason for pausing reads on a channel, resuming reads if no other reason remains
+   *
+   * @param channel Channel to resume
+   * @param reason Reason that no longer applies
+   * @return true if reads were paused for this reason
+   */
+  public static boolean resume(final Channel channel, final Reason reason) {
+    final int previous = reasons(channel).getAndUpdate(r -> r & ~reason.mask);
+    if ((previous & reason.mask) == 0) {
+      return false;
+    }
+    apply(channel);
+    return true;
+  }
+
+  /**
+   * Whether reads on a channel are paused for a reason
+   *
+   * @param channel Channel to check
+   * @param reason Reason to check
+   * @return true if reads are paused for this reason
+   */
+  public static boolean isPaused(final Channel channel, final Reason reason) {
+    return (reasons(channel).get() & reason.mask) != 0;
+  }
+
+  private static AtomicInteger reasons(final Channel channel) {
+    final Attribute<AtomicInteger> attr = channel.attr(REASONS);
+    final AtomicInteger reasons = attr.get();
+    if (reasons != null) {
+      return reasons;
+    }
+    final AtomicInteger created = new AtomicInteger(0);
+    final AtomicInteger existing = attr.setIfAbsent(created);
+    return existing == null ? created : existing;
+  }
+
+  private static void apply(final Channel channel) {
+    final EventLoop loop = channel.eventLoop();
+    if (loop.inEventLoop()) {
+      channel.config().setAutoRead(reasons(channel).get() == 0);
+    } else {
+      loop.execute(() -> channel.config().setAutoRead(reasons(channel).get() == 0));
+    }
+  }
+}
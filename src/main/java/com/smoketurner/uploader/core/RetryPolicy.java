@@ -0,0 +1,214 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.annotations.VisibleForTesting;
+import com.smoketurner.uploader.config.RetryConfiguration;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+
+/**
+ * Retries failed S3 requests with exponential backoff and full jitter. Retries are scheduled on
+ * the shared worker event loop group, so waiting for a retry never ties up a thread.
+ */
+public class RetryPolicy {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RetryPolicy.class);
+  private static final int MAX_BACKOFF_SHIFT = 30;
+
+  private final ScheduledExecutorService executor;
+  private final int maxAttempts;
+  private final long baseDelayMillis;
+  private final long maxDelayMillis;
+
+  // metrics
+  private final Meter retryMeter;
+  private final Meter exhaustedMeter;
+  private final Histogram delayHistogram;
+
+  /**
+   * Constructor
+   *
+   * @param configuration Retry configuration
+   * @param executor Executor to schedule retries on
+   */
+  public RetryPolicy(
+      final RetryConfiguration configuration, final ScheduledExecutorService executor) {
+    this.executor = Objects.requireNonNull(executor);
+    this.maxAttempts = configuration.getMaxAttempts();
+    this.baseDelayMillis = configuration.getBaseDelay().toMilliseconds();
+    this.maxDelayMillis = configuration.getMaxDelay().toMilliseconds();
+
+    final MetricRegistry registry = SharedMetricRegistries.getDefault();
+    this.retryMeter = registry.meter(name(RetryPolicy.class, "retries"));
+    this.exhaustedMeter = registry.meter(name(RetryPolicy.class, "retries-exhausted"));
+    this.delayHistogram = registry.histogram(name(RetryPolicy.class, "retry-delay"));
+  }
+
+  /**
+   * Policy which never retries
+   *
+   * @return retry policy
+   */
+  public static RetryPolicy noRetries() {
+    final RetryConfiguration configuration = new RetryConfiguration();
+    configuration.setMaxAttempts(1);
+    return new RetryPolicy(configuration, GlobalEventExecutor.INSTANCE);
+  }
+
+  /**
+   * Execute an asynchronous request, retrying it while it fails with a retryable error
+   *
+   * @param description Description of the request for logging
+   * @param request Supplier starting a new attempt of the request
+   * @return future completed with the result of the first successful attempt, or the error of
+   *     the last attempt
+   */
+  public <T> CompletableFuture<T> execute(
+      final String description, final Supplier<CompletableFuture<T>> request) {
+    final CompletableFuture<T> result = new CompletableFuture<>();
+    attempt(description, request, 1, result);
+    return result;
+  }
+
+  private <T> void attempt(
+      final String description,
+      final Supplier<CompletableFuture<T>> request,
+      final int attempt,
+      final CompletableFuture<T> result) {
+
+    final CompletableFuture<T> future;
+    try {
+      future = request.get();
+    } catch (RuntimeException e) {
+      result.completeExceptionally(e);
+      return;
+    }
+
+    future.whenComplete(
+        (resp, err) -> {
+          if (err == null) {
+            result.complete(resp);
+            return;
+          }
+
+          final Throwable cause = unwrap(err);
+          if (!isRetryable(cause)) {
+            result.completeExceptionally(cause);
+            return;
+          }
+          if (attempt >= maxAttempts) {
+            if (maxAttempts > 1) {
+              exhaustedMeter.mark();
+            }
+            result.completeExceptionally(cause);
+            return;
+          }
+
+          final long delay = getDelayMillis(attempt);
+          retryMeter.mark();
+          delayHistogram.update(delay);
+
+          LOGGER.warn(
+              "Attempt {} of {} for {} failed, retrying in {}ms: {}",
+              attempt,
+              maxAttempts,
+              description,
+              delay,
+              cause.toString());
+
+          try {
+            executor.schedule(
+                () -> attempt(description, request, attempt + 1, result),
+                delay,
+                TimeUnit.MILLISECONDS);
+          } catch (RejectedExecutionException e) {
+            // shutting down
+            result.completeExceptionally(cause);
+          }
+        });
+  }
+
+  /**
+   * Full jitter: a random delay between zero and the exponential backoff for the attempt
+   *
+   * @param attempt Number of the attempt that failed, starting at 1
+   * @return delay in milliseconds
+   */
+  @VisibleForTesting
+  long getDelayMillis(final int attempt) {
+    final int shift = Math.min(attempt - 1, MAX_BACKOFF_SHIFT);
+    final long backoff = Math.min(maxDelayMillis, baseDelayMillis << shift);
+    return ThreadLocalRandom.current().nextLong(backoff + 1);
+  }
+
+  /**
+   * Whether a failed request may succeed if it is attempted again. Network errors, timeouts,
+   * throttling, clock skew and server errors are retryable. Other client errors such as access
+   * denied or a missing bucket are not.
+   *
+   * @param error Request failure
+   * @return true if the request should be retried, otherwise false
+   */
+  public static boolean isRetryable(final Throwable error) {
+    final Throwable cause = unwrap(error);
+
+    if (cause instanceof SdkServiceException) {
+      final SdkServiceException e = (SdkServiceException) cause;
+      return e.statusCode() >= 500
+          || e.statusCode() == 408
+          || e.statusCode() == 429
+          || e.isThrottlingException()
+          || e.isClockSkewException();
+    }
+    if (cause instanceof SdkClientException) {
+      return true;
+    }
+    if (cause instanceof SdkException) {
+      return ((SdkException) cause).retryable();
+    }
+    return cause instanceof IOException;
+  }
+
+  private static Throwable unwrap(final Throwable error) {
+    Throwable cause = error;
+    while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+        && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    return cause;
+  }
+}
@@ -0,0 +1,631 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import com.smoketurner.uploader.config.SpoolConfiguration;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of batches waiting to be uploaded, split into numbered segment files.
+ *
+ * <p>Every record is framed as a length and a CRC32 followed by the record itself. Data records
+ * hold the compressed bytes of a whole batch, or of one multipart upload part, and the last record
+ * of a batch carries its event count. Once a batch has been uploaded an acknowledgement record is
+ * appended. A segment is deleted when every batch written to it, and to every older segment, has
+ * been acknowledged, so acknowledgements are never deleted before the data they refer to.
+ *
+ * <p>Records are written sequentially by a single writer thread. Whatever has been queued while
+ * the previous group was being written is written as one group and synced with a single fsync, so
+ * appending never blocks the event loops. Appending returns a future completed once the group
+ * holding the record has been synced, so callers can wait for the record to be durable before
+ * uploading it.
+ */
+public class Spool {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(Spool.class);
+  private static final String SEGMENT_PREFIX = "spool-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final byte TYPE_DATA = 1;
+  private static final byte TYPE_ACK = 2;
+  private static final byte FLAG_LAST = 1;
+  private static final byte FLAG_CUSTOMER = 2;
+  private static final int FRAME_HEADER_BYTES = 8;
+  private static final int MAX_GROUP_SIZE = 1024;
+
+  private final Path directory;
+  private final long segmentBytes;
+  private final boolean fsync;
+  private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+  private final AtomicLong nextId;
+  private final AtomicLong spooledBytes = new AtomicLong(0);
+
+  // only accessed by the writer thread once started
+  private final Deque<Segment> segments = new ArrayDeque<>();
+  private final Map<Long, Set<Segment>> pending = new ConcurrentHashMap<>();
+  private long nextSequence = 1;
+  @Nullable private Segment current;
+
+  private volatile boolean running = false;
+  private volatile boolean stopped = false;
+  @Nullable private Thread writer;
+
+  // metrics
+  private final Meter recordMeter;
+  private final Histogram groupSize;
+  private final Timer syncTime;
+
+  /**
+   * Constructor
+   *
+   * @param configuration Spool configuration
+   */
+  public Spool(final SpoolConfiguration configuration) {
+    this.directory = Paths.get(configuration.getDirectory());
+    this.segmentBytes = configuration.getSegmentSize().toBytes();
+    this.fsync = configuration.isFsync();
+
+    // seed IDs from the clock so batches spooled before recovery has run
+    // cannot collide with batches left over from a previous run
+    this.nextId = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    final MetricRegistry registry = SharedMetricRegistries.getDefault();
+    this.recordMeter = registry.meter(name(Spool.class, "records"));
+    this.groupSize = registry.histogram(name(Spool.class, "group-size"));
+    this.syncTime = registry.timer(name(Spool.class, "sync-time"));
+    registry.gauge(name(Spool.class, "spooled-bytes"), () -> (Gauge<Long>) spooledBytes::get);
+    registry.gauge(name(Spool.class, "pending-batches"), () -> (Gauge<Integer>) pending::size);
+  }
+
+  /**
+   * Allocate an ID for a new spooled batch
+   *
+   * @return batch ID
+   */
+  public long nextId() {
+    return nextId.getAndIncrement();
+  }
+
+  /**
+   * Read the existing segments and return the finished batches that were never acknowledged. Must
+   * be called before {@link #start()}. Batches whose last part was never written are discarded, as
+   * their compressed stream is incomplete.
+   *
+   * @return batches to upload
+   * @throws IOException if unable to read the spool directory
+   */
+  public List<SpooledBatch> recover() throws IOException {
+    Files.createDirectories(directory);
+
+    final TreeMap<Long, Path> files = new TreeMap<>();
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+      for (Path path : stream) {
+        final String name = path.getFileName().toString();
+        try {
+          files.put(
+              Long.parseLong(
+                  name.substring(
+                      SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())),
+              path);
+        } catch (NumberFormatException e) {
+          LOGGER.warn("Ignoring unexpected file in spool: {}", path);
+        }
+      }
+    }
+
+    final Map<Long, SpooledBatch> batches = new LinkedHashMap<>();
+    final Map<Long, Set<Segment>> locations = new LinkedHashMap<>();
+    final Set<Long> acked = new HashSet<>();
+    long maxId = 0;
+
+    for (Map.Entry<Long, Path> file : files.entrySet()) {
+      final Segment segment = new Segment(file.getKey(), file.getValue());
+      segment.size = Files.size(segment.path);
+      segments.addLast(segment);
+      spooledBytes.addAndGet(segment.size);
+      nextSequence = segment.sequence + 1;
+
+      try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+        final ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES);
+        long position = 0;
+        while (position + FRAME_HEADER_BYTES <= segment.size) {
+          frame.clear();
+          readFully(channel, frame, position);
+          frame.flip();
+          final int length = frame.getInt();
+          final int crc = frame.getInt();
+          if (length <= 0 || position + FRAME_HEADER_BYTES + length > segment.size) {
+            LOGGER.warn("Truncated record at {} in {}", position, segment.path);
+            break;
+          }
+
+          final ByteBuffer record = ByteBuffer.allocate(length);
+          readFully(channel, record, position + FRAME_HEADER_BYTES);
+          record.flip();
+
+          final CRC32 checksum = new CRC32();
+          checksum.update(record.duplicate());
+          if ((int) checksum.getValue() != crc) {
+            LOGGER.warn("Corrupt record at {} in {}", position, segment.path);
+            break;
+          }
+
+          final byte type = record.get();
+          final long id = record.getLong();
+          maxId = Math.max(maxId, id);
+
+          if (type == TYPE_ACK) {
+            acked.add(id);
+          } else if (type == TYPE_DATA) {
+            final byte flags = record.get();
+            final int count = record.getInt();
+            final String key = getString(record);
+            final String customerId = (flags & FLAG_CUSTOMER) != 0 ? getString(record) : null;
+
+            final SpooledBatch batch =
+                batches.computeIfAbsent(id, k -> new SpooledBatch(id, key, customerId));
+            batch.addPart(
+                segment.path,
+                position + FRAME_HEADER_BYTES + record.position(),
+                record.remaining());
+            if ((flags & FLAG_LAST) != 0) {
+              batch.complete(count);
+            }
+            locations.computeIfAbsent(id, k -> new HashSet<>()).add(segment);
+          }
+          position += FRAME_HEADER_BYTES + length;
+        }
+      }
+    }
+
+    final List<SpooledBatch> recovered = new ArrayList<>();
+    for (SpooledBatch batch : batches.values()) {
+      if (acked.contains(batch.getId())) {
+        continue;
+      }
+      if (!batch.isComplete()) {
+        LOGGER.warn("Discarding incomplete spooled batch \"{}\"", batch.getKey());
+        continue;
+      }
+      recovered.add(batch);
+
+      final Set<Segment> locatedIn = locations.get(batch.getId());
+      locatedIn.forEach(segment -> segment.live++);
+      pending.put(batch.getId(), locatedIn);
+    }
+
+    nextId.accumulateAndGet(maxId + 1, Math::max);
+    deleteReleasedSegments();
+
+    LOGGER.info("Recovered {} batches from {} spool segments", recovered.size(), files.size());
+    return Collections.unmodifiableList(recovered);
+  }
+
+  /**
+   * Read the compressed contents of a recovered batch into memory
+   *
+   * @param batch Recovered batch
+   * @return compressed contents, which the caller is responsible for releasing
+   * @throws IOException if unable to read the batch
+   */
+  public ByteBuf read(final SpooledBatch batch) throws IOException {
+    final ByteBuf buffer = ByteBufAllocator.DEFAULT.directBuffer(Math.toIntExact(batch.size()));
+    try {
+      for (SpooledBatch.Part part : batch.getParts()) {
+        try (FileChannel channel = FileChannel.open(part.segment, StandardOpenOption.READ)) {
+          int read = 0;
+          while (read < part.length) {
+            final int n = buffer.writeBytes(channel, part.offset + read, part.length - read);
+            if (n < 0) {
+              throw new IOException("Unexpected end of spool segment " + part.segment);
+            }
+            read += n;
+          }
+        }
+      }
+      return buffer;
+    } catch (IOException e) {
+      buffer.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Queue compressed batch contents to be written to the spool. The buffer is retained until it
+   * has been written.
+   *
+   * @param id Batch ID
+   * @param key S3 key
+   * @param customerId Customer ID (may be null)
+   * @param count Number of events in the batch, only used for the last part
+   * @param last Whether this is the last part of the batch
+   * @param data Compressed contents
+   * @return future completed once the contents have been written and synced, or failed if they
+   *     could not be
+   */
+  public CompletableFuture<Void> append(
+      final long id,
+      final String key,
+      @Nullable final String customerId,
+      final int count,
+      final boolean last,
+      final ByteBuf data) {
+    if (stopped) {
+      LOGGER.warn("Spool has been stopped, not spooling \"{}\"", key);
+      return CompletableFuture.failedFuture(new IOException("Spool has been stopped"));
+    }
+    final Entry entry = new Entry(TYPE_DATA, id, key, customerId, count, last, data.retain());
+    queue.add(entry);
+    return entry.written;
+  }
+
+  /**
+   * Record that a batch has been uploaded so its segments can be deleted
+   *
+   * @param id Batch ID
+   */
+  public void ack(final long id) {
+    if (stopped) {
+      return;
+    }
+    queue.add(new Entry(TYPE_ACK, id, "", null, 0, false, null));
+  }
+
+  /**
+   * Start the writer thread
+   *
+   * @throws IOException if unable to create the first segment
+   */
+  public void start() throws IOException {
+    Files.createDirectories(directory);
+    roll();
+    running = true;
+    writer = new Thread(this::writeLoop, "spool-writer");
+    writer.start();
+  }
+
+  /**
+   * Write everything that has been queued and stop the writer thread
+   *
+   * @throws InterruptedException if interrupted while waiting for the writer thread
+   */
+  public void stop() throws InterruptedException {
+    stopped = true;
+    running = false;
+    final Thread thread = writer;
+    if (thread != null) {
+      thread.join();
+    }
+  }
+
+  private void writeLoop() {
+    final List<Entry> group = new ArrayList<>();
+    while (true) {
+      final Entry first;
+      try {
+        first = queue.poll(100, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      if (first == null) {
+        if (!running) {
+          break;
+        }
+        continue;
+      }
+
+      group.add(first);
+      queue.drainTo(group, MAX_GROUP_SIZE - 1);
+      groupSize.update(group.size());
+
+      try {
+        for (Entry entry : group) {
+          write(entry);
+        }
+        sync();
+        group.forEach(entry -> entry.written.complete(null));
+      } catch (IOException e) {
+        LOGGER.error("Unable to write to spool", e);
+        group.forEach(entry -> entry.written.completeExceptionally(e));
+
+        // a partly written record would hide every record after it in the
+        // segment from recovery
+        try {
+          roll();
+        } catch (IOException rollError) {
+          LOGGER.error("Unable to start a new spool segment", rollError);
+        }
+      } finally {
+        group.forEach(Entry::release);
+        group.clear();
+      }
+    }
+    close();
+
+    // anything queued while stopping is dropped
+    Entry entry;
+    while ((entry = queue.poll()) != null) {
+      entry.written.completeExceptionally(new IOException("Spool has been stopped"));
+      entry.release();
+    }
+  }
+
+  private void write(final Entry entry) throws IOException {
+    final ByteBuffer header = entry.header();
+    final ByteBuffer[] payload =
+        entry.data == null
+            ? new ByteBuffer[0]
+            : entry.data.nioBuffers(entry.data.readerIndex(), entry.data.readableBytes());
+
+    final CRC32 checksum = new CRC32();
+    checksum.update(header.duplicate());
+    int length = header.remaining();
+    for (ByteBuffer buffer : payload) {
+      length += buffer.remaining();
+      checksum.update(buffer.duplicate());
+    }
+
+    final ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES);
+    frame.putInt(length).putInt((int) checksum.getValue()).flip();
+
+    Segment segment = current;
+    if (segment == null || segment.size + FRAME_HEADER_BYTES + length > segmentBytes) {
+      if (segment == null || segment.size > 0) {
+        roll();
+      }
+      segment = current;
+    }
+
+    final ByteBuffer[] buffers = new ByteBuffer[payload.length + 2];
+    buffers[0] = frame;
+    buffers[1] = header;
+    System.arraycopy(payload, 0, buffers, 2, payload.length);
+
+    final FileChannel channel = segment.channel;
+    final ByteBuffer last = buffers[buffers.length - 1];
+    while (last.hasRemaining()) {
+      channel.write(buffers);
+    }
+    segment.size += FRAME_HEADER_BYTES + length;
+    spooledBytes.addAndGet(FRAME_HEADER_BYTES + length);
+    recordMeter.mark();
+
+    if (entry.type == TYPE_DATA) {
+      final Segment written = segment;
+      if (pending.computeIfAbsent(entry.id, k -> new HashSet<>()).add(written)) {
+        written.live++;
+      }
+    } else {
+      final Set<Segment> locatedIn = pending.remove(entry.id);
+      if (locatedIn != null) {
+        locatedIn.forEach(s -> s.live--);
+        deleteReleasedSegments();
+      }
+    }
+  }
+
+  private void sync() throws IOException {
+    final Segment segment = current;
+    if (fsync && segment != null && segment.channel != null) {
+      try (Timer.Context context = syncTime.time()) {
+        segment.channel.force(false);
+      }
+    }
+  }
+
+  /** Close the current segment, if any, and start a new one. */
+  private void roll() throws IOException {
+    final Segment previous = current;
+    if (previous != null) {
+      if (fsync) {
+        previous.channel.force(false);
+      }
+      previous.channel.close();
+      previous.channel = null;
+    }
+
+    final String name = String.format("%s%020d%s", SEGMENT_PREFIX, nextSequence, SEGMENT_SUFFIX);
+    final Segment segment = new Segment(nextSequence, directory.resolve(name));
+    nextSequence++;
+    segment.channel =
+        FileChannel.open(
+            segment.path,
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+    segments.addLast(segment);
+    current = segment;
+    LOGGER.debug("Started spool segment {}", segment.path);
+
+    deleteReleasedSegments();
+  }
+
+  /** Delete the oldest closed segments which no longer hold any unacknowledged batches. */
+  private void deleteReleasedSegments() {
+    while (!segments.isEmpty()) {
+      final Segment oldest = segments.peekFirst();
+      if (oldest == current || oldest.live > 0) {
+        return;
+      }
+      segments.removeFirst();
+      try {
+        Files.deleteIfExists(oldest.path);
+        spooledBytes.addAndGet(-oldest.size);
+        LOGGER.debug("Deleted spool segment {}", oldest.path);
+      } catch (IOException e) {
+        LOGGER.error("Unable to delete spool segment " + oldest.path, e);
+      }
+    }
+  }
+
+  private void close() {
+    final Segment segment = current;
+    if (segment == null || segment.channel == null) {
+      return;
+    }
+    try {
+      if (fsync) {
+        segment.channel.force(false);
+      }
+      segment.channel.close();
+      segment.channel = null;
+    } catch (IOException e) {
+      LOGGER.error("Unable to close spool segment " + segment.path, e);
+    }
+
+    // nothing left to replay from the last segment either
+    current = null;
+    deleteReleasedSegments();
+  }
+
+  private static void readFully(final FileChannel channel, final ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      final int n = channel.read(buffer, position);
+      if (n < 0) {
+        throw new IOException("Unexpected end of spool segment");
+      }
+      position += n;
+    }
+  }
+
+  private static String getString(final ByteBuffer buffer) {
+    final byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void putString(final ByteBuffer buffer, final byte[] bytes) {
+    buffer.putShort((short) bytes.length);
+    buffer.put(bytes);
+  }
+
+  private static final class Segment {
+    final long sequence;
+    final Path path;
+    @Nullable FileChannel channel;
+    long size = 0;
+    int live = 0;
+
+    Segment(final long sequence, final Path path) {
+      this.sequence = sequence;
+      this.path = path;
+    }
+  }
+
+  private static final class Entry {
+    final byte type;
+    final long id;
+    final String key;
+    @Nullable final String customerId;
+    final int count;
+    final boolean last;
+    @Nullable final ByteBuf data;
+    final CompletableFuture<Void> written = new CompletableFuture<>();
+
+    Entry(
+        final byte type,
+        final long id,
+        final String key,
+        @Nullable final String customerId,
+        final int count,
+        final boolean last,
+        @Nullable final ByteBuf data) {
+      this.type = type;
+      this.id = id;
+      this.key = key;
+      this.customerId = customerId;
+      this.count = count;
+      this.last = last;
+      this.data = data;
+    }
+
+    ByteBuffer header() {
+      if (type == TYPE_ACK) {
+        final ByteBuffer buffer = ByteBuffer.allocate(9);
+        buffer.put(type).putLong(id).flip();
+        return buffer;
+      }
+
+      final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+      final byte[] customerBytes =
+          customerId == null ? new byte[0] : customerId.getBytes(StandardCharsets.UTF_8);
+
+      byte flags = 0;
+      if (last) {
+        flags |= FLAG_LAST;
+      }
+      if (customerId != null) {
+        flags |= FLAG_CUSTOMER;
+      }
+
+      final ByteBuffer buffer =
+          ByteBuffer.allocate(16 + keyBytes.length + 2 + customerBytes.length);
+      buffer.put(type).putLong(id).put(flags).putInt(count);
+      putString(buffer, keyBytes);
+      if (customerId != null) {
+        putString(buffer, customerBytes);
+      }
+      buffer.flip();
+      return buffer;
+    }
+
+    void release() {
+      if (data != null) {
+        data.release();
+      }
+    }
+  }
+}
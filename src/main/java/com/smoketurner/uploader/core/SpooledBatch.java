@@ -0,0 +1,99 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import javax.annotation.Nullable;
+
+/** A finished batch recovered from the spool that has not been uploaded yet. */
+public final class SpooledBatch {
+
+  private final long id;
+  private final String key;
+  private final Optional<String> customerId;
+  private final List<Part> parts = new ArrayList<>();
+  private int count;
+  private boolean complete = false;
+
+  SpooledBatch(final long id, final String key, @Nullable final String customerId) {
+    this.id = id;
+    this.key = key;
+    this.customerId = Optional.ofNullable(customerId);
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public Optional<String> getCustomerId() {
+    return customerId;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * Total number of compressed bytes across all of the spooled parts
+   *
+   * @return batch size in bytes
+   */
+  public long size() {
+    long size = 0;
+    for (Part part : parts) {
+      size += part.length;
+    }
+    return size;
+  }
+
+  boolean isComplete() {
+    return complete;
+  }
+
+  List<Part> getParts() {
+    return Collections.unmodifiableList(parts);
+  }
+
+  void addPart(final Path segment, final long offset, final int length) {
+    parts.add(new Part(segment, offset, length));
+  }
+
+  void complete(final int count) {
+    this.count = count;
+    this.complete = true;
+  }
+
+  /** Location of a part of the batch within a spool segment. */
+  static final class Part {
+    final Path segment;
+    final long offset;
+    final int length;
+
+    Part(final Path segment, final long offset, final int length) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket, tracked as the time at which the bucket will be full again (the generic
+ * cell rate algorithm). Taking tokens moves that time forward by how long the tokens take to
+ * refill, with a single compare-and-set, and the bucket is over its limit while that time is more
+ * than the burst ahead of now.
+ */
+final class TokenBucket {
+
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final long ratePerSecond;
+  private final long burstNanos;
+
+  // when the bucket will be full again
+  private final AtomicLong fullAt;
+
+  /**
+   * Constructor
+   *
+   * @param ratePerSecond Tokens added per second
+   * @param burst Tokens the bucket holds when full
+   * @param now Current time in nanoseconds, at which the bucket is full
+   */
+  TokenBucket(final long ratePerSecond, final long burst, final long now) {
+    this.ratePerSecond = ratePerSecond;
+    this.burstNanos = refillNanos(burst);
+    this.fullAt = new AtomicLong(now);
+  }
+
+  /**
+   * Take tokens, even if the bucket does not hold enough of them
+   *
+   * @param tokens Number of tokens to take
+   * @param now Current time in nanoseconds
+   * @return nanoseconds until the bucket is back under its limit, or 0 if it is not over it
+   */
+  long acquire(final long tokens, final long now) {
+    final long cost = refillNanos(tokens);
+    long current;
+    long next;
+    do {
+      current = fullAt.get();
+      next = Math.max(current, now) + cost;
+    } while (!fullAt.compareAndSet(current, next));
+    return Math.max(0, next - now - burstNanos);
+  }
+
+  /**
+   * Take tokens only if the bucket holds enough of them. Taking more tokens than the burst only
+   * needs a full bucket, and empties it, as they could otherwise never be taken.
+   *
+   * @param tokens Number of tokens to take
+   * @param now Current time in nanoseconds
+   * @return 0 if the tokens were taken, otherwise nanoseconds until they would be available
+   */
+  long tryAcquire(final long tokens, final long now) {
+    final long cost = Math.min(refillNanos(tokens), burstNanos);
+    long current;
+    long next;
+    do {
+      current = fullAt.get();
+      next = Math.max(current, now) + cost;
+      if (next - now > burstNanos) {
+        return next - now - burstNanos;
+      }
+    } while (!fullAt.compareAndSet(current, next));
+    return 0;
+  }
+
+  /**
+   * Give back tokens taken by {@link #tryAcquire(long, long)}
+   *
+   * @param tokens Number of tokens to give back
+   */
+  void release(final long tokens) {
+    fullAt.addAndGet(-Math.min(refillNanos(tokens), burstNanos));
+  }
+
+  /**
+   * How long until the bucket is back under its limit
+   *
+   * @param now Current time in nanoseconds
+   * @return nanoseconds until the bucket is back under its limit, or 0 if it is not over it
+   */
+  long getDelay(final long now) {
+    return Math.max(0, fullAt.get() - now - burstNanos);
+  }
+
+  /** Nanoseconds the bucket takes to refill the tokens. */
+  private long refillNanos(final long tokens) {
+    if (tokens <= Long.MAX_VALUE / NANOS_PER_SECOND) {
+      return tokens * NANOS_PER_SECOND / ratePerSecond;
+    }
+    return tokens / ratePerSecond * NANOS_PER_SECOND;
+  }
+}
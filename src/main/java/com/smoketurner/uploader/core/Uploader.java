@@ -18,7 +18,9 @@ package com.smoketurner.uploader.core;
 import static com.codahale.metrics.MetricRegistry.name;
 
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
@@ -26,15 +28,24 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
 import com.smoketurner.uploader.config.AwsConfiguration;
 import io.dropwizard.util.Duration;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import java.io.IOException;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
-import javax.ws.rs.core.MediaType;
+import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.model.PutObjectResponse;
 import software.amazon.awssdk.services.s3.model.ServerSideEncryption;
@@ -46,6 +57,17 @@ public class Uploader {
 
   private final S3AsyncClient s3;
   private final AwsConfiguration configuration;
+  private final RetryPolicy retryPolicy;
+  @Nullable private final Spool spool;
+  @Nullable private final DeadLetterQueue deadLetters;
+  private final KeyLayout keyLayout;
+
+  // in-flight upload budget
+  private final AtomicLong inFlightBytes = new AtomicLong(0);
+  private final AtomicInteger inFlightBatches = new AtomicInteger(0);
+  private final Set<Channel> pausedChannels = ConcurrentHashMap.newKeySet();
+  private final long maxInFlightBytes;
+  private final int maxInFlightBatches;
 
   // metrics
   private final Histogram batchSize;
@@ -53,6 +75,9 @@ public class Uploader {
   private final Timer uploadTime;
   private final Counter successCounter;
   private final Counter failedCounter;
+  private final Counter partCounter;
+  private final Counter lostCounter;
+  private final Meter spoolFailedMeter;
 
   private Supplier<Long> currentTimeProvider = System::nanoTime;
 
@@ -63,8 +88,37 @@ public class Uploader {
    * @param configuration AWS configuration
    */
   public Uploader(final S3AsyncClient s3, final AwsConfiguration configuration) {
+    this(s3, configuration, RetryPolicy.noRetries(), null, null);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param s3 S3 client
+   * @param configuration AWS configuration
+   * @param retryPolicy Policy for retrying failed S3 requests
+   * @param spool Spool to write batches to before they are uploaded (may be null)
+   * @param deadLetters Where to write batches that fail every retry (may be null)
+   */
+  public Uploader(
+      final S3AsyncClient s3,
+      final AwsConfiguration configuration,
+      final RetryPolicy retryPolicy,
+      @Nullable final Spool spool,
+      @Nullable final DeadLetterQueue deadLetters) {
     this.s3 = Objects.requireNonNull(s3);
     this.configuration = Objects.requireNonNull(configuration);
+    this.retryPolicy = Objects.requireNonNull(retryPolicy);
+    this.spool = spool;
+    this.deadLetters = deadLetters;
+    this.keyLayout =
+        new KeyLayout(
+            configuration.getKeyTemplate(),
+            configuration.getKeyHashLength(),
+            configuration.getNodeId().orElseGet(KeyLayout::localNodeId),
+            configuration.getPrefix());
+    this.maxInFlightBytes = configuration.getMaxInFlightSize().toBytes();
+    this.maxInFlightBatches = configuration.getMaxInFlightBatches();
 
     final MetricRegistry registry = SharedMetricRegistries.getDefault();
 
@@ -73,6 +127,127 @@ public class Uploader {
     this.uploadTime = registry.timer(name(Uploader.class, "upload-time"));
     this.successCounter = registry.counter(name(Uploader.class, "upload-success"));
     this.failedCounter = registry.counter(name(Uploader.class, "upload-failed"));
+    this.partCounter = registry.counter(name(Uploader.class, "upload-parts"));
+    this.lostCounter = registry.counter(name(Uploader.class, "upload-lost"));
+    this.spoolFailedMeter = registry.meter(name(Uploader.class, "spool-write-failed"));
+
+    registry.gauge(name(Uploader.class, "in-flight-bytes"), () -> (Gauge<Long>) inFlightBytes::get);
+    registry.gauge(
+        name(Uploader.class, "queued-batches"), () -> (Gauge<Integer>) inFlightBatches::get);
+    registry.gauge(
+        name(Uploader.class, "paused-channels"), () -> (Gauge<Integer>) pausedChannels::size);
+  }
+
+  /**
+   * Whether the bytes or batches waiting on S3 exceed the in-flight budget, in which case no more
+   * data should be accepted until uploads have drained.
+   *
+   * @return true if over budget, otherwise false
+   */
+  public boolean isOverBudget() {
+    return inFlightBytes.get() >= maxInFlightBytes || inFlightBatches.get() >= maxInFlightBatches;
+  }
+
+  /**
+   * Stop reading from a channel until the in-flight uploads have drained below half of the budget.
+   *
+   * @param channel Channel to pause
+   */
+  public void pause(final Channel channel) {
+    if (pausedChannels.add(channel)) {
+      LOGGER.debug("In-flight uploads over budget, pausing reads on {}", channel);
+      ReadPauses.pause(channel, ReadPauses.Reason.UPLOADS);
+      channel.closeFuture().addListener(f -> pausedChannels.remove(channel));
+    }
+
+    // the last upload may have completed before the channel was added
+    if (isDrained()) {
+      resumeChannels();
+    }
+  }
+
+  /**
+   * Whether the in-flight uploads have drained enough for paused channels to be resumed. Channels
+   * are resumed at half of the budget so they do not flap.
+   */
+  private boolean isDrained() {
+    return 2 * inFlightBytes.get() < maxInFlightBytes
+        && 2 * inFlightBatches.get() < maxInFlightBatches;
+  }
+
+  private void resumeChannels() {
+    for (Channel channel : pausedChannels) {
+      // reads stay paused if the channel is also paused for another reason
+      if (pausedChannels.remove(channel)) {
+        LOGGER.debug("In-flight uploads drained, resuming reads on {}", channel);
+        ReadPauses.resume(channel, ReadPauses.Reason.UPLOADS);
+      }
+    }
+  }
+
+  /**
+   * Account for an upload against the in-flight budget until it completes
+   *
+   * @param bytes Number of bytes held in memory by the upload
+   * @param batches Number of finished batches held by the upload
+   * @param future Upload future
+   */
+  private void track(final long bytes, final int batches, final CompletableFuture<?> future) {
+    inFlightBytes.addAndGet(bytes);
+    inFlightBatches.addAndGet(batches);
+
+    future.whenComplete(
+        (resp, err) -> {
+          inFlightBytes.addAndGet(-bytes);
+          inFlightBatches.addAndGet(-batches);
+          if (!pausedChannels.isEmpty() && isDrained()) {
+            resumeChannels();
+          }
+        });
+  }
+
+  /**
+   * Upload the compressed bytes buffered so far in an unfinished batch as a part of a multipart
+   * upload, starting the multipart upload if this is the first part of the batch.
+   *
+   * @param batch Batch to upload a part of
+   */
+  public void uploadPart(final Batch batch) {
+    MultipartUpload upload = batch.getMultipartUpload();
+    if (upload == null) {
+      final String key = getKey(batch);
+
+      LOGGER.debug(
+          "Customer: {}, S3 key: {} (multipart)", batch.getCustomerId().orElse(null), key);
+
+      // the event count is not known until the batch is finished, so it is
+      // not included in the metadata of multipart uploads
+      final ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+      batch.getCustomerId().ifPresent(id -> builder.put("customer_id", id));
+
+      final CodecType codec = batch.getCodec().getType();
+      final CreateMultipartUploadRequest request =
+          CreateMultipartUploadRequest.builder()
+              .bucket(configuration.getBucketName())
+              .key(key)
+              .metadata(builder.build())
+              .contentType(codec.getContentType())
+              .contentEncoding(codec.getContentEncoding())
+              .serverSideEncryption(ServerSideEncryption.AES256)
+              .build();
+
+      upload = new MultipartUpload(s3, retryPolicy, request);
+      batch.setMultipartUpload(upload);
+      if (spool != null) {
+        batch.setSpoolId(spool.nextId());
+      }
+    }
+
+    final ByteBuf part = batch.drainPart();
+    final CompletableFuture<Boolean> spooled =
+        spoolPart(upload, batch.getSpoolId(), getKey(batch), batch, part, false);
+    partCounter.inc();
+    track(part.readableBytes(), 0, upload.uploadPart(part, spooled));
   }
 
   /**
@@ -84,35 +259,240 @@ public class Uploader {
     batchSize.update(batch.size());
     batchCount.update(batch.getCount());
 
-    final ImmutableMap.Builder<String, String> builder =
-        ImmutableMap.<String, String>builder().put("count", String.valueOf(batch.getCount()));
-    batch.getCustomerId().ifPresent(id -> builder.put("customer_id", id));
-    final Map<String, String> metadata = builder.build();
+    final String key = getKey(batch);
 
-    final String key;
-    if (configuration.getPrefix().isPresent()) {
-      key = configuration.getPrefix().get() + "/" + batch.getKey();
-    } else {
-      key = batch.getKey();
+    final MultipartUpload upload = batch.getMultipartUpload();
+    if (upload != null) {
+      // upload whatever remains in the buffer as the last part
+      batch.finish();
+      final ByteBuf part = batch.drainPart();
+      final CompletableFuture<Boolean> spooled =
+          spoolPart(upload, batch.getSpoolId(), key, batch, part, true);
+      partCounter.inc();
+      track(part.readableBytes(), 0, upload.uploadPart(part, spooled));
+
+      final CompletableFuture<?> future = upload.complete();
+      track(0, 1, future);
+      whenComplete(batch, key, batch.getSpoolId(), future);
+      return;
     }
 
     LOGGER.debug("Customer: {}, S3 key: {}", batch.getCustomerId().orElse(null), key);
 
+    final long spoolId = spool == null ? -1 : spool.nextId();
+
+    // a batch which could not be spooled is still uploaded from memory, and
+    // written to the dead letter directory if the upload fails
+    final CompletableFuture<?> future =
+        spool(spoolId, key, batch, batch.content(), true)
+            .thenCompose(
+                spooled ->
+                    putObject(
+                        key,
+                        batch.getCustomerId(),
+                        batch.getCount(),
+                        batch.getCodec().getType(),
+                        batch.content()));
+    track(batch.size(), 1, future);
+    whenComplete(batch, key, spoolId, future);
+  }
+
+  /**
+   * Upload a batch recovered from the spool, acknowledging it once it has been uploaded
+   *
+   * @param spooled Batch recovered from the spool
+   * @return future completed when the upload has finished
+   * @throws IOException if unable to read the batch from the spool
+   */
+  public CompletableFuture<?> replay(final SpooledBatch spooled) throws IOException {
+    final Spool current = Objects.requireNonNull(spool, "spool is not enabled");
+    final ByteBuf content = current.read(spooled);
+    final String key = spooled.getKey();
+
+    LOGGER.info("Replaying spooled batch \"{}\" ({} bytes)", key, content.readableBytes());
+
+    final CompletableFuture<?> future =
+        putObject(
+            key,
+            spooled.getCustomerId(),
+            spooled.getCount(),
+            CodecType.fromKey(key),
+            content);
+    track(content.readableBytes(), 1, future);
+
+    future.whenComplete(
+        (resp, err) -> {
+          if (resp != null) {
+            successCounter.inc();
+            current.ack(spooled.getId());
+          } else {
+            failedCounter.inc();
+            LOGGER.error(String.format("Failed to replay \"%s\"", key), err);
+            deadLetter(key, spooled.getCustomerId(), spooled.getCount(), content, spooled.getId());
+          }
+          content.release();
+        });
+    return future;
+  }
+
+  /**
+   * Upload a batch from the dead letter directory, removing it once it has been uploaded
+   *
+   * @param letter Dead letter batch
+   * @return future completed when the upload has finished
+   * @throws IOException if unable to read the batch from the dead letter directory
+   */
+  public CompletableFuture<?> redrive(final DeadLetterQueue.DeadLetter letter) throws IOException {
+    final DeadLetterQueue queue =
+        Objects.requireNonNull(deadLetters, "dead letter directory is not enabled");
+    final ByteBuf content = queue.read(letter);
+    final String key = letter.getKey();
+
+    LOGGER.info("Re-driving dead letter \"{}\" ({} bytes)", key, content.readableBytes());
+
+    final CompletableFuture<?> future =
+        putObject(
+            key, letter.getCustomerId(), letter.getCount(), CodecType.fromKey(key), content);
+    track(content.readableBytes(), 1, future);
+
+    return future.whenComplete(
+        (resp, err) -> {
+          content.release();
+          if (resp != null) {
+            successCounter.inc();
+            try {
+              queue.remove(letter);
+            } catch (IOException e) {
+              LOGGER.error(String.format("Unable to remove dead letter \"%s\"", key), e);
+            }
+          } else {
+            failedCounter.inc();
+            LOGGER.error(String.format("Failed to re-drive \"%s\"", key), err);
+          }
+        });
+  }
+
+  /**
+   * Upload compressed contents as a single S3 object, retrying on retryable errors
+   *
+   * @param key S3 key
+   * @param customerId Customer ID
+   * @param count Number of events
+   * @param codec Compression format of the contents
+   * @param content Compressed contents, which remain owned by the caller
+   * @return future completed when the upload has finished
+   */
+  private CompletableFuture<PutObjectResponse> putObject(
+      final String key,
+      final Optional<String> customerId,
+      final int count,
+      final CodecType codec,
+      final ByteBuf content) {
+    final ImmutableMap.Builder<String, String> builder =
+        ImmutableMap.<String, String>builder().put("count", String.valueOf(count));
+    customerId.ifPresent(id -> builder.put("customer_id", id));
+    final Map<String, String> metadata = builder.build();
+
     final PutObjectRequest request =
         PutObjectRequest.builder()
             .bucket(configuration.getBucketName())
             .key(key)
             .metadata(metadata)
-            .contentLength(batch.size())
-            .contentType(MediaType.TEXT_PLAIN)
-            .contentEncoding("gzip")
+            .contentLength((long) content.readableBytes())
+            .contentType(codec.getContentType())
+            .contentEncoding(codec.getContentEncoding())
             .serverSideEncryption(ServerSideEncryption.AES256)
             .build();
 
+    return retryPolicy.execute(
+        "upload of \"" + key + "\"", () -> s3.putObject(request, new BatchRequestBody(content)));
+  }
+
+  /**
+   * Write a batch which failed every retry to the dead letter directory, if enabled. Once it has
+   * been written, it no longer needs to be kept in the spool.
+   */
+  private void deadLetter(
+      final String key,
+      final Optional<String> customerId,
+      final int count,
+      final ByteBuf content,
+      final long spoolId) {
+    if (deadLetters == null) {
+      return;
+    }
+    deadLetters
+        .add(key, customerId, count, content)
+        .thenRun(
+            () -> {
+              if (spool != null) {
+                spool.ack(spoolId);
+              }
+            });
+  }
+
+  /**
+   * Write compressed batch contents to the spool, if enabled, before they are uploaded
+   *
+   * @return future completed once the contents have been synced to the spool, with false if they
+   *     were not written to it
+   */
+  private CompletableFuture<Boolean> spool(
+      final long spoolId,
+      final String key,
+      final Batch batch,
+      final ByteBuf data,
+      final boolean last) {
+    if (spool == null) {
+      return CompletableFuture.completedFuture(false);
+    }
+    return spool
+        .append(spoolId, key, batch.getCustomerId().orElse(null), batch.getCount(), last, data)
+        .handle(
+            (v, err) -> {
+              if (err == null) {
+                return true;
+              }
+              spoolFailedMeter.mark();
+              LOGGER.error(String.format("Unable to spool \"%s\"", key), err);
+              return false;
+            });
+  }
+
+  /** Write a part of a multipart upload to the spool, recording if it could not be. */
+  private CompletableFuture<Boolean> spoolPart(
+      final MultipartUpload upload,
+      final long spoolId,
+      final String key,
+      final Batch batch,
+      final ByteBuf part,
+      final boolean last) {
+    return spool(spoolId, key, batch, part, last)
+        .thenApply(
+            spooled -> {
+              if (!spooled) {
+                upload.markUnspooled();
+              }
+              return spooled;
+            });
+  }
+
+  /**
+   * Record metrics and log the outcome of an upload, and release the batch once the upload has
+   * finished
+   *
+   * @param batch Batch being uploaded
+   * @param key S3 key
+   * @param spoolId Spool ID of the batch
+   * @param future Upload future
+   */
+  private void whenComplete(
+      final Batch batch,
+      final String key,
+      final long spoolId,
+      final CompletableFuture<?> future) {
     final long start = currentTimeProvider.get();
 
-    final CompletableFuture<PutObjectResponse> future =
-        s3.putObject(request, new BatchRequestBody(batch));
     future.whenComplete(
         (resp, err) -> {
           if (resp != null) {
@@ -127,13 +507,35 @@ public class Uploader {
                 batch.getCount(),
                 batch.size(),
                 (took / NANOS_IN_MILLIS));
+
+            if (spool != null) {
+              spool.ack(spoolId);
+            }
           } else {
             failedCounter.inc();
             LOGGER.error(String.format("Failed to upload \"%s\"", key), err);
+
+            // the parts of a multipart upload have already been released, so
+            // those batches are only recoverable from the spool
+            final MultipartUpload multipart = batch.getMultipartUpload();
+            if (multipart == null) {
+              deadLetter(key, batch.getCustomerId(), batch.getCount(), batch.content(), spoolId);
+            } else if (!multipart.isSpooled()) {
+              lostCounter.inc();
+              LOGGER.error(
+                  "\"{}\" ({} events) was not fully spooled either and cannot be recovered",
+                  key,
+                  batch.getCount());
+            }
           }
+          batch.release();
         });
   }
 
+  private String getKey(final Batch batch) {
+    return batch.getKey(keyLayout);
+  }
+
   @VisibleForTesting
   void setCurrentTimeProvider(Supplier<Long> provider) {
     this.currentTimeProvider = provider;
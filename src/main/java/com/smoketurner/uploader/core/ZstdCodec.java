@@ -0,0 +1,101 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+
+final class ZstdCodec implements Codec {
+
+  // zstd-jni allocates a native context for every stream and frees it on
+  // close, with no way of reusing one, so open streams are only counted
+  private static final AtomicInteger IN_USE = new AtomicInteger(0);
+
+  private final int level;
+
+  // the digested dictionary is shared by every stream
+  @Nullable private final ZstdDictCompress dictionary;
+
+  /**
+   * Constructor
+   *
+   * @param level Compression level from 1 to {@link Zstd#maxCompressionLevel()}
+   * @param dictionary Dictionary trained on representative events (may be null)
+   */
+  ZstdCodec(final int level, @Nullable final byte[] dictionary) {
+    if (level < 1 || level > Zstd.maxCompressionLevel()) {
+      throw new IllegalArgumentException("Invalid zstd compression level: " + level);
+    }
+    this.level = level;
+    this.dictionary = dictionary == null ? null : new ZstdDictCompress(dictionary, level);
+  }
+
+  @Override
+  public CodecType getType() {
+    return CodecType.ZSTD;
+  }
+
+  @Override
+  public OutputStream newOutputStream(final OutputStream output) throws IOException {
+    final ZstdOutputStream stream = new CountedZstdOutputStream(output, level);
+    try {
+      stream.setChecksum(true);
+      if (dictionary != null) {
+        stream.setDict(dictionary);
+      }
+    } catch (IOException | RuntimeException e) {
+      stream.close();
+      throw e;
+    }
+    return stream;
+  }
+
+  /**
+   * Number of zstd streams that have not been closed yet
+   *
+   * @return open streams
+   */
+  static int getInUse() {
+    return IN_USE.get();
+  }
+
+  private static final class CountedZstdOutputStream extends ZstdOutputStream {
+    private boolean closed = false;
+
+    CountedZstdOutputStream(final OutputStream output, final int level) throws IOException {
+      super(output, level);
+      IN_USE.incrementAndGet();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        super.close();
+      } finally {
+        IN_USE.decrementAndGet();
+      }
+    }
+  }
+}
@@ -18,96 +18,332 @@ package com.smoketurner.uploader.handler;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
+import com.smoketurner.uploader.config.BatchConfiguration;
 import com.smoketurner.uploader.core.Batch;
+import com.smoketurner.uploader.core.BatchSizes;
+import com.smoketurner.uploader.core.Codecs;
+import com.smoketurner.uploader.core.EventTimeExtractor;
+import com.smoketurner.uploader.core.GzipMember;
 import io.dropwizard.util.Size;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.atomic.AtomicReference;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public final class BatchHandler extends SimpleChannelInboundHandler<byte[]> {
+public final class BatchHandler extends SimpleChannelInboundHandler<ByteBuf> {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(BatchHandler.class);
 
-  private final AtomicReference<Batch> curBatch = new AtomicReference<>();
+  // open batches in the order they were opened, one per event time bucket,
+  // so there is only ever one without event time partitioning. Only used
+  // from the handler's executor.
+  private final List<OpenBatch> batches = new ArrayList<>(1);
   private final long maxUploadBytes;
+  private final long maxBatchAgeMillis;
+  private final int maxBatchCount;
+  private final boolean streaming;
+  private final long partBytes;
+  private final long flushBytes;
+  private final Codecs codecs;
+  private final BatchSizes sizes;
+  private final EventTimeExtractor eventTime;
 
   // metrics
   private final Meter eventMeter;
+  private final Meter sizeFlushMeter;
+  private final Meter countFlushMeter;
+  private final Meter ageFlushMeter;
+  private final Meter inactiveFlushMeter;
+  private final Meter bucketFlushMeter;
 
   /**
    * Constructor
    *
    * @param maxUploadSize Maximum size of AWS S3 file to upload
+   * @param configuration Batch configuration
+   * @param codecs Compression codecs
    */
-  public BatchHandler(final Size maxUploadSize) {
+  public BatchHandler(
+      final Size maxUploadSize, final BatchConfiguration configuration, final Codecs codecs) {
+    this(maxUploadSize, configuration, codecs, new BatchSizes(configuration, maxUploadSize));
+  }
+
+  /**
+   * Constructor
+   *
+   * @param maxUploadSize Maximum size of AWS S3 file to upload
+   * @param configuration Batch configuration
+   * @param codecs Compression codecs
+   * @param sizes Batch sizes of recent customers, shared between connections
+   */
+  public BatchHandler(
+      final Size maxUploadSize,
+      final BatchConfiguration configuration,
+      final Codecs codecs,
+      final BatchSizes sizes) {
+    this(
+        maxUploadSize,
+        configuration,
+        codecs,
+        sizes,
+        new EventTimeExtractor(configuration.getEventTime()));
+  }
+
+  /**
+   * Constructor
+   *
+   * @param maxUploadSize Maximum size of AWS S3 file to upload
+   * @param configuration Batch configuration
+   * @param codecs Compression codecs
+   * @param sizes Batch sizes of recent customers, shared between connections
+   * @param eventTime Event time buckets, shared between connections
+   */
+  public BatchHandler(
+      final Size maxUploadSize,
+      final BatchConfiguration configuration,
+      final Codecs codecs,
+      final BatchSizes sizes,
+      final EventTimeExtractor eventTime) {
     this.maxUploadBytes = maxUploadSize.toBytes();
+    this.maxBatchAgeMillis = configuration.getMaxBatchAge().toMilliseconds();
+    this.maxBatchCount = configuration.getMaxBatchCount();
+    this.streaming = configuration.isStreaming();
+    this.partBytes = configuration.getPartSize().toBytes();
+    this.flushBytes = configuration.getFlushSize().toBytes();
+    this.codecs = Objects.requireNonNull(codecs);
+    this.sizes = Objects.requireNonNull(sizes);
+    this.eventTime = Objects.requireNonNull(eventTime);
 
     final MetricRegistry registry = SharedMetricRegistries.getDefault();
     this.eventMeter = registry.meter(MetricRegistry.name(BatchHandler.class, "event-rate"));
+    this.sizeFlushMeter = registry.meter(MetricRegistry.name(BatchHandler.class, "flush-size"));
+    this.countFlushMeter = registry.meter(MetricRegistry.name(BatchHandler.class, "flush-count"));
+    this.ageFlushMeter = registry.meter(MetricRegistry.name(BatchHandler.class, "flush-age"));
+    this.inactiveFlushMeter =
+        registry.meter(MetricRegistry.name(BatchHandler.class, "flush-inactive"));
+    this.bucketFlushMeter =
+        registry.meter(MetricRegistry.name(BatchHandler.class, "flush-buckets"));
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (!(msg instanceof GzipMember)) {
+      super.channelRead(ctx, msg);
+      return;
+    }
+
+    final GzipMember member = (GzipMember) msg;
+    try {
+      eventMeter.mark(member.getEvents());
+
+      // the events of a member are not decompressed, so their timestamps
+      // are unknown
+      final OpenBatch open = getBatch(ctx, eventTime.currentBucket());
+      try {
+        open.batch.add(member);
+      } catch (IOException | RuntimeException e) {
+        discard(open);
+        throw e;
+      }
+      checkLimits(ctx, open);
+    } finally {
+      member.release();
+    }
   }
 
   @Override
-  public void channelRead0(ChannelHandlerContext ctx, byte[] msg) throws Exception {
+  public void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
 
     if (LOGGER.isTraceEnabled()) {
-      LOGGER.trace("channelRead0: {}", new String(msg, StandardCharsets.UTF_8));
+      LOGGER.trace("channelRead0: {}", msg.toString(StandardCharsets.UTF_8));
     }
 
     eventMeter.mark();
 
-    final Batch batch = getBatch(ctx);
-    if (batch == null) {
-      LOGGER.warn("channelRead0: batch is null");
-      return;
+    final OpenBatch open = getBatch(ctx, eventTime.bucket(msg));
+    try {
+      open.batch.add(msg);
+    } catch (IOException | RuntimeException e) {
+      discard(open);
+      throw e;
     }
+    checkLimits(ctx, open);
+  }
 
-    batch.add(msg);
+  /**
+   * Release a batch whose compressed stream can no longer be completed, rather than holding on to
+   * its compressor until the connection closes. The next event starts a new batch.
+   *
+   * @param open Open batch
+   */
+  private void discard(final OpenBatch open) {
+    LOGGER.warn("Discarding batch of {} events", open.batch.getCount());
+    close(open);
+    open.batch.release();
+  }
 
+  /**
+   * Upload the batch if it reached a limit, or send a part of it if it is being streamed
+   *
+   * @param ctx Channel handler context
+   * @param open Open batch the event was added to
+   */
+  private void checkLimits(final ChannelHandlerContext ctx, final OpenBatch open) {
+    final Batch batch = open.batch;
     if (batch.size() > maxUploadBytes) {
       LOGGER.debug(
           "Batch size {} bytes exceeds max upload size of {} bytes", batch.size(), maxUploadBytes);
-
-      batch.finish();
+      flush(ctx, open, sizeFlushMeter);
+    } else if (batch.getCount() >= maxBatchCount) {
+      LOGGER.debug("Batch count {} reached max batch count of {}", batch.getCount(), maxBatchCount);
+      flush(ctx, open, countFlushMeter);
+    } else if (streaming && batch.bufferedSize() >= partBytes) {
+      LOGGER.debug("Batch buffered {} bytes, sending part", batch.bufferedSize());
       ctx.fireChannelRead(batch);
-      curBatch.set(newBatch(ctx));
     }
   }
 
   @Override
   public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-    final Batch batch = curBatch.get();
-    if (batch != null && !batch.isEmpty()) {
-      LOGGER.debug("Channel inactive, sending remaining batch of {} events", batch.getCount());
-      batch.finish();
-      ctx.fireChannelRead(batch);
-    } else if (LOGGER.isTraceEnabled()) {
-      LOGGER.trace("Channel inactive, current batch is empty");
+    while (!batches.isEmpty()) {
+      final OpenBatch open = batches.get(0);
+      if (!open.batch.isEmpty()) {
+        LOGGER.debug(
+            "Channel inactive, sending remaining batch of {} events", open.batch.getCount());
+      } else if (LOGGER.isTraceEnabled()) {
+        LOGGER.trace("Channel inactive, current batch is empty");
+      }
+      flush(ctx, open, inactiveFlushMeter);
     }
-    curBatch.set(null);
   }
 
-  @Nullable
-  private Batch getBatch(final ChannelHandlerContext ctx) throws IOException {
-    final Batch batch = curBatch.get();
-    if (batch != null) {
-      return batch;
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+    while (!batches.isEmpty()) {
+      final OpenBatch open = batches.get(0);
+      close(open);
+      open.batch.release();
     }
+  }
+
+  /**
+   * Finish a batch and send it down the pipeline to be uploaded. A new batch will be created when
+   * the next event for its bucket is received.
+   *
+   * @param ctx Channel handler context
+   * @param open Open batch
+   * @param trigger Meter for the condition that triggered the flush
+   */
+  private void flush(final ChannelHandlerContext ctx, final OpenBatch open, final Meter trigger) {
+    close(open);
 
-    final Batch newBatch = newBatch(ctx);
-    if (curBatch.compareAndSet(null, newBatch)) {
-      return newBatch;
+    final Batch batch = open.batch;
+    if (batch.isEmpty()) {
+      batch.release();
+      return;
     }
-    return getBatch(ctx);
+
+    trigger.mark();
+    batch.finish();
+    ctx.fireChannelRead(batch);
   }
 
-  private Batch newBatch(final ChannelHandlerContext ctx) throws IOException {
+  /**
+   * Scheduled on the channel's event loop when a batch is created, so the batch is uploaded once
+   * it reaches the maximum batch age even if no more events are received.
+   *
+   * @param ctx Channel handler context
+   * @param open Batch the flush was scheduled for
+   */
+  private void onMaxBatchAge(final ChannelHandlerContext ctx, final OpenBatch open) {
+    open.ageFlush = null;
+    if (!batches.contains(open)) {
+      return;
+    }
+    LOGGER.debug(
+        "Batch of {} events exceeds max batch age of {}ms",
+        open.batch.getCount(),
+        maxBatchAgeMillis);
+    flush(ctx, open, ageFlushMeter);
+  }
+
+  /** Stop tracking an open batch and cancel its age flush. */
+  private void close(final OpenBatch open) {
+    batches.remove(open);
+
+    final ScheduledFuture<?> future = open.ageFlush;
+    if (future != null) {
+      future.cancel(false);
+      open.ageFlush = null;
+    }
+  }
+
+  /**
+   * Find the open batch for a bucket, or open a new one. When the connection already has the
+   * maximum number of buckets open, the oldest one is uploaded first.
+   *
+   * @param ctx Channel handler context
+   * @param bucket Event time bucket
+   * @return open batch
+   */
+  private OpenBatch getBatch(final ChannelHandlerContext ctx, final long bucket)
+      throws IOException {
+    for (int i = batches.size() - 1; i >= 0; i--) {
+      final OpenBatch open = batches.get(i);
+      if (open.bucket == bucket) {
+        return open;
+      }
+    }
+
+    if (batches.size() >= eventTime.getMaxOpenBuckets()) {
+      LOGGER.debug(
+          "Open buckets exceeds max open buckets of {}, uploading oldest batch",
+          eventTime.getMaxOpenBuckets());
+      flush(ctx, batches.get(0), bucketFlushMeter);
+    }
+
+    final OpenBatch open = new OpenBatch(newBatch(ctx, bucket), bucket);
+    open.ageFlush =
+        ctx.executor()
+            .schedule(() -> onMaxBatchAge(ctx, open), maxBatchAgeMillis, TimeUnit.MILLISECONDS);
+    batches.add(open);
+    return open;
+  }
+
+  private Batch newBatch(final ChannelHandlerContext ctx, final long bucket) throws IOException {
     final String customerId = ctx.channel().attr(AuthHandler.CUSTOMER_KEY).get();
     LOGGER.debug("Creating new batch for: {}", customerId);
-    return Batch.builder(customerId).withSize(maxUploadBytes).build();
+    final Batch.Builder builder =
+        Batch.builder(customerId)
+            .withSizes(sizes)
+            .withAllocator(ctx.alloc())
+            .withCodec(codecs.forCustomer(customerId))
+            .withFlushSize(flushBytes);
+    if (bucket != EventTimeExtractor.NO_BUCKET) {
+      // keys are partitioned by the start of the bucket
+      builder.withCreatedAt(Instant.ofEpochMilli(bucket));
+    }
+    return builder.build();
+  }
+
+  private static final class OpenBatch {
+    private final Batch batch;
+    private final long bucket;
+    @Nullable private ScheduledFuture<?> ageFlush;
+
+    OpenBatch(final Batch batch, final long bucket) {
+      this.batch = batch;
+      this.bucket = bucket;
+    }
   }
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.handler;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import com.smoketurner.uploader.core.ReadPauses;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.internal.PlatformDependent;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands decoded events off to the compression executor the batcher runs on, so compressing them
+ * never holds up the event loop. Events are queued per channel in a lock-free queue that a single
+ * task at a time drains, which keeps them in order, and reads on the channel are paused while too
+ * many events are queued.
+ *
+ * <p>Reads are only paused once a read has been decoded, so a channel can queue up to one read
+ * buffer of events more than the maximum.
+ */
+public final class CompressionQueueHandler extends ChannelInboundHandlerAdapter {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CompressionQueueHandler.class);
+
+  // events queued across every channel
+  private static final AtomicLong QUEUED = new AtomicLong(0);
+
+  private final Queue<Object> queue = PlatformDependent.newMpscQueue();
+  private final AtomicInteger depth = new AtomicInteger(0);
+  private final AtomicBoolean draining = new AtomicBoolean(false);
+  private final EventExecutor executor;
+  private final int maxQueued;
+  private final int resumeDepth;
+
+  @Nullable private ChannelHandlerContext ctx;
+  private volatile boolean paused = false;
+  private volatile long drainScheduledAt;
+
+  // metrics
+  private final Timer taskLatency;
+
+  /**
+   * Constructor
+   *
+   * @param executor Compression executor the batcher of the channel runs on
+   * @param maxQueued Number of queued events at which reads are paused
+   */
+  public CompressionQueueHandler(final EventExecutor executor, final int maxQueued) {
+    this.executor = Objects.requireNonNull(executor);
+    this.maxQueued = maxQueued;
+    // resume at half of the maximum so channels do not flap
+    this.resumeDepth = maxQueued / 2;
+
+    final MetricRegistry registry = SharedMetricRegistries.getDefault();
+    this.taskLatency =
+        registry.timer(MetricRegistry.name(CompressionQueueHandler.class, "task-latency"));
+    registry.gauge(
+        MetricRegistry.name(CompressionQueueHandler.class, "queued-events"),
+        () -> (Gauge<Long>) QUEUED::get);
+  }
+
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+    this.ctx = ctx;
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    final int queued = depth.incrementAndGet();
+    QUEUED.incrementAndGet();
+    queue.offer(msg);
+
+    if (queued >= maxQueued && !paused) {
+      pause(ctx);
+    }
+
+    if (draining.compareAndSet(false, true)) {
+      drainScheduledAt = System.nanoTime();
+      try {
+        executor.execute(this::drain);
+      } catch (RejectedExecutionException e) {
+        LOGGER.warn("Compression executor rejected events, discarding them", e);
+        discard();
+      }
+    }
+  }
+
+  /**
+   * Number of events queued on this channel
+   *
+   * @return queue depth
+   */
+  public int getDepth() {
+    return depth.get();
+  }
+
+  /** Runs on the compression executor, passing every queued event on to the batcher. */
+  private void drain() {
+    taskLatency.update(System.nanoTime() - drainScheduledAt, TimeUnit.NANOSECONDS);
+
+    final ChannelHandlerContext context = Objects.requireNonNull(ctx);
+    do {
+      Object msg;
+      while ((msg = queue.poll()) != null) {
+        // the batcher runs on this thread, so the event is handled before
+        // fireChannelRead returns
+        context.fireChannelRead(msg);
+        QUEUED.decrementAndGet();
+        if (depth.decrementAndGet() == resumeDepth && paused) {
+          context.channel().eventLoop().execute(() -> resume(context));
+        }
+      }
+      draining.set(false);
+
+      // an event queued after the last poll but before draining was reset
+      // did not schedule another task, so keep draining here
+    } while (!queue.isEmpty() && draining.compareAndSet(false, true));
+  }
+
+  private void pause(final ChannelHandlerContext ctx) {
+    LOGGER.debug("Too many events waiting to be compressed, pausing reads on {}", ctx.channel());
+    paused = true;
+    ReadPauses.pause(ctx.channel(), ReadPauses.Reason.COMPRESSION_QUEUE);
+
+    // the queue may have drained before the pause was visible to the drain task
+    if (depth.get() <= resumeDepth) {
+      resume(ctx);
+    }
+  }
+
+  private void resume(final ChannelHandlerContext ctx) {
+    if (!paused || depth.get() > resumeDepth) {
+      return;
+    }
+    paused = false;
+
+    // reads stay paused if the channel is also paused for another reason
+    LOGGER.debug("Compression queue drained, resuming reads on {}", ctx.channel());
+    ReadPauses.resume(ctx.channel(), ReadPauses.Reason.COMPRESSION_QUEUE);
+  }
+
+  private void discard() {
+    Object msg;
+    while ((msg = queue.poll()) != null) {
+      ReferenceCountUtil.release(msg);
+      QUEUED.decrementAndGet();
+      depth.decrementAndGet();
+    }
+    draining.set(false);
+  }
+}
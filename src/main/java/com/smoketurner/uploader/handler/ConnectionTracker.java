@@ -0,0 +1,104 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.handler;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the open connections so they can be closed on shutdown before the batches they flush
+ * have nowhere to go. Added at the end of the pipeline, on the same executor as the batcher, so a
+ * connection only counts as drained once its remaining batches have been handed to the uploader.
+ */
+@Sharable
+public final class ConnectionTracker extends ChannelInboundHandlerAdapter {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionTracker.class);
+
+  private final Map<Channel, CompletableFuture<Void>> connections = new ConcurrentHashMap<>();
+
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+    connections.put(ctx.channel(), new CompletableFuture<>());
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    drained(ctx.channel());
+    ctx.fireChannelInactive();
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+    drained(ctx.channel());
+  }
+
+  /**
+   * Number of open connections
+   *
+   * @return the number of connections that have not been drained yet
+   */
+  public int size() {
+    return connections.size();
+  }
+
+  /**
+   * Close every open connection and wait for the batches they flush to reach the uploader.
+   *
+   * @param timeout Maximum time to wait
+   * @param unit Unit of the timeout
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void closeAll(final long timeout, final TimeUnit unit) throws InterruptedException {
+    final List<CompletableFuture<Void>> futures = new ArrayList<>(connections.size());
+    connections.forEach(
+        (channel, future) -> {
+          futures.add(future);
+          channel.close();
+        });
+    if (futures.isEmpty()) {
+      return;
+    }
+
+    LOGGER.info("Closing {} connections", futures.size());
+    try {
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(timeout, unit);
+    } catch (ExecutionException e) {
+      // the futures are never completed exceptionally
+    } catch (TimeoutException e) {
+      LOGGER.warn("Timed out waiting for {} connections to close", connections.size());
+    }
+  }
+
+  private void drained(final Channel channel) {
+    final CompletableFuture<Void> future = connections.remove(channel);
+    if (future != null) {
+      future.complete(null);
+    }
+  }
+}
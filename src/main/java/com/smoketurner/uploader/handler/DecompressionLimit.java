@@ -0,0 +1,111 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.handler;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.compression.DecompressionException;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Guards a connection against decompression bombs by limiting how many bytes may be decompressed
+ * for every compressed byte received. The ratio is checked against the totals for the connection,
+ * after a small allowance so short streams with headers are not rejected.
+ */
+final class DecompressionLimit {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DecompressionLimit.class);
+  private static final long ALLOWANCE_BYTES = 64 * 1024;
+
+  private final int maxRatio;
+  private final Meter rejectedMeter;
+  private long compressedBytes = 0;
+  private long decompressedBytes = 0;
+
+  /**
+   * Constructor
+   *
+   * @param maxRatio Maximum number of decompressed bytes per compressed byte
+   */
+  DecompressionLimit(final int maxRatio) {
+    this.maxRatio = maxRatio;
+
+    final MetricRegistry registry = SharedMetricRegistries.getDefault();
+    this.rejectedMeter =
+        registry.meter(MetricRegistry.name(OptionalGzipHandler.class, "rejected-ratio"));
+  }
+
+  /**
+   * Record the bytes consumed and produced by a decoder
+   *
+   * @param consumed Number of compressed bytes consumed
+   * @param out Decoder output
+   * @param fromIndex Index of the first output produced for the consumed bytes
+   * @throws DecompressionException if the ratio has been exceeded
+   */
+  void record(final long consumed, final List<Object> out, final int fromIndex) {
+    long produced = 0;
+    for (int i = fromIndex; i < out.size(); i++) {
+      produced += ((ByteBuf) out.get(i)).readableBytes();
+    }
+    record(consumed, produced);
+  }
+
+  /**
+   * Record the bytes consumed and produced by a decoder
+   *
+   * @param consumed Number of compressed bytes consumed
+   * @param produced Number of decompressed bytes produced
+   * @throws DecompressionException if the ratio has been exceeded
+   */
+  void record(final long consumed, final long produced) {
+    compressedBytes += consumed;
+    decompressedBytes += produced;
+    if (decompressedBytes > compressedBytes * maxRatio + ALLOWANCE_BYTES) {
+      rejectedMeter.mark();
+      throw new DecompressionException(
+          String.format(
+              "decompressed %d bytes from %d bytes, exceeding the max ratio of %d",
+              decompressedBytes, compressedBytes, maxRatio));
+    }
+  }
+
+  /**
+   * Stop decoding a connection that sent invalid input or exceeded the limit
+   *
+   * @param ctx Channel handler context
+   * @param in Remaining input, which is discarded
+   * @param cause Reason the connection is being closed
+   */
+  static void close(final ChannelHandlerContext ctx, final ByteBuf in, final Exception cause) {
+    LOGGER.warn("Unable to decompress input, closing: {}", cause.getMessage());
+    in.skipBytes(in.readableBytes());
+    ctx.close();
+  }
+
+  long getCompressedBytes() {
+    return compressedBytes;
+  }
+
+  long getDecompressedBytes() {
+    return decompressedBytes;
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.handler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.compression.DecompressionException;
+import io.netty.handler.codec.compression.JdkZlibDecoder;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Inflates a stream of concatenated gzip members, enforcing a {@link DecompressionLimit}. Clients
+ * usually flush one member at a time, so every member on the connection is inflated, not just the
+ * first one.
+ */
+final class GzipDecoder extends ByteToMessageDecoder {
+
+  // a deflate stream can expand about 1000x, so this bounds the memory used
+  // by a single inflate call before the limit gets a chance to reject it
+  private static final int CHUNK_SIZE = 8 * 1024;
+
+  private final DecompressionLimit limit;
+  private MemberInflater inflater = new MemberInflater();
+
+  /**
+   * Constructor
+   *
+   * @param limit Decompression limit for the connection
+   */
+  GzipDecoder(final DecompressionLimit limit) {
+    this.limit = Objects.requireNonNull(limit);
+  }
+
+  @Override
+  protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+    try {
+      while (in.isReadable()) {
+        // JdkZlibDecoder stops decoding for good when a member's trailer
+        // arrives in a later read than its last deflate block, even in
+        // concatenated mode, so start over with a new inflater
+        if (inflater.isClosed()) {
+          inflater.end();
+          inflater = new MemberInflater();
+        }
+
+        final int length = Math.min(in.readableBytes(), CHUNK_SIZE);
+        final ByteBuf chunk = in.slice(in.readerIndex(), length);
+        final int fromIndex = out.size();
+
+        inflater.inflate(ctx, chunk, out);
+
+        final int consumed = length - chunk.readableBytes();
+        in.skipBytes(consumed);
+        limit.record(consumed, out, fromIndex);
+        if (consumed == 0) {
+          // waiting on the rest of the gzip header or trailer
+          return;
+        }
+      }
+    } catch (DecompressionException e) {
+      DecompressionLimit.close(ctx, in, e);
+    }
+  }
+
+  @Override
+  protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+    inflater.end();
+  }
+
+  /** Exposes the gzip decoding of {@link JdkZlibDecoder} without adding it to the pipeline. */
+  private static final class MemberInflater extends JdkZlibDecoder {
+
+    MemberInflater() {
+      super(ZlibWrapper.GZIP, true);
+    }
+
+    void inflate(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+      decode(ctx, in, out);
+    }
+
+    /** Release the native inflater */
+    void end() throws Exception {
+      handlerRemoved0(null);
+    }
+  }
+}
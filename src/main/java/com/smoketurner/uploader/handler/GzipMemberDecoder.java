@@ -0,0 +1,320 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.handler;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.smoketurner.uploader.core.GzipMember;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.compression.DecompressionException;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Passes complete gzip members through to a gzip batch without decompressing and compressing the
+ * events again. Each member is still inflated, but only to count its events and to check them
+ * against the same rules as the line decoder, and is buffered until its trailer has been verified.
+ *
+ * <p>A member that is too large to buffer, has lines that are too long or end with a carriage
+ * return, or does not end with a newline is decompressed instead, along with the rest of the
+ * connection, so partial lines are never split between the batch and the line decoder.
+ */
+final class GzipMemberDecoder extends ByteToMessageDecoder {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(GzipMemberDecoder.class);
+  private static final int CHUNK_SIZE = 8 * 1024;
+  private static final int HEADER_LENGTH = 10;
+  private static final int TRAILER_LENGTH = 8;
+
+  // header flags from RFC 1952
+  private static final int FHCRC = 0x02;
+  private static final int FEXTRA = 0x04;
+  private static final int FNAME = 0x08;
+  private static final int FCOMMENT = 0x10;
+  private static final int RESERVED = 0xE0;
+
+  private final DecompressionLimit limit;
+  private final int maxLength;
+  private final long maxMemberBytes;
+  private final Inflater inflater = new Inflater(true);
+  private final CRC32 crc = new CRC32();
+  private final byte[] chunk = new byte[CHUNK_SIZE];
+
+  private boolean passThrough = true;
+
+  // state of the current member, whose bytes stay unread in the cumulation
+  // buffer while it is passed through
+  private boolean inMember = false;
+  private int headerLength = 0;
+  private int offset = 0;
+  private int events = 0;
+  private long uncompressed = 0;
+  private int lineLength = 0;
+  private byte lastByte = 0;
+
+  // metrics
+  private final Meter passedMeter;
+  private final Meter decompressedMeter;
+
+  /**
+   * Constructor
+   *
+   * @param limit Decompression limit for the connection
+   * @param maxLength Maximum length of an event
+   * @param maxMemberBytes Maximum number of compressed bytes to buffer for a single member
+   */
+  GzipMemberDecoder(
+      final DecompressionLimit limit, final int maxLength, final long maxMemberBytes) {
+    this.limit = Objects.requireNonNull(limit);
+    this.maxLength = maxLength;
+    this.maxMemberBytes = maxMemberBytes;
+
+    final MetricRegistry registry = SharedMetricRegistries.getDefault();
+    this.passedMeter =
+        registry.meter(MetricRegistry.name(OptionalGzipHandler.class, "gzip-passed-through"));
+    this.decompressedMeter =
+        registry.meter(MetricRegistry.name(OptionalGzipHandler.class, "gzip-decompressed"));
+  }
+
+  @Override
+  protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+    try {
+      while (in.isReadable()) {
+        if (!inMember) {
+          headerLength = headerLength(in);
+          if (headerLength < 0) {
+            if (in.readableBytes() > maxMemberBytes) {
+              throw new DecompressionException("gzip header exceeds the max member size");
+            }
+            return;
+          }
+          inMember = true;
+          offset = headerLength;
+        }
+
+        if (!inflater.finished()) {
+          final boolean wasPassThrough = passThrough;
+          inflate(ctx, in, out);
+          if (passThrough != wasPassThrough) {
+            // start the member over, decompressing it this time
+            continue;
+          }
+          if (passThrough && offset > maxMemberBytes) {
+            stopPassThrough("member exceeds the max member size");
+            continue;
+          }
+          if (!inflater.finished()) {
+            return;
+          }
+        }
+
+        if (in.readableBytes() < offset + TRAILER_LENGTH) {
+          return;
+        }
+        final int trailer = in.readerIndex() + offset;
+        if (in.getIntLE(trailer) != (int) crc.getValue()
+            || in.getIntLE(trailer + 4) != (int) uncompressed) {
+          throw new DecompressionException("gzip member failed its CRC or length check");
+        }
+
+        if (!passThrough || uncompressed == 0) {
+          in.skipBytes(offset + TRAILER_LENGTH);
+        } else if (lastByte != '\n') {
+          stopPassThrough("member does not end with a newline");
+          continue;
+        } else {
+          final ByteBuf member = in.readRetainedSlice(offset + TRAILER_LENGTH);
+          out.add(new GzipMember(member, events, uncompressed));
+          passedMeter.mark();
+        }
+        resetMember();
+      }
+    } catch (DecompressionException e) {
+      DecompressionLimit.close(ctx, in, e);
+    }
+  }
+
+  @Override
+  protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+    inflater.end();
+  }
+
+  /**
+   * Inflate the input received so far for the current member. While passing the member through,
+   * the input is left unread and only scanned for events, otherwise it is consumed and the
+   * decompressed output is added to {@code out}.
+   */
+  private void inflate(final ChannelHandlerContext ctx, final ByteBuf in, final List<Object> out) {
+    final int index = in.readerIndex() + offset;
+    final int available = in.writerIndex() - index;
+    if (available == 0) {
+      return;
+    }
+
+    inflater.setInput(in.nioBuffer(index, available));
+    final long start = inflater.getBytesRead();
+    long read = start;
+    try {
+      while (!inflater.finished()) {
+        final int length = inflater.inflate(chunk);
+        if (length == 0) {
+          if (inflater.needsDictionary()) {
+            throw new DecompressionException("gzip member requires a preset dictionary");
+          }
+          break;
+        }
+
+        limit.record(inflater.getBytesRead() - read, length);
+        read = inflater.getBytesRead();
+        crc.update(chunk, 0, length);
+        uncompressed += length;
+
+        if (!passThrough) {
+          out.add(ctx.alloc().heapBuffer(length).writeBytes(chunk, 0, length));
+        } else if (!scan(length)) {
+          stopPassThrough("member contains a line that would be changed by the line decoder");
+          return;
+        }
+      }
+    } catch (DataFormatException e) {
+      throw new DecompressionException(e);
+    }
+
+    offset += Math.toIntExact(inflater.getBytesRead() - start);
+    if (!passThrough) {
+      in.skipBytes(offset);
+      offset = 0;
+    }
+  }
+
+  /**
+   * Count the events in a chunk of decompressed output
+   *
+   * @param length Length of the output
+   * @return false if the output contains a line that is too long or ends with a carriage return
+   */
+  private boolean scan(final int length) {
+    for (int i = 0; i < length; i++) {
+      final byte b = chunk[i];
+      if (b == '\n') {
+        if (lastByte == '\r' || lineLength > maxLength) {
+          return false;
+        }
+        events++;
+        lineLength = 0;
+      } else {
+        lineLength++;
+      }
+      lastByte = b;
+    }
+    return lineLength <= maxLength;
+  }
+
+  /**
+   * Decompress the current member, and every member after it, instead of passing it through
+   *
+   * @param reason Reason the member can not be passed through
+   */
+  private void stopPassThrough(final String reason) {
+    LOGGER.debug("Decompressing gzip input instead of passing it through: {}", reason);
+    decompressedMeter.mark();
+    passThrough = false;
+
+    inflater.reset();
+    crc.reset();
+    offset = headerLength;
+    uncompressed = 0;
+  }
+
+  private void resetMember() {
+    inflater.reset();
+    crc.reset();
+    inMember = false;
+    headerLength = 0;
+    offset = 0;
+    events = 0;
+    uncompressed = 0;
+    lineLength = 0;
+    lastByte = 0;
+  }
+
+  /**
+   * Parse the gzip header at the start of the input
+   *
+   * @param in Input starting with a gzip member
+   * @return length of the header, or -1 if the header is not complete yet
+   * @throws DecompressionException if the input does not start with a gzip header
+   */
+  private static int headerLength(final ByteBuf in) {
+    if (in.readableBytes() < HEADER_LENGTH) {
+      return -1;
+    }
+    final int start = in.readerIndex();
+    if (in.getUnsignedByte(start) != 0x1f
+        || in.getUnsignedByte(start + 1) != 0x8b
+        || in.getUnsignedByte(start + 2) != 8) {
+      throw new DecompressionException("Input is not in the gzip format");
+    }
+    final int flags = in.getUnsignedByte(start + 3);
+    if ((flags & RESERVED) != 0) {
+      throw new DecompressionException("Reserved gzip header flags are set");
+    }
+
+    int index = start + HEADER_LENGTH;
+    if ((flags & FEXTRA) != 0) {
+      if (in.writerIndex() < index + 2) {
+        return -1;
+      }
+      index += 2 + in.getUnsignedShortLE(index);
+    }
+    if ((flags & FNAME) != 0) {
+      index = skipString(in, index);
+      if (index < 0) {
+        return -1;
+      }
+    }
+    if ((flags & FCOMMENT) != 0) {
+      index = skipString(in, index);
+      if (index < 0) {
+        return -1;
+      }
+    }
+    if ((flags & FHCRC) != 0) {
+      index += 2;
+    }
+    if (in.writerIndex() < index) {
+      return -1;
+    }
+    return index - start;
+  }
+
+  /** Skip a zero terminated header field, returning -1 if it is not complete yet. */
+  private static int skipString(final ByteBuf in, final int index) {
+    if (index >= in.writerIndex()) {
+      return -1;
+    }
+    final int end = in.indexOf(index, in.writerIndex(), (byte) 0);
+    return end < 0 ? -1 : end + 1;
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.handler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.compression.DecompressionException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Objects;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+/**
+ * Decompresses a stream of LZ4 frames (the format written by the lz4 command line tool), enforcing
+ * a {@link DecompressionLimit}. Netty's own LZ4 codec uses a different, Netty-specific framing.
+ *
+ * <p>Like lz4-java's {@code LZ4FrameInputStream}, only independent blocks are supported. The
+ * optional header, block and content checksums are skipped rather than verified, as the transport
+ * already protects the stream.
+ */
+final class Lz4Decoder extends ByteToMessageDecoder {
+
+  static final int MAGIC = 0x184D2204;
+  private static final int SKIPPABLE_MAGIC = 0x184D2A50;
+  private static final int SKIPPABLE_MASK = 0xFFFFFFF0;
+
+  private static final int FLAG_VERSION_MASK = 0xC0;
+  private static final int FLAG_VERSION = 0x40;
+  private static final int FLAG_BLOCK_INDEPENDENCE = 0x20;
+  private static final int FLAG_BLOCK_CHECKSUM = 0x10;
+  private static final int FLAG_CONTENT_SIZE = 0x08;
+  private static final int FLAG_CONTENT_CHECKSUM = 0x04;
+  private static final int FLAG_DICTIONARY_ID = 0x01;
+  private static final int UNCOMPRESSED_BLOCK = 0x80000000;
+
+  private static final LZ4SafeDecompressor DECOMPRESSOR =
+      LZ4Factory.fastestInstance().safeDecompressor();
+
+  private enum State {
+    HEADER,
+    SKIP,
+    BLOCK,
+    CONTENT_CHECKSUM
+  }
+
+  private final DecompressionLimit limit;
+  private State state = State.HEADER;
+  private long skipBytes = 0;
+  private boolean blockChecksum = false;
+  private boolean contentChecksum = false;
+  private int maxBlockSize = 0;
+
+  /**
+   * Constructor
+   *
+   * @param limit Decompression limit for the connection
+   */
+  Lz4Decoder(final DecompressionLimit limit) {
+    this.limit = Objects.requireNonNull(limit);
+  }
+
+  @Override
+  protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+    try {
+      while (in.isReadable() && decodeNext(ctx, in, out)) {
+        // keep decoding until more input is needed
+      }
+    } catch (DecompressionException | LZ4Exception e) {
+      DecompressionLimit.close(ctx, in, e);
+    }
+  }
+
+  /**
+   * Decode the next part of the frame
+   *
+   * @return true if progress was made, false if more input is needed
+   */
+  private boolean decodeNext(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+    switch (state) {
+      case HEADER:
+        return decodeHeader(in);
+      case SKIP:
+        final int skipped = (int) Math.min(skipBytes, in.readableBytes());
+        in.skipBytes(skipped);
+        limit.record(skipped, 0);
+        skipBytes -= skipped;
+        if (skipBytes == 0) {
+          state = State.HEADER;
+        }
+        return true;
+      case BLOCK:
+        return decodeBlock(ctx, in, out);
+      case CONTENT_CHECKSUM:
+        if (in.readableBytes() < 4) {
+          return false;
+        }
+        in.skipBytes(4);
+        limit.record(4, 0);
+        state = State.HEADER;
+        return true;
+      default:
+        throw new IllegalStateException("Unknown state: " + state);
+    }
+  }
+
+  private boolean decodeHeader(final ByteBuf in) {
+    if (in.readableBytes() < 4) {
+      return false;
+    }
+    final int index = in.readerIndex();
+    final int magic = in.getIntLE(index);
+
+    if ((magic & SKIPPABLE_MASK) == SKIPPABLE_MAGIC) {
+      if (in.readableBytes() < 8) {
+        return false;
+      }
+      skipBytes = in.getUnsignedIntLE(index + 4);
+      in.skipBytes(8);
+      limit.record(8, 0);
+      state = State.SKIP;
+      return true;
+    }
+
+    if (magic != MAGIC) {
+      throw new DecompressionException(String.format("invalid LZ4 frame magic: %08x", magic));
+    }
+
+    // magic, FLG, BD and the header checksum
+    if (in.readableBytes() < 7) {
+      return false;
+    }
+    final int flags = in.getUnsignedByte(index + 4);
+    final int blockDescriptor = in.getUnsignedByte(index + 5);
+
+    if ((flags & FLAG_VERSION_MASK) != FLAG_VERSION) {
+      throw new DecompressionException("unsupported LZ4 frame version");
+    }
+    if ((flags & FLAG_BLOCK_INDEPENDENCE) == 0) {
+      throw new DecompressionException("dependent LZ4 blocks are not supported");
+    }
+
+    int headerLength = 7;
+    if ((flags & FLAG_CONTENT_SIZE) != 0) {
+      headerLength += 8;
+    }
+    if ((flags & FLAG_DICTIONARY_ID) != 0) {
+      headerLength += 4;
+    }
+    if (in.readableBytes() < headerLength) {
+      return false;
+    }
+
+    final int blockSizeId = (blockDescriptor >> 4) & 0x07;
+    if (blockSizeId < 4) {
+      throw new DecompressionException("invalid LZ4 block size: " + blockSizeId);
+    }
+    // 64KB, 256KB, 1MB or 4MB
+    maxBlockSize = 1 << (2 * blockSizeId + 8);
+    blockChecksum = (flags & FLAG_BLOCK_CHECKSUM) != 0;
+    contentChecksum = (flags & FLAG_CONTENT_CHECKSUM) != 0;
+
+    in.skipBytes(headerLength);
+    limit.record(headerLength, 0);
+    state = State.BLOCK;
+    return true;
+  }
+
+  private boolean decodeBlock(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+    if (in.readableBytes() < 4) {
+      return false;
+    }
+    final int index = in.readerIndex();
+    final int header = in.getIntLE(index);
+
+    // end mark
+    if (header == 0) {
+      in.skipBytes(4);
+      limit.record(4, 0);
+      state = contentChecksum ? State.CONTENT_CHECKSUM : State.HEADER;
+      return true;
+    }
+
+    final boolean uncompressed = (header & UNCOMPRESSED_BLOCK) != 0;
+    final int length = header & ~UNCOMPRESSED_BLOCK;
+    if (length > maxBlockSize) {
+      throw new DecompressionException(
+          String.format("LZ4 block of %d bytes exceeds %d bytes", length, maxBlockSize));
+    }
+
+    final int total = 4 + length + (blockChecksum ? 4 : 0);
+    if (in.readableBytes() < total) {
+      return false;
+    }
+
+    final ByteBuf decompressed;
+    if (uncompressed) {
+      decompressed = in.retainedSlice(index + 4, length);
+    } else {
+      decompressed = ctx.alloc().heapBuffer(maxBlockSize);
+      try {
+        final ByteBuffer src = in.nioBuffer(index + 4, length);
+        final ByteBuffer dest = decompressed.nioBuffer(0, maxBlockSize);
+        final int produced =
+            DECOMPRESSOR.decompress(
+                src, src.position(), length, dest, dest.position(), maxBlockSize);
+        decompressed.writerIndex(produced);
+      } catch (LZ4Exception e) {
+        decompressed.release();
+        throw e;
+      }
+    }
+
+    in.skipBytes(total);
+    out.add(decompressed);
+    limit.record(total, decompressed.readableBytes());
+    return true;
+  }
+}
@@ -15,29 +15,94 @@
  */
 package com.smoketurner.uploader.handler;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.smoketurner.uploader.core.CodecType;
+import com.smoketurner.uploader.core.Codecs;
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.ByteToMessageDecoder;
-import io.netty.handler.codec.compression.ZlibCodecFactory;
-import io.netty.handler.codec.compression.ZlibWrapper;
 import io.netty.handler.ssl.SslHandler;
 import java.util.List;
+import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Detects whether a client compressed its stream from the first bytes received, and replaces
+ * itself with the matching decoder: gzip, zstd or LZ4 frames. Uncompressed streams are passed
+ * through untouched. When TLS is enabled this handler sits behind the {@link SslHandler} and only
+ * sees decrypted data.
+ */
 public class OptionalGzipHandler extends ByteToMessageDecoder {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(OptionalGzipHandler.class);
+  private static final int ZSTD_MAGIC = 0xFD2FB528;
+
+  private final boolean ssl;
+  private final int maxRatio;
+
+  @Nullable private final Codecs passThroughCodecs;
+  private final int maxLength;
+  private final long maxMemberBytes;
+
+  // metrics
+  private final Meter gzipMeter;
+  private final Meter zstdMeter;
+  private final Meter lz4Meter;
+  private final Meter plainMeter;
+
+  /**
+   * Constructor
+   *
+   * @param ssl Whether the connection is already decrypted by an {@link SslHandler}
+   * @param maxRatio Maximum number of decompressed bytes per compressed byte
+   */
+  public OptionalGzipHandler(final boolean ssl, final int maxRatio) {
+    this(ssl, maxRatio, null, 0, 0);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param ssl Whether the connection is already decrypted by an {@link SslHandler}
+   * @param maxRatio Maximum number of decompressed bytes per compressed byte
+   * @param passThroughCodecs Codecs of the customer batches, used to pass gzip members through to
+   *     gzip batches, or null to always decompress
+   * @param maxLength Maximum length of an event
+   * @param maxMemberBytes Maximum number of compressed bytes to buffer for a gzip member
+   */
+  public OptionalGzipHandler(
+      final boolean ssl,
+      final int maxRatio,
+      @Nullable final Codecs passThroughCodecs,
+      final int maxLength,
+      final long maxMemberBytes) {
+    this.ssl = ssl;
+    this.maxRatio = maxRatio;
+    this.passThroughCodecs = passThroughCodecs;
+    this.maxLength = maxLength;
+    this.maxMemberBytes = maxMemberBytes;
+
+    final MetricRegistry registry = SharedMetricRegistries.getDefault();
+    this.gzipMeter = registry.meter(MetricRegistry.name(OptionalGzipHandler.class, "gzip"));
+    this.zstdMeter = registry.meter(MetricRegistry.name(OptionalGzipHandler.class, "zstd"));
+    this.lz4Meter = registry.meter(MetricRegistry.name(OptionalGzipHandler.class, "lz4"));
+    this.plainMeter =
+        registry.meter(MetricRegistry.name(OptionalGzipHandler.class, "uncompressed"));
+  }
 
   @Override
   protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
-    // Use the first five bytes to detect gzip
-    if (in.readableBytes() < 5) {
+    // Use the first five bytes to detect the compression or a TLS record,
+    // unless the client has already sent a complete short line
+    if (in.readableBytes() < 5 && in.indexOf(in.readerIndex(), in.writerIndex(), (byte) '\n') < 0) {
       return;
     }
 
-    if (SslHandler.isEncrypted(in)) {
+    if (!ssl && in.readableBytes() >= 5 && SslHandler.isEncrypted(in)) {
       // If the channel is encrypted, close the channel as SSL must be
       // disabled and only unencrypted connections are supported.
       LOGGER.warn("Connection is encrypted when SSL is disabled, closing");
@@ -46,16 +111,51 @@ public class OptionalGzipHandler extends ByteToMessageDecoder {
       return;
     }
 
-    final ChannelPipeline p = ctx.pipeline();
-    final int magic1 = in.getUnsignedByte(in.readerIndex());
-    final int magic2 = in.getUnsignedByte(in.readerIndex() + 1);
-    if (isGzip(magic1, magic2)) {
-      LOGGER.debug("Channel is gzipped, replacing gzip detector with inflater");
-      p.replace("gzipDetector", "inflater", ZlibCodecFactory.newZlibDecoder(ZlibWrapper.GZIP));
+    final ChannelHandler decoder = getDecoder(ctx, in);
+    if (decoder == null) {
+      LOGGER.debug("Channel is not compressed, removing compression detector");
+      plainMeter.mark();
+      ctx.pipeline().remove(this);
     } else {
-      LOGGER.debug("Channel is not gzipped, removing gzip detector");
-      p.remove(this);
+      LOGGER.debug("Channel is compressed, replacing compression detector with {}", decoder);
+      ctx.pipeline().replace(this, "decompressor", decoder);
+    }
+  }
+
+  /**
+   * Select a decoder from the magic bytes at the start of the stream
+   *
+   * @param ctx Channel handler context
+   * @param in Start of the stream
+   * @return decoder, or null if the stream is not compressed
+   */
+  @Nullable
+  private ChannelHandler getDecoder(final ChannelHandlerContext ctx, final ByteBuf in) {
+    final int index = in.readerIndex();
+    if (in.readableBytes() >= 2
+        && isGzip(in.getUnsignedByte(index), in.getUnsignedByte(index + 1))) {
+      gzipMeter.mark();
+      if (passThroughCodecs != null) {
+        final String customerId = ctx.channel().attr(AuthHandler.CUSTOMER_KEY).get();
+        if (passThroughCodecs.forCustomer(customerId).getType() == CodecType.GZIP) {
+          return new GzipMemberDecoder(
+              new DecompressionLimit(maxRatio), maxLength, maxMemberBytes);
+        }
+      }
+      return new GzipDecoder(new DecompressionLimit(maxRatio));
+    }
+    if (in.readableBytes() >= 4) {
+      final int magic = in.getIntLE(index);
+      if (magic == ZSTD_MAGIC) {
+        zstdMeter.mark();
+        return new ZstdDecoder(new DecompressionLimit(maxRatio));
+      }
+      if (magic == Lz4Decoder.MAGIC) {
+        lz4Meter.mark();
+        return new Lz4Decoder(new DecompressionLimit(maxRatio));
+      }
     }
+    return null;
   }
 
   private static boolean isGzip(final int magic1, final int magic2) {
@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.handler;
+
+import com.smoketurner.uploader.core.CustomerQuotas;
+import com.smoketurner.uploader.core.GzipMember;
+import com.smoketurner.uploader.core.ReadPauses;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import java.util.Objects;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Enforces the quota of the connection's customer on the events decoded from it. Events are never
+ * dropped: once the customer has used up its burst, reads on the connection are paused until its
+ * token buckets have refilled, which pushes back on the client through TCP flow control.
+ *
+ * <p>Reads are only paused once a read has been decoded, so a connection can go over its quota by
+ * up to one read buffer of events.
+ */
+public final class QuotaHandler extends ChannelInboundHandlerAdapter {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(QuotaHandler.class);
+
+  private final CustomerQuotas quotas;
+
+  // the customer is known once the TLS handshake has completed, which is
+  // before the first event is decoded
+  private boolean resolved = false;
+  @Nullable private CustomerQuotas.Quota quota;
+  @Nullable private ScheduledFuture<?> resumeTask;
+
+  /**
+   * Constructor
+   *
+   * @param quotas Customer quotas, shared between connections
+   */
+  public QuotaHandler(final CustomerQuotas quotas) {
+    this.quotas = Objects.requireNonNull(quotas);
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (!resolved) {
+      quota = quotas.forCustomer(ctx.channel().attr(AuthHandler.CUSTOMER_KEY).get());
+      resolved = true;
+    }
+
+    final CustomerQuotas.Quota current = quota;
+    if (current != null) {
+      final long delay;
+      if (msg instanceof GzipMember) {
+        final GzipMember member = (GzipMember) msg;
+        delay = current.acquire(member.getEvents(), member.getUncompressedSize());
+      } else if (msg instanceof ByteBuf) {
+        delay = current.acquire(1, ((ByteBuf) msg).readableBytes());
+      } else {
+        delay = 0;
+      }
+
+      if (delay > 0 && !ReadPauses.isPaused(ctx.channel(), ReadPauses.Reason.QUOTA)) {
+        pause(ctx, current, delay);
+      }
+    }
+
+    ctx.fireChannelRead(msg);
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+    final ScheduledFuture<?> task = resumeTask;
+    if (task != null) {
+      task.cancel(false);
+      resumeTask = null;
+    }
+  }
+
+  private void pause(
+      final ChannelHandlerContext ctx, final CustomerQuotas.Quota current, final long delayNanos) {
+    LOGGER.debug(
+        "Customer over quota, pausing reads on {} for {}ms",
+        ctx.channel(),
+        TimeUnit.NANOSECONDS.toMillis(delayNanos));
+    current.markThrottled();
+    ReadPauses.pause(ctx.channel(), ReadPauses.Reason.QUOTA);
+    if (resumeTask == null) {
+      schedule(ctx, current, delayNanos);
+    }
+  }
+
+  private void schedule(
+      final ChannelHandlerContext ctx, final CustomerQuotas.Quota current, final long delayNanos) {
+    resumeTask =
+        ctx.executor().schedule(() -> resume(ctx, current), delayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private void resume(final ChannelHandlerContext ctx, final CustomerQuotas.Quota current) {
+    resumeTask = null;
+    if (!ctx.channel().isActive()) {
+      return;
+    }
+
+    // other connections of the customer may have used the refilled tokens
+    final long delay = current.getDelay();
+    if (delay > 0) {
+      schedule(ctx, current, delay);
+      return;
+    }
+
+    // reads stay paused if the channel is also paused for another reason
+    LOGGER.debug("Customer back under quota, resuming reads on {}", ctx.channel());
+    ReadPauses.resume(ctx.channel(), ReadPauses.Reason.QUOTA);
+  }
+}
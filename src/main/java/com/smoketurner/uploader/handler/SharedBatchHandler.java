@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.handler;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.smoketurner.uploader.core.BatchAggregator;
+import com.smoketurner.uploader.core.GzipMember;
+import com.smoketurner.uploader.core.Uploader;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+@Sharable
+public final class SharedBatchHandler extends SimpleChannelInboundHandler<ByteBuf> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SharedBatchHandler.class);
+
+  private final BatchAggregator aggregator;
+  private final Uploader uploader;
+
+  // metrics
+  private final Meter eventMeter;
+
+  /**
+   * Constructor
+   *
+   * @param aggregator Aggregator shared by all connections
+   * @param uploader AWS S3 uploader
+   */
+  public SharedBatchHandler(final BatchAggregator aggregator, final Uploader uploader) {
+    this.aggregator = Objects.requireNonNull(aggregator);
+    this.uploader = Objects.requireNonNull(uploader);
+
+    final MetricRegistry registry = SharedMetricRegistries.getDefault();
+    this.eventMeter = registry.meter(MetricRegistry.name(SharedBatchHandler.class, "event-rate"));
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (!(msg instanceof GzipMember)) {
+      super.channelRead(ctx, msg);
+      return;
+    }
+
+    final GzipMember member = (GzipMember) msg;
+    try {
+      eventMeter.mark(member.getEvents());
+
+      final String customerId = ctx.channel().attr(AuthHandler.CUSTOMER_KEY).get();
+      aggregator.add(customerId, member, ctx.executor());
+    } finally {
+      member.release();
+    }
+    checkBudget(ctx);
+  }
+
+  @Override
+  public void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
+
+    if (LOGGER.isTraceEnabled()) {
+      LOGGER.trace("channelRead0: {}", msg.toString(StandardCharsets.UTF_8));
+    }
+
+    eventMeter.mark();
+
+    final String customerId = ctx.channel().attr(AuthHandler.CUSTOMER_KEY).get();
+    aggregator.add(customerId, msg, ctx.executor());
+    checkBudget(ctx);
+  }
+
+  private void checkBudget(final ChannelHandlerContext ctx) {
+    // batches are uploaded from inside the aggregator, so check the budget here
+    if (uploader.isOverBudget()) {
+      uploader.pause(ctx.channel());
+    }
+  }
+}
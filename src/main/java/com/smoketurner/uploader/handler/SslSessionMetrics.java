@@ -0,0 +1,116 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.handler;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import io.netty.handler.ssl.OpenSslSessionStats;
+import io.netty.handler.ssl.ReferenceCountedOpenSslContext;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Records how long TLS handshakes take and how many of them resumed an earlier session instead of
+ * performing a full handshake. With OpenSSL the session counts come from the context's own
+ * statistics, which count sessions resumed from the cache and from tickets. The JDK does not expose
+ * them, so a session created before its handshake started is counted as resumed.
+ */
+final class SslSessionMetrics {
+
+  private final Timer handshakeTimer;
+  private final Meter failureMeter;
+  private final LongAdder accepted = new LongAdder();
+  private final LongAdder resumed = new LongAdder();
+  private final boolean openSsl;
+
+  /**
+   * Constructor
+   *
+   * @param sslCtx Server SSL context
+   */
+  SslSessionMetrics(final SslContext sslCtx) {
+    final MetricRegistry registry = SharedMetricRegistries.getDefault();
+    this.handshakeTimer = registry.timer(name(SslSessionMetrics.class, "handshake-latency"));
+    this.failureMeter = registry.meter(name(SslSessionMetrics.class, "handshake-failures"));
+
+    final LongSupplier sessionsAccepted;
+    final LongSupplier sessionsResumed;
+    if (sslCtx instanceof ReferenceCountedOpenSslContext) {
+      final OpenSslSessionStats stats =
+          ((ReferenceCountedOpenSslContext) sslCtx).sessionContext().stats();
+      sessionsAccepted = stats::acceptGood;
+      sessionsResumed = stats::hits;
+      this.openSsl = true;
+    } else {
+      sessionsAccepted = accepted::sum;
+      sessionsResumed = resumed::sum;
+      this.openSsl = false;
+    }
+
+    registry.gauge(
+        name(SslSessionMetrics.class, "sessions-accepted"),
+        () -> (Gauge<Long>) sessionsAccepted::getAsLong);
+    registry.gauge(
+        name(SslSessionMetrics.class, "sessions-resumed"),
+        () -> (Gauge<Long>) sessionsResumed::getAsLong);
+    registry.gauge(
+        name(SslSessionMetrics.class, "resumption-ratio"),
+        () ->
+            new RatioGauge() {
+              @Override
+              protected Ratio getRatio() {
+                return Ratio.of(sessionsResumed.getAsLong(), sessionsAccepted.getAsLong());
+              }
+            });
+  }
+
+  /**
+   * Record the handshake of a new connection once it completes
+   *
+   * @param handler SSL handler of the connection, added before the connection is active
+   */
+  void track(final SslHandler handler) {
+    final long start = System.nanoTime();
+    final long startMillis = System.currentTimeMillis();
+
+    handler
+        .handshakeFuture()
+        .addListener(
+            future -> {
+              if (!future.isSuccess()) {
+                failureMeter.mark();
+                return;
+              }
+              handshakeTimer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+              if (!openSsl) {
+                accepted.increment();
+                if (handler.engine().getSession().getCreationTime() < startMillis) {
+                  resumed.increment();
+                }
+              }
+            });
+  }
+}
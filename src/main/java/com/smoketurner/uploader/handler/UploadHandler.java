@@ -45,7 +45,18 @@ public final class UploadHandler extends SimpleChannelInboundHandler<Batch> {
 
   @Override
   public void channelRead0(ChannelHandlerContext ctx, Batch batch) throws Exception {
-    batchMeter.mark();
-    uploader.upload(batch);
+    // unfinished batches are sent when enough data has been buffered to
+    // upload a part of a streaming multipart upload
+    if (!batch.isFinished()) {
+      uploader.uploadPart(batch);
+    } else {
+      batchMeter.mark();
+      uploader.upload(batch);
+    }
+
+    // stop reading from this connection until S3 catches up
+    if (uploader.isOverBudget()) {
+      uploader.pause(ctx.channel());
+    }
   }
 }
@@ -17,22 +17,39 @@ package com.smoketurner.uploader.handler;
 
 import com.google.common.base.Strings;
 import com.google.common.primitives.Ints;
+import com.smoketurner.uploader.config.BatchConfiguration;
 import com.smoketurner.uploader.config.NettyConfiguration;
+import com.smoketurner.uploader.core.BatchAggregator;
+import com.smoketurner.uploader.core.BatchSizes;
+import com.smoketurner.uploader.core.Codecs;
+import com.smoketurner.uploader.core.CustomerQuotas;
+import com.smoketurner.uploader.core.EventTimeExtractor;
 import com.smoketurner.uploader.core.Uploader;
 import io.dropwizard.util.Size;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.LineBasedFrameDecoder;
-import io.netty.handler.codec.bytes.ByteArrayDecoder;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.ReferenceCountedOpenSslContext;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
 import io.netty.handler.ssl.util.SelfSignedCertificate;
 import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.internal.tcnative.SSL;
+import io.netty.internal.tcnative.SSLContext;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.security.cert.CertificateException;
+import java.util.Arrays;
 import java.util.Objects;
 import javax.annotation.Nullable;
 import javax.net.ssl.SSLEngine;
@@ -45,10 +62,24 @@ public class UploadInitializer extends ChannelInitializer<SocketChannel> {
   private static final Logger LOGGER = LoggerFactory.getLogger(UploadInitializer.class);
   private static final int READER_IDLE_SECONDS = 60;
   private final NettyConfiguration configuration;
+  private final BatchConfiguration batchConfiguration;
+  private final Codecs codecs;
+  private final Uploader uploader;
   private final UploadHandler uploadHandler;
+  private final ConnectionTracker connections = new ConnectionTracker();
+  private final CustomerQuotas quotas;
+
+  @Nullable private final SharedBatchHandler sharedBatchHandler;
+
+  private final BatchSizes batchSizes;
+  private final EventTimeExtractor eventTime;
+
+  @Nullable private final EventExecutorGroup compressionGroup;
 
   @Nullable private final SslContext sslCtx;
 
+  @Nullable private final SslSessionMetrics sslMetrics;
+
   @Nullable private final AccessControlListFilter ipFilter;
 
   private final long maxLength;
@@ -58,20 +89,43 @@ public class UploadInitializer extends ChannelInitializer<SocketChannel> {
    * Constructor
    *
    * @param configuration Netty configuration
+   * @param batchConfiguration Batch configuration
+   * @param codecs Compression codecs
    * @param uploader AWS S3 uploader
    * @param maxUploadSize Maximum size of S3 upload
+   * @param aggregator Shared batch aggregator, or null to batch each connection separately
+   * @param compressionGroup Executors to compress events on, or null to compress them on the event
+   *     loop that received them
+   * @param quotas Customer quotas, shared with the HTTP resource
    */
   public UploadInitializer(
-      final NettyConfiguration configuration, final Uploader uploader, final Size maxUploadSize) {
+      final NettyConfiguration configuration,
+      final BatchConfiguration batchConfiguration,
+      final Codecs codecs,
+      final Uploader uploader,
+      final Size maxUploadSize,
+      @Nullable final BatchAggregator aggregator,
+      @Nullable final EventExecutorGroup compressionGroup,
+      final CustomerQuotas quotas) {
 
     this.configuration = Objects.requireNonNull(configuration);
+    this.batchConfiguration = Objects.requireNonNull(batchConfiguration);
+    this.codecs = Objects.requireNonNull(codecs);
+    this.uploader = Objects.requireNonNull(uploader);
+    this.compressionGroup = compressionGroup;
+    this.quotas = Objects.requireNonNull(quotas);
     this.sslCtx = getSslContext();
+    this.sslMetrics = sslCtx == null ? null : new SslSessionMetrics(sslCtx);
 
     this.maxLength = configuration.getMaxLength().toBytes();
     this.maxUploadSize = maxUploadSize;
+    this.batchSizes = new BatchSizes(batchConfiguration, maxUploadSize);
+    this.eventTime = new EventTimeExtractor(batchConfiguration.getEventTime());
 
     // handlers
     this.uploadHandler = new UploadHandler(uploader);
+    this.sharedBatchHandler =
+        aggregator == null ? null : new SharedBatchHandler(aggregator, uploader);
 
     // filters
     if (!configuration.getIpFilters().isEmpty()) {
@@ -90,16 +144,19 @@ public class UploadInitializer extends ChannelInitializer<SocketChannel> {
       p.addLast("acl", ipFilter);
     }
 
-    if (sslCtx != null) {
+    if (sslCtx != null && sslMetrics != null) {
+      final SslHandler sslHandler;
       if (configuration.isClientAuth()) {
         final SSLEngine engine = sslCtx.newEngine(ch.alloc());
         engine.setUseClientMode(false);
         engine.setNeedClientAuth(true);
 
-        p.addLast("ssl", new SslHandler(engine));
+        sslHandler = new SslHandler(engine);
       } else {
-        p.addLast("ssl", sslCtx.newHandler(ch.alloc()));
+        sslHandler = sslCtx.newHandler(ch.alloc());
       }
+      sslMetrics.track(sslHandler);
+      p.addLast("ssl", sslHandler);
     }
 
     // removes idle connections after READER_IDLE_SECONDS seconds
@@ -108,26 +165,77 @@ public class UploadInitializer extends ChannelInitializer<SocketChannel> {
     // authenticate via an ACL and mutual certificates
     p.addLast("auth", new AuthHandler(configuration.isClientAuth()));
 
-    // check to see if the data stream is gzipped or not
-    // p.addLast("gzipDetector", new OptionalGzipHandler());
+    // check to see if the data stream is compressed or not. Gzip members
+    // are not passed through with event time partitioning, as the events
+    // have to be decompressed to read their timestamps.
+    if (configuration.isCompressedInput()) {
+      final boolean passThrough = configuration.isGzipPassThrough() && !eventTime.isEnabled();
+      p.addLast(
+          "compressionDetector",
+          new OptionalGzipHandler(
+              sslCtx != null,
+              configuration.getMaxCompressionRatio(),
+              passThrough ? codecs : null,
+              Ints.checkedCast(maxLength),
+              configuration.getMaxGzipMemberSize().toBytes()));
+    }
 
-    // break each data chunk by newlines
+    // break each data chunk by newlines, the batcher compresses each line
+    // straight out of the frame without copying it into a byte array
     p.addLast("line", new LineBasedFrameDecoder(Ints.checkedCast(maxLength), true, true));
 
-    // convert each data chunk into a byte array
-    p.addLast("decoder", new ByteArrayDecoder());
+    // pause reads while the customer is over its quota, on the event loop
+    // so the pause takes effect before the next read
+    if (quotas.isEnabled()) {
+      p.addLast("quota", new QuotaHandler(quotas));
+    }
+
+    // the batcher and uploader run on a compression executor when one is
+    // configured, with events queued to it from the event loop
+    final EventExecutor executor;
+    if (compressionGroup != null) {
+      executor = compressionGroup.next();
+      p.addLast(
+          "compressionQueue",
+          new CompressionQueueHandler(executor, batchConfiguration.getCompressionQueueSize()));
+    } else {
+      executor = null;
+    }
+
+    // batch and compress chunks of data up to maxUploadSize, maxBatchCount or maxBatchAge
+    if (sharedBatchHandler != null) {
+      // shared batches are uploaded directly by the aggregator
+      p.addLast(executor, "batcher", sharedBatchHandler);
+    } else {
+      p.addLast(
+          executor,
+          "batcher",
+          new BatchHandler(maxUploadSize, batchConfiguration, codecs, batchSizes, eventTime));
+    }
 
-    // batch and compress chunks of data up to maxUploadSize
-    p.addLast("batcher", new BatchHandler(maxUploadSize));
+    // upload the batch to S3, on the same executor as the batcher so parts
+    // are never drained from a batch while events are being added to it
+    p.addLast(executor, "uploader", uploadHandler);
 
-    // upload the batch to S3
-    p.addLast("uploader", uploadHandler);
+    // last, so a connection counts as drained once its batches are uploading
+    p.addLast(executor, "connections", connections);
+  }
+
+  /**
+   * Open connections, which are closed on shutdown before anything they upload batches to
+   *
+   * @return connection tracker shared by every connection
+   */
+  public ConnectionTracker getConnections() {
+    return connections;
   }
 
   /**
    * Construct an {@link SslContext} from the configuration
    *
    * @return SslContext or null
+   * @throws IllegalStateException if OpenSSL is configured but not available, or the session
+   *     ticket keys cannot be loaded
    */
   @Nullable
   private SslContext getSslContext() {
@@ -136,8 +244,9 @@ public class UploadInitializer extends ChannelInitializer<SocketChannel> {
       return null;
     }
 
-    if (SslContext.defaultServerProvider() == SslProvider.OPENSSL) {
-      LOGGER.info("SSL Provider: OpenSSL");
+    final SslProvider provider = getSslProvider();
+    if (provider == SslProvider.OPENSSL) {
+      LOGGER.info("SSL Provider: OpenSSL ({})", OpenSsl.versionString());
     } else {
       LOGGER.info("SSL Provider: JDK");
     }
@@ -146,7 +255,7 @@ public class UploadInitializer extends ChannelInitializer<SocketChannel> {
       try {
         final SelfSignedCertificate ssc = new SelfSignedCertificate();
         final SslContext sslCtx =
-            SslContextBuilder.forServer(ssc.certificate(), ssc.privateKey()).build();
+            configure(SslContextBuilder.forServer(ssc.certificate(), ssc.privateKey()), provider);
         LOGGER.info("SSL ENABLED (using self-signed certificate)");
         return sslCtx;
       } catch (CertificateException | SSLException e) {
@@ -173,7 +282,7 @@ public class UploadInitializer extends ChannelInitializer<SocketChannel> {
     }
 
     try {
-      final SslContext sslCtx = builder.build();
+      final SslContext sslCtx = configure(builder, provider);
       LOGGER.info(
           "SSL ENABLED (certificate: '{}', key: '{}', trust store: '{}')",
           configuration.getKeyCertChainFile(),
@@ -185,4 +294,104 @@ public class UploadInitializer extends ChannelInitializer<SocketChannel> {
     }
     return null;
   }
+
+  /**
+   * Resolve the configured TLS provider
+   *
+   * @return SSL provider
+   * @throws IllegalStateException if OpenSSL is configured but netty-tcnative cannot be loaded
+   */
+  private SslProvider getSslProvider() {
+    switch (configuration.getSslProvider()) {
+      case OPENSSL:
+        if (!OpenSsl.isAvailable()) {
+          throw new IllegalStateException(
+              "OpenSSL is not available", OpenSsl.unavailabilityCause());
+        }
+        return SslProvider.OPENSSL;
+      case JDK:
+        return SslProvider.JDK;
+      case AUTO:
+      default:
+        return SslContext.defaultServerProvider();
+    }
+  }
+
+  /**
+   * Apply the provider, cipher, protocol and session settings to the builder and build the context
+   *
+   * @param builder Server SSL context builder
+   * @param provider SSL provider
+   * @return SslContext
+   * @throws SSLException if unable to build the context
+   */
+  private SslContext configure(final SslContextBuilder builder, final SslProvider provider)
+      throws SSLException {
+    builder
+        .sslProvider(provider)
+        .sessionCacheSize(configuration.getSslSessionCacheSize())
+        .sessionTimeout(configuration.getSslSessionTimeout().toSeconds());
+
+    // unsupported ciphers are dropped, so the same list works for both providers
+    if (!configuration.getSslCiphers().isEmpty()) {
+      builder.ciphers(configuration.getSslCiphers(), SupportedCipherSuiteFilter.INSTANCE);
+    }
+    if (!configuration.getSslProtocols().isEmpty()) {
+      builder.protocols(configuration.getSslProtocols().toArray(new String[0]));
+    }
+
+    final SslContext sslCtx = builder.build();
+
+    if (sslCtx instanceof ReferenceCountedOpenSslContext) {
+      final ReferenceCountedOpenSslContext openSslCtx = (ReferenceCountedOpenSslContext) sslCtx;
+      if (!configuration.isSslSessionTickets()) {
+        // this version of Netty has no other way of setting OpenSSL context options
+        SSLContext.setOptions(openSslCtx.sslCtxPointer(), SSL.SSL_OP_NO_TICKET);
+      } else if (!Strings.isNullOrEmpty(configuration.getSslSessionTicketKeyFile())) {
+        openSslCtx.sessionContext().setTicketKeys(readTicketKeys());
+      }
+    } else if (!Strings.isNullOrEmpty(configuration.getSslSessionTicketKeyFile())) {
+      LOGGER.warn("SSL session ticket keys are only supported by OpenSSL, ignoring");
+    }
+    return sslCtx;
+  }
+
+  /**
+   * Read the session ticket keys shared by every node, so a ticket issued by one node can be
+   * resumed on any other. New tickets are encrypted with the first key, and the remaining keys are
+   * only used to decrypt tickets issued before the keys were rotated.
+   *
+   * @return session ticket keys
+   * @throws IllegalStateException if the file cannot be read or is not a whole number of keys
+   */
+  private OpenSslSessionTicketKey[] readTicketKeys() {
+    final String filename = configuration.getSslSessionTicketKeyFile();
+    final byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(Paths.get(filename));
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to read session ticket keys from " + filename, e);
+    }
+
+    final int size = OpenSslSessionTicketKey.TICKET_KEY_SIZE;
+    if (bytes.length == 0 || bytes.length % size != 0) {
+      throw new IllegalStateException(
+          String.format(
+              "Session ticket key file %s must contain a multiple of %d bytes", filename, size));
+    }
+
+    final OpenSslSessionTicketKey[] keys = new OpenSslSessionTicketKey[bytes.length / size];
+    for (int i = 0; i < keys.length; i++) {
+      int offset = i * size;
+      final byte[] name =
+          Arrays.copyOfRange(bytes, offset, offset += OpenSslSessionTicketKey.NAME_SIZE);
+      final byte[] hmacKey =
+          Arrays.copyOfRange(bytes, offset, offset += OpenSslSessionTicketKey.HMAC_KEY_SIZE);
+      final byte[] aesKey =
+          Arrays.copyOfRange(bytes, offset, offset + OpenSslSessionTicketKey.AES_KEY_SIZE);
+      keys[i] = new OpenSslSessionTicketKey(name, hmacKey, aesKey);
+    }
+    LOGGER.info("Loaded {} SSL session ticket key(s) from '{}'", keys.length, filename);
+    return keys;
+  }
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.handler;
+
+import com.github.luben.zstd.ZstdInputStream;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.compression.DecompressionException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Objects;
+import javax.annotation.Nullable;
+
+/**
+ * Decompresses a stream of zstd frames, enforcing a {@link DecompressionLimit}. The zstd stream
+ * runs in continuous mode over the bytes received so far, so it returns whatever it could
+ * decompress instead of blocking when a frame is split across reads.
+ */
+final class ZstdDecoder extends ByteToMessageDecoder {
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  private final DecompressionLimit limit;
+  private final SourceStream source = new SourceStream();
+  private final byte[] chunk = new byte[CHUNK_SIZE];
+
+  @Nullable private ZstdInputStream stream;
+
+  /**
+   * Constructor
+   *
+   * @param limit Decompression limit for the connection
+   */
+  ZstdDecoder(final DecompressionLimit limit) {
+    this.limit = Objects.requireNonNull(limit);
+  }
+
+  @Override
+  protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+    try {
+      ZstdInputStream zstd = stream;
+      if (zstd == null) {
+        zstd = new ZstdInputStream(source).setContinuous(true);
+        stream = zstd;
+      }
+
+      source.buffer = in;
+      try {
+        int read;
+        while ((read = zstd.read(chunk, 0, chunk.length)) > 0) {
+          out.add(ctx.alloc().buffer(read).writeBytes(chunk, 0, read));
+          limit.record(source.take(), read);
+        }
+        limit.record(source.take(), 0);
+      } finally {
+        source.buffer = null;
+      }
+    } catch (IOException | DecompressionException e) {
+      DecompressionLimit.close(ctx, in, e);
+    }
+  }
+
+  @Override
+  protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+    final ZstdInputStream zstd = stream;
+    if (zstd != null) {
+      stream = null;
+      zstd.close();
+    }
+  }
+
+  /** Reads from the current input buffer, ending the stream when it has been drained. */
+  private static final class SourceStream extends InputStream {
+    @Nullable private ByteBuf buffer;
+    private long consumed = 0;
+
+    @Override
+    public int read() {
+      final ByteBuf buf = buffer;
+      if (buf == null || !buf.isReadable()) {
+        return -1;
+      }
+      consumed++;
+      return buf.readUnsignedByte();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      final ByteBuf buf = buffer;
+      if (buf == null || !buf.isReadable()) {
+        return -1;
+      }
+      final int length = Math.min(len, buf.readableBytes());
+      buf.readBytes(b, off, length);
+      consumed += length;
+      return length;
+    }
+
+    @Override
+    public int available() {
+      final ByteBuf buf = buffer;
+      return buf == null ? 0 : buf.readableBytes();
+    }
+
+    @Override
+    public void close() {
+      // the input buffer is owned by the decoder
+    }
+
+    /** Number of bytes read since the last call */
+    long take() {
+      final long bytes = consumed;
+      consumed = 0;
+      return bytes;
+    }
+  }
+}
@@ -15,14 +15,23 @@
  */
 package com.smoketurner.uploader.managed;
 
+import com.smoketurner.uploader.handler.ConnectionTracker;
 import io.dropwizard.lifecycle.Managed;
 import io.netty.channel.ChannelFuture;
 import io.netty.util.concurrent.FastThreadLocal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 
 public class ChannelFutureManager implements Managed {
 
-  private final ChannelFuture future;
+  private static final long DRAIN_TIMEOUT_SECONDS = 30;
+
+  private final List<ChannelFuture> futures;
+  @Nullable private final ConnectionTracker connections;
 
   /**
    * Constructor
@@ -30,17 +39,49 @@ public class ChannelFutureManager implements Managed {
    * @param future ChannelFuture to manage
    */
   public ChannelFutureManager(final ChannelFuture future) {
-    this.future = Objects.requireNonNull(future);
+    this(Collections.singletonList(future));
+  }
+
+  /**
+   * Constructor
+   *
+   * @param futures ChannelFutures of every listener bound to the same port
+   */
+  public ChannelFutureManager(final List<ChannelFuture> futures) {
+    this(futures, null);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param futures ChannelFutures of every listener bound to the same port
+   * @param connections Connections accepted by the listeners, which are closed once the listeners
+   *     stop accepting new ones, or null to leave them open
+   */
+  public ChannelFutureManager(
+      final List<ChannelFuture> futures, @Nullable final ConnectionTracker connections) {
+    this.futures = new ArrayList<>(Objects.requireNonNull(futures));
+    this.connections = connections;
   }
 
   @Override
   public void start() throws Exception {
-    future.sync();
+    for (ChannelFuture future : futures) {
+      future.sync();
+    }
   }
 
   @Override
   public void stop() throws Exception {
-    future.channel().closeFuture();
+    // stop accepting connections on every listener
+    for (ChannelFuture future : futures) {
+      future.channel().close().awaitUninterruptibly();
+    }
+    // close the open connections, which flush their batches to the
+    // aggregator, spool and S3 client that are stopped after this
+    if (connections != null) {
+      connections.closeAll(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
     // clean up internal Netty threads
     FastThreadLocal.removeAll();
     FastThreadLocal.destroy();
@@ -16,20 +16,20 @@
 package com.smoketurner.uploader.managed;
 
 import io.dropwizard.lifecycle.Managed;
-import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
 public class EventLoopGroupManager implements Managed {
 
-  private final EventLoopGroup loop;
+  private final EventExecutorGroup loop;
 
   /**
    * Constructor
    *
-   * @param loop EventLoopGroup to manage
+   * @param loop EventLoopGroup, or any other group of executors, to manage
    */
-  public EventLoopGroupManager(final EventLoopGroup loop) {
+  public EventLoopGroupManager(final EventExecutorGroup loop) {
     this.loop = Objects.requireNonNull(loop);
   }
 
@@ -0,0 +1,77 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.managed;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import io.dropwizard.lifecycle.Managed;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically submits a task to every event loop of a group and records how long it waited to
+ * run, which is how long any other task or I/O on that event loop is currently delayed.
+ */
+public class EventLoopLatencyMonitor implements Managed {
+
+  private static final long INTERVAL_MILLIS = 1000;
+
+  private final EventExecutorGroup group;
+  private final Timer latency;
+  private final List<ScheduledFuture<?>> probes = new ArrayList<>();
+
+  /**
+   * Constructor
+   *
+   * @param group Event loops to monitor
+   * @param name Name of the group in the latency metric
+   */
+  public EventLoopLatencyMonitor(final EventExecutorGroup group, final String name) {
+    this.group = Objects.requireNonNull(group);
+
+    final MetricRegistry registry = SharedMetricRegistries.getDefault();
+    this.latency =
+        registry.timer(MetricRegistry.name(EventLoopLatencyMonitor.class, name, "task-latency"));
+  }
+
+  @Override
+  public void start() throws Exception {
+    for (EventExecutor loop : group) {
+      probes.add(
+          loop.scheduleAtFixedRate(
+              () -> {
+                final long submitted = System.nanoTime();
+                loop.execute(
+                    () -> latency.update(System.nanoTime() - submitted, TimeUnit.NANOSECONDS));
+              },
+              INTERVAL_MILLIS,
+              INTERVAL_MILLIS,
+              TimeUnit.MILLISECONDS));
+    }
+  }
+
+  @Override
+  public void stop() throws Exception {
+    probes.forEach(probe -> probe.cancel(false));
+    probes.clear();
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.managed;
+
+import com.smoketurner.uploader.core.Spool;
+import com.smoketurner.uploader.core.SpooledBatch;
+import com.smoketurner.uploader.core.Uploader;
+import io.dropwizard.lifecycle.Managed;
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class SpoolManager implements Managed {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SpoolManager.class);
+  private static final long OVER_BUDGET_WAIT_MILLIS = 100;
+
+  private final Spool spool;
+  private final Uploader uploader;
+  @Nullable private Thread replayer;
+
+  /**
+   * Constructor
+   *
+   * @param spool Spool to manage
+   * @param uploader AWS S3 uploader used to replay recovered batches
+   */
+  public SpoolManager(final Spool spool, final Uploader uploader) {
+    this.spool = Objects.requireNonNull(spool);
+    this.uploader = Objects.requireNonNull(uploader);
+  }
+
+  @Override
+  public void start() throws Exception {
+    final List<SpooledBatch> batches = spool.recover();
+    spool.start();
+
+    if (!batches.isEmpty()) {
+      // replay in the background so startup is not held up by S3
+      final Thread thread = new Thread(() -> replay(batches), "spool-replay");
+      thread.setDaemon(true);
+      thread.start();
+      replayer = thread;
+    }
+  }
+
+  @Override
+  public void stop() throws Exception {
+    final Thread thread = replayer;
+    if (thread != null) {
+      thread.interrupt();
+      thread.join();
+    }
+    spool.stop();
+  }
+
+  private void replay(final List<SpooledBatch> batches) {
+    try {
+      for (SpooledBatch batch : batches) {
+        while (uploader.isOverBudget()) {
+          Thread.sleep(OVER_BUDGET_WAIT_MILLIS);
+        }
+        try {
+          uploader.replay(batch);
+        } catch (IOException e) {
+          LOGGER.error(String.format("Unable to read spooled batch \"%s\"", batch.getKey()), e);
+        }
+      }
+    } catch (InterruptedException e) {
+      LOGGER.warn("Stopped replaying spooled batches");
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -18,18 +18,23 @@ package com.smoketurner.uploader.resources;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.SharedMetricRegistries;
-import com.smoketurner.uploader.core.Batch;
+import com.google.common.primitives.Ints;
+import com.smoketurner.uploader.config.QuotaConfiguration;
+import com.smoketurner.uploader.core.BatchAggregator;
+import com.smoketurner.uploader.core.CustomerQuotas;
+import com.smoketurner.uploader.core.LineScanner;
 import com.smoketurner.uploader.core.Uploader;
 import com.smoketurner.uploader.handler.AuthHandler;
 import io.dropwizard.util.Size;
-import java.io.BufferedReader;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
@@ -41,29 +46,80 @@ import javax.ws.rs.core.SecurityContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Accepts newline delimited events over HTTP. Jersey shares a single instance of this resource
+ * between every request, so events are batched per customer by a {@link BatchAggregator} rather
+ * than in the resource itself. Requests from different customers never share a batch or a lock,
+ * and concurrent requests from the same customer are merged into the same batches.
+ *
+ * <p>Customers over their quota are answered with a 429 and a Retry-After header. A request that
+ * runs out of quota part way through has the events before that point accepted, like a request
+ * with a line that is too long.
+ */
 @Path("/v1/batch")
 public class BatchResource {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(BatchResource.class);
+  private static final int RETRY_AFTER_SECONDS = 5;
+  private static final int TOO_MANY_REQUESTS = 429;
   private final Uploader uploader;
-  private final long maxUploadBytes;
-  private final AtomicReference<Batch> curBatch = new AtomicReference<>();
+  private final BatchAggregator aggregator;
+  private final EventExecutorGroup executors;
+  private final CustomerQuotas quotas;
+
+  // each Jetty thread reuses the read buffer of its own scanner
+  private final ThreadLocal<LineScanner> scanners;
 
   // metrics
   private final Meter eventMeter;
+  private final Meter rejectedMeter;
+  private final Meter tooLongMeter;
+
+  /**
+   * Constructor
+   *
+   * @param uploader Uploader
+   * @param aggregator Per-customer batches
+   * @param executors Executors used to flush batches once they reach the max batch age
+   * @param maxLength Maximum length of an event
+   */
+  public BatchResource(
+      final Uploader uploader,
+      final BatchAggregator aggregator,
+      final EventExecutorGroup executors,
+      final Size maxLength) {
+    this(uploader, aggregator, executors, maxLength, new CustomerQuotas(new QuotaConfiguration()));
+  }
 
   /**
    * Constructor
    *
    * @param uploader Uploader
-   * @param maxUploadSize Maximum size of AWS S3 file to upload
+   * @param aggregator Per-customer batches
+   * @param executors Executors used to flush batches once they reach the max batch age
+   * @param maxLength Maximum length of an event
+   * @param quotas Customer quotas, shared with the TCP listener
    */
-  public BatchResource(final Uploader uploader, final Size maxUploadSize) {
+  public BatchResource(
+      final Uploader uploader,
+      final BatchAggregator aggregator,
+      final EventExecutorGroup executors,
+      final Size maxLength,
+      final CustomerQuotas quotas) {
     this.uploader = Objects.requireNonNull(uploader);
-    this.maxUploadBytes = maxUploadSize.toBytes();
+    this.aggregator = Objects.requireNonNull(aggregator);
+    this.executors = Objects.requireNonNull(executors);
+    this.quotas = Objects.requireNonNull(quotas);
+
+    final int maxLineLength = Ints.checkedCast(maxLength.toBytes());
+    this.scanners = ThreadLocal.withInitial(() -> new LineScanner(maxLineLength));
 
     final MetricRegistry registry = SharedMetricRegistries.getDefault();
     this.eventMeter = registry.meter(MetricRegistry.name(BatchResource.class, "event-rate"));
+    this.rejectedMeter =
+        registry.meter(MetricRegistry.name(BatchResource.class, "rejected-over-budget"));
+    this.tooLongMeter =
+        registry.meter(MetricRegistry.name(BatchResource.class, "rejected-too-long"));
   }
 
   @POST
@@ -75,89 +131,108 @@ public class BatchResource {
       throw new WebApplicationException("No customerId found in request");
     }
 
-    final String custId = customerId.get();
+    // shed load rather than buffer more data while S3 is behind
+    if (uploader.isOverBudget()) {
+      rejectedMeter.mark();
+      throw new WebApplicationException(
+          Response.status(Response.Status.SERVICE_UNAVAILABLE)
+              .header("Retry-After", RETRY_AFTER_SECONDS)
+              .build());
+    }
 
-    try (BufferedReader reader =
-        new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+    final String custId = customerId.get();
 
-      reader
-          .lines()
-          .map(line -> line.getBytes(StandardCharsets.UTF_8))
-          .forEach(line -> processLine(custId, line));
-    } catch (IOException e) {
-      LOGGER.error("Unable to read input", e);
-      throw new WebApplicationException("Unable to read input", e);
+    final CustomerQuotas.Quota quota = quotas.forCustomer(custId);
+    if (quota != null) {
+      final long delay = quota.getDelay();
+      if (delay > 0) {
+        quota.markRejected();
+        throw tooManyRequests(delay);
+      }
     }
 
-    // Check for any remaining items in the batch
-    final Batch batch = curBatch.get();
-    if (batch != null && !batch.isEmpty()) {
-      batch.finish();
-      uploader.upload(batch);
-      curBatch.set(null);
+    // spread requests over the executors so concurrent requests from the
+    // same customer land on different stripes of the customer's batches
+    final EventExecutor executor = executors.next();
+
+    // events are added straight from the read buffer, without decoding
+    // them or copying each one into its own array
+    try (InputStream in = input) {
+      scanners
+          .get()
+          .scan(
+              in,
+              (buf, offset, length) -> processLine(custId, quota, buf, offset, length, executor));
+    } catch (QuotaExceededException e) {
+      // like a long line, events before the customer ran out of quota have
+      // been accepted
+      Objects.requireNonNull(quota).markRejected();
+      LOGGER.debug("Rejecting input from {}: over quota", custId);
+      throw tooManyRequests(e.delayNanos);
+    } catch (TooLongFrameException e) {
+      // like the TCP listener, events before the long line have been accepted
+      tooLongMeter.mark();
+      LOGGER.warn("Rejecting input from {}: {}", custId, e.getMessage());
+      throw new WebApplicationException(e.getMessage(), Response.Status.REQUEST_ENTITY_TOO_LARGE);
+    } catch (IOException e) {
+      // either reading the request or adding an event to its batch failed,
+      // so the events after that point have not been accepted
+      LOGGER.error("Unable to process input from {}", custId, e);
+      throw new WebApplicationException(
+          "Unable to process input", e, Response.Status.INTERNAL_SERVER_ERROR);
     }
 
     return Response.accepted().build();
   }
 
   /**
-   * Process a line of input and add it to the batch
+   * Process a line of input and add it to the customer's batch
    *
    * @param customerId Customer ID
-   * @param line Line of input
+   * @param quota Customer quota (may be null)
+   * @param buf Read buffer holding the line
+   * @param offset Offset of the line in the buffer
+   * @param length Length of the line
+   * @param executor Executor selecting the batch stripe
+   * @throws QuotaExceededException if the customer is out of quota
+   * @throws IOException if unable to add the event to the batch
    */
-  private void processLine(final String customerId, final byte[] line) {
-    eventMeter.mark();
-
-    try {
-      final Batch batch = getBatch(customerId);
+  private void processLine(
+      final String customerId,
+      @Nullable final CustomerQuotas.Quota quota,
+      final byte[] buf,
+      final int offset,
+      final int length,
+      final EventExecutor executor)
+      throws IOException {
+
+    if (quota != null) {
+      final long delay = quota.tryAcquire(1, length);
+      if (delay > 0) {
+        throw new QuotaExceededException(delay);
+      }
+    }
 
-      batch.add(line);
+    eventMeter.mark();
 
-      if (batch.size() > maxUploadBytes) {
-        LOGGER.debug(
-            "Batch size {} bytes exceeds max upload size of {} bytes",
-            batch.size(),
-            maxUploadBytes);
+    aggregator.add(customerId, buf, offset, length, executor);
+  }
 
-        batch.finish();
-        uploader.upload(batch);
-        curBatch.set(newBatch(customerId));
-      }
-    } catch (IOException e) {
-      LOGGER.error("Unable to process line", e);
-    }
+  private static WebApplicationException tooManyRequests(final long delayNanos) {
+    final long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(delayNanos + 999_999_999L));
+    return new WebApplicationException(
+        Response.status(TOO_MANY_REQUESTS).header("Retry-After", seconds).build());
   }
 
-  /**
-   * Get the latest batch or create a new batch
-   *
-   * @param customerId Customer ID
-   * @return an existing batch or a new batch
-   * @throws IOException if unable to create a batch
-   */
-  private Batch getBatch(final String customerId) throws IOException {
-    final Batch batch = curBatch.get();
-    if (batch != null) {
-      return batch;
-    }
+  /** Stops scanning a request once the customer is out of quota. */
+  private static final class QuotaExceededException extends IOException {
+    private static final long serialVersionUID = 1L;
 
-    final Batch newBatch = newBatch(customerId);
-    if (curBatch.compareAndSet(null, newBatch)) {
-      return newBatch;
-    }
-    return getBatch(customerId);
-  }
+    private final long delayNanos;
 
-  /**
-   * Create a new batch
-   *
-   * @param customerId Customer ID
-   * @return new batch
-   * @throws IOException if unable to create the batch
-   */
-  private Batch newBatch(final String customerId) throws IOException {
-    LOGGER.debug("Creating new batch for: {}", customerId);
-    return Batch.builder(customerId).withSize(maxUploadBytes).build();
+    QuotaExceededException(final long delayNanos) {
+      super("Customer is over quota");
+      this.delayNanos = delayNanos;
+    }
   }
 }
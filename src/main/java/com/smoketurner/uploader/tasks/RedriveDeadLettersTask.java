@@ -0,0 +1,67 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.tasks;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.smoketurner.uploader.core.DeadLetterQueue;
+import com.smoketurner.uploader.core.DeadLetterQueue.DeadLetter;
+import com.smoketurner.uploader.core.Uploader;
+import io.dropwizard.servlets.tasks.Task;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletionException;
+
+/** Upload every batch in the dead letter directory again, one at a time. */
+public class RedriveDeadLettersTask extends Task {
+
+  private final DeadLetterQueue deadLetters;
+  private final Uploader uploader;
+
+  /**
+   * Constructor
+   *
+   * @param deadLetters Dead letter directory
+   * @param uploader AWS S3 uploader
+   */
+  public RedriveDeadLettersTask(final DeadLetterQueue deadLetters, final Uploader uploader) {
+    super("redrive-dead-letters");
+    this.deadLetters = Objects.requireNonNull(deadLetters);
+    this.uploader = Objects.requireNonNull(uploader);
+  }
+
+  @Override
+  public void execute(ImmutableMultimap<String, String> parameters, PrintWriter output)
+      throws Exception {
+    final List<DeadLetter> letters = deadLetters.list();
+    output.printf("Re-driving %d dead letter batches%n", letters.size());
+    output.flush();
+
+    int uploaded = 0;
+    for (DeadLetter letter : letters) {
+      try {
+        uploader.redrive(letter).join();
+        uploaded++;
+        output.printf("Uploaded %s%n", letter.getKey());
+      } catch (CompletionException e) {
+        output.printf("Failed %s: %s%n", letter.getKey(), e.getCause());
+      }
+      output.flush();
+    }
+
+    output.printf("Uploaded %d of %d dead letter batches%n", uploaded, letters.size());
+  }
+}
@@ -16,33 +16,86 @@
 package com.smoketurner.uploader.benchmarks;
 
 import com.smoketurner.uploader.core.Batch;
+import com.smoketurner.uploader.core.Codecs;
+import com.smoketurner.uploader.core.KeyLayout;
+import java.time.Instant;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
 import org.openjdk.jmh.runner.Runner;
 import org.openjdk.jmh.runner.options.OptionsBuilder;
 
 @BenchmarkMode(Mode.AverageTime)
 @OutputTimeUnit(TimeUnit.NANOSECONDS)
-@State(Scope.Benchmark)
+@State(Scope.Thread)
 public class BatchBenchmark {
 
+  private static final int EVENT_COUNT = 1024;
+  private static final long MAX_BATCH_BYTES = 16 * 1024 * 1024;
+  private static final Instant CREATED_AT = Instant.parse("2016-12-14T16:52:13Z");
+
+  @Param({"64", "512", "4096"})
+  public int eventSize;
+
+  private final byte[][] events = new byte[EVENT_COUNT][];
+  private int next = 0;
+
   @SuppressWarnings("NullAway")
   private Batch batch;
 
+  @SuppressWarnings("NullAway")
+  private Batch finished;
+
   @Setup
   public void setup() throws Exception {
+    final Random random = new Random(42);
+    for (int i = 0; i < EVENT_COUNT; i++) {
+      events[i] = Events.newEvent(random, eventSize);
+    }
     batch = Batch.create("test");
+
+    finished = Batch.create("test");
+    for (byte[] event : events) {
+      finished.add(event);
+    }
+    finished.finish();
+  }
+
+  @TearDown
+  public void tearDown() {
+    batch.release();
+    finished.release();
+  }
+
+  @Benchmark
+  public String newKey() {
+    // batches cache their key, so measure building a new one from the layout
+    return KeyLayout.DEFAULT.newKey("test", CREATED_AT, Codecs.DEFAULT);
+  }
+
+  @Benchmark
+  public void add() throws Exception {
+    batch.add(events[next]);
+    next = (next + 1) & (EVENT_COUNT - 1);
+
+    // keep the batch from growing for the whole run
+    if (batch.size() > MAX_BATCH_BYTES) {
+      batch.release();
+      batch = Batch.create("test");
+    }
   }
 
   @Benchmark
-  public String getKey() {
-    return batch.getKey();
+  public byte[] toByteArray() {
+    return finished.toByteArray();
   }
 
   public static void main(String[] args) throws Exception {
@@ -0,0 +1,146 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.benchmarks;
+
+import com.codahale.metrics.SharedMetricRegistries;
+import com.smoketurner.uploader.config.BatchConfiguration;
+import com.smoketurner.uploader.config.CompressionConfiguration;
+import com.smoketurner.uploader.core.BatchAggregator;
+import com.smoketurner.uploader.core.Codecs;
+import com.smoketurner.uploader.resources.BatchResource;
+import io.dropwizard.util.Size;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import java.io.ByteArrayInputStream;
+import java.security.Principal;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.security.auth.x500.X500Principal;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the HTTP ingest path with the upload to S3 stubbed out. Each invocation posts {@link
+ * #LINES} newline delimited events, so scores are per event. When run with multiple threads every
+ * thread posts as a different customer into the same resource.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class BatchResourceBenchmark {
+
+  private static final int LINES = 100;
+  private static final AtomicInteger CUSTOMERS = new AtomicInteger(0);
+
+  @Param({"64", "512", "4096"})
+  public int eventSize;
+
+  @SuppressWarnings("NullAway")
+  private EventLoopGroup group;
+
+  @SuppressWarnings("NullAway")
+  private BatchAggregator aggregator;
+
+  @SuppressWarnings("NullAway")
+  private BatchResource resource;
+
+  @Setup
+  public void setup() throws Exception {
+    if (SharedMetricRegistries.tryGetDefault() == null) {
+      SharedMetricRegistries.setDefault("benchmark");
+    }
+    final NoopUploader uploader = new NoopUploader();
+    final BatchConfiguration configuration = new BatchConfiguration();
+    configuration.setMaxBatchCount(10_000);
+    configuration.setSharedStripes(4);
+
+    group = new DefaultEventLoopGroup(4);
+    final Codecs codecs = new Codecs(new CompressionConfiguration());
+    aggregator = new BatchAggregator(uploader, Size.megabytes(64), configuration, codecs);
+    resource = new BatchResource(uploader, aggregator, group, Size.kilobytes(100));
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    aggregator.stop();
+    group.shutdownGracefully().sync();
+  }
+
+  @State(Scope.Thread)
+  public static class Request implements SecurityContext {
+
+    private final Principal principal =
+        new X500Principal("CN=customer-" + CUSTOMERS.incrementAndGet());
+
+    @SuppressWarnings("NullAway")
+    private byte[] body;
+
+    @Setup
+    public void setup(final BatchResourceBenchmark benchmark) {
+      body = Events.newLines(new Random(42), benchmark.eventSize, LINES);
+    }
+
+    @Override
+    public Principal getUserPrincipal() {
+      return principal;
+    }
+
+    @Override
+    public boolean isUserInRole(String role) {
+      return false;
+    }
+
+    @Override
+    public boolean isSecure() {
+      return true;
+    }
+
+    @Override
+    public String getAuthenticationScheme() {
+      return CLIENT_CERT_AUTH;
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LINES)
+  public Response upload(final Request request) {
+    return resource.upload(request, new ByteArrayInputStream(request.body));
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(
+            new OptionsBuilder()
+                .include(BatchResourceBenchmark.class.getSimpleName())
+                .forks(1)
+                .warmupIterations(5)
+                .measurementIterations(5)
+                .build())
+        .run();
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the whole benchmark suite and writes the results as JSON so they can be compared across
+ * releases. The suite is configured through system properties:
+ *
+ * <ul>
+ *   <li>{@code benchmark.include}: regular expression of benchmarks to run (default: all)
+ *   <li>{@code benchmark.threads}: number of threads; more than one measures throughput of every
+ *       benchmark under contention (default: 1)
+ *   <li>{@code benchmark.result}: JSON result file (default: target/jmh-result.json)
+ * </ul>
+ */
+public final class BenchmarkRunner {
+
+  private BenchmarkRunner() {}
+
+  public static void main(String[] args) throws Exception {
+    final String include =
+        System.getProperty("benchmark.include", BenchmarkRunner.class.getPackage().getName());
+    final int threads = Integer.getInteger("benchmark.threads", 1);
+    final String result = System.getProperty("benchmark.result", "target/jmh-result.json");
+
+    final ChainedOptionsBuilder builder =
+        new OptionsBuilder()
+            .include(include)
+            .forks(1)
+            .warmupIterations(5)
+            .measurementIterations(5)
+            .threads(threads)
+            .resultFormat(ResultFormatType.JSON)
+            .result(result);
+
+    if (threads > 1) {
+      builder.mode(Mode.Throughput).timeUnit(TimeUnit.SECONDS);
+    }
+
+    new Runner(builder.build()).run();
+  }
+}
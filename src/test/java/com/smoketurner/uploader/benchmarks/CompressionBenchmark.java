@@ -0,0 +1,128 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.benchmarks;
+
+import com.smoketurner.uploader.core.Batch;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares flushing the compressor after every event ({@code flushSize=1}, the previous behavior)
+ * against flushing every 64KB. The score is events per second, and the bytes and compression ratio
+ * achieved during each iteration are reported alongside it by {@link Sizes}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class CompressionBenchmark {
+
+  private static final int EVENT_COUNT = 1024;
+  private static final long BATCH_BYTES = 8 * 1024 * 1024;
+
+  @Param({"1", "65536"})
+  public long flushSize;
+
+  @Param({"128", "1024"})
+  public int eventSize;
+
+  private final byte[][] events = new byte[EVENT_COUNT][];
+  private int next = 0;
+
+  @SuppressWarnings("NullAway")
+  private Batch batch;
+
+  @Setup
+  public void setup() throws Exception {
+    final Random random = new Random(42);
+    for (int i = 0; i < EVENT_COUNT; i++) {
+      events[i] = Events.newEvent(random, eventSize);
+    }
+    batch = newBatch();
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDownIteration(final Sizes sizes) throws Exception {
+    rollBatch(sizes);
+  }
+
+  @TearDown
+  public void tearDown() {
+    batch.release();
+  }
+
+  @Benchmark
+  public void add(final Sizes sizes) throws Exception {
+    batch.add(events[next]);
+    next = (next + 1) & (EVENT_COUNT - 1);
+    if (batch.uncompressedSize() >= BATCH_BYTES) {
+      rollBatch(sizes);
+    }
+  }
+
+  private void rollBatch(final Sizes sizes) throws Exception {
+    batch.finish();
+    sizes.uncompressedBytes += batch.uncompressedSize();
+    sizes.compressedBytes += batch.size();
+    batch.release();
+    batch = newBatch();
+  }
+
+  private Batch newBatch() throws Exception {
+    return Batch.builder("test").withFlushSize(flushSize).build();
+  }
+
+  /** Bytes written to the batches during an iteration, reported by JMH next to the score. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Sizes {
+    public long uncompressedBytes;
+    public long compressedBytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      uncompressedBytes = 0;
+      compressedBytes = 0;
+    }
+
+    public double compressionRatio() {
+      return compressedBytes > 0 ? (double) uncompressedBytes / compressedBytes : 0;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(
+            new OptionsBuilder()
+                .include(CompressionBenchmark.class.getSimpleName())
+                .forks(1)
+                .warmupIterations(5)
+                .measurementIterations(5)
+                .build())
+        .run();
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.benchmarks;
+
+import com.smoketurner.uploader.config.Netty;
+import com.smoketurner.uploader.config.NettyConfiguration;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Local connection storm, as seen when every client reconnects after a deploy. Each invocation
+ * opens {@link #CONNECTIONS} connections at once and waits for the server to accept all of them,
+ * so scores are accepted connections per second. Compare the scores across the number of
+ * listeners bound with SO_REUSEPORT; multiple listeners require epoll.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class ConnectionStormBenchmark {
+
+  private static final int CONNECTIONS = 1000;
+
+  @Param({"1", "2", "4"})
+  public int listeners;
+
+  private final AtomicInteger accepted = new AtomicInteger(0);
+
+  @SuppressWarnings("NullAway")
+  private EventLoopGroup bossGroup;
+
+  @SuppressWarnings("NullAway")
+  private EventLoopGroup workerGroup;
+
+  @SuppressWarnings("NullAway")
+  private EventLoopGroup clientGroup;
+
+  @SuppressWarnings("NullAway")
+  private List<ChannelFuture> servers;
+
+  @SuppressWarnings("NullAway")
+  private Bootstrap client;
+
+  @Setup
+  public void setup() throws Exception {
+    final NettyConfiguration configuration = new NettyConfiguration();
+    configuration.setListeners(listeners);
+    configuration.setBacklog(CONNECTIONS);
+    try (ServerSocket socket = new ServerSocket(0)) {
+      configuration.setListenPort(socket.getLocalPort());
+    }
+
+    bossGroup = Netty.newBossEventLoopGroup(configuration);
+    workerGroup = Netty.newWorkerEventLoopGroup(configuration);
+
+    final ServerBootstrap bootstrap =
+        new ServerBootstrap()
+            .group(bossGroup, workerGroup)
+            .channel(Netty.serverChannelType(configuration))
+            .option(ChannelOption.SO_BACKLOG, configuration.getBacklog())
+            .childHandler(
+                new ChannelInitializer<Channel>() {
+                  @Override
+                  protected void initChannel(Channel ch) {
+                    accepted.incrementAndGet();
+                    ch.pipeline().addLast(new ResetHandler());
+                  }
+                });
+    servers = Netty.bind(bootstrap, configuration);
+    for (ChannelFuture server : servers) {
+      server.sync();
+    }
+
+    final int clientThreads = Runtime.getRuntime().availableProcessors();
+    if (Epoll.isAvailable()) {
+      clientGroup = new EpollEventLoopGroup(clientThreads);
+    } else {
+      clientGroup = new NioEventLoopGroup(clientThreads);
+    }
+    client =
+        new Bootstrap()
+            .group(clientGroup)
+            .channel(Epoll.isAvailable() ? EpollSocketChannel.class : NioSocketChannel.class)
+            .option(ChannelOption.SO_LINGER, 0)
+            .handler(
+                new ChannelInitializer<Channel>() {
+                  @Override
+                  protected void initChannel(Channel ch) {
+                    // connections are only opened and closed
+                  }
+                })
+            .remoteAddress("127.0.0.1", configuration.getListenPort());
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    for (ChannelFuture server : servers) {
+      server.channel().close().sync();
+    }
+    clientGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS).sync();
+    workerGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS).sync();
+    bossGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS).sync();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(CONNECTIONS)
+  public void connect() throws Exception {
+    final int expected = accepted.get() + CONNECTIONS;
+
+    final List<ChannelFuture> connections = new ArrayList<>(CONNECTIONS);
+    for (int i = 0; i < CONNECTIONS; i++) {
+      connections.add(client.connect());
+    }
+    for (ChannelFuture connection : connections) {
+      connection.sync();
+    }
+
+    // a connection completes once it is queued on a listener, wait for the
+    // server to have actually accepted all of them
+    while (accepted.get() < expected) {
+      Thread.onSpinWait();
+    }
+
+    for (ChannelFuture connection : connections) {
+      connection.channel().close();
+    }
+    for (ChannelFuture connection : connections) {
+      connection.channel().closeFuture().sync();
+    }
+  }
+
+  /** Clients close with a reset so they do not run out of ports in TIME_WAIT. */
+  private static final class ResetHandler extends ChannelInboundHandlerAdapter {
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      ctx.close();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(
+            new OptionsBuilder()
+                .include(ConnectionStormBenchmark.class.getSimpleName())
+                .forks(1)
+                .warmupIterations(5)
+                .measurementIterations(5)
+                .build())
+        .run();
+  }
+}
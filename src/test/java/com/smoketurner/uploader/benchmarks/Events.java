@@ -0,0 +1,66 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/** Generates repeatable JSON log lines for the benchmarks. */
+final class Events {
+
+  private Events() {}
+
+  /**
+   * Build a JSON log line with a mix of repeated keys and random values
+   *
+   * @param random Source of randomness
+   * @param size Size of the event in bytes
+   * @return event
+   */
+  static byte[] newEvent(final Random random, final int size) {
+    final StringBuilder sb = new StringBuilder(size);
+    sb.append("{\"timestamp\":")
+        .append(1_550_000_000_000L + random.nextInt(1_000_000))
+        .append(",\"level\":\"")
+        .append(random.nextBoolean() ? "INFO" : "WARN")
+        .append("\",\"message\":\"");
+    while (sb.length() < size - 2) {
+      sb.append((char) ('a' + random.nextInt(26)));
+      if (random.nextInt(6) == 0) {
+        sb.append(' ');
+      }
+    }
+    sb.setLength(Math.max(0, size - 2));
+    sb.append("\"}");
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Build newline delimited events
+   *
+   * @param random Source of randomness
+   * @param size Size of each event in bytes
+   * @param count Number of events
+   * @return newline delimited events
+   */
+  static byte[] newLines(final Random random, final int size, final int count) {
+    final StringBuilder sb = new StringBuilder((size + 1) * count);
+    for (int i = 0; i < count; i++) {
+      sb.append(new String(newEvent(random, size), StandardCharsets.UTF_8)).append('\n');
+    }
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
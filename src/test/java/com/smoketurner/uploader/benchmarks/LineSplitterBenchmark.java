@@ -0,0 +1,98 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.benchmarks;
+
+import com.smoketurner.uploader.core.LineScanner;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares splitting an HTTP request body into events by decoding it with a {@link BufferedReader}
+ * and re-encoding each line, against scanning the raw bytes with a {@link LineScanner}. Scores are
+ * per event.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class LineSplitterBenchmark {
+
+  private static final int LINES = 1000;
+
+  @Param({"64", "512", "4096"})
+  public int eventSize;
+
+  private final LineScanner scanner = new LineScanner(100 * 1024);
+
+  @SuppressWarnings("NullAway")
+  private byte[] body;
+
+  @Setup
+  public void setup() {
+    body = Events.newLines(new Random(42), eventSize, LINES);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LINES)
+  public void bufferedReader(final Blackhole blackhole) throws Exception {
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8))) {
+      reader
+          .lines()
+          .map(line -> line.getBytes(StandardCharsets.UTF_8))
+          .forEach(blackhole::consume);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LINES)
+  public void lineScanner(final Blackhole blackhole) throws Exception {
+    scanner.scan(
+        new ByteArrayInputStream(body),
+        (buf, offset, length) -> {
+          blackhole.consume(buf);
+          blackhole.consume(offset);
+          blackhole.consume(length);
+        });
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(
+            new OptionsBuilder()
+                .include(LineSplitterBenchmark.class.getSimpleName())
+                .forks(1)
+                .warmupIterations(5)
+                .measurementIterations(5)
+                .build())
+        .run();
+  }
+}
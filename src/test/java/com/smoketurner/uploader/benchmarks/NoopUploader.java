@@ -0,0 +1,60 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.benchmarks;
+
+import static org.mockito.Mockito.mock;
+
+import com.smoketurner.uploader.config.AwsConfiguration;
+import com.smoketurner.uploader.core.Batch;
+import com.smoketurner.uploader.core.Uploader;
+import java.util.concurrent.atomic.AtomicLong;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+
+/** Uploader that releases every batch instead of sending it to S3. */
+final class NoopUploader extends Uploader {
+
+  private final AtomicLong batches = new AtomicLong(0);
+  private final AtomicLong events = new AtomicLong(0);
+
+  NoopUploader() {
+    super(mock(S3AsyncClient.class), new AwsConfiguration());
+  }
+
+  @Override
+  public boolean isOverBudget() {
+    return false;
+  }
+
+  @Override
+  public void uploadPart(final Batch batch) {
+    batch.drainPart().release();
+  }
+
+  @Override
+  public void upload(final Batch batch) {
+    batches.incrementAndGet();
+    events.addAndGet(batch.getCount());
+    batch.release();
+  }
+
+  long getBatches() {
+    return batches.get();
+  }
+
+  long getEvents() {
+    return events.get();
+  }
+}
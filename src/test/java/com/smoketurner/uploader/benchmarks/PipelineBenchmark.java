@@ -0,0 +1,129 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.benchmarks;
+
+import com.codahale.metrics.SharedMetricRegistries;
+import com.smoketurner.uploader.config.BatchConfiguration;
+import com.smoketurner.uploader.config.CompressionConfiguration;
+import com.smoketurner.uploader.core.Batch;
+import com.smoketurner.uploader.core.Codecs;
+import com.smoketurner.uploader.handler.AuthHandler;
+import com.smoketurner.uploader.handler.BatchHandler;
+import io.dropwizard.util.Size;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import io.netty.util.ReferenceCountUtil;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the TCP ingest path, from raw bytes read off the socket through line framing and
+ * batching. Each invocation writes {@link #LINES} newline delimited events, so scores are per
+ * event.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+
+  private static final int LINES = 100;
+  private static final int MAX_LENGTH = 100 * 1024;
+
+  @Param({"64", "512", "4096"})
+  public int eventSize;
+
+  @SuppressWarnings("NullAway")
+  private EmbeddedChannel channel;
+
+  @SuppressWarnings("NullAway")
+  private ByteBuf input;
+
+  @Setup
+  public void setup() throws Exception {
+    if (SharedMetricRegistries.tryGetDefault() == null) {
+      SharedMetricRegistries.setDefault("benchmark");
+    }
+
+    final BatchConfiguration configuration = new BatchConfiguration();
+    configuration.setMaxBatchCount(10_000);
+
+    channel =
+        new EmbeddedChannel(
+            new LineBasedFrameDecoder(MAX_LENGTH, true, true),
+            new BatchHandler(
+                Size.megabytes(64), configuration, new Codecs(new CompressionConfiguration())),
+            new ReleaseHandler());
+    channel.attr(AuthHandler.CUSTOMER_KEY).set("test");
+
+    input = Unpooled.wrappedBuffer(Events.newLines(new Random(42), eventSize, LINES));
+  }
+
+  @TearDown
+  public void tearDown() {
+    channel.finishAndReleaseAll();
+    input.release();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LINES)
+  public void ingest() {
+    channel.writeInbound(input.retainedDuplicate());
+  }
+
+  /** Releases finished batches instead of uploading them. */
+  private static final class ReleaseHandler extends ChannelInboundHandlerAdapter {
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+      if (msg instanceof Batch) {
+        final Batch batch = (Batch) msg;
+        if (batch.isFinished()) {
+          batch.release();
+        } else {
+          batch.drainPart().release();
+        }
+      } else {
+        ReferenceCountUtil.release(msg);
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(
+            new OptionsBuilder()
+                .include(PipelineBenchmark.class.getSimpleName())
+                .forks(1)
+                .warmupIterations(5)
+                .measurementIterations(5)
+                .build())
+        .run();
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.smoketurner.uploader.core.CodecType;
+import io.dropwizard.jersey.validation.Validators;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import org.junit.Test;
+
+public class UploaderConfigurationTest {
+
+  private final Validator validator = Validators.newValidator();
+  private final UploaderConfiguration configuration = new UploaderConfiguration();
+
+  @Test
+  public void testStreamingRequiresSpool() {
+    configuration.getBatch().setStreaming(true);
+    assertThat(violations()).contains("streamingRecoverable");
+
+    configuration.getSpool().setEnabled(true);
+    assertThat(violations()).doesNotContain("streamingRecoverable");
+  }
+
+  @Test
+  public void testLz4RejectsLevel() {
+    configuration.getCompression().setCodec(CodecType.LZ4);
+    assertThat(violations()).doesNotContain("compression.levelSupported");
+
+    configuration.getCompression().setLevel(9);
+    assertThat(violations()).contains("compression.levelSupported");
+  }
+
+  private List<String> violations() {
+    return validator.validate(configuration).stream()
+        .map(ConstraintViolation::getPropertyPath)
+        .map(Object::toString)
+        .collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.codahale.metrics.SharedMetricRegistries;
+import com.smoketurner.uploader.config.BatchConfiguration;
+import com.smoketurner.uploader.config.CompressionConfiguration;
+import io.dropwizard.util.Duration;
+import io.dropwizard.util.Size;
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.EventLoop;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class BatchAggregatorTest {
+
+  private final Uploader uploader = mock(Uploader.class);
+  private final BatchConfiguration configuration = new BatchConfiguration();
+  private final EventLoop loop1 = new DefaultEventLoop();
+  private final EventLoop loop2 = new DefaultEventLoop();
+  private BatchAggregator aggregator;
+
+  @BeforeClass
+  public static void setUpClass() {
+    if (SharedMetricRegistries.tryGetDefault() == null) {
+      SharedMetricRegistries.setDefault("test");
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    configuration.setMaxBatchCount(3);
+    configuration.setMaxOpenBatches(2);
+    aggregator =
+        new BatchAggregator(
+            uploader,
+            Size.megabytes(1),
+            configuration,
+            new Codecs(new CompressionConfiguration()));
+  }
+
+  @After
+  public void tearDown() {
+    loop1.shutdownGracefully();
+    loop2.shutdownGracefully();
+  }
+
+  @Test
+  public void testMergesConnectionsOfSameCustomer() throws Exception {
+    aggregator.add("test", event("test1"), loop1);
+    aggregator.add("test", event("test2"), loop2);
+    aggregator.add("other", event("other1"), loop1);
+    assertThat(aggregator.getOpenBatches()).isEqualTo(2);
+    verify(uploader, never()).upload(any(Batch.class));
+
+    aggregator.add("test", event("test3"), loop1);
+
+    final ArgumentCaptor<Batch> captor = ArgumentCaptor.forClass(Batch.class);
+    verify(uploader).upload(captor.capture());
+
+    final Batch batch = captor.getValue();
+    assertThat(batch.getCustomerId()).contains("test");
+    assertThat(batch.getCount()).isEqualTo(3);
+    assertThat(batch.isFinished()).isTrue();
+    assertThat(aggregator.getOpenBatches()).isEqualTo(1);
+  }
+
+  @Test
+  public void testEvictsOldestBatch() throws Exception {
+    aggregator.add("customer1", event("test1"), loop1);
+    aggregator.add("customer2", event("test2"), loop1);
+    aggregator.add("customer3", event("test3"), loop1);
+
+    final ArgumentCaptor<Batch> captor = ArgumentCaptor.forClass(Batch.class);
+    verify(uploader).upload(captor.capture());
+
+    assertThat(captor.getValue().getCustomerId()).contains("customer1");
+    assertThat(aggregator.getOpenBatches()).isEqualTo(2);
+  }
+
+  @Test
+  public void testFlushAll() throws Exception {
+    aggregator.add("customer1", event("test1"), loop1);
+    aggregator.add("customer2", event("test2"), loop2);
+
+    aggregator.flushAll();
+
+    final ArgumentCaptor<Batch> captor = ArgumentCaptor.forClass(Batch.class);
+    verify(uploader, times(2)).upload(captor.capture());
+
+    final List<Batch> batches = captor.getAllValues();
+    assertThat(batches).allMatch(Batch::isFinished);
+    assertThat(aggregator.getOpenBatches()).isZero();
+  }
+
+  @Test
+  public void testDropsCustomersWithoutOpenBatches() throws Exception {
+    aggregator.add("customer1", event("test1"), loop1);
+    aggregator.add("customer2", event("test2"), loop2);
+    assertThat(aggregator.getCustomers()).isEqualTo(2);
+
+    aggregator.flushAll();
+    assertThat(aggregator.getCustomers()).isZero();
+
+    aggregator.add("customer1", event("test3"), loop1);
+    assertThat(aggregator.getCustomers()).isEqualTo(1);
+    assertThat(aggregator.getOpenBatches()).isEqualTo(1);
+  }
+
+  @Test
+  public void testSpreadsEventLoopsAcrossStripes() throws Exception {
+    configuration.setSharedStripes(2);
+    aggregator =
+        new BatchAggregator(
+            uploader,
+            Size.megabytes(1),
+            configuration,
+            new Codecs(new CompressionConfiguration()));
+
+    aggregator.add("test", event("test1"), loop1);
+    aggregator.add("test", event("test2"), loop2);
+    aggregator.add("test", event("test3"), loop1);
+    assertThat(aggregator.getOpenBatches()).isEqualTo(2);
+    verify(uploader, never()).upload(any(Batch.class));
+  }
+
+  @Test
+  public void testEventTimeBuckets() throws Exception {
+    configuration.setMaxBatchCount(Integer.MAX_VALUE);
+    configuration.setMaxOpenBatches(10);
+    configuration.getEventTime().setEnabled(true);
+    configuration.getEventTime().setMaxOpenBuckets(2);
+    configuration.getEventTime().setMaxPast(Duration.days(36500));
+    aggregator =
+        new BatchAggregator(
+            uploader,
+            Size.megabytes(1),
+            configuration,
+            new Codecs(new CompressionConfiguration()));
+
+    aggregator.add("test", event("{\"timestamp\":\"2016-12-14T16:52:13Z\"}"), loop1);
+    aggregator.add("test", event("{\"timestamp\":\"2016-12-14T17:01:00Z\"}"), loop1);
+    aggregator.add("test", event("{\"timestamp\":\"2016-12-14T16:10:00Z\"}"), loop1);
+    assertThat(aggregator.getOpenBatches()).isEqualTo(2);
+    verify(uploader, never()).upload(any(Batch.class));
+
+    aggregator.add("test", event("{\"timestamp\":\"2016-12-14T18:00:00Z\"}"), loop1);
+
+    final ArgumentCaptor<Batch> captor = ArgumentCaptor.forClass(Batch.class);
+    verify(uploader).upload(captor.capture());
+
+    final Batch batch = captor.getValue();
+    assertThat(batch.getCount()).isEqualTo(2);
+    assertThat(batch.getKey()).contains("-2016/12/14/16/00/00/");
+    assertThat(aggregator.getOpenBatches()).isEqualTo(2);
+  }
+
+  private static byte[] event(final String event) {
+    return event.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+import org.junit.Before;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+public class BatchRequestBodyTest {
+
+  private final CompositeByteBuf buffer = Unpooled.compositeBuffer();
+  private final RecordingSubscriber subscriber = new RecordingSubscriber();
+
+  @Before
+  public void setUp() {
+    buffer.addComponent(true, Unpooled.copiedBuffer("test1", StandardCharsets.UTF_8));
+    buffer.addComponent(true, Unpooled.copiedBuffer("test2", StandardCharsets.UTF_8));
+    buffer.addComponent(true, Unpooled.copiedBuffer("test3", StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testContentLength() {
+    final BatchRequestBody body = new BatchRequestBody(buffer);
+    assertThat(body.contentLength()).contains(15L);
+  }
+
+  @Test
+  public void testHonorsDemand() {
+    final BatchRequestBody body = new BatchRequestBody(buffer);
+    body.subscribe(subscriber);
+
+    assertThat(subscriber.chunks).isEmpty();
+
+    subscriber.request(1);
+    assertThat(subscriber.chunks).containsExactly("test1");
+    assertThat(subscriber.completed).isFalse();
+
+    subscriber.request(5);
+    assertThat(subscriber.chunks).containsExactly("test1", "test2", "test3");
+    assertThat(subscriber.completed).isTrue();
+  }
+
+  @Test
+  public void testCancel() {
+    final BatchRequestBody body = new BatchRequestBody(buffer);
+    body.subscribe(subscriber);
+
+    subscriber.request(1);
+    subscriber.cancel();
+    subscriber.request(1);
+
+    assertThat(subscriber.chunks).containsExactly("test1");
+    assertThat(subscriber.completed).isFalse();
+  }
+
+  @Test
+  public void testResubscribe() {
+    final BatchRequestBody body = new BatchRequestBody(buffer);
+    body.subscribe(subscriber);
+    subscriber.request(Long.MAX_VALUE);
+
+    final RecordingSubscriber retry = new RecordingSubscriber();
+    body.subscribe(retry);
+    retry.request(Long.MAX_VALUE);
+
+    assertThat(retry.chunks).containsExactly("test1", "test2", "test3");
+    assertThat(retry.completed).isTrue();
+    assertThat(buffer.refCnt()).isEqualTo(1);
+  }
+
+  @Test
+  public void testInvalidRequest() {
+    final BatchRequestBody body = new BatchRequestBody(buffer);
+    body.subscribe(subscriber);
+    subscriber.request(0);
+
+    assertThat(subscriber.error).isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private static class RecordingSubscriber implements Subscriber<ByteBuffer> {
+    private final List<String> chunks = new ArrayList<>();
+    private boolean completed = false;
+    @Nullable private Throwable error;
+    @Nullable private Subscription subscription;
+
+    @Override
+    public void onSubscribe(Subscription s) {
+      this.subscription = s;
+    }
+
+    @Override
+    public void onNext(ByteBuffer buffer) {
+      chunks.add(StandardCharsets.UTF_8.decode(buffer).toString());
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      this.error = t;
+    }
+
+    @Override
+    public void onComplete() {
+      this.completed = true;
+    }
+
+    void request(long n) {
+      if (subscription != null) {
+        subscription.request(n);
+      }
+    }
+
+    void cancel() {
+      if (subscription != null) {
+        subscription.cancel();
+      }
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.codahale.metrics.SharedMetricRegistries;
+import io.netty.buffer.CompositeByteBuf;
+import java.util.Random;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class BatchSizesTest {
+
+  private static final long CHUNK = 1024;
+
+  private final BatchSizes sizes = new BatchSizes(CHUNK, 64 * CHUNK, 2);
+
+  @BeforeClass
+  public static void setUpClass() {
+    if (SharedMetricRegistries.tryGetDefault() == null) {
+      SharedMetricRegistries.setDefault("test");
+    }
+  }
+
+  @Test
+  public void testUnknownCustomerStartsWithOneChunk() {
+    assertThat(sizes.initialSize("test")).isEqualTo(CHUNK);
+    assertThat(sizes.initialSize(null)).isEqualTo(CHUNK);
+  }
+
+  @Test
+  public void testLearnsRecentSizes() {
+    sizes.record("test", 10 * CHUNK);
+    assertThat(sizes.initialSize("test")).isEqualTo(10 * CHUNK);
+
+    // moves a quarter of the way towards each new size, rounded up to a chunk
+    sizes.record("test", 2 * CHUNK);
+    assertThat(sizes.initialSize("test")).isEqualTo(8 * CHUNK);
+
+    sizes.record("test", 1000 * CHUNK);
+    assertThat(sizes.initialSize("test")).isEqualTo(22 * CHUNK);
+  }
+
+  @Test
+  public void testCappedAtMaxSize() {
+    sizes.record("test", 1000 * CHUNK);
+    assertThat(sizes.initialSize("test")).isEqualTo(64 * CHUNK);
+  }
+
+  @Test
+  public void testBatchGrowsInChunksAndRecordsSize() throws Exception {
+    final Random random = new Random(1);
+    final Batch first = Batch.builder("test").withSizes(sizes).build();
+    for (int i = 0; i < 100; i++) {
+      final byte[] event = new byte[100];
+      random.nextBytes(event);
+      first.add(event);
+    }
+    first.finish();
+
+    final CompositeByteBuf content = (CompositeByteBuf) first.content();
+    assertThat(content.capacity() % CHUNK).isZero();
+    assertThat(content.capacity() - content.readableBytes()).isLessThan(CHUNK);
+    assertThat(content.numComponents()).isGreaterThan(1);
+
+    final long expected = (first.size() + CHUNK - 1) / CHUNK * CHUNK;
+    assertThat(sizes.initialSize("test")).isEqualTo(expected);
+    first.release();
+
+    final Batch second = Batch.builder("test").withSizes(sizes).build();
+    assertThat(((CompositeByteBuf) second.content()).capacity()).isEqualTo(expected);
+    second.release();
+  }
+}
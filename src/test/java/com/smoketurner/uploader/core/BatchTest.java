@@ -17,13 +17,20 @@ package com.smoketurner.uploader.core;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.Optional;
 import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -42,11 +49,34 @@ public class BatchTest {
 
     assertThat(batch.getCustomerId().get()).isEqualTo("test");
     assertThat(batch.getCount()).isEqualTo(1);
-    assertThat(batch.size()).isEqualTo(20);
+    // gzip header plus the uncompressed event, until the compressor is flushed
+    assertThat(batch.size()).isEqualTo(14);
     assertThat(batch.isFinished()).isFalse();
     assertThat(batch.isEmpty()).isFalse();
   }
 
+  @Test
+  public void testFlush() throws Exception {
+    batch.add("test".getBytes(StandardCharsets.UTF_8));
+    batch.flush();
+
+    assertThat(batch.size()).isEqualTo(20);
+    assertThat(batch.bufferedSize()).isEqualTo(20);
+    assertThat(batch.uncompressedSize()).isEqualTo(4);
+  }
+
+  @Test
+  public void testFlushSize() throws Exception {
+    final Batch flushing = Batch.builder("test").withFlushSize(8).build();
+    flushing.add("test1".getBytes(StandardCharsets.UTF_8));
+    assertThat(flushing.bufferedSize()).isEqualTo(10);
+
+    flushing.add("test2".getBytes(StandardCharsets.UTF_8));
+    assertThat(flushing.bufferedSize()).isGreaterThan(10);
+    assertThat(flushing.size()).isEqualTo(flushing.bufferedSize());
+    flushing.release();
+  }
+
   @Test
   public void testFinish() throws Exception {
     assertThat(batch.isFinished()).isFalse();
@@ -55,6 +85,59 @@ public class BatchTest {
     assertThat(batch.isFinished()).isTrue();
   }
 
+  @Test
+  public void testAddByteBuf() throws Exception {
+    final ByteBuf heap = Unpooled.copiedBuffer("test1", StandardCharsets.UTF_8);
+    final ByteBuf direct =
+        Unpooled.directBuffer().writeBytes("test2".getBytes(StandardCharsets.UTF_8));
+    final ByteBuf slice = Unpooled.copiedBuffer("xtest3x", StandardCharsets.UTF_8).slice(1, 5);
+
+    batch.add(heap);
+    batch.add(direct);
+    batch.add(slice);
+
+    assertThat(direct.readerIndex()).isZero();
+    assertThat(batch.getCount()).isEqualTo(3);
+
+    final String actual =
+        new BufferedReader(
+                new InputStreamReader(
+                    new GZIPInputStream(new ByteArrayInputStream(batch.toByteArray())),
+                    StandardCharsets.UTF_8))
+            .lines()
+            .collect(Collectors.joining("\n"));
+
+    assertThat(actual).isEqualTo("test1\ntest2\ntest3");
+  }
+
+  @Test
+  public void testAddGzipMember() throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream out = new GZIPOutputStream(bytes)) {
+      out.write("test2\ntest3\n".getBytes(StandardCharsets.UTF_8));
+    }
+    final GzipMember member = new GzipMember(Unpooled.wrappedBuffer(bytes.toByteArray()), 2, 12);
+
+    batch.add("test1".getBytes(StandardCharsets.UTF_8));
+    batch.add(member);
+    assertThat(batch.getCount()).isEqualTo(3);
+    assertThat(batch.uncompressedSize()).isEqualTo(18);
+    assertThat(member.content().readableBytes()).isEqualTo(bytes.size());
+
+    batch.add("test4".getBytes(StandardCharsets.UTF_8));
+
+    final String actual =
+        new BufferedReader(
+                new InputStreamReader(
+                    new GZIPInputStream(new ByteArrayInputStream(batch.toByteArray())),
+                    StandardCharsets.UTF_8))
+            .lines()
+            .collect(Collectors.joining("\n"));
+
+    assertThat(actual).isEqualTo("test1\ntest2\ntest3\ntest4");
+    member.release();
+  }
+
   @Test
   public void testGetInputStream() throws Exception {
     batch.add("test1".getBytes(StandardCharsets.UTF_8));
@@ -73,14 +156,40 @@ public class BatchTest {
   }
 
   @Test
-  public void testGetHash() {
-    assertThat(Batch.getHash("test", 1)).isEqualTo("0");
+  public void testDrainPart() throws Exception {
+    batch.add("test1".getBytes(StandardCharsets.UTF_8));
+    batch.flush();
+    final byte[] part1 = ByteBufUtil.getBytes(batch.drainPart());
+    assertThat(batch.bufferedSize()).isZero();
+    assertThat(batch.size()).isEqualTo(part1.length);
+
+    batch.add("test2".getBytes(StandardCharsets.UTF_8));
+    final byte[] part2 = batch.toByteArray();
+    assertThat(batch.size()).isEqualTo(part1.length + part2.length);
+
+    final byte[] combined = new byte[part1.length + part2.length];
+    System.arraycopy(part1, 0, combined, 0, part1.length);
+    System.arraycopy(part2, 0, combined, part1.length, part2.length);
+
+    final String actual =
+        new BufferedReader(
+                new InputStreamReader(
+                    new GZIPInputStream(new ByteArrayInputStream(combined)),
+                    StandardCharsets.UTF_8))
+            .lines()
+            .collect(Collectors.joining("\n"));
+
+    assertThat(actual).isEqualTo("test1\ntest2");
   }
 
   @Test
   public void testGetKey() {
-    final String expected = "test/e-2016/12/14/16/52/13/events_1481734333000.log.gz";
-    final String actual = batch.getKey();
-    assertThat(actual).isEqualTo(expected);
+    final KeyLayout layout =
+        new KeyLayout(KeyLayout.DEFAULT_TEMPLATE, 1, "node1", Optional.empty(), 0);
+    final String expected = "test/7-2016/12/14/16/52/13/events_1481734333000_node1_0.log.gz";
+    assertThat(batch.getKey(layout)).isEqualTo(expected);
+    // the key is assigned once, so every part of the batch uses the same key
+    assertThat(batch.getKey(layout)).isEqualTo(expected);
+    assertThat(batch.getKey()).isEqualTo(expected);
   }
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.smoketurner.uploader.config.CodecConfiguration;
+import com.smoketurner.uploader.config.CompressionConfiguration;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.zip.GZIPInputStream;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import org.junit.Test;
+
+public class CodecsTest {
+
+  @Test
+  public void testDefaultsToGzip() throws Exception {
+    final Codecs codecs = new Codecs(new CompressionConfiguration());
+    assertThat(codecs.forCustomer(null)).isSameAs(Codecs.DEFAULT);
+    assertThat(codecs.forCustomer("test").getType()).isEqualTo(CodecType.GZIP);
+  }
+
+  @Test
+  public void testCustomerOverride() throws Exception {
+    final CodecConfiguration zstd = new CodecConfiguration();
+    zstd.setCodec(CodecType.ZSTD);
+
+    final CompressionConfiguration configuration = new CompressionConfiguration();
+    configuration.getCustomers().put("test", zstd);
+
+    final Codecs codecs = new Codecs(configuration);
+    assertThat(codecs.forCustomer("test").getType()).isEqualTo(CodecType.ZSTD);
+    assertThat(codecs.forCustomer("other").getType()).isEqualTo(CodecType.GZIP);
+  }
+
+  @Test
+  public void testKeySuffix() throws Exception {
+    final Batch batch =
+        Batch.builder("test")
+            .withCreatedAt(Instant.parse("2016-12-14T16:52:13Z"))
+            .withCodec(new Lz4Codec())
+            .build();
+    assertThat(batch.getKey()).contains("/events_1481734333000_").endsWith(".log.lz4");
+    assertThat(CodecType.fromKey(batch.getKey())).isEqualTo(CodecType.LZ4);
+    assertThat(CodecType.fromKey("test/events_1481734333000.log.gz")).isEqualTo(CodecType.GZIP);
+    batch.release();
+  }
+
+  @Test
+  public void testGzipLevel() throws Exception {
+    final String actual = roundTrip(new GzipCodec(1), GZIPInputStream::new);
+    assertThat(actual).isEqualTo("test1\ntest2");
+  }
+
+  @Test
+  public void testZstd() throws Exception {
+    final String actual = roundTrip(new ZstdCodec(3, null), ZstdInputStream::new);
+    assertThat(actual).isEqualTo("test1\ntest2");
+  }
+
+  @Test
+  public void testLz4() throws Exception {
+    final String actual = roundTrip(new Lz4Codec(), LZ4FrameInputStream::new);
+    assertThat(actual).isEqualTo("test1\ntest2");
+  }
+
+  @Test
+  public void testInvalidLevel() {
+    assertThatThrownBy(() -> new GzipCodec(10)).isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> new ZstdCodec(0, null))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private static String roundTrip(final Codec codec, final Decoder decoder) throws IOException {
+    final Batch batch = Batch.builder("test").withCodec(codec).build();
+    batch.add("test1".getBytes(StandardCharsets.UTF_8));
+    batch.add("test2".getBytes(StandardCharsets.UTF_8));
+
+    try (InputStream input = decoder.decode(new ByteArrayInputStream(batch.toByteArray()))) {
+      final String output = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+      return output.replace(System.lineSeparator(), "\n");
+    } finally {
+      batch.release();
+    }
+  }
+
+  @FunctionalInterface
+  private interface Decoder {
+    InputStream decode(InputStream input) throws IOException;
+  }
+}
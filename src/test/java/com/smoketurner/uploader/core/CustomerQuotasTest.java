@@ -0,0 +1,177 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.google.common.base.Ticker;
+import com.smoketurner.uploader.config.QuotaConfiguration;
+import com.smoketurner.uploader.config.QuotaLimitsConfiguration;
+import io.dropwizard.util.Size;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class CustomerQuotasTest {
+
+  private final QuotaConfiguration configuration = new QuotaConfiguration();
+  private final FakeTicker ticker = new FakeTicker();
+  private CustomerQuotas quotas;
+
+  @BeforeClass
+  public static void setUpClass() {
+    if (SharedMetricRegistries.tryGetDefault() == null) {
+      SharedMetricRegistries.setDefault("test");
+    }
+  }
+
+  @Before
+  public void setUp() {
+    configuration.setEnabled(true);
+    configuration.setEventsPerSecond(10);
+    configuration.setEventBurst(5);
+    configuration.setBytesPerSecond(Size.bytes(1000));
+    configuration.setByteBurst(Size.bytes(100));
+    quotas = newQuotas();
+  }
+
+  @Test
+  public void testDisabled() {
+    configuration.setEnabled(false);
+    quotas = newQuotas();
+    assertThat(quotas.isEnabled()).isFalse();
+    assertThat(quotas.forCustomer("test")).isNull();
+  }
+
+  @Test
+  public void testMissingCustomer() {
+    assertThat(quotas.forCustomer(null)).isNull();
+  }
+
+  @Test
+  public void testSharedPerCustomer() {
+    final CustomerQuotas.Quota quota = quotas.forCustomer("test");
+    assertThat(quota).isNotNull();
+    assertThat(quotas.forCustomer("test")).isSameAs(quota);
+    assertThat(quotas.forCustomer("other")).isNotSameAs(quota);
+  }
+
+  @Test
+  public void testAllowsBurst() {
+    final CustomerQuotas.Quota quota = quotas.forCustomer("test");
+    for (int i = 0; i < 5; i++) {
+      assertThat(quota.acquire(1, 10)).isZero();
+    }
+    assertThat(quota.getDelay()).isZero();
+
+    assertThat(quota.acquire(1, 10)).isEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+    assertThat(quota.getDelay()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+
+    ticker.advance(100, TimeUnit.MILLISECONDS);
+    assertThat(quota.getDelay()).isZero();
+  }
+
+  @Test
+  public void testLimitsBytes() {
+    final CustomerQuotas.Quota quota = quotas.forCustomer("test");
+    assertThat(quota.acquire(1, 100)).isZero();
+    assertThat(quota.acquire(1, 50)).isEqualTo(TimeUnit.MILLISECONDS.toNanos(50));
+  }
+
+  @Test
+  public void testTryAcquireRefundsEvents() {
+    final CustomerQuotas.Quota quota = quotas.forCustomer("test");
+    assertThat(quota.tryAcquire(1, 100)).isZero();
+    assertThat(quota.tryAcquire(1, 10)).isPositive();
+
+    // the rejected event did not use up any of the remaining events
+    for (int i = 0; i < 4; i++) {
+      assertThat(quota.tryAcquire(1, 0)).isZero();
+    }
+    assertThat(quota.tryAcquire(1, 0)).isPositive();
+  }
+
+  @Test
+  public void testTryAcquireEventLargerThanBurst() {
+    final CustomerQuotas.Quota quota = quotas.forCustomer("test");
+    assertThat(quota.tryAcquire(1, 50)).isZero();
+    assertThat(quota.tryAcquire(1, 500)).isPositive();
+
+    // once the bucket is full again, the event takes the whole burst
+    ticker.advance(50, TimeUnit.MILLISECONDS);
+    assertThat(quota.tryAcquire(1, 500)).isZero();
+    assertThat(quota.tryAcquire(1, 10)).isEqualTo(TimeUnit.MILLISECONDS.toNanos(10));
+  }
+
+  @Test
+  public void testCustomerOverrides() {
+    final QuotaLimitsConfiguration unlimited = new QuotaLimitsConfiguration();
+    unlimited.setEventsPerSecond(0);
+    unlimited.setBytesPerSecond(Size.bytes(0));
+    final QuotaLimitsConfiguration small = new QuotaLimitsConfiguration();
+    small.setEventsPerSecond(1);
+    small.setEventBurst(1);
+    configuration.getCustomers().put("unlimited", unlimited);
+    configuration.getCustomers().put("small", small);
+    quotas = newQuotas();
+
+    assertThat(quotas.forCustomer("unlimited")).isNull();
+
+    final CustomerQuotas.Quota quota = quotas.forCustomer("small");
+    assertThat(quota.acquire(1, 0)).isZero();
+    assertThat(quota.acquire(1, 0)).isEqualTo(TimeUnit.SECONDS.toNanos(1));
+  }
+
+  @Test
+  public void testBoundsCustomerMetrics() {
+    configuration.setMaxMetricCustomers(1);
+    quotas = newQuotas();
+
+    quotas.forCustomer("metrics1").markThrottled();
+    quotas.forCustomer("metrics2").markThrottled();
+    quotas.forCustomer("metrics3").markRejected();
+
+    final MetricRegistry registry = SharedMetricRegistries.getDefault();
+    assertThat(registry.getMeters())
+        .containsKey(MetricRegistry.name(CustomerQuotas.class, "customer", "metrics1", "throttled"))
+        .containsKey(MetricRegistry.name(CustomerQuotas.class, "customer", "other", "throttled"))
+        .containsKey(MetricRegistry.name(CustomerQuotas.class, "customer", "other", "rejected"))
+        .doesNotContainKey(
+            MetricRegistry.name(CustomerQuotas.class, "customer", "metrics2", "throttled"));
+  }
+
+  private CustomerQuotas newQuotas() {
+    final CustomerQuotas quotas = new CustomerQuotas(configuration);
+    quotas.setTicker(ticker);
+    return quotas;
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos = 0;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long duration, TimeUnit unit) {
+      nanos += unit.toNanos(duration);
+    }
+  }
+}
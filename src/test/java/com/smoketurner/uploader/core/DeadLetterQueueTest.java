@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.codahale.metrics.SharedMetricRegistries;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DeadLetterQueueTest {
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private DeadLetterQueue queue;
+
+  @BeforeClass
+  public static void setUpClass() {
+    if (SharedMetricRegistries.tryGetDefault() == null) {
+      SharedMetricRegistries.setDefault("test");
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    queue = new DeadLetterQueue(folder.getRoot().getAbsolutePath());
+    queue.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    queue.stop();
+  }
+
+  @Test
+  public void testNamesBatchesWithTheCodecSuffix() throws Exception {
+    add("test/events_1_node1_0.log.gz", "gzip");
+    add("test/events_1_node1_1.log.zst", "zstd");
+    add("test/events_1_node1_2.log.lz4", "lz4");
+
+    assertThat(files())
+        .containsExactlyInAnyOrder(
+            "test%2Fevents_1_node1_0.log.gz",
+            "test%2Fevents_1_node1_0.log.properties",
+            "test%2Fevents_1_node1_1.log.zst",
+            "test%2Fevents_1_node1_1.log.properties",
+            "test%2Fevents_1_node1_2.log.lz4",
+            "test%2Fevents_1_node1_2.log.properties");
+
+    final List<DeadLetterQueue.DeadLetter> letters = queue.list();
+    assertThat(letters).hasSize(3);
+    for (DeadLetterQueue.DeadLetter letter : letters) {
+      final ByteBuf content = queue.read(letter);
+      try {
+        final String expected = CodecType.fromKey(letter.getKey()).name().toLowerCase(Locale.ROOT);
+        assertThat(content.toString(StandardCharsets.UTF_8)).isEqualTo(expected);
+        assertThat(letter.getCustomerId()).contains("test");
+        assertThat(letter.getCount()).isEqualTo(1);
+      } finally {
+        content.release();
+      }
+      queue.remove(letter);
+    }
+    assertThat(files()).isEmpty();
+  }
+
+  private void add(final String key, final String content) throws Exception {
+    final ByteBuf buffer = Unpooled.copiedBuffer(content, StandardCharsets.UTF_8);
+    queue.add(key, Optional.of("test"), 1, buffer).get(1, TimeUnit.MINUTES);
+    buffer.release();
+  }
+
+  private List<String> files() throws Exception {
+    try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+      return files.map(path -> path.getFileName().toString()).collect(Collectors.toList());
+    }
+  }
+}
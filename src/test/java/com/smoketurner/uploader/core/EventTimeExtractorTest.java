@@ -0,0 +1,158 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.smoketurner.uploader.config.EventTimeConfiguration;
+import com.smoketurner.uploader.config.EventTimeSource;
+import io.dropwizard.util.Duration;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class EventTimeExtractorTest {
+
+  private static final Clock CLOCK =
+      Clock.fixed(Instant.parse("2020-01-01T10:30:00Z"), ZoneOffset.UTC);
+  private static final long HOUR_16 = Instant.parse("2016-12-14T16:00:00Z").toEpochMilli();
+  private static final long NOW = Instant.parse("2020-01-01T10:00:00Z").toEpochMilli();
+
+  private final EventTimeConfiguration configuration = new EventTimeConfiguration();
+
+  @BeforeClass
+  public static void setUpClass() {
+    if (SharedMetricRegistries.tryGetDefault() == null) {
+      SharedMetricRegistries.setDefault("test");
+    }
+  }
+
+  @Before
+  public void setUp() {
+    configuration.setEnabled(true);
+    configuration.setMaxPast(Duration.days(3650));
+  }
+
+  @Test
+  public void testDisabled() {
+    configuration.setEnabled(false);
+    final EventTimeExtractor extractor = new EventTimeExtractor(configuration, CLOCK);
+
+    assertThat(bucket(extractor, "{\"timestamp\":1481734333}"))
+        .isEqualTo(EventTimeExtractor.NO_BUCKET);
+    assertThat(extractor.currentBucket()).isEqualTo(EventTimeExtractor.NO_BUCKET);
+    assertThat(extractor.getMaxOpenBuckets()).isEqualTo(1);
+  }
+
+  @Test
+  public void testJsonField() {
+    final EventTimeExtractor extractor = new EventTimeExtractor(configuration, CLOCK);
+
+    assertThat(bucket(extractor, "{\"level\":\"info\",\"timestamp\": \"2016-12-14T16:52:13Z\"}"))
+        .isEqualTo(HOUR_16);
+    assertThat(bucket(extractor, "{\"msg\":\"timestamp\",\"timestamp\":1481734333000}"))
+        .isEqualTo(HOUR_16);
+    assertThat(bucket(extractor, "{\"timestamp\" : 1481734333}")).isEqualTo(HOUR_16);
+    assertThat(bucket(extractor, "{\"msg\":\"no time\"}")).isEqualTo(NOW);
+  }
+
+  @Test
+  public void testDirectBuffer() {
+    final EventTimeExtractor extractor = new EventTimeExtractor(configuration, CLOCK);
+    final ByteBuf event = Unpooled.directBuffer();
+    event.writeCharSequence("{\"timestamp\":\"2016-12-14T16:52:13Z\"}", StandardCharsets.UTF_8);
+
+    assertThat(extractor.bucket(event)).isEqualTo(HOUR_16);
+    assertThat(event.readerIndex()).isZero();
+    event.release();
+  }
+
+  @Test
+  public void testLeadingTimestamp() {
+    configuration.setSource(EventTimeSource.LEADING);
+    final EventTimeExtractor extractor = new EventTimeExtractor(configuration, CLOCK);
+
+    assertThat(bucket(extractor, "[2016-12-14T16:52:13Z] INFO started")).isEqualTo(HOUR_16);
+    assertThat(bucket(extractor, "2016-12-14 16:52:13,123 INFO started")).isEqualTo(HOUR_16);
+    assertThat(bucket(extractor, "1481734333 started")).isEqualTo(HOUR_16);
+    assertThat(bucket(extractor, "started")).isEqualTo(NOW);
+  }
+
+  @Test
+  public void testIgnoresImplausibleTimestamps() {
+    configuration.setSource(EventTimeSource.LEADING);
+    configuration.setMaxPast(Duration.days(7));
+    configuration.setMaxFuture(Duration.hours(1));
+    final EventTimeExtractor extractor = new EventTimeExtractor(configuration, CLOCK);
+    final Meter missing =
+        SharedMetricRegistries.getDefault()
+            .meter(MetricRegistry.name(EventTimeExtractor.class, "missing-timestamp"));
+    final long before = missing.getCount();
+
+    assertThat(bucket(extractor, "200 OK")).isEqualTo(NOW);
+    assertThat(bucket(extractor, "404 Not Found")).isEqualTo(NOW);
+    assertThat(bucket(extractor, "0001-01-01T00:00:00Z started")).isEqualTo(NOW);
+    assertThat(bucket(extractor, "9999-12-31T23:59:59Z started")).isEqualTo(NOW);
+    assertThat(bucket(extractor, "2016-12-14T16:52:13Z started")).isEqualTo(NOW);
+    assertThat(bucket(extractor, "2019-12-30T08:15:00Z started"))
+        .isEqualTo(Instant.parse("2019-12-30T08:00:00Z").toEpochMilli());
+    assertThat(bucket(extractor, "2020-01-01T11:15:00Z started"))
+        .isEqualTo(Instant.parse("2020-01-01T11:00:00Z").toEpochMilli());
+    assertThat(missing.getCount() - before).isEqualTo(5);
+  }
+
+  @Test
+  public void testParseTimestamp() {
+    assertThat(parse("2016-12-14T16:52:13Z")).isEqualTo(1481734333000L);
+    assertThat(parse("2016-12-14T16:52:13.123456+01:00")).isEqualTo(1481730733123L);
+    assertThat(parse("2016-12-14T16:52:13-0530")).isEqualTo(1481754133000L);
+    assertThat(parse("2016-12-14")).isEqualTo(1481673600000L);
+    assertThat(parse("2000-02-29T00:00:00Z")).isEqualTo(951782400000L);
+    assertThat(parse("1481734333.5")).isEqualTo(1481734333500L);
+    assertThat(parse("1481734333123")).isEqualTo(1481734333123L);
+    assertThat(parse("1481734333123456")).isEqualTo(1481734333123L);
+    assertThat(parse("2016-13-01")).isEqualTo(Long.MIN_VALUE);
+    assertThat(parse("abc")).isEqualTo(Long.MIN_VALUE);
+  }
+
+  @Test
+  public void testBucketSize() {
+    configuration.setBucketSize(Duration.minutes(15));
+    final EventTimeExtractor extractor = new EventTimeExtractor(configuration, CLOCK);
+
+    assertThat(bucket(extractor, "{\"timestamp\":\"2016-12-14T16:52:13Z\"}"))
+        .isEqualTo(Instant.parse("2016-12-14T16:45:00Z").toEpochMilli());
+  }
+
+  private static long bucket(final EventTimeExtractor extractor, final String event) {
+    final byte[] bytes = event.getBytes(StandardCharsets.UTF_8);
+    return extractor.bucket(bytes, 0, bytes.length);
+  }
+
+  private static long parse(final String timestamp) {
+    final byte[] bytes = timestamp.getBytes(StandardCharsets.UTF_8);
+    return EventTimeExtractor.parseTimestamp(bytes, 0, bytes.length);
+  }
+}
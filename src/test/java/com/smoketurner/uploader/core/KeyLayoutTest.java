@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.Instant;
+import java.util.Optional;
+import org.junit.Test;
+
+public class KeyLayoutTest {
+
+  private static final Instant CREATED_AT = Instant.parse("2016-12-14T16:52:13Z");
+
+  @Test
+  public void testDefaultTemplate() {
+    final KeyLayout layout =
+        new KeyLayout(KeyLayout.DEFAULT_TEMPLATE, 1, "node1", Optional.empty(), 0);
+
+    assertThat(layout.newKey("test", CREATED_AT, Codecs.DEFAULT))
+        .isEqualTo("test/7-2016/12/14/16/52/13/events_1481734333000_node1_0.log.gz");
+    assertThat(layout.newKey(null, CREATED_AT, Codecs.DEFAULT))
+        .startsWith("none/")
+        .endsWith("/events_1481734333000_node1_1.log.gz");
+  }
+
+  @Test
+  public void testHivePartitions() {
+    final KeyLayout layout =
+        new KeyLayout(
+            "{hash}/{customer}/dt={dt}/hour={hour}/events_{millis}_{node}_{seq}.log",
+            4,
+            "node1",
+            Optional.of("events"),
+            0);
+
+    assertThat(layout.newKey("test", CREATED_AT, Codecs.DEFAULT))
+        .isEqualTo("events/cbc2/test/dt=2016-12-14/hour=16/events_1481734333000_node1_0.log.gz");
+    assertThat(layout.newKey(null, Instant.parse("2016-01-02T03:04:05.678Z"), Codecs.DEFAULT))
+        .isEqualTo("events/54e2/none/dt=2016-01-02/hour=03/events_1451703845678_node1_1.log.gz");
+  }
+
+  @Test
+  public void testKeysAreUnique() {
+    final KeyLayout layout =
+        new KeyLayout(KeyLayout.DEFAULT_TEMPLATE, 2, "node1", Optional.empty());
+
+    final String first = layout.newKey("test", CREATED_AT, Codecs.DEFAULT);
+    final String second = layout.newKey("test", CREATED_AT, Codecs.DEFAULT);
+    assertThat(first).isNotEqualTo(second);
+  }
+
+  @Test
+  public void testRestartedNodesNeverShareKeys() {
+    // event time batches of the same bucket share their creation time
+    final KeyLayout before =
+        new KeyLayout(KeyLayout.DEFAULT_TEMPLATE, 1, "node1", Optional.empty());
+    final KeyLayout after =
+        new KeyLayout(KeyLayout.DEFAULT_TEMPLATE, 1, "node1", Optional.empty());
+
+    assertThat(before.newKey("test", CREATED_AT, Codecs.DEFAULT))
+        .isNotEqualTo(after.newKey("test", CREATED_AT, Codecs.DEFAULT));
+  }
+
+  @Test
+  public void testHash() {
+    assertThat(String.valueOf(KeyLayout.hash("test", 32)))
+        .isEqualTo("098f6bcd4621d373cade4e832627b4f6");
+    assertThat(String.valueOf(KeyLayout.hash("test", 3))).isEqualTo("098");
+  }
+
+  @Test
+  public void testInvalidTemplates() {
+    assertThatThrownBy(() -> newLayout("{customer}/{millis}.log"))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("{seq}");
+    assertThatThrownBy(() -> newLayout("{bogus}/{millis}_{seq}.log"))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("{bogus}");
+    assertThatThrownBy(() -> newLayout("{hash}/{hash}/{millis}_{seq}.log"))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> newLayout("{millis}_{seq"))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(
+            () -> new KeyLayout(KeyLayout.DEFAULT_TEMPLATE, 33, "node1", Optional.empty()))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private static KeyLayout newLayout(final String template) {
+    return new KeyLayout(template, 1, "node1", Optional.empty());
+  }
+}
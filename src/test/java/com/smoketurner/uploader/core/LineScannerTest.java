@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.netty.handler.codec.TooLongFrameException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class LineScannerTest {
+
+  private final List<String> lines = new ArrayList<>();
+
+  @Test
+  public void testSplitsLines() throws Exception {
+    final long count = scan(new LineScanner(100), "test1\ntest2\r\n\ntest3");
+    assertThat(count).isEqualTo(4);
+    assertThat(lines).containsExactly("test1", "test2", "", "test3");
+  }
+
+  @Test
+  public void testLinesSpanningReads() throws Exception {
+    final LineScanner scanner = new LineScanner(100);
+    final InputStream input =
+        new ByteArrayInputStream("test1\r\ntest2\ntest3\n".getBytes(StandardCharsets.UTF_8)) {
+          @Override
+          public synchronized int read(byte[] b, int off, int len) {
+            // return one byte at a time
+            return super.read(b, off, Math.min(len, 1));
+          }
+        };
+    scanner.scan(input, this::accept);
+    assertThat(lines).containsExactly("test1", "test2", "test3");
+  }
+
+  @Test
+  public void testGrowsBufferUpToMaxLength() throws Exception {
+    final String line = "a".repeat(20_000);
+    scan(new LineScanner(20_000), line + "\r\n" + line + "\n");
+    assertThat(lines).containsExactly(line, line);
+  }
+
+  @Test
+  public void testReusesScanner() throws Exception {
+    final LineScanner scanner = new LineScanner(100);
+    scan(scanner, "test1\ntest2");
+    scan(scanner, "test3\n");
+    assertThat(lines).containsExactly("test1", "test2", "test3");
+  }
+
+  @Test
+  public void testRejectsLongLine() throws Exception {
+    final LineScanner scanner = new LineScanner(5);
+    assertThatThrownBy(() -> scan(scanner, "test1\ntest22\ntest3\n"))
+        .isInstanceOf(TooLongFrameException.class);
+    assertThat(lines).containsExactly("test1");
+  }
+
+  @Test
+  public void testRejectsLongLineWithoutDelimiter() throws Exception {
+    final LineScanner scanner = new LineScanner(10_000);
+    assertThatThrownBy(() -> scan(scanner, "a".repeat(100_000)))
+        .isInstanceOf(TooLongFrameException.class);
+    assertThat(lines).isEmpty();
+  }
+
+  private long scan(final LineScanner scanner, final String input) throws IOException {
+    return scanner.scan(
+        new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), this::accept);
+  }
+
+  private void accept(final byte[] buf, final int offset, final int length) {
+    lines.add(new String(buf, offset, length, StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.netty.util.concurrent.FastThreadLocalThread;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+
+public class PooledGzipOutputStreamTest {
+
+  private static final byte[] EVENTS =
+      "test1\ntest2\ntest3\n".repeat(1000).getBytes(StandardCharsets.UTF_8);
+
+  @Test
+  public void testReadableByGzipInputStream() throws Exception {
+    for (int level : new int[] {Deflater.DEFAULT_COMPRESSION, 1, 9}) {
+      final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+      try (OutputStream pooled = new PooledGzipOutputStream(output, level)) {
+        pooled.write(EVENTS, 0, 100);
+        pooled.flush();
+        pooled.write(EVENTS, 100, EVENTS.length - 100);
+      }
+
+      try (InputStream input =
+          new GZIPInputStream(new ByteArrayInputStream(output.toByteArray()))) {
+        assertThat(input.readAllBytes()).isEqualTo(EVENTS);
+      }
+    }
+  }
+
+  @Test
+  public void testReturnsDeflaterOnClose() throws Exception {
+    onNettyThread(
+        () -> {
+          final int inUse = DeflaterPool.getInUse();
+
+          final OutputStream first = new PooledGzipOutputStream(new ByteArrayOutputStream(), 6);
+          assertThat(DeflaterPool.getInUse()).isEqualTo(inUse + 1);
+          first.close();
+          assertThat(DeflaterPool.getInUse()).isEqualTo(inUse);
+
+          final int pooled = DeflaterPool.getPooled();
+          assertThat(pooled).isPositive();
+          final OutputStream second = new PooledGzipOutputStream(new ByteArrayOutputStream(), 6);
+          assertThat(DeflaterPool.getPooled()).isEqualTo(pooled - 1);
+          second.close();
+          second.close();
+          assertThat(DeflaterPool.getPooled()).isEqualTo(pooled);
+          return null;
+        });
+  }
+
+  @Test
+  public void testEndsDeflatersReleasedOffNettyThreads() throws Exception {
+    final int inUse = DeflaterPool.getInUse();
+    final int pooled = DeflaterPool.getPooled();
+
+    // borrowed on an event loop and closed on a thread that never ends its pool
+    final OutputStream stream =
+        onNettyThread(() -> new PooledGzipOutputStream(new ByteArrayOutputStream(), 6));
+    assertThat(DeflaterPool.getInUse()).isEqualTo(inUse + 1);
+    stream.close();
+    assertThat(DeflaterPool.getInUse()).isEqualTo(inUse);
+    assertThat(DeflaterPool.getPooled()).isEqualTo(pooled);
+
+    final OutputStream other = new PooledGzipOutputStream(new ByteArrayOutputStream(), 6);
+    other.close();
+    assertThat(DeflaterPool.getPooled()).isEqualTo(pooled);
+  }
+
+  @Test
+  public void testClosedStream() throws Exception {
+    final OutputStream stream = new PooledGzipOutputStream(new ByteArrayOutputStream(), 6);
+    stream.close();
+
+    assertThatThrownBy(() -> stream.write(EVENTS)).isInstanceOf(IOException.class);
+    assertThatThrownBy(stream::flush).isInstanceOf(IOException.class);
+  }
+
+  private static <T> T onNettyThread(final Callable<T> task) throws Exception {
+    final FutureTask<T> future = new FutureTask<>(task);
+    final Thread thread = new FastThreadLocalThread(future);
+    thread.start();
+    final T result = future.get(1, TimeUnit.MINUTES);
+    thread.join();
+    return result;
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.codahale.metrics.SharedMetricRegistries;
+import com.smoketurner.uploader.config.RetryConfiguration;
+import io.dropwizard.util.Duration;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+
+public class RetryPolicyTest {
+
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+  private final RetryConfiguration configuration = new RetryConfiguration();
+  private final AtomicInteger attempts = new AtomicInteger(0);
+  private RetryPolicy policy;
+
+  @BeforeClass
+  public static void setUpClass() {
+    if (SharedMetricRegistries.tryGetDefault() == null) {
+      SharedMetricRegistries.setDefault("test");
+    }
+  }
+
+  @Before
+  public void setUp() {
+    configuration.setMaxAttempts(3);
+    configuration.setBaseDelay(Duration.milliseconds(1));
+    configuration.setMaxDelay(Duration.milliseconds(10));
+    policy = new RetryPolicy(configuration, executor);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testRetriesUntilSuccess() throws Exception {
+    final CompletableFuture<String> result =
+        policy.execute("test", () -> failTimes(2, serviceError(503)));
+
+    assertThat(result.get()).isEqualTo("ok");
+    assertThat(attempts.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void testGivesUpAfterMaxAttempts() throws Exception {
+    final CompletableFuture<String> result =
+        policy.execute("test", () -> failTimes(5, SdkClientException.create("timeout")));
+
+    assertThatThrownBy(result::join)
+        .isInstanceOf(CompletionException.class)
+        .hasCauseInstanceOf(SdkClientException.class);
+    assertThat(attempts.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void testDoesNotRetryClientErrors() throws Exception {
+    final CompletableFuture<String> result =
+        policy.execute("test", () -> failTimes(1, serviceError(403)));
+
+    assertThatThrownBy(result::join).hasCauseInstanceOf(SdkServiceException.class);
+    assertThat(attempts.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testIsRetryable() {
+    assertThat(RetryPolicy.isRetryable(serviceError(500))).isTrue();
+    assertThat(RetryPolicy.isRetryable(serviceError(503))).isTrue();
+    assertThat(RetryPolicy.isRetryable(serviceError(429))).isTrue();
+    assertThat(RetryPolicy.isRetryable(serviceError(400))).isFalse();
+    assertThat(RetryPolicy.isRetryable(serviceError(404))).isFalse();
+    assertThat(RetryPolicy.isRetryable(SdkClientException.create("timeout"))).isTrue();
+    assertThat(RetryPolicy.isRetryable(new CompletionException(new IOException("reset"))))
+        .isTrue();
+    assertThat(RetryPolicy.isRetryable(new IllegalStateException())).isFalse();
+  }
+
+  @Test
+  public void testDelayIsCapped() {
+    for (int attempt = 1; attempt < 100; attempt++) {
+      assertThat(policy.getDelayMillis(attempt)).isBetween(0L, 10L);
+    }
+  }
+
+  private CompletableFuture<String> failTimes(final int failures, final Throwable error) {
+    final CompletableFuture<String> future = new CompletableFuture<>();
+    if (attempts.incrementAndGet() <= failures) {
+      future.completeExceptionally(error);
+    } else {
+      future.complete("ok");
+    }
+    return future;
+  }
+
+  private static SdkServiceException serviceError(final int statusCode) {
+    return SdkServiceException.builder().statusCode(statusCode).message("error").build();
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.core;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.codahale.metrics.SharedMetricRegistries;
+import com.smoketurner.uploader.config.SpoolConfiguration;
+import io.dropwizard.util.Size;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpoolTest {
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final SpoolConfiguration configuration = new SpoolConfiguration();
+
+  @BeforeClass
+  public static void setUpClass() {
+    if (SharedMetricRegistries.tryGetDefault() == null) {
+      SharedMetricRegistries.setDefault("test");
+    }
+  }
+
+  @Before
+  public void setUp() {
+    configuration.setDirectory(folder.getRoot().getAbsolutePath());
+    configuration.setSegmentSize(Size.megabytes(1));
+  }
+
+  @Test
+  public void testRecoversUnacknowledgedBatches() throws Exception {
+    Spool spool = new Spool(configuration);
+    assertThat(spool.recover()).isEmpty();
+    spool.start();
+
+    final long id1 = spool.nextId();
+    final long id2 = spool.nextId();
+    spool.append(id1, "key1", "test", 2, true, buffer("test1"));
+    spool.append(id2, "key2", null, 0, false, buffer("part1"));
+    spool.append(id2, "key2", null, 3, true, buffer("part2"));
+    spool.stop();
+
+    spool = new Spool(configuration);
+    final List<SpooledBatch> batches = spool.recover();
+    assertThat(batches).hasSize(2);
+
+    final SpooledBatch batch1 = batches.get(0);
+    assertThat(batch1.getKey()).isEqualTo("key1");
+    assertThat(batch1.getCustomerId()).contains("test");
+    assertThat(batch1.getCount()).isEqualTo(2);
+    assertThat(read(spool, batch1)).isEqualTo("test1");
+
+    final SpooledBatch batch2 = batches.get(1);
+    assertThat(batch2.getCustomerId()).isEmpty();
+    assertThat(batch2.getCount()).isEqualTo(3);
+    assertThat(read(spool, batch2)).isEqualTo("part1part2");
+
+    spool.start();
+    spool.ack(batch1.getId());
+    spool.stop();
+
+    spool = new Spool(configuration);
+    assertThat(spool.recover()).extracting(SpooledBatch::getKey).containsExactly("key2");
+  }
+
+  @Test
+  public void testDiscardsIncompleteBatches() throws Exception {
+    Spool spool = new Spool(configuration);
+    spool.recover();
+    spool.start();
+    spool.append(spool.nextId(), "key1", "test", 0, false, buffer("part1"));
+    spool.stop();
+
+    spool = new Spool(configuration);
+    assertThat(spool.recover()).isEmpty();
+  }
+
+  @Test
+  public void testDeletesAcknowledgedSegments() throws Exception {
+    final Spool spool = new Spool(configuration);
+    spool.recover();
+    spool.start();
+
+    final long id = spool.nextId();
+    final ByteBuf data = buffer("test1");
+    spool.append(id, "key1", "test", 1, true, data);
+    spool.ack(id);
+    spool.stop();
+
+    assertThat(data.refCnt()).isEqualTo(1);
+    try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+      assertThat(files).isEmpty();
+    }
+  }
+
+  @Test
+  public void testCompletesAppendsOnceWritten() throws Exception {
+    final Spool spool = new Spool(configuration);
+    spool.recover();
+
+    final CompletableFuture<Void> written =
+        spool.append(spool.nextId(), "key1", "test", 1, true, buffer("test1"));
+    assertThat(written).isNotDone();
+    spool.start();
+    written.get(1, TimeUnit.MINUTES);
+    spool.stop();
+
+    assertThatThrownBy(
+            () -> spool.append(spool.nextId(), "key2", null, 1, true, buffer("test2")).join())
+        .hasCauseInstanceOf(IOException.class);
+
+    assertThat(new Spool(configuration).recover()).hasSize(1);
+  }
+
+  private static ByteBuf buffer(final String str) {
+    return Unpooled.copiedBuffer(str, StandardCharsets.UTF_8);
+  }
+
+  private static String read(final Spool spool, final SpooledBatch batch) throws Exception {
+    final ByteBuf content = spool.read(batch);
+    try {
+      return content.toString(StandardCharsets.UTF_8);
+    } finally {
+      content.release();
+    }
+  }
+}
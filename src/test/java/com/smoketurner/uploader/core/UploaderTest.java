@@ -15,20 +15,231 @@
  */
 package com.smoketurner.uploader.core;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
+import com.codahale.metrics.SharedMetricRegistries;
 import com.smoketurner.uploader.config.AwsConfiguration;
+import com.smoketurner.uploader.config.SpoolConfiguration;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
 import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
 
 public class UploaderTest {
 
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
   private final S3AsyncClient mockS3 = mock(S3AsyncClient.class);
   private final AwsConfiguration configuration = new AwsConfiguration();
-  private final Uploader uploader = new Uploader(mockS3, configuration);
+  private Uploader uploader;
+
+  @BeforeClass
+  public static void setUpClass() {
+    if (SharedMetricRegistries.tryGetDefault() == null) {
+      SharedMetricRegistries.setDefault("test");
+    }
+  }
 
   @Before
   public void setUp() {
+    configuration.setMaxInFlightBatches(2);
+    uploader = new Uploader(mockS3, configuration);
     uploader.setCurrentTimeProvider(() -> 10000L);
   }
+
+  @Test
+  public void testMultipartUpload() throws Exception {
+    when(mockS3.createMultipartUpload(any(CreateMultipartUploadRequest.class)))
+        .thenReturn(
+            CompletableFuture.completedFuture(
+                CreateMultipartUploadResponse.builder().uploadId("upload-1").build()));
+    when(mockS3.uploadPart(any(UploadPartRequest.class), any(AsyncRequestBody.class)))
+        .thenReturn(
+            CompletableFuture.completedFuture(UploadPartResponse.builder().eTag("etag").build()));
+    when(mockS3.completeMultipartUpload(any(CompleteMultipartUploadRequest.class)))
+        .thenReturn(
+            CompletableFuture.completedFuture(CompleteMultipartUploadResponse.builder().build()));
+
+    final Batch batch = Batch.create("test");
+    batch.add("test1".getBytes(StandardCharsets.UTF_8));
+    uploader.uploadPart(batch);
+    batch.add("test2".getBytes(StandardCharsets.UTF_8));
+    batch.finish();
+    uploader.upload(batch);
+
+    verify(mockS3).createMultipartUpload(any(CreateMultipartUploadRequest.class));
+    verify(mockS3, times(2)).uploadPart(any(UploadPartRequest.class), any(AsyncRequestBody.class));
+    verify(mockS3, never()).putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class));
+
+    final ArgumentCaptor<CompleteMultipartUploadRequest> captor =
+        ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+    verify(mockS3).completeMultipartUpload(captor.capture());
+
+    final CompleteMultipartUploadRequest request = captor.getValue();
+    assertThat(request.uploadId()).isEqualTo("upload-1");
+    assertThat(request.multipartUpload().parts()).hasSize(2);
+    assertThat(request.multipartUpload().parts().get(1).partNumber()).isEqualTo(2);
+  }
+
+  @Test
+  public void testFailedMultipartUploadStaysSpooled() throws Exception {
+    final SpoolConfiguration spoolConfiguration = new SpoolConfiguration();
+    spoolConfiguration.setEnabled(true);
+    spoolConfiguration.setDirectory(folder.getRoot().getAbsolutePath());
+    Spool spool = new Spool(spoolConfiguration);
+    spool.recover();
+    spool.start();
+    uploader = new Uploader(mockS3, configuration, RetryPolicy.noRetries(), spool, null);
+
+    final CompletableFuture<UploadPartResponse> failed = new CompletableFuture<>();
+    failed.completeExceptionally(new IOException("test"));
+    when(mockS3.createMultipartUpload(any(CreateMultipartUploadRequest.class)))
+        .thenReturn(
+            CompletableFuture.completedFuture(
+                CreateMultipartUploadResponse.builder().uploadId("upload-1").build()));
+    when(mockS3.uploadPart(any(UploadPartRequest.class), any(AsyncRequestBody.class)))
+        .thenReturn(failed);
+    when(mockS3.abortMultipartUpload(any(AbortMultipartUploadRequest.class)))
+        .thenReturn(
+            CompletableFuture.completedFuture(AbortMultipartUploadResponse.builder().build()));
+
+    final Batch batch = Batch.create("test");
+    batch.add("test1".getBytes(StandardCharsets.UTF_8));
+    uploader.uploadPart(batch);
+    batch.add("test2".getBytes(StandardCharsets.UTF_8));
+    batch.finish();
+    uploader.upload(batch);
+
+    verify(mockS3, timeout(1000)).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    verify(mockS3, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    spool.stop();
+
+    // the parts were released, so the batch is recovered from the spool
+    spool = new Spool(spoolConfiguration);
+    final List<SpooledBatch> batches = spool.recover();
+    assertThat(batches).hasSize(1);
+    assertThat(batches.get(0).getKey()).isEqualTo(batch.getKey());
+    assertThat(batches.get(0).getCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testUploadsOnlyOnceSpooled() throws Exception {
+    final Spool spool = newSpool();
+    uploader = new Uploader(mockS3, configuration, RetryPolicy.noRetries(), spool, null);
+    when(mockS3.putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class)))
+        .thenReturn(CompletableFuture.completedFuture(PutObjectResponse.builder().build()));
+
+    uploader.upload(newBatch());
+    verify(mockS3, never()).putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class));
+
+    spool.start();
+    verify(mockS3, timeout(1000))
+        .putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class));
+    spool.stop();
+  }
+
+  @Test
+  public void testUploadsBatchesTheSpoolRejected() throws Exception {
+    final Spool spool = newSpool();
+    spool.start();
+    spool.stop();
+    uploader = new Uploader(mockS3, configuration, RetryPolicy.noRetries(), spool, null);
+    when(mockS3.putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class)))
+        .thenReturn(CompletableFuture.completedFuture(PutObjectResponse.builder().build()));
+
+    uploader.upload(newBatch());
+    verify(mockS3).putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class));
+  }
+
+  @Test
+  public void testPausesChannelsWhenOverBudget() throws Exception {
+    final CompletableFuture<PutObjectResponse> first = new CompletableFuture<>();
+    final CompletableFuture<PutObjectResponse> second = new CompletableFuture<>();
+    when(mockS3.putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class)))
+        .thenReturn(first, second);
+
+    final EmbeddedChannel channel = new EmbeddedChannel();
+
+    uploader.upload(newBatch());
+    assertThat(uploader.isOverBudget()).isFalse();
+
+    uploader.upload(newBatch());
+    assertThat(uploader.isOverBudget()).isTrue();
+
+    uploader.pause(channel);
+    assertThat(channel.config().isAutoRead()).isFalse();
+
+    first.complete(PutObjectResponse.builder().build());
+    assertThat(uploader.isOverBudget()).isFalse();
+    assertThat(channel.config().isAutoRead()).isFalse();
+
+    second.complete(PutObjectResponse.builder().build());
+    assertThat(channel.config().isAutoRead()).isTrue();
+  }
+
+  @Test
+  public void testResumesChannelsPausedAfterDippingUnderBudget() throws Exception {
+    configuration.setMaxInFlightBatches(4);
+    uploader = new Uploader(mockS3, configuration);
+    final CompletableFuture<PutObjectResponse> first = new CompletableFuture<>();
+    final CompletableFuture<PutObjectResponse> rest = new CompletableFuture<>();
+    when(mockS3.putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class)))
+        .thenReturn(first, rest, rest, rest);
+
+    for (int i = 0; i < 4; i++) {
+      uploader.upload(newBatch());
+    }
+    first.complete(PutObjectResponse.builder().build());
+    assertThat(uploader.isOverBudget()).isFalse();
+
+    // still above half of the budget
+    final EmbeddedChannel channel = new EmbeddedChannel();
+    uploader.pause(channel);
+    assertThat(channel.config().isAutoRead()).isFalse();
+
+    rest.complete(PutObjectResponse.builder().build());
+    assertThat(channel.config().isAutoRead()).isTrue();
+  }
+
+  private Spool newSpool() throws Exception {
+    final SpoolConfiguration spoolConfiguration = new SpoolConfiguration();
+    spoolConfiguration.setEnabled(true);
+    spoolConfiguration.setDirectory(folder.getRoot().getAbsolutePath());
+    final Spool spool = new Spool(spoolConfiguration);
+    spool.recover();
+    return spool;
+  }
+
+  private static Batch newBatch() throws Exception {
+    final Batch batch = Batch.create("test");
+    batch.add("test1".getBytes(StandardCharsets.UTF_8));
+    batch.finish();
+    return batch;
+  }
 }
@@ -0,0 +1,157 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.handler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.codahale.metrics.SharedMetricRegistries;
+import com.smoketurner.uploader.config.BatchConfiguration;
+import com.smoketurner.uploader.config.CompressionConfiguration;
+import com.smoketurner.uploader.core.Batch;
+import com.smoketurner.uploader.core.Codecs;
+import io.dropwizard.util.Duration;
+import io.dropwizard.util.Size;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.nio.charset.StandardCharsets;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class BatchHandlerTest {
+
+  private final BatchConfiguration configuration = new BatchConfiguration();
+  private Codecs codecs;
+
+  @BeforeClass
+  public static void setUpClass() {
+    if (SharedMetricRegistries.tryGetDefault() == null) {
+      SharedMetricRegistries.setDefault("test");
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    codecs = new Codecs(new CompressionConfiguration());
+    configuration.setMaxBatchCount(2);
+    configuration.setMaxBatchAge(Duration.milliseconds(10));
+  }
+
+  @Test
+  public void testFlushOnMaxBatchCount() {
+    final EmbeddedChannel channel = newChannel();
+
+    channel.writeInbound(event("test1"));
+    assertThat((Batch) channel.readInbound()).isNull();
+
+    channel.writeInbound(event("test2"));
+    final Batch batch = channel.readInbound();
+    assertThat(batch.getCount()).isEqualTo(2);
+    assertThat(batch.isFinished()).isTrue();
+  }
+
+  @Test
+  public void testFlushOnMaxBatchAge() throws Exception {
+    final EmbeddedChannel channel = newChannel();
+
+    channel.writeInbound(event("test1"));
+    assertThat((Batch) channel.readInbound()).isNull();
+
+    Thread.sleep(50);
+    channel.runScheduledPendingTasks();
+
+    final Batch batch = channel.readInbound();
+    assertThat(batch.getCount()).isEqualTo(1);
+    assertThat(batch.isFinished()).isTrue();
+  }
+
+  @Test
+  public void testFlushOnMaxUploadSize() {
+    configuration.setMaxBatchCount(Integer.MAX_VALUE);
+    final EmbeddedChannel channel =
+        new EmbeddedChannel(new BatchHandler(Size.bytes(1), configuration, codecs));
+
+    channel.writeInbound(event("test1"));
+
+    final Batch batch = channel.readInbound();
+    assertThat(batch.getCount()).isEqualTo(1);
+    assertThat(batch.isFinished()).isTrue();
+  }
+
+  @Test
+  public void testFlushOnChannelInactive() {
+    final EmbeddedChannel channel = newChannel();
+
+    channel.writeInbound(event("test1"));
+    channel.finish();
+
+    final Batch batch = channel.readInbound();
+    assertThat(batch.getCount()).isEqualTo(1);
+    assertThat(batch.isFinished()).isTrue();
+  }
+
+  @Test
+  public void testReleasesDirectFrames() {
+    final EmbeddedChannel channel = newChannel();
+
+    final ByteBuf first = Unpooled.directBuffer().writeBytes(event("test1"));
+    final ByteBuf second = Unpooled.directBuffer().writeBytes(event("test2"));
+    channel.writeInbound(first);
+    channel.writeInbound(second);
+
+    assertThat(first.refCnt()).isZero();
+    assertThat(second.refCnt()).isZero();
+
+    final Batch batch = channel.readInbound();
+    assertThat(batch.getCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testEventTimeBuckets() {
+    configuration.setMaxBatchCount(Integer.MAX_VALUE);
+    configuration.setMaxBatchAge(Duration.minutes(5));
+    configuration.getEventTime().setEnabled(true);
+    configuration.getEventTime().setMaxOpenBuckets(2);
+    configuration.getEventTime().setMaxPast(Duration.days(36500));
+    final EmbeddedChannel channel = newChannel();
+
+    channel.writeInbound(event("{\"timestamp\":\"2016-12-14T16:52:13Z\"}"));
+    channel.writeInbound(event("{\"timestamp\":\"2016-12-14T17:01:00Z\"}"));
+    channel.writeInbound(event("{\"timestamp\":\"2016-12-14T16:10:00Z\"}"));
+    assertThat((Batch) channel.readInbound()).isNull();
+
+    // a third bucket uploads the oldest one
+    channel.writeInbound(event("{\"timestamp\":\"2016-12-14T18:00:00Z\"}"));
+    final Batch first = channel.readInbound();
+    assertThat(first.getCount()).isEqualTo(2);
+    assertThat(first.getKey()).contains("-2016/12/14/16/00/00/");
+
+    channel.finish();
+    final Batch second = channel.readInbound();
+    final Batch third = channel.readInbound();
+    assertThat(second.getKey()).contains("-2016/12/14/17/00/00/");
+    assertThat(third.getKey()).contains("-2016/12/14/18/00/00/");
+  }
+
+  private EmbeddedChannel newChannel() {
+    return new EmbeddedChannel(new BatchHandler(Size.megabytes(1), configuration, codecs));
+  }
+
+  private static ByteBuf event(final String event) {
+    return Unpooled.copiedBuffer(event, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.handler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.codahale.metrics.SharedMetricRegistries;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.util.concurrent.EventExecutor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class CompressionQueueHandlerTest {
+
+  private final EventExecutor executor = new DefaultEventExecutor();
+  private final List<Integer> events = Collections.synchronizedList(new ArrayList<>());
+  private final List<Boolean> onExecutor = Collections.synchronizedList(new ArrayList<>());
+  private final CountDownLatch gate = new CountDownLatch(1);
+
+  @BeforeClass
+  public static void setUpClass() {
+    if (SharedMetricRegistries.tryGetDefault() == null) {
+      SharedMetricRegistries.setDefault("test");
+    }
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testPreservesOrderOnExecutor() throws Exception {
+    gate.countDown();
+    final EmbeddedChannel channel = newChannel(100);
+
+    for (int i = 0; i < 1000; i++) {
+      channel.writeInbound(Unpooled.buffer(4).writeInt(i));
+    }
+    awaitEvents(channel, 1000);
+
+    for (int i = 0; i < 1000; i++) {
+      assertThat(events.get(i)).isEqualTo(i);
+    }
+    assertThat(onExecutor).containsOnly(true);
+  }
+
+  @Test
+  public void testPausesReadsWhenQueueIsFull() throws Exception {
+    final EmbeddedChannel channel = newChannel(10);
+    final CompressionQueueHandler handler = channel.pipeline().get(CompressionQueueHandler.class);
+
+    for (int i = 0; i < 20; i++) {
+      channel.writeInbound(Unpooled.buffer(4).writeInt(i));
+    }
+    assertThat(handler.getDepth()).isGreaterThanOrEqualTo(10);
+    assertThat(channel.config().isAutoRead()).isFalse();
+
+    gate.countDown();
+    awaitEvents(channel, 20);
+
+    assertThat(handler.getDepth()).isZero();
+    assertThat(channel.config().isAutoRead()).isTrue();
+  }
+
+  private EmbeddedChannel newChannel(final int maxQueued) {
+    final EmbeddedChannel channel = new EmbeddedChannel();
+    channel.pipeline().addLast(new CompressionQueueHandler(executor, maxQueued));
+    channel
+        .pipeline()
+        .addLast(
+            executor,
+            "batcher",
+            new SimpleChannelInboundHandler<ByteBuf>() {
+              @Override
+              protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg)
+                  throws Exception {
+                gate.await();
+                onExecutor.add(executor.inEventLoop());
+                events.add(msg.readInt());
+              }
+            });
+    return channel;
+  }
+
+  private void awaitEvents(final EmbeddedChannel channel, final int count) throws Exception {
+    final CompressionQueueHandler handler = channel.pipeline().get(CompressionQueueHandler.class);
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while ((events.size() < count || handler.getDepth() > 0) && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    // resuming reads is scheduled back on the channel's event loop
+    channel.runPendingTasks();
+  }
+}
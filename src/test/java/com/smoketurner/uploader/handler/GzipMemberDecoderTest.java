@@ -0,0 +1,139 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.handler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.codahale.metrics.SharedMetricRegistries;
+import com.smoketurner.uploader.core.GzipMember;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import io.netty.util.ReferenceCountUtil;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class GzipMemberDecoderTest {
+
+  @BeforeClass
+  public static void setUpClass() {
+    if (SharedMetricRegistries.tryGetDefault() == null) {
+      SharedMetricRegistries.setDefault("test");
+    }
+  }
+
+  @Test
+  public void testPassesMembersThrough() throws Exception {
+    final byte[] first = gzip("test1\ntest2\n");
+    final byte[] second = gzip("test3\n");
+
+    final EmbeddedChannel channel = newChannel(1024 * 1024);
+    writeInChunks(channel, concat(first, gzip(""), second), 3);
+
+    assertThat(read(channel))
+        .containsExactly("member:2:" + first.length, "member:1:" + second.length);
+    assertThat(channel.isActive()).isTrue();
+  }
+
+  @Test
+  public void testDecompressesPartialLines() throws Exception {
+    final EmbeddedChannel channel = newChannel(1024 * 1024);
+    writeInChunks(channel, concat(gzip("test1\ntes"), gzip("t2\n"), gzip("test3\n")), 3);
+
+    // once a member is decompressed the rest of the connection is too
+    assertThat(read(channel)).containsExactly("test1", "test2", "test3");
+  }
+
+  @Test
+  public void testDecompressesLargeMembers() throws Exception {
+    final EmbeddedChannel channel = newChannel(16);
+    channel.writeInbound(Unpooled.wrappedBuffer(gzip("test1\ntest2\n")));
+
+    assertThat(read(channel)).containsExactly("test1", "test2");
+  }
+
+  @Test
+  public void testDecompressesCarriageReturns() throws Exception {
+    final EmbeddedChannel channel = newChannel(1024 * 1024);
+    channel.writeInbound(Unpooled.wrappedBuffer(gzip("test1\r\ntest2\n")));
+
+    assertThat(read(channel)).containsExactly("test1", "test2");
+  }
+
+  @Test
+  public void testClosesOnInvalidChecksum() throws Exception {
+    final byte[] bytes = gzip("test1\n");
+    bytes[bytes.length - 8] ^= 1;
+
+    final EmbeddedChannel channel = newChannel(1024 * 1024);
+    channel.writeInbound(Unpooled.wrappedBuffer(bytes));
+
+    assertThat(read(channel)).isEmpty();
+    assertThat(channel.isActive()).isFalse();
+  }
+
+  private static EmbeddedChannel newChannel(final long maxMemberBytes) {
+    return new EmbeddedChannel(
+        new GzipMemberDecoder(new DecompressionLimit(100), 1024, maxMemberBytes),
+        new LineBasedFrameDecoder(1024, true, true));
+  }
+
+  private static byte[] gzip(final String events) throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream out = new GZIPOutputStream(bytes)) {
+      out.write(events.getBytes(StandardCharsets.UTF_8));
+    }
+    return bytes.toByteArray();
+  }
+
+  private static byte[] concat(final byte[]... arrays) throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    for (byte[] array : arrays) {
+      bytes.write(array);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void writeInChunks(
+      final EmbeddedChannel channel, final byte[] bytes, final int chunkSize) {
+    for (int i = 0; i < bytes.length; i += chunkSize) {
+      channel.writeInbound(
+          Unpooled.wrappedBuffer(bytes, i, Math.min(chunkSize, bytes.length - i)));
+    }
+  }
+
+  private static List<String> read(final EmbeddedChannel channel) {
+    final List<String> messages = new ArrayList<>();
+    Object msg;
+    while ((msg = channel.readInbound()) != null) {
+      if (msg instanceof GzipMember) {
+        final GzipMember member = (GzipMember) msg;
+        messages.add("member:" + member.getEvents() + ":" + member.content().readableBytes());
+      } else {
+        messages.add(((ByteBuf) msg).toString(StandardCharsets.UTF_8));
+      }
+      ReferenceCountUtil.release(msg);
+    }
+    return messages;
+  }
+}
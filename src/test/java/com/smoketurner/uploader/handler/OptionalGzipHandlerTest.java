@@ -0,0 +1,204 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.handler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.codahale.metrics.SharedMetricRegistries;
+import com.github.luben.zstd.ZstdOutputStream;
+import com.smoketurner.uploader.config.CompressionConfiguration;
+import com.smoketurner.uploader.core.Codecs;
+import com.smoketurner.uploader.core.GzipMember;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class OptionalGzipHandlerTest {
+
+  private static final String EVENTS = "test1\ntest2\ntest3\n";
+
+  @BeforeClass
+  public static void setUpClass() {
+    if (SharedMetricRegistries.tryGetDefault() == null) {
+      SharedMetricRegistries.setDefault("test");
+    }
+  }
+
+  @Test
+  public void testUncompressed() {
+    final EmbeddedChannel channel = newChannel(false);
+    channel.writeInbound(Unpooled.copiedBuffer(EVENTS, StandardCharsets.UTF_8));
+
+    assertThat(readLines(channel)).containsExactly("test1", "test2", "test3");
+    assertThat(channel.pipeline().get(OptionalGzipHandler.class)).isNull();
+    assertThat(channel.pipeline().get("decompressor")).isNull();
+  }
+
+  @Test
+  public void testShortUncompressedLine() {
+    final EmbeddedChannel channel = newChannel(false);
+    channel.writeInbound(Unpooled.copiedBuffer("a\n", StandardCharsets.UTF_8));
+
+    assertThat(readLines(channel)).containsExactly("a");
+  }
+
+  @Test
+  public void testGzip() throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream out = new GZIPOutputStream(bytes)) {
+      out.write(EVENTS.getBytes(StandardCharsets.UTF_8));
+    }
+
+    final EmbeddedChannel channel = newChannel(true);
+    writeInChunks(channel, bytes.toByteArray(), 3);
+
+    assertThat(readLines(channel)).containsExactly("test1", "test2", "test3");
+    assertThat(channel.pipeline().get("decompressor")).isInstanceOf(GzipDecoder.class);
+  }
+
+  @Test
+  public void testConcatenatedGzipMembers() throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream out = new GZIPOutputStream(bytes)) {
+      out.write(EVENTS.getBytes(StandardCharsets.UTF_8));
+    }
+    try (OutputStream out = new GZIPOutputStream(bytes)) {
+      out.write("test4\ntest5\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    final EmbeddedChannel channel = newChannel(true);
+    writeInChunks(channel, bytes.toByteArray(), 7);
+
+    assertThat(readLines(channel)).containsExactly("test1", "test2", "test3", "test4", "test5");
+  }
+
+  @Test
+  public void testGzipPassThrough() throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream out = new GZIPOutputStream(bytes)) {
+      out.write(EVENTS.getBytes(StandardCharsets.UTF_8));
+    }
+
+    final EmbeddedChannel channel =
+        new EmbeddedChannel(
+            new OptionalGzipHandler(
+                true, 100, new Codecs(new CompressionConfiguration()), 1024, 1024 * 1024),
+            new LineBasedFrameDecoder(1024, true, true));
+    writeInChunks(channel, bytes.toByteArray(), 3);
+
+    final GzipMember member = channel.readInbound();
+    assertThat(member.getEvents()).isEqualTo(3);
+    assertThat(member.content().readableBytes()).isEqualTo(bytes.size());
+    assertThat(channel.pipeline().get("decompressor")).isInstanceOf(GzipMemberDecoder.class);
+    member.release();
+  }
+
+  @Test
+  public void testZstd() throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream out = new ZstdOutputStream(bytes)) {
+      out.write(EVENTS.getBytes(StandardCharsets.UTF_8));
+    }
+
+    final EmbeddedChannel channel = newChannel(true);
+    writeInChunks(channel, bytes.toByteArray(), 3);
+
+    assertThat(readLines(channel)).containsExactly("test1", "test2", "test3");
+    assertThat(channel.pipeline().get("decompressor")).isInstanceOf(ZstdDecoder.class);
+  }
+
+  @Test
+  public void testLz4() throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream out = new LZ4FrameOutputStream(bytes)) {
+      out.write(EVENTS.getBytes(StandardCharsets.UTF_8));
+    }
+
+    final EmbeddedChannel channel = newChannel(true);
+    writeInChunks(channel, bytes.toByteArray(), 3);
+
+    assertThat(readLines(channel)).containsExactly("test1", "test2", "test3");
+    assertThat(channel.pipeline().get("decompressor")).isInstanceOf(Lz4Decoder.class);
+  }
+
+  @Test
+  public void testClosesOnDecompressionBomb() throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream out = new GZIPOutputStream(bytes)) {
+      final byte[] zeros = new byte[1024 * 1024];
+      for (int i = 0; i < 100; i++) {
+        out.write(zeros);
+      }
+    }
+
+    final EmbeddedChannel channel =
+        new EmbeddedChannel(new OptionalGzipHandler(true, 100));
+    channel.writeInbound(Unpooled.wrappedBuffer(bytes.toByteArray()));
+
+    assertThat(channel.isActive()).isFalse();
+
+    long decompressed = 0;
+    ByteBuf buf;
+    while ((buf = channel.readInbound()) != null) {
+      decompressed += buf.readableBytes();
+      buf.release();
+    }
+    assertThat(decompressed).isLessThan(100L * bytes.size() + 10 * 1024 * 1024);
+  }
+
+  @Test
+  public void testClosesEncryptedConnectionWithoutSsl() {
+    final EmbeddedChannel channel = newChannel(false);
+
+    // TLS handshake record header
+    channel.writeInbound(Unpooled.wrappedBuffer(new byte[] {0x16, 0x03, 0x01, 0x00, 0x05, 0x01}));
+
+    assertThat(channel.isActive()).isFalse();
+  }
+
+  private static EmbeddedChannel newChannel(final boolean ssl) {
+    return new EmbeddedChannel(
+        new OptionalGzipHandler(ssl, 100), new LineBasedFrameDecoder(1024, true, true));
+  }
+
+  private static void writeInChunks(
+      final EmbeddedChannel channel, final byte[] bytes, final int chunkSize) {
+    for (int i = 0; i < bytes.length; i += chunkSize) {
+      channel.writeInbound(
+          Unpooled.wrappedBuffer(bytes, i, Math.min(chunkSize, bytes.length - i)));
+    }
+  }
+
+  private static List<String> readLines(final EmbeddedChannel channel) {
+    final List<String> lines = new ArrayList<>();
+    ByteBuf buf;
+    while ((buf = channel.readInbound()) != null) {
+      lines.add(buf.toString(StandardCharsets.UTF_8));
+      buf.release();
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.handler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.codahale.metrics.SharedMetricRegistries;
+import com.smoketurner.uploader.config.AwsConfiguration;
+import com.smoketurner.uploader.config.QuotaConfiguration;
+import com.smoketurner.uploader.core.Batch;
+import com.smoketurner.uploader.core.CustomerQuotas;
+import com.smoketurner.uploader.core.Uploader;
+import io.dropwizard.util.Size;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+public class QuotaHandlerTest {
+
+  private final QuotaConfiguration configuration = new QuotaConfiguration();
+  private final S3AsyncClient mockS3 = mock(S3AsyncClient.class);
+  private Uploader uploader;
+  private CustomerQuotas quotas;
+
+  @BeforeClass
+  public static void setUpClass() {
+    if (SharedMetricRegistries.tryGetDefault() == null) {
+      SharedMetricRegistries.setDefault("test");
+    }
+  }
+
+  @Before
+  public void setUp() {
+    configuration.setEnabled(true);
+    configuration.setEventsPerSecond(1000);
+    configuration.setEventBurst(3);
+    configuration.setBytesPerSecond(Size.bytes(0));
+    quotas = new CustomerQuotas(configuration);
+
+    final AwsConfiguration awsConfiguration = new AwsConfiguration();
+    awsConfiguration.setMaxInFlightBatches(2);
+    uploader = new Uploader(mockS3, awsConfiguration);
+  }
+
+  @Test
+  public void testPausesReadsOverQuota() throws Exception {
+    final EmbeddedChannel channel = newChannel("test");
+
+    for (int i = 0; i < 3; i++) {
+      channel.writeInbound(event("test" + i));
+    }
+    assertThat(channel.config().isAutoRead()).isTrue();
+
+    channel.writeInbound(event("test3"));
+    channel.writeInbound(event("test4"));
+    assertThat(channel.config().isAutoRead()).isFalse();
+
+    // events are never dropped while the customer is over its quota
+    assertThat(channel.inboundMessages()).hasSize(5);
+    releaseInbound(channel);
+
+    Thread.sleep(10);
+    channel.runScheduledPendingTasks();
+    assertThat(channel.config().isAutoRead()).isTrue();
+    channel.finish();
+  }
+
+  @Test
+  public void testSharedBetweenConnections() throws Exception {
+    final EmbeddedChannel channel1 = newChannel("shared");
+    final EmbeddedChannel channel2 = newChannel("shared");
+
+    channel1.writeInbound(event("test1"));
+    channel1.writeInbound(event("test2"));
+    channel2.writeInbound(event("test3"));
+    assertThat(channel2.config().isAutoRead()).isTrue();
+
+    channel2.writeInbound(event("test4"));
+    assertThat(channel1.config().isAutoRead()).isTrue();
+    assertThat(channel2.config().isAutoRead()).isFalse();
+
+    releaseInbound(channel1);
+    releaseInbound(channel2);
+    channel1.finish();
+    channel2.finish();
+  }
+
+  @Test
+  public void testStaysPausedWhileOverQuotaAndBudget() throws Exception {
+    configuration.setEventsPerSecond(10);
+    configuration.setEventBurst(1);
+    quotas = new CustomerQuotas(configuration);
+    final CompletableFuture<PutObjectResponse> upload = new CompletableFuture<>();
+    when(mockS3.putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class)))
+        .thenReturn(upload);
+    final EmbeddedChannel channel = newChannel("budget");
+
+    for (int i = 0; i < 2; i++) {
+      final Batch batch = Batch.create("budget");
+      batch.add("test1".getBytes(StandardCharsets.UTF_8));
+      batch.finish();
+      uploader.upload(batch);
+    }
+    assertThat(uploader.isOverBudget()).isTrue();
+    uploader.pause(channel);
+
+    channel.writeInbound(event("test1"));
+    channel.writeInbound(event("test2"));
+    assertThat(channel.config().isAutoRead()).isFalse();
+
+    // the uploads draining must not lift the quota pause
+    upload.complete(PutObjectResponse.builder().build());
+    assertThat(uploader.isOverBudget()).isFalse();
+    assertThat(channel.config().isAutoRead()).isFalse();
+
+    Thread.sleep(150);
+    channel.runScheduledPendingTasks();
+    assertThat(channel.config().isAutoRead()).isTrue();
+
+    releaseInbound(channel);
+    channel.finish();
+  }
+
+  @Test
+  public void testIgnoresUnknownCustomers() throws Exception {
+    final EmbeddedChannel channel = new EmbeddedChannel(new QuotaHandler(quotas));
+
+    for (int i = 0; i < 10; i++) {
+      channel.writeInbound(event("test" + i));
+    }
+    assertThat(channel.config().isAutoRead()).isTrue();
+
+    releaseInbound(channel);
+    channel.finish();
+  }
+
+  private EmbeddedChannel newChannel(final String customerId) {
+    final EmbeddedChannel channel = new EmbeddedChannel();
+    channel.attr(AuthHandler.CUSTOMER_KEY).set(customerId);
+    channel.pipeline().addLast(new QuotaHandler(quotas));
+    return channel;
+  }
+
+  private static ByteBuf event(final String event) {
+    return Unpooled.copiedBuffer(event, StandardCharsets.UTF_8);
+  }
+
+  private static void releaseInbound(final EmbeddedChannel channel) {
+    ByteBuf msg;
+    while ((msg = channel.readInbound()) != null) {
+      msg.release();
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.managed;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import com.codahale.metrics.SharedMetricRegistries;
+import com.smoketurner.uploader.config.BatchConfiguration;
+import com.smoketurner.uploader.config.CompressionConfiguration;
+import com.smoketurner.uploader.core.Batch;
+import com.smoketurner.uploader.core.Codecs;
+import com.smoketurner.uploader.core.Uploader;
+import com.smoketurner.uploader.handler.BatchHandler;
+import com.smoketurner.uploader.handler.ConnectionTracker;
+import com.smoketurner.uploader.handler.UploadHandler;
+import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.lifecycle.setup.LifecycleEnvironment;
+import io.dropwizard.util.Size;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ChannelFutureManagerTest {
+
+  private final Uploader uploader = mock(Uploader.class);
+  private final EventLoopGroup workerGroup = new NioEventLoopGroup(1);
+  private final EventLoopGroup clientGroup = new NioEventLoopGroup(1);
+  private final ConnectionTracker connections = new ConnectionTracker();
+  private final CountDownLatch received = new CountDownLatch(1);
+  private final AtomicBoolean spoolStopped = new AtomicBoolean(false);
+  private final List<Boolean> uploadedBeforeSpoolStopped =
+      Collections.synchronizedList(new ArrayList<>());
+
+  @BeforeClass
+  public static void setUpClass() {
+    if (SharedMetricRegistries.tryGetDefault() == null) {
+      SharedMetricRegistries.setDefault("test");
+    }
+  }
+
+  @After
+  public void tearDown() {
+    clientGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+    workerGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testFlushesOpenConnectionsBeforeSpoolStops() throws Exception {
+    doAnswer(
+            invocation -> {
+              final Batch batch = invocation.getArgument(0);
+              uploadedBeforeSpoolStopped.add(!spoolStopped.get() && batch.getCount() == 1);
+              batch.release();
+              return null;
+            })
+        .when(uploader)
+        .upload(any(Batch.class));
+
+    final ChannelFuture listener =
+        new ServerBootstrap()
+            .group(workerGroup)
+            .channel(NioServerSocketChannel.class)
+            .childHandler(newInitializer())
+            .bind(new InetSocketAddress("127.0.0.1", 0));
+
+    // managed in the same order as the application
+    final LifecycleEnvironment lifecycle = new LifecycleEnvironment();
+    lifecycle.manage(new EventLoopGroupManager(workerGroup));
+    lifecycle.manage(new FakeSpoolManager());
+    lifecycle.manage(new ChannelFutureManager(Collections.singletonList(listener), connections));
+
+    final List<LifeCycle> managed = lifecycle.getManagedObjects();
+    for (LifeCycle object : managed) {
+      object.start();
+    }
+
+    final Channel client =
+        new Bootstrap()
+            .group(clientGroup)
+            .channel(NioSocketChannel.class)
+            .handler(new ChannelInboundHandlerAdapter())
+            .connect(listener.channel().localAddress())
+            .sync()
+            .channel();
+    client.writeAndFlush(Unpooled.copiedBuffer("test1\n", StandardCharsets.UTF_8)).sync();
+    assertThat(received.await(10, TimeUnit.SECONDS)).isTrue();
+
+    for (int i = managed.size() - 1; i >= 0; i--) {
+      managed.get(i).stop();
+    }
+
+    assertThat(uploadedBeforeSpoolStopped).containsExactly(true);
+    assertThat(connections.size()).isZero();
+  }
+
+  private ChannelInitializer<SocketChannel> newInitializer() throws Exception {
+    final BatchConfiguration configuration = new BatchConfiguration();
+    final Codecs codecs = new Codecs(new CompressionConfiguration());
+    final UploadHandler uploadHandler = new UploadHandler(uploader);
+    return new ChannelInitializer<SocketChannel>() {
+      @Override
+      protected void initChannel(SocketChannel ch) {
+        ch.pipeline()
+            .addLast(new LineBasedFrameDecoder(1024, true, true))
+            .addLast(
+                new ChannelInboundHandlerAdapter() {
+                  @Override
+                  public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                    ctx.fireChannelRead(msg);
+                    received.countDown();
+                  }
+                })
+            .addLast(new BatchHandler(Size.megabytes(1), configuration, codecs))
+            .addLast(uploadHandler)
+            .addLast(connections);
+      }
+    };
+  }
+
+  /** Stands in for the spool, which drops batches flushed after it has been stopped */
+  private class FakeSpoolManager implements Managed {
+    @Override
+    public void start() {
+      // nothing to start
+    }
+
+    @Override
+    public void stop() {
+      spoolStopped.set(true);
+    }
+  }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright © 2019 Smoke Turner, LLC (github@smoketurner.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.smoketurner.uploader.resources;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+import com.codahale.metrics.SharedMetricRegistries;
+import com.smoketurner.uploader.config.BatchConfiguration;
+import com.smoketurner.uploader.config.CompressionConfiguration;
+import com.smoketurner.uploader.config.QuotaConfiguration;
+import com.smoketurner.uploader.core.Batch;
+import com.smoketurner.uploader.core.BatchAggregator;
+import com.smoketurner.uploader.core.Codecs;
+import com.smoketurner.uploader.core.CustomerQuotas;
+import com.smoketurner.uploader.core.Uploader;
+import io.dropwizard.util.Size;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import javax.annotation.Nullable;
+import javax.security.auth.x500.X500Principal;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class BatchResourceTest {
+
+  private static final int CUSTOMERS = 8;
+  private static final int THREADS_PER_CUSTOMER = 2;
+  private static final int REQUESTS = 50;
+  private static final int LINES = 20;
+  private static final int MAX_LENGTH = 100;
+
+  private final Uploader uploader = mock(Uploader.class);
+  private final EventLoopGroup group = new DefaultEventLoopGroup(4);
+  private final Map<String, List<String>> uploaded = new ConcurrentHashMap<>();
+  private BatchAggregator aggregator;
+  private BatchResource resource;
+
+  @BeforeClass
+  public static void setUpClass() {
+    if (SharedMetricRegistries.tryGetDefault() == null) {
+      SharedMetricRegistries.setDefault("test");
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    final BatchConfiguration configuration = new BatchConfiguration();
+    configuration.setMaxBatchCount(100);
+    configuration.setSharedStripes(4);
+
+    doAnswer(
+            invocation -> {
+              final Batch batch = invocation.getArgument(0);
+              final String customerId = batch.getCustomerId().orElse("");
+              uploaded
+                  .computeIfAbsent(customerId, k -> Collections.synchronizedList(new ArrayList<>()))
+                  .addAll(readLines(batch));
+              batch.release();
+              return null;
+            })
+        .when(uploader)
+        .upload(any(Batch.class));
+
+    aggregator =
+        new BatchAggregator(
+            uploader, Size.megabytes(1), configuration, new Codecs(new CompressionConfiguration()));
+    resource = new BatchResource(uploader, aggregator, group, Size.bytes(MAX_LENGTH));
+  }
+
+  @After
+  public void tearDown() {
+    group.shutdownGracefully();
+  }
+
+  @Test
+  public void testRejectsMissingCustomer() {
+    final TestSecurityContext context = new TestSecurityContext(null);
+    assertThatThrownBy(() -> resource.upload(context, new ByteArrayInputStream(body("test1"))))
+        .isInstanceOf(WebApplicationException.class);
+  }
+
+  @Test
+  public void testBatchesPerCustomer() throws Exception {
+    final Response response =
+        resource.upload(
+            new TestSecurityContext(new X500Principal("CN=Test")),
+            new ByteArrayInputStream(body("test1\ntest2\n")));
+    assertThat(response.getStatus()).isEqualTo(202);
+
+    aggregator.flushAll();
+    assertThat(uploaded.get("test")).containsExactly("test1", "test2");
+  }
+
+  @Test
+  public void testRejectsLongLines() throws Exception {
+    final TestSecurityContext context = new TestSecurityContext(new X500Principal("CN=Test"));
+    final StringBuilder sb = new StringBuilder("test1\r\n");
+    for (int i = 0; i <= MAX_LENGTH; i++) {
+      sb.append('a');
+    }
+    sb.append("\ntest2\n");
+    final byte[] body = body(sb.toString());
+
+    assertThatThrownBy(() -> resource.upload(context, new ByteArrayInputStream(body)))
+        .isInstanceOf(WebApplicationException.class)
+        .satisfies(
+            e ->
+                assertThat(((WebApplicationException) e).getResponse().getStatus())
+                    .isEqualTo(413));
+
+    aggregator.flushAll();
+    assertThat(uploaded.get("test")).containsExactly("test1");
+  }
+
+  @Test
+  public void testRejectsOverQuota() throws Exception {
+    final QuotaConfiguration configuration = new QuotaConfiguration();
+    configuration.setEnabled(true);
+    configuration.setEventsPerSecond(1);
+    configuration.setEventBurst(2);
+    resource =
+        new BatchResource(
+            uploader, aggregator, group, Size.bytes(MAX_LENGTH), new CustomerQuotas(configuration));
+    final TestSecurityContext context = new TestSecurityContext(new X500Principal("CN=Test"));
+
+    assertThatThrownBy(
+            () -> resource.upload(context, new ByteArrayInputStream(body("test1\ntest2\ntest3\n"))))
+        .isInstanceOf(WebApplicationException.class)
+        .satisfies(
+            e -> {
+              final Response response = ((WebApplicationException) e).getResponse();
+              assertThat(response.getStatus()).isEqualTo(429);
+              assertThat(response.getHeaderString("Retry-After")).isEqualTo("1");
+            });
+
+    assertThatThrownBy(() -> resource.upload(context, new ByteArrayInputStream(body("test4\n"))))
+        .isInstanceOf(WebApplicationException.class)
+        .satisfies(
+            e ->
+                assertThat(((WebApplicationException) e).getResponse().getStatus())
+                    .isEqualTo(429));
+
+    aggregator.flushAll();
+    assertThat(uploaded.get("test")).containsExactly("test1", "test2");
+  }
+
+  @Test
+  public void testFailsWhenUnableToBatch() throws Exception {
+    final BatchAggregator failing = mock(BatchAggregator.class);
+    doThrow(new IOException("test"))
+        .when(failing)
+        .add(anyString(), any(byte[].class), anyInt(), anyInt(), any(EventExecutor.class));
+    resource = new BatchResource(uploader, failing, group, Size.bytes(MAX_LENGTH));
+    final TestSecurityContext context = new TestSecurityContext(new X500Principal("CN=Test"));
+
+    assertThatThrownBy(() -> resource.upload(context, new ByteArrayInputStream(body("test1\n"))))
+        .isInstanceOf(WebApplicationException.class)
+        .satisfies(
+            e ->
+                assertThat(((WebApplicationException) e).getResponse().getStatus())
+                    .isEqualTo(500));
+  }
+
+  @Test
+  public void testConcurrentCustomersNeverShareBatches() throws Exception {
+    final int threads = CUSTOMERS * THREADS_PER_CUSTOMER;
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Future<?>> futures = new ArrayList<>();
+
+    for (int t = 0; t < threads; t++) {
+      final String customerId = "customer" + (t % CUSTOMERS);
+      final String thread = String.valueOf(t);
+      futures.add(
+          executor.submit(
+              () -> {
+                final TestSecurityContext context =
+                    new TestSecurityContext(new X500Principal("CN=" + customerId));
+                start.await();
+                for (int r = 0; r < REQUESTS; r++) {
+                  final StringBuilder sb = new StringBuilder();
+                  for (int l = 0; l < LINES; l++) {
+                    sb.append(customerId).append(':').append(thread).append(':');
+                    sb.append(r).append(':').append(l).append('\n');
+                  }
+                  resource.upload(context, new ByteArrayInputStream(body(sb.toString())));
+                }
+                return null;
+              }));
+    }
+
+    start.countDown();
+    for (Future<?> future : futures) {
+      future.get(1, TimeUnit.MINUTES);
+    }
+    aggregator.flushAll();
+    executor.shutdown();
+
+    assertThat(uploaded).hasSize(CUSTOMERS);
+    uploaded.forEach(
+        (customerId, lines) -> {
+          assertThat(lines).hasSize(THREADS_PER_CUSTOMER * REQUESTS * LINES);
+          assertThat(lines).allMatch(line -> line.startsWith(customerId + ":"));
+          assertThat(lines.stream().distinct().count()).isEqualTo(lines.size());
+        });
+  }
+
+  private static byte[] body(final String body) {
+    return body.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static List<String> readLines(final Batch batch) throws Exception {
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(
+                new GZIPInputStream(new ByteArrayInputStream(batch.toByteArray())),
+                StandardCharsets.UTF_8))) {
+      return reader.lines().collect(Collectors.toList());
+    }
+  }
+
+  private static class TestSecurityContext implements SecurityContext {
+    @Nullable private final Principal principal;
+
+    TestSecurityContext(@Nullable final Principal principal) {
+      this.principal = principal;
+    }
+
+    @Override
+    @Nullable
+    public Principal getUserPrincipal() {
+      return principal;
+    }
+
+    @Override
+    public boolean isUserInRole(String role) {
+      return false;
+    }
+
+    @Override
+    public boolean isSecure() {
+      return true;
+    }
+
+    @Override
+    public String getAuthenticationScheme() {
+      return CLIENT_CERT_AUTH;
+    }
+  }
+}